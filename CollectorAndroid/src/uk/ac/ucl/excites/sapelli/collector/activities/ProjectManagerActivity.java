@@ -223,7 +223,8 @@ public class ProjectManagerActivity extends BaseActivity implements StoreUser, D
 		// Get ProjectStore instance:
 		try
 		{
-			projectStore = app.collectorClient.projectStoreHandle.getStore(this);
+			if(projectStore == null) // onResume() may be called many times, but doneUsing() is only called once (in onDestroy())
+				projectStore = app.collectorClient.projectStoreHandle.getStore(this);
 		}
 		catch(Exception e)
 		{
@@ -18,6 +18,12 @@
 
 package uk.ac.ucl.excites.sapelli.collector.load;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor;
 import uk.ac.ucl.excites.sapelli.collector.load.process.TTVSynthesisTask;
@@ -35,10 +41,18 @@ public class AndroidPostProcessor implements PostProcessor
 	@SuppressWarnings("unused")
     private static final String TAG = "AndroidPostProcessor";
 	
+	/**
+	 * Maximum number of TextToVoice engines (and hence of synthesis tasks executed concurrently).
+	 * Each engine binds to the TTS service separately, so initialisation, language switching & file writing of different tasks
+	 * overlap (even if the service itself synthesises one utterance at a time). Kept small because every engine costs memory.
+	 */
+	private static final int TTV_POOL_SIZE = 3;
+	
 	private Context context;
 	private FileStorageProvider fileStorageProvider;
-	private TextToVoice ttv;
-	private boolean warnedAboutLanguage = false;
+	private final List<TextToVoice> ttvEngines = new ArrayList<TextToVoice>(TTV_POOL_SIZE);
+	private final BlockingQueue<TextToVoice> idleTTVEngines = new LinkedBlockingQueue<TextToVoice>();
+	private final AtomicBoolean warnedAboutLanguage = new AtomicBoolean(false);
 
 	public AndroidPostProcessor(Context context, FileStorageProvider fileStorageProvider)
 	{
@@ -50,20 +64,57 @@ public class AndroidPostProcessor implements PostProcessor
     public void initialise(Project project)
 	{
 		// Reset "already warned" flags:
-		warnedAboutLanguage = false;
+		warnedAboutLanguage.set(false);
     }
 	
+	/**
+	 * Each concurrently executed task uses its own TextToVoice engine, taken from a pool of at most {@link #TTV_POOL_SIZE} engines.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#getMaxConcurrentTasks()
+	 */
+	@Override
+	public int getMaxConcurrentTasks()
+	{
+		return TTV_POOL_SIZE;
+	}
+	
+	/**
+	 * Takes an idle engine from the pool, creating one if the pool is not full yet, or waits until one becomes idle.
+	 * 
+	 * @return a TextToVoice engine, to be handed back using {@link #releaseTTV(TextToVoice)}
+	 * @throws InterruptedException
+	 */
+	private TextToVoice acquireTTV() throws InterruptedException
+	{
+		TextToVoice ttv = idleTTVEngines.poll();
+		if(ttv != null)
+			return ttv;
+		synchronized(ttvEngines)
+		{
+			if(ttvEngines.size() < TTV_POOL_SIZE)
+			{
+				ttv = new TextToVoice(context);
+				ttvEngines.add(ttv);
+				return ttv;
+			}
+		}
+		return idleTTVEngines.take();
+	}
+	
+	private void releaseTTV(TextToVoice ttv)
+	{
+		idleTTVEngines.offer(ttv);
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#execute(uk.ac.ucl.excites.sapelli.collector.load.process.TTSSynthesisTask, uk.ac.ucl.excites.sapelli.collector.model.Project, uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper)
 	 */
 	@Override
 	public void execute(TTVSynthesisTask ttsTask, Project project, WarningKeeper warningKeeper) throws Exception
 	{
-		if (ttv == null)
-			ttv = new TextToVoice(context);
-		
 		String filepath = (fileStorageProvider.getProjectSoundFile(project, ttsTask.getAudioFileRelativePath())).getAbsolutePath();
 		
+		TextToVoice ttv = acquireTTV();
 		// keep track of whether or not the user has been warned about an invalid language code (only want to warn them once):
 	    try
 	    {
@@ -75,11 +126,12 @@ public class AndroidPostProcessor implements PostProcessor
 	    }
 	    catch (TTVUnsupportedLanguageException e)
 	    {
-	    	if (!warnedAboutLanguage)
-	    	{
+	    	if (warnedAboutLanguage.compareAndSet(false, true))
 	    		warningKeeper.addWarning("Text-to-speech synthesis: specified language code not supported for synthesis. Make sure the provided language code is valid, but know that Android will not support all valid language codes for speech synthesis.");
-	    		warnedAboutLanguage = true;
-	    	}
+	    }
+	    finally
+	    {
+	    	releaseTTV(ttv);
 	    }
 	}
 
@@ -89,11 +141,13 @@ public class AndroidPostProcessor implements PostProcessor
 	@Override
 	public void freeResources()
 	{
-		// destroy TTS engine:
-		if(ttv != null)
+		// destroy TTS engines:
+		synchronized(ttvEngines)
 		{
-			ttv.destroy();
-			ttv = null;
+			for(TextToVoice ttv : ttvEngines)
+				ttv.destroy();
+			ttvEngines.clear();
+			idleTTVEngines.clear();
 		}
 	}
 
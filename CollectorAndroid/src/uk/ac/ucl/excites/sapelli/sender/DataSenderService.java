@@ -37,6 +37,7 @@ import uk.ac.ucl.excites.sapelli.collector.db.ProjectStore;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
 import uk.ac.ucl.excites.sapelli.sender.gsm.SMSSender;
+import uk.ac.ucl.excites.sapelli.sender.gsm.SMSTransmissionSweeper;
 import uk.ac.ucl.excites.sapelli.sender.gsm.SignalMonitor;
 import uk.ac.ucl.excites.sapelli.sender.util.Constants;
 import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle;
@@ -47,8 +48,11 @@ import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.transmission.Receiver;
 import uk.ac.ucl.excites.sapelli.transmission.Sender;
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
 import uk.ac.ucl.excites.sapelli.transmission.modes.http.HTTPClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.URLConnectionHTTPClient;
 import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSClient;
 import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSTransmission;
 import android.app.Notification;
@@ -81,6 +85,7 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 	private SignalMonitor gsmMonitor;
 	//private List<DropboxSync> folderObservers;
 	private SMSSender smsSender;
+	private HTTPClient httpClient;
 	private int startMode = START_STICKY; // indicates how to behave if the service is killed
 	private boolean allowRebind; // indicates whether onRebind should be used
 	private ProjectStore projectStore;
@@ -89,6 +94,10 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 	
 	private ScheduledExecutorService scheduleTaskExecutor;
 	private ScheduledFuture<?> scheduledFuture;
+	
+	private TransmissionStore receivedTransmissionStore;
+	private Receiver receiver;
+	private SMSTransmissionSweeper sweeper;
 
 	protected CollectorApp app;
 	
@@ -120,8 +129,11 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 		// DataAccess instance:
 		try
 		{
-			projectStore = app.collectorClient.projectStoreHandle.getStore(this);
-			recordStore = app.collectorClient.recordStoreHandle.getStore(this);
+			// onStartCommand() may be called many times, but doneUsing() is only called once (in onDestroy()):
+			if(projectStore == null)
+				projectStore = app.collectorClient.projectStoreHandle.getStore(this);
+			if(recordStore == null)
+				recordStore = app.collectorClient.recordStoreHandle.getStore(this);
 		}
 		catch(Exception e1)
 		{
@@ -186,6 +198,10 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 		else
 			Debug.d("SMS Uploading is not enabled");
 		
+		// Sweep partially received SMS transmissions (decode complete ones, request missing parts, delete expired ones):
+		if(smsUpload && sweeper == null)
+			startTransmissionSweeper();
+		
 		//Start GSM SignalMonitor
 		gsmMonitor = new SignalMonitor(this);
 		
@@ -219,6 +235,7 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 		// The service is no longer used and is being destroyed
 		if(scheduledFuture != null)
 			scheduledFuture.cancel(true);
+		stopTransmissionSweeper();
 		stopSelf();
 		int pid = android.os.Process.myPid();
 		if(Constants.DEBUG_LOG)
@@ -230,6 +247,56 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 		app.collectorClient.recordStoreHandle.doneUsing(this);
 	}
 	
+	/**
+	 * Sets up the receiver of SMS transmissions and starts sweeping its store of partially received transmissions periodically.
+	 * NACKs for incomplete transmissions are sent by SMS, so an SMSSender is created if there was none yet.
+	 */
+	private void startTransmissionSweeper()
+	{
+		try
+		{
+			if(smsSender == null)
+				smsSender = new SMSSender(this);
+			receivedTransmissionStore = new TransmissionStore(app.collectorClient) {};
+			receiver = new Receiver(receivedTransmissionStore, app.collectorClient)
+			{
+				@Override
+				public boolean deleteTransmissionUponDecoding()
+				{
+					return true;
+				}
+			};
+			sweeper = new SMSTransmissionSweeper(receiver, app.collectorClient, this);
+			sweeper.start();
+		}
+		catch(Exception e)
+		{
+			Debug.e("Could not start sweeping incomplete transmissions", e);
+		}
+	}
+	
+	private void stopTransmissionSweeper()
+	{
+		if(sweeper != null)
+		{
+			sweeper.stop();
+			sweeper = null;
+		}
+		if(receivedTransmissionStore != null)
+		{
+			try
+			{
+				receivedTransmissionStore.close();
+			}
+			catch(Exception e)
+			{
+				Debug.e("Could not close transmission store", e);
+			}
+			receivedTransmissionStore = null;
+		}
+		receiver = null;
+	}
+	
 	private class SendingTask implements Runnable
 	{
 		private Context context = DataSenderService.this;
@@ -505,8 +572,9 @@ public class DataSenderService extends Service implements Sender, StoreHandle.St
 	@Override
 	public HTTPClient getHTTPClient()
 	{
-		// TODO return HTTPClient
-		return null;
+		if(httpClient == null)
+			httpClient = new URLConnectionHTTPClient();
+		return httpClient;
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.sender.gsm;
+
+import uk.ac.ucl.excites.sapelli.transmission.IncompleteTransmissionSweeper;
+import uk.ac.ucl.excites.sapelli.transmission.Receiver;
+import uk.ac.ucl.excites.sapelli.transmission.Sender;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.binary.BinarySMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.NackPayload;
+import android.util.Log;
+
+/**
+ * {@link IncompleteTransmissionSweeper} which sends NACKs by SMS, using the same kind of SMS (binary or text) as the
+ * incompletely received transmission they concern.
+ * 
+ * @author mstevens
+ */
+public class SMSTransmissionSweeper extends IncompleteTransmissionSweeper
+{
+
+	static private final String TAG = "SMSTransmissionSweeper";
+	
+	private final TransmissionClient client;
+	private final Sender sender;
+	
+	/**
+	 * @param receiver the receiver holding the partially received transmissions
+	 * @param client
+	 * @param sender used to send NACKs, must provide an SMS service
+	 */
+	public SMSTransmissionSweeper(Receiver receiver, TransmissionClient client, Sender sender)
+	{
+		super(receiver);
+		this.client = client;
+		this.sender = sender;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.IncompleteTransmissionSweeper#sendNack(uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSTransmission, uk.ac.ucl.excites.sapelli.transmission.payloads.NackPayload)
+	 */
+	@Override
+	protected void sendNack(SMSTransmission<?> subject, NackPayload nack) throws Exception
+	{
+		if(sender.getSMSService() == null)
+			throw new IllegalStateException("No SMS service available to send NACK");
+		SMSTransmission<?> nackTransmission;
+		if(subject instanceof TextSMSTransmission)
+			nackTransmission = new TextSMSTransmission(client, subject.getSender(), nack);
+		else
+			nackTransmission = new BinarySMSTransmission(client, subject.getSender(), nack);
+		Log.i(TAG, "Requesting " + nack.getMissingParts().size() + " missing part(s) of transmission " + subject.getLocalID() + " from " + subject.getSender());
+		nackTransmission.send(sender);
+	}
+
+}
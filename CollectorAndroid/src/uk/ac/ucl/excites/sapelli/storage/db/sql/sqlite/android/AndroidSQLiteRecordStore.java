@@ -23,6 +23,8 @@ import java.util.List;
 
 import uk.ac.ucl.excites.sapelli.collector.BuildConfig;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
 import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TransactionalStringBuilder;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
@@ -112,56 +114,34 @@ public class AndroidSQLiteRecordStore extends SQLiteRecordStore
 	}
 	
 	/**
-	 * In SQlite basic transactions (those controlled with BEGIN...COMMIT/ROLLBACK) cannot
-	 * be nested (for that one needs to use the SAVEPOINT and RELEASE commands, which we won't
-	 * use here). However, for flexibility reasons we will pretend that it is possible (i.e. we
-	 * don't throw an exception if a request arrives to open a 2nd, 3rd, etc. transaction).
+	 * Uses the Android transaction API for the outer-most transaction, nested transactions are
+	 * implemented by {@link SQLiteRecordStore} using savepoints.
 	 * 
-	 * @see <a href="http://sqlite.org/lang_transaction.html">http://sqlite.org/lang_transaction.html</a>
-	 * 
-	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#doStartTransaction()
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore#beginOuterTransaction()
 	 */
 	@Override
-	protected void doStartTransaction() throws DBException
+	protected void beginOuterTransaction() throws Exception
 	{
-		if(!isInTransaction())
-			try
-			{
-				db.beginTransaction();
-			}
-			catch(Exception ex)
-			{
-				throw new DBException("Could not open SQLite transaction", ex);
-			}
+		db.beginTransaction();
 	}
 
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore#commitOuterTransaction()
+	 */
 	@Override
-	protected void doCommitTransaction() throws DBException
+	protected void commitOuterTransaction() throws Exception
 	{
-		if(numberOfOpenTransactions() == 1) // higher numbers indicate nested transactions which are simulated
-			try
-			{
-				db.setTransactionSuccessful();
-				db.endTransaction();
-			}
-			catch(Exception ex)
-			{
-				throw new DBException("Could not commit SQLite transaction", ex);
-			}
+		db.setTransactionSuccessful();
+		db.endTransaction();
 	}
 
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore#rollbackOuterTransaction()
+	 */
 	@Override
-	protected void doRollbackTransaction() throws DBException
+	protected void rollbackOuterTransaction() throws Exception
 	{
-		if(numberOfOpenTransactions() == 1) // higher numbers indicate nested transactions which are simulated
-			try
-			{
-				db.endTransaction();
-			}
-			catch(Exception ex)
-			{
-				throw new DBException("Could not roll-back SQLite transaction", ex);
-			}
+		db.endTransaction();
 	}
 
 	/* (non-Javadoc)
@@ -171,6 +151,7 @@ public class AndroidSQLiteRecordStore extends SQLiteRecordStore
 	@Override
 	protected ISQLiteCursor executeQuery(String sql, List<SQLiteColumn<?, ?>> paramCols, List<? extends Object> sapArguments) throws DBException
 	{
+		Timer.Context timing = Metrics.Time("sqlite.executeQuery");
 		try
 		{
 			// Build selection arguments array:
@@ -213,6 +194,10 @@ public class AndroidSQLiteRecordStore extends SQLiteRecordStore
 			Log.d(TAG, "Error: Failed to execute raw SQLite query (" + sql + ").", e);
 			throw new DBException("Failed to execute SQLite selection query: " + sql, e);
 		}
+		finally
+		{
+			timing.stop();
+		}
 	}
 	
 	@Override
@@ -0,0 +1,430 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uk.ac.ucl.excites.sapelli.collector.db.ProjectStore;
+import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreUser;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.util.BinaryHelpers;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.IncrementalExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.csv.CSVRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsExporter;
+import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsImporter;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+import uk.ac.ucl.excites.sapelli.transmission.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.Transmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.Message;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSAgent;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.binary.BinaryMessage;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.binary.BinarySMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.text.TextMessage;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.RecordsPayload;
+
+/**
+ * Headless processing of Sapelli Collector projects and data, for bulk operations on a server:
+ * loading all projects in a folder, importing XML records exports, decoding dumps of received SMS messages and exporting records.
+ * 
+ * Projects are loaded (i.e. extracted and parsed) in parallel, but all database operations happen on the calling thread
+ * (SQLite4Java connections are confined to the thread that opened them).
+ * The duration and throughput of each stage is reported to the given PrintStream.
+ * 
+ * Transmission dumps are text files with one received SMS message per line, formatted as:
+ * {@code <sender phone number> TAB (BIN|TXT) TAB <content>}, with the content of binary messages written in hexadecimal.
+ * Empty lines and lines starting with {@code #} are ignored.
+ * 
+ * @author mstevens
+ */
+public class BatchProcessor implements StoreUser
+{
+
+	// STATICS-------------------------------------------------------
+	static public final String DUMP_BINARY_MESSAGE = "BIN";
+	static public final String DUMP_TEXT_MESSAGE = "TXT";
+	static public final char DUMP_SEPARATOR = '\t';
+	static public final char DUMP_COMMENT = '#';
+	static public final String XML_FILE_EXTENSION = "xml";
+	
+	static public final String EXPORT_DESCRIPTION = "Batch";
+	
+	// DYNAMICS------------------------------------------------------
+	private final JavaCollectorClient client;
+	private final int numberOfThreads;
+	private final PrintStream report;
+	
+	private RecordStore recordStore;
+	private ProjectStore projectStore;
+	private int numberOfFailures = 0;
+	
+	/**
+	 * @param client
+	 * @param numberOfThreads - number of threads used to load projects and to write CSV exports
+	 * @param report - stream to write timings, warnings and errors to
+	 */
+	public BatchProcessor(JavaCollectorClient client, int numberOfThreads, PrintStream report)
+	{
+		if(numberOfThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.client = client;
+		this.numberOfThreads = numberOfThreads;
+		this.report = report;
+	}
+	
+	private RecordStore getRecordStore() throws DBException
+	{
+		if(recordStore == null)
+			recordStore = client.recordStoreHandle.getStore(this);
+		return recordStore;
+	}
+	
+	private ProjectStore getProjectStore() throws DBException
+	{
+		if(projectStore == null)
+			projectStore = client.projectStoreHandle.getStore(this);
+		return projectStore;
+	}
+	
+	/**
+	 * Loads all Sapelli files in the given folder in parallel, and stores the resulting projects.
+	 * 
+	 * @param folder
+	 * @return the loaded projects
+	 * @throws Exception
+	 */
+	public List<Project> loadProjects(File folder) throws Exception
+	{
+		File[] sapFiles = folder.listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(File file)
+			{
+				return file.isFile() && ProjectLoader.HasSapelliFileExtension(file);
+			}
+		});
+		if(sapFiles == null)
+			throw new IllegalArgumentException("Not a folder: " + folder.getAbsolutePath());
+		Arrays.sort(sapFiles);
+		
+		Stage stage = new Stage("load projects");
+		List<Project> projects = new ArrayList<Project>(sapFiles.length);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try
+		{
+			// Load in parallel (each task uses its own loader):
+			List<Future<Project>> results = new ArrayList<Future<Project>>(sapFiles.length);
+			for(final File sapFile : sapFiles)
+				results.add(executor.submit(new Callable<Project>()
+				{
+					@Override
+					public Project call() throws Exception
+					{
+						return new ProjectLoader(client.getFileStorageProvider()).load(sapFile);
+					}
+				}));
+			// Store on this thread:
+			for(int f = 0; f < sapFiles.length; f++)
+			{
+				try
+				{
+					Project project = results.get(f).get();
+					getProjectStore().add(project);
+					projects.add(project);
+				}
+				catch(ExecutionException ee)
+				{
+					fail("Could not load " + sapFiles[f].getName(), ee.getCause());
+				}
+				catch(Exception e)
+				{
+					fail("Could not store project from " + sapFiles[f].getName(), e);
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		stage.done(projects.size(), "projects");
+		return projects;
+	}
+	
+	/**
+	 * Imports the given XML records export(s) into the record store.
+	 * 
+	 * @param fileOrFolder - an XML file or a folder containing XML files
+	 * @return the number of imported records
+	 * @throws Exception
+	 */
+	public int importXML(File fileOrFolder) throws Exception
+	{
+		File[] xmlFiles = fileOrFolder.isDirectory() ?
+			fileOrFolder.listFiles(new FileFilter()
+			{
+				@Override
+				public boolean accept(File file)
+				{
+					return file.isFile() && file.getName().toLowerCase().endsWith("." + XML_FILE_EXTENSION);
+				}
+			}) :
+			new File[] { fileOrFolder };
+		Arrays.sort(xmlFiles);
+		
+		Stage stage = new Stage("import XML");
+		XMLRecordsImporter importer = new XMLRecordsImporter(client);
+		int count = 0;
+		for(File xmlFile : xmlFiles)
+		{
+			try
+			{
+				count += importer.importInto(xmlFile, getRecordStore(), XMLRecordsImporter.DEFAULT_BATCH_SIZE);
+			}
+			catch(Exception e)
+			{
+				fail("Could not import " + xmlFile.getName(), e);
+			}
+		}
+		stage.done(count, "records");
+		return count;
+	}
+	
+	/**
+	 * Reassembles and decodes the transmissions contained in the given dump of received SMS messages, and stores the records they carry.
+	 * 
+	 * @param dumpFile
+	 * @return the number of stored records
+	 * @throws Exception
+	 */
+	public int decodeTransmissions(File dumpFile) throws Exception
+	{
+		Stage stage = new Stage("decode transmissions");
+		Map<String, BinarySMSTransmission> binaryTransmissions = new HashMap<String, BinarySMSTransmission>();
+		Map<String, TextSMSTransmission> textTransmissions = new HashMap<String, TextSMSTransmission>();
+		int messages = 0;
+		int decoded = 0;
+		int records = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dumpFile), "UTF-8"));
+		try
+		{
+			String line;
+			int lineNumber = 0;
+			while((line = reader.readLine()) != null)
+			{
+				lineNumber++;
+				if(line.isEmpty() || line.charAt(0) == DUMP_COMMENT)
+					continue;
+				String[] parts = line.split(String.valueOf(DUMP_SEPARATOR), 3);
+				try
+				{
+					if(parts.length != 3)
+						throw new IllegalArgumentException("expected 3 tab-separated parts");
+					SMSAgent sender = new SMSAgent(parts[0]);
+					Transmission completed = null;
+					if(DUMP_BINARY_MESSAGE.equals(parts[1]))
+					{
+						BinaryMessage msg = new BinaryMessage(sender, BinaryHelpers.fromHexadecimalString(parts[2]));
+						String key = getTransmissionKey(msg);
+						BinarySMSTransmission transmission = binaryTransmissions.get(key);
+						if(transmission == null)
+							binaryTransmissions.put(key, transmission = new BinarySMSTransmission(client, msg));
+						else
+							transmission.receivePart(msg);
+						if(transmission.isComplete())
+							completed = binaryTransmissions.remove(key);
+					}
+					else if(DUMP_TEXT_MESSAGE.equals(parts[1]))
+					{
+						TextMessage msg = new TextMessage(sender, parts[2]);
+						String key = getTransmissionKey(msg);
+						TextSMSTransmission transmission = textTransmissions.get(key);
+						if(transmission == null)
+							textTransmissions.put(key, transmission = new TextSMSTransmission(client, msg));
+						else
+							transmission.receivePart(msg);
+						if(transmission.isComplete())
+							completed = textTransmissions.remove(key);
+					}
+					else
+						throw new IllegalArgumentException("unknown message type: " + parts[1]);
+					messages++;
+					if(completed != null)
+					{
+						records += storeRecords(completed);
+						decoded++;
+					}
+				}
+				catch(Exception e)
+				{
+					fail("Could not process line " + lineNumber + " of " + dumpFile.getName(), e);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		int incomplete = binaryTransmissions.size() + textTransmissions.size();
+		if(incomplete > 0)
+			report.println("Warning: " + incomplete + " transmission(s) in " + dumpFile.getName() + " are incomplete");
+		report.println(" - " + messages + " messages, " + decoded + " transmissions decoded");
+		stage.done(records, "records");
+		return records;
+	}
+	
+	private String getTransmissionKey(Message msg)
+	{
+		return msg.getSender().toString() + DUMP_SEPARATOR + msg.getSendingSideTransmissionID() + DUMP_SEPARATOR + msg.getPayloadHash();
+	}
+	
+	/**
+	 * @param transmission a complete transmission
+	 * @return the number of stored records
+	 * @throws Exception
+	 */
+	private int storeRecords(Transmission transmission) throws Exception
+	{
+		transmission.receive();
+		Payload payload = transmission.getPayload();
+		if(!(payload instanceof RecordsPayload))
+			return 0;
+		List<Record> records = ((RecordsPayload) payload).getRecords();
+		getRecordStore().store(records);
+		return records.size();
+	}
+	
+	/**
+	 * Exports the records of (some of) the stored projects.
+	 * 
+	 * @param folder - the folder to export to
+	 * @param format
+	 * @param projectIDs - IDs of the projects of which to export records, or {@code null} to export records of all projects
+	 * @param incrementalDestination - if not {@code null} only records which were inserted or updated since the previous export to this destination are exported
+	 * @return the result of the export
+	 * @throws Exception
+	 */
+	public ExportResult export(File folder, Exporter.Format format, Collection<Integer> projectIDs, String incrementalDestination) throws Exception
+	{
+		Stage stage = new Stage("export " + format.name());
+		
+		// Determine schemata:
+		List<Schema> schemata = new ArrayList<Schema>();
+		for(Project project : getProjectStore().retrieveProjects())
+			if(projectIDs == null || projectIDs.contains(project.getID()))
+				for(Form form : project.getForms())
+					if(form.isProducesRecords())
+						schemata.add(form.getSchema());
+		
+		// Export:
+		Exporter exporter = format == Exporter.Format.CSV ?
+			new CSVRecordsExporter(folder, CSVRecordsExporter.DEFAULT_SEPARATOR, numberOfThreads) :
+			new XMLRecordsExporter(folder);
+		ExportResult result;
+		if(schemata.isEmpty())
+			result = ExportResult.NothingToExport();
+		else if(incrementalDestination != null)
+			result = new IncrementalExporter(getRecordStore(), incrementalDestination).exportChanges(exporter, schemata, EXPORT_DESCRIPTION);
+		else
+			result = exporter.export(getRecordStore(), new RecordsQuery(Source.From(schemata)), EXPORT_DESCRIPTION);
+		if(result.getFailureReason() != null)
+			fail("Export failed", result.getFailureReason());
+		for(File file : result.getFiles())
+			report.println(" - " + file.getAbsolutePath());
+		stage.done(result.getNumberedOfExportedRecords(), "records");
+		return result;
+	}
+	
+	/**
+	 * Releases the stores.
+	 */
+	public void close()
+	{
+		if(recordStore != null)
+			client.recordStoreHandle.doneUsing(this);
+		if(projectStore != null)
+			client.projectStoreHandle.doneUsing(this);
+		recordStore = null;
+		projectStore = null;
+	}
+	
+	private void fail(String message, Throwable cause)
+	{
+		numberOfFailures++;
+		report.println("Error: " + message + (cause != null ? ": " + cause.toString() : ""));
+	}
+	
+	/**
+	 * @return the number of errors that occurred (and were reported) so far
+	 */
+	public int getNumberOfFailures()
+	{
+		return numberOfFailures;
+	}
+	
+	/**
+	 * Measures and reports the duration and throughput of a processing stage
+	 * 
+	 * @author mstevens
+	 */
+	private class Stage
+	{
+		
+		private final String name;
+		private final long startNanos;
+		
+		public Stage(String name)
+		{
+			this.name = name;
+			this.startNanos = System.nanoTime();
+		}
+		
+		public void done(int count, String unit)
+		{
+			long ms = Math.max((System.nanoTime() - startNanos) / 1000000, 1);
+			report.println(String.format("%s: %d %s in %d ms (%.1f %s/s)", name, count, unit, ms, count * 1000.0 / ms, unit));
+		}
+		
+	}
+
+}
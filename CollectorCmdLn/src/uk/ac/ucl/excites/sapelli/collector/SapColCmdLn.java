@@ -20,6 +20,8 @@ package uk.ac.ucl.excites.sapelli.collector;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -32,6 +34,7 @@ import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -41,7 +44,7 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * Simple command-line interface to load/verify (and in the future store) Sapelli Collector projects
+ * Simple command-line interface to load/verify Sapelli Collector projects, and to process projects and data in batch (see {@link BatchProcessor})
  * 
  * @author mstevens
  */
@@ -55,7 +58,18 @@ public class SapColCmdLn
 		Option loadFile = Option.builder("load").hasArg().argName("sap_file").desc("Sapelli project (*.sap) to load").build();
 		options.addOption(loadFile);
 		options.addOption("json", false, "Produce JSON output");
+		// Batch mode:
+		options.addOption(Option.builder("loaddir").hasArg().argName("folder").desc("Load and store all Sapelli projects in folder (in parallel)").build());
+		options.addOption(Option.builder("importxml").hasArg().argName("xml_file_or_folder").desc("Import records from XML export(s)").build());
+		options.addOption(Option.builder("decode").hasArg().argName("dump_file").desc("Decode transmissions from SMS dump (lines: sender<TAB>BIN|TXT<TAB>content, BIN content in hex) and store their records").build());
+		options.addOption(Option.builder("export").hasArg().argName("folder").desc("Export records to folder").build());
+		options.addOption(Option.builder("format").hasArg().argName("csv|xml").desc("Export format (default: xml)").build());
+		options.addOption(Option.builder("projects").hasArg().argName("ids").desc("Comma-separated IDs of projects to export records of (default: all)").build());
+		options.addOption(Option.builder("incremental").hasArg().argName("destination").desc("Only export records changed since the previous export to destination").build());
+		options.addOption(Option.builder("threads").hasArg().argName("n").desc("Number of threads to use (default: number of processors)").build());
 	}
+	
+	static private final String[] BATCH_OPTIONS = { "loaddir", "importxml", "decode", "export" };
 
 	/**
 	 * @param args
@@ -89,13 +103,11 @@ public class SapColCmdLn
 		if(!dlFolder.exists())
 			dlFolder.mkdir();
 		FileStorageProvider fsp = new FileStorageProvider(baseFolder, dlFolder);
-
-		// Setup database(s)
-		// CollectorClient sapClient = new CollectorClient();
-		// RecordStore recStore = new JavaSQLiteRecordStore(sapClient, DB_FOLDER, "ImportAndQueryTest");
-		// //new DB4ORecordStore(new SapelliCollectorClient(projStore), DB4O_FOLDER, "ImportAndQueryTest");
-		// ProjectStore projStore = new ProjectRecordStore(recStore, fsp);
-		// sapClient.setProjectStore(projStore); // !!!
+		
+		// Batch mode:
+		for(String batchOption : BATCH_OPTIONS)
+			if(cmd.hasOption(batchOption))
+				System.exit(runBatch(cmd, new JavaCollectorClient(baseFolder, dlFolder)));
 
 		if(cmd.hasOption("load"))
 		{
@@ -123,6 +135,54 @@ public class SapColCmdLn
 		System.exit(0);
 	}
 
+	/**
+	 * Runs the requested batch stages in order: loading projects, importing XML, decoding transmissions, exporting.
+	 * 
+	 * @param cmd
+	 * @param client
+	 * @return the exit code
+	 */
+	static private int runBatch(CommandLine cmd, JavaCollectorClient client)
+	{
+		BatchProcessor processor = null;
+		try
+		{
+			int threads = cmd.hasOption("threads") ? Integer.parseInt(cmd.getOptionValue("threads")) : Runtime.getRuntime().availableProcessors();
+			processor = new BatchProcessor(client, threads, System.out);
+			if(cmd.hasOption("loaddir"))
+				processor.loadProjects(new File(cmd.getOptionValue("loaddir")));
+			if(cmd.hasOption("importxml"))
+				processor.importXML(new File(cmd.getOptionValue("importxml")));
+			if(cmd.hasOption("decode"))
+				processor.decodeTransmissions(new File(cmd.getOptionValue("decode")));
+			if(cmd.hasOption("export"))
+			{
+				List<Integer> projectIDs = null;
+				if(cmd.hasOption("projects"))
+				{
+					projectIDs = new ArrayList<Integer>();
+					for(String id : cmd.getOptionValue("projects").split(","))
+						projectIDs.add(Integer.valueOf(id.trim()));
+				}
+				processor.export(	new File(cmd.getOptionValue("export")),
+									Exporter.Format.valueOf(cmd.getOptionValue("format", Exporter.Format.XML.name()).toUpperCase()),
+									projectIDs,
+									cmd.getOptionValue("incremental"));
+			}
+			return processor.getNumberOfFailures() == 0 ? 0 : 3;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace(System.err);
+			return 2;
+		}
+		finally
+		{
+			if(processor != null)
+				processor.close();
+		}
+	}
+
 	static public void printProjectInfo(File sapFile, Project project)
 	{
 		System.out.println("Project info:");
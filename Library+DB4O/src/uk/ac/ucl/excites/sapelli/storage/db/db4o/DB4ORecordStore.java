@@ -39,7 +39,7 @@ import uk.ac.ucl.excites.sapelli.storage.model.indexes.AutoIncrementingPrimaryKe
 import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
 import uk.ac.ucl.excites.sapelli.storage.queries.SingleRecordQuery;
 import uk.ac.ucl.excites.sapelli.storage.queries.Source;
-import uk.ac.ucl.excites.sapelli.storage.queries.constraints.Constraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.CompiledConstraint;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -93,9 +93,16 @@ public class DB4ORecordStore extends RecordStore
 		// does nothing
 	}
 
+	/**
+	 * Only the outer-most transaction is actually committed, nested transactions are simulated.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#doCommitTransaction()
+	 */
 	@Override
 	protected void doCommitTransaction() throws DBException
 	{
+		if(numberOfOpenTransactions() > 1)
+			return; // nested transaction, changes will be committed along with the outer-most one
 		try
 		{
 			db4o.commit();
@@ -106,9 +113,21 @@ public class DB4ORecordStore extends RecordStore
 		}
 	}
 
+	/**
+	 * DB4O can only roll back all changes since the last commit. For a nested transaction that would also discard the changes
+	 * of the enclosing transaction(s) while those remain open, so instead the outer-most transaction is marked as rollback-only
+	 * and the actual roll-back happens when it ends.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#doRollbackTransaction()
+	 */
 	@Override
 	protected void doRollbackTransaction() throws DBException
 	{
+		if(numberOfOpenTransactions() > 1)
+		{
+			markRollbackOnly();
+			return;
+		}
 		try
 		{
 			db4o.rollback();
@@ -267,25 +286,26 @@ public class DB4ORecordStore extends RecordStore
 		
 		// Activate result records, filter by query constraints & add to new ArrayList (list returned by DB4O doesn't allow sorting and possibly other things):
 		List<Record> result = new ArrayList<Record>();
-		Constraint constraints = query.getConstraints();
+		CompiledConstraint constraints = CompiledConstraint.Compile(query.getConstraints()); // resolves columns once per schema instead of once per record
 		while(resultSet.hasNext())
 		{
 			Record r = resultSet.next();
 			db4o.activate(r, ACTIVATION_DEPTH);
 			// Filter again: by schema (this time using full comparison), and by contraint(s) (which doesn't work inside the Predicate's match() method, probably due to insufficiently deep activation)  
-			if(source.isValid(r) && (constraints == null || constraints.isValid(r))) 
+			if(source.isValid(r) && constraints.isValid(r)) 
 				result.add(r);
 		}
 		
 		// Sort result:
 		query.getOrder().sort(result);
 		
-		// Apply limit if necessary & return result:
+		// Apply limit if necessary:
 		int limit = query.getLimit();
 		if(limit != RecordsQuery.NO_LIMIT && result.size() > limit)
-			return result.subList(0, limit);
-		else
-			return result;
+			result = result.subList(0, limit);
+		
+		// Apply projection if necessary (returns partial copies, the stored records must not become partial) & return result:
+		return query.project(result);
 	}
 
 	/* (non-Javadoc)
@@ -385,7 +405,7 @@ public class DB4ORecordStore extends RecordStore
 	 * 
 	 * @author mstevens 
 	 */
-	private class AutoIncrementDictionary extends HashMap<Schema, Long>
+	static private class AutoIncrementDictionary extends HashMap<Schema, Long>
 	{
 		
 		private static final long serialVersionUID = 2L;
@@ -0,0 +1,97 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.db.db4o.benchmark;
+
+import java.io.File;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.BenchmarkClient;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.ImportBenchmark;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.ProjectionBenchmark;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.TransactionStressTest;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.db4o.DB4ORecordStore;
+
+/**
+ * Runs storage benchmarks and stress tests against a {@link DB4ORecordStore}.
+ * 
+ * Usage: DB4OBenchmarks &lt;benchmark&gt; [folder]
+ * 
+ * On Java 9 and later DB4O needs reflective access to JDK classes, so the JVM must be started with options such as
+ * {@code --add-opens java.base/java.lang=ALL-UNNAMED --add-opens java.base/java.util=ALL-UNNAMED}.
+ * 
+ * @author mstevens
+ */
+public class DB4OBenchmarks
+{
+
+	static private final String DATABASE_BASENAME = "Benchmarks";
+	static private final int IMPORT_RECORDS = 200; // DB4O commits are slow, so a smaller batch than the default
+	static private final int PROJECTION_RECORDS = 300; // storing each record involves a scan for an existing one, so populating is quadratic on DB4O
+	
+	/**
+	 * @param args benchmark name, optionally followed by the folder to create the database in (default: temp folder)
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 1)
+		{
+			System.err.println("Usage: " + DB4OBenchmarks.class.getSimpleName() + " <transactions|import|projection> [folder]");
+			System.exit(1);
+		}
+		final File folder = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), DB4OBenchmarks.class.getSimpleName());
+		if(!folder.exists())
+			folder.mkdirs();
+		BenchmarkClient client = new BenchmarkClient()
+		{
+			@Override
+			protected RecordStore createRecordStore() throws DBException
+			{
+				try
+				{
+					return new DB4ORecordStore(this, folder, DATABASE_BASENAME);
+				}
+				catch(Exception e)
+				{
+					throw new DBException("Could not open DB4O record store", e);
+				}
+			}
+		};
+		
+		boolean passed;
+		if("transactions".equals(args[0]))
+			passed = new TransactionStressTest(client, System.out).run(	TransactionStressTest.DEFAULT_THREADS,
+																		TransactionStressTest.DEFAULT_TRANSACTIONS_PER_THREAD,
+																		TransactionStressTest.DEFAULT_RECORDS_PER_TRANSACTION,
+																		TransactionStressTest.DEFAULT_ROLLBACK_RATE);
+		else if("import".equals(args[0]))
+			passed = new ImportBenchmark(client, System.out).run(IMPORT_RECORDS, ImportBenchmark.DEFAULT_ERROR_RATE);
+		else if("projection".equals(args[0]))
+			passed = new ProjectionBenchmark(client, System.out).run(PROJECTION_RECORDS, ProjectionBenchmark.DEFAULT_ROUNDS);
+		else
+		{
+			System.err.println("Unknown benchmark: " + args[0]);
+			passed = false;
+		}
+		System.exit(passed ? 0 : 2);
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java;
+
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.ISQLiteCursor;
+
+/**
+ * An {@link ISQLiteCursor} over query result rows which have been read into memory.
+ * Unlike a {@link JavaSQLiteStatement} acting as a cursor it is not tied to the thread of the connection the query was executed on.
+ * 
+ * Mimics the behaviour of {@link JavaSQLiteStatement#executeSelectRows()}: {@link #hasRow()} indicates whether there is at
+ * least one row before the first call of {@link #moveToNext()}, which moves the cursor to the first row.
+ * 
+ * @author mstevens
+ */
+public class BufferedCursor implements ISQLiteCursor
+{
+
+	private List<Object[]> rows;
+	private int position = -1;
+	
+	/**
+	 * @param rows
+	 */
+	public BufferedCursor(List<Object[]> rows)
+	{
+		this.rows = rows;
+	}
+	
+	private Object getValue(int columnIdx) throws DBException
+	{
+		if(rows == null)
+			throw new DBException("Cursor is closed");
+		if(position < 0 || position >= rows.size())
+			throw new DBException("Cursor is not positioned on a row");
+		Object[] row = rows.get(position);
+		if(columnIdx < 0 || columnIdx >= row.length)
+			throw new DBException("Invalid column index: " + columnIdx);
+		return row[columnIdx];
+	}
+
+	@Override
+	public byte[] getBlob(int columnIdx) throws DBException
+	{
+		Object value = getValue(columnIdx);
+		if(value == null || value instanceof byte[])
+			return (byte[]) value;
+		return value.toString().getBytes();
+	}
+
+	@Override
+	public long getLong(int columnIdx) throws DBException
+	{
+		Object value = getValue(columnIdx);
+		if(value instanceof Number)
+			return ((Number) value).longValue();
+		if(value == null)
+			return 0; // same as SQLite
+		try
+		{
+			return Long.parseLong(value.toString());
+		}
+		catch(NumberFormatException nfe)
+		{
+			throw new DBException("Cannot convert value in column " + columnIdx + " to long", nfe);
+		}
+	}
+
+	@Override
+	public double getDouble(int columnIdx) throws DBException
+	{
+		Object value = getValue(columnIdx);
+		if(value instanceof Number)
+			return ((Number) value).doubleValue();
+		if(value == null)
+			return 0.0d; // same as SQLite
+		try
+		{
+			return Double.parseDouble(value.toString());
+		}
+		catch(NumberFormatException nfe)
+		{
+			throw new DBException("Cannot convert value in column " + columnIdx + " to double", nfe);
+		}
+	}
+
+	@Override
+	public String getString(int columnIdx) throws DBException
+	{
+		Object value = getValue(columnIdx);
+		if(value == null || value instanceof String)
+			return (String) value;
+		if(value instanceof byte[])
+			return new String((byte[]) value);
+		return value.toString();
+	}
+
+	@Override
+	public boolean isNull(int columnIdx) throws DBException
+	{
+		return getValue(columnIdx) == null;
+	}
+
+	@Override
+	public boolean hasRow()
+	{
+		return rows != null && (position < 0 ? !rows.isEmpty() : position < rows.size());
+	}
+
+	@Override
+	public boolean moveToNext() throws DBException
+	{
+		if(rows == null)
+			throw new DBException("Cursor is closed");
+		if(position < rows.size())
+			position++;
+		return position < rows.size();
+	}
+
+	@Override
+	public void close()
+	{
+		rows = null;
+	}
+
+	@Override
+	public boolean isClosed()
+	{
+		return rows == null;
+	}
+
+}
@@ -0,0 +1,306 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java;
+
+import java.io.File;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.FileUtils;
+
+import com.almworks.sqlite4java.SQLiteBackup;
+import com.almworks.sqlite4java.SQLiteBusyException;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteJob;
+import com.almworks.sqlite4java.SQLiteQueue;
+
+/**
+ * Background back-up engine for SQLite databases, based on the SQLite Online Backup API.
+ * 
+ * Each back-up runs on its own thread, using its own read-only connection to the source database. Hence, unlike a back-up
+ * performed on the writer connection, it does not stop the connection's owner from writing while it is in progress.
+ * Pages are copied in steps of a configurable size, optionally separated by a pause, so that each step only briefly holds
+ * a read lock on the source database (in WAL journal mode readers do not block the writer at all).
+ * 
+ * When the source database is modified (by another connection) during the back-up SQLite restarts the back-up. To ensure that
+ * back-ups of busy databases eventually finish, all remaining pages are copied in a single step once the back-up has been
+ * restarted {@link #getMaxRestarts()} times.
+ * 
+ * In skip-if-unchanged mode the engine remembers the change count (as reported by the writer connection) and the schema version
+ * at the time of the last successful back-up and, if neither has changed since, the previous back-up file is copied instead of
+ * the live database. The schema version is needed because the change count does not include schema changes (CREATE/DROP/ALTER).
+ * Note that this is not a differential back-up: as soon as anything has changed the whole database is copied again, because
+ * the SQLite version bundled with sqlite4java offers no way to find out (or read) only the pages changed since the last back-up.
+ * 
+ * @see <a href="http://www.sqlite.org/backup.html">Using the SQLite Online Backup API</a>
+ * 
+ * @author mstevens
+ */
+public class JavaSQLiteOnlineBackup
+{
+	
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_PAGES_PER_STEP = 32;
+	static public final long DEFAULT_STEP_PAUSE_MS = 0;
+	static public final int DEFAULT_MAX_RESTARTS = 3;
+	static public final long BUSY_RETRY_MS = 50;
+	
+	/**
+	 * Receives progress updates from back-ups (called on the back-up thread)
+	 * 
+	 * @author mstevens
+	 */
+	public interface ProgressListener
+	{
+		
+		/**
+		 * @param destinationFile
+		 * @param remainingPages
+		 * @param pageCount
+		 */
+		public void backupProgress(File destinationFile, int remainingPages, int pageCount);
+		
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final File sourceFile;
+	private volatile int pagesPerStep = DEFAULT_PAGES_PER_STEP;
+	private volatile long stepPauseMS = DEFAULT_STEP_PAUSE_MS;
+	private volatile int maxRestarts = DEFAULT_MAX_RESTARTS;
+	private volatile boolean skipIfUnchanged = false;
+	private volatile ProgressListener progressListener;
+	
+	/**
+	 * Destination, source change count & source schema version of the last successful back-up (only used in skip-if-unchanged mode)
+	 */
+	private File lastDestinationFile;
+	private long lastChangeCount;
+	private long lastSchemaVersion;
+	
+	/**
+	 * @param sourceFile the database file to back-up
+	 */
+	public JavaSQLiteOnlineBackup(File sourceFile)
+	{
+		if(sourceFile == null)
+			throw new NullPointerException("sourceFile cannot be null!");
+		this.sourceFile = sourceFile;
+	}
+	
+	/**
+	 * Starts a back-up of the source database to the given destination file on a new background thread.
+	 * 
+	 * @param destinationFile
+	 * @param changeCount the current change count of the source database (only used in skip-if-unchanged mode)
+	 * @param schemaVersion the current schema version of the source database (only used in skip-if-unchanged mode)
+	 * @return a Future which completes with the destination file once the back-up is finished, cancelling it aborts the back-up
+	 */
+	public Future<File> start(final File destinationFile, final long changeCount, final long schemaVersion)
+	{
+		final String threadName = getClass().getSimpleName() + "-" + sourceFile.getName();
+		SQLiteQueue queue = new SQLiteQueue(sourceFile, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		})
+		{
+			@Override
+			protected SQLiteConnection openConnection() throws SQLiteException
+			{
+				SQLiteConnection connection = new SQLiteConnection(getDatabaseFile());
+				connection.openReadonly();
+				return connection;
+			}
+		};
+		queue.start();
+		try
+		{
+			return queue.execute(new SQLiteJob<File>()
+			{
+				@Override
+				protected File job(SQLiteConnection connection) throws Throwable
+				{
+					return run(connection, destinationFile, changeCount, schemaVersion, this);
+				}
+			});
+		}
+		finally
+		{
+			queue.stop(true); // the queue thread ends once the back-up job is done
+		}
+	}
+	
+	/**
+	 * @param source read-only connection to the source database
+	 * @param destinationFile
+	 * @param changeCount
+	 * @param schemaVersion
+	 * @param job
+	 * @return the destinationFile
+	 * @throws Exception
+	 */
+	private File run(SQLiteConnection source, File destinationFile, long changeCount, long schemaVersion, Future<File> job) throws Exception
+	{
+		// Skip-if-unchanged mode: copy the previous back-up if nothing has changed since it was made:
+		synchronized(this)
+		{
+			if(skipIfUnchanged && lastDestinationFile != null && lastChangeCount == changeCount && lastSchemaVersion == schemaVersion && lastDestinationFile.isFile())
+			{
+				if(!lastDestinationFile.equals(destinationFile))
+					FileUtils.copyFile(lastDestinationFile, destinationFile);
+				lastDestinationFile = destinationFile;
+				return destinationFile;
+			}
+		}
+		
+		// Online back-up:
+		SQLiteBackup backup = source.initializeBackup(destinationFile);
+		try
+		{
+			int restarts = 0;
+			int lastRemaining = Integer.MAX_VALUE;
+			while(!backup.isFinished())
+			{
+				if(job.isCancelled())
+					throw new InterruptedException("Back-up cancelled");
+				// Copy next step (or all remaining pages if we have restarted too often):
+				try
+				{
+					backup.backupStep(restarts < maxRestarts ? pagesPerStep : -1);
+				}
+				catch(SQLiteBusyException busy)
+				{	// source or destination temporarily locked, retry later:
+					Thread.sleep(Math.max(stepPauseMS, BUSY_RETRY_MS));
+					continue;
+				}
+				int remaining = backup.getRemaining();
+				if(remaining >= lastRemaining)
+					restarts++; // no progress means the back-up was restarted because the source was modified
+				lastRemaining = remaining;
+				// Report progress:
+				ProgressListener listener = progressListener;
+				if(listener != null)
+					listener.backupProgress(destinationFile, remaining, backup.getPageCount());
+				// Pause:
+				if(!backup.isFinished() && stepPauseMS > 0)
+					Thread.sleep(stepPauseMS);
+			}
+		}
+		finally
+		{
+			backup.dispose(); // also closes the destination connection
+		}
+		
+		// Remember for skip-if-unchanged mode:
+		synchronized(this)
+		{
+			lastDestinationFile = destinationFile;
+			lastChangeCount = changeCount;
+			lastSchemaVersion = schemaVersion;
+		}
+		return destinationFile;
+	}
+
+	/**
+	 * @return the number of pages copied per step
+	 */
+	public int getPagesPerStep()
+	{
+		return pagesPerStep;
+	}
+
+	/**
+	 * @param pagesPerStep the number of pages to copy per step (must be at least 1)
+	 */
+	public void setPagesPerStep(int pagesPerStep)
+	{
+		if(pagesPerStep < 1)
+			throw new IllegalArgumentException("Pages per step must be at least 1");
+		this.pagesPerStep = pagesPerStep;
+	}
+
+	/**
+	 * @return the pause between steps (in ms)
+	 */
+	public long getStepPauseMS()
+	{
+		return stepPauseMS;
+	}
+
+	/**
+	 * @param stepPauseMS the pause between steps (in ms), use 0 for no pause
+	 */
+	public void setStepPauseMS(long stepPauseMS)
+	{
+		if(stepPauseMS < 0)
+			throw new IllegalArgumentException("Pause cannot be negative");
+		this.stepPauseMS = stepPauseMS;
+	}
+
+	/**
+	 * @return the number of restarts after which all remaining pages are copied in a single step
+	 */
+	public int getMaxRestarts()
+	{
+		return maxRestarts;
+	}
+
+	/**
+	 * @param maxRestarts the number of restarts after which all remaining pages are copied in a single step
+	 */
+	public void setMaxRestarts(int maxRestarts)
+	{
+		if(maxRestarts < 0)
+			throw new IllegalArgumentException("Maximum number of restarts cannot be negative");
+		this.maxRestarts = maxRestarts;
+	}
+
+	/**
+	 * @return whether skip-if-unchanged mode is enabled
+	 */
+	public boolean isSkipIfUnchanged()
+	{
+		return skipIfUnchanged;
+	}
+
+	/**
+	 * @param skipIfUnchanged whether to enable skip-if-unchanged mode
+	 */
+	public void setSkipIfUnchanged(boolean skipIfUnchanged)
+	{
+		this.skipIfUnchanged = skipIfUnchanged;
+	}
+
+	/**
+	 * @param progressListener the listener to report progress to (may be null)
+	 */
+	public void setProgressListener(ProgressListener progressListener)
+	{
+		this.progressListener = progressListener;
+	}
+	
+}
@@ -0,0 +1,174 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore.SQLiteColumn;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteJob;
+import com.almworks.sqlite4java.SQLiteQueue;
+
+/**
+ * A bounded pool of read-only connections to a SQLite database, for use in WAL journal mode (in which readers do not block the writer, nor vice versa).
+ * 
+ * Because sqlite4java connections are confined to the thread that opened them, each connection lives on its own {@link SQLiteQueue} thread.
+ * Queries are handed to the queues in round-robin fashion and their results are read into memory (see {@link BufferedCursor}) before being
+ * returned to the calling thread.
+ * 
+ * @author mstevens
+ */
+public class JavaSQLiteReaderPool
+{
+
+	static public final long BUSY_TIMEOUT_MS = 5000;
+	
+	private final ReaderQueue[] queues;
+	private final AtomicInteger next = new AtomicInteger();
+	
+	/**
+	 * @param databaseFile
+	 * @param size number of read-only connections
+	 */
+	public JavaSQLiteReaderPool(final File databaseFile, int size)
+	{
+		if(size < 1)
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		queues = new ReaderQueue[size];
+		for(int q = 0; q < size; q++)
+		{
+			final String threadName = getClass().getSimpleName() + "-" + databaseFile.getName() + "-" + q;
+			queues[q] = new ReaderQueue(databaseFile, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			queues[q].start();
+		}
+	}
+	
+	/**
+	 * @return the number of read-only connections
+	 */
+	public int size()
+	{
+		return queues.length;
+	}
+	
+	/**
+	 * Executes the given SELECT query on one of the read-only connections and returns all result rows.
+	 * 
+	 * @param sql
+	 * @param paramCols
+	 * @param sapArguments
+	 * @return a cursor over the (buffered) result rows
+	 * @throws DBException
+	 */
+	public BufferedCursor query(final String sql, final List<SQLiteColumn<?, ?>> paramCols, final List<? extends Object> sapArguments) throws DBException
+	{
+		ReaderQueue queue = queues[(next.getAndIncrement() & Integer.MAX_VALUE) % queues.length];
+		SQLiteJob<BufferedCursor> job = queue.execute(new SQLiteJob<BufferedCursor>()
+		{
+			@Override
+			protected BufferedCursor job(SQLiteConnection connection) throws Throwable
+			{
+				JavaSQLiteStatement statement = new JavaSQLiteStatement(connection, sql, paramCols);
+				try
+				{
+					statement.bindAll(sapArguments);
+					return statement.executeSelectRowsBuffered();
+				}
+				finally
+				{
+					statement.close();
+				}
+			}
+		});
+		BufferedCursor result = job.complete(); // waits for the job to finish
+		if(job.getError() != null)
+		{
+			if(job.getError() instanceof DBException)
+				throw (DBException) job.getError();
+			throw new DBException("Exception upon executing query on reader connection: " + sql, job.getError());
+		}
+		if(result == null)
+			throw new DBException("Query on reader connection was cancelled: " + sql);
+		return result;
+	}
+	
+	/**
+	 * Closes all read-only connections (after completing queries which have already been submitted).
+	 */
+	public void close()
+	{
+		for(ReaderQueue queue : queues)
+			queue.stop(true);
+		for(ReaderQueue queue : queues)
+			try
+			{
+				queue.join();
+			}
+			catch(InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+	}
+	
+	/**
+	 * A {@link SQLiteQueue} which opens its connection in read-only mode.
+	 * 
+	 * @author mstevens
+	 */
+	private static class ReaderQueue extends SQLiteQueue
+	{
+		
+		public ReaderQueue(File databaseFile, ThreadFactory threadFactory)
+		{
+			super(databaseFile, threadFactory);
+		}
+		
+		@Override
+		protected SQLiteConnection openConnection() throws SQLiteException
+		{
+			SQLiteConnection connection = new SQLiteConnection(getDatabaseFile());
+			connection.openReadonly();
+			return connection;
+		}
+		
+		@Override
+		protected void initConnection(SQLiteConnection connection) throws SQLiteException
+		{
+			connection.setBusyTimeout(BUSY_TIMEOUT_MS);
+		}
+		
+	}
+	
+}
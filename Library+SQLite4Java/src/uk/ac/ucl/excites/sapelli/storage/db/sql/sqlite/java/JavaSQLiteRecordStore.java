@@ -20,8 +20,12 @@ package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
 import uk.ac.ucl.excites.sapelli.storage.db.sql.Upgrader;
 import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.ISQLiteCursor;
@@ -35,6 +39,9 @@ import com.almworks.sqlite4java.SQLiteException;
 /**
  * A RecordStore class which stores records in a SQLite database, using the sqlite4java library.
  * 
+ * sqlite4java connections are confined to the thread that opened them. Hence all writes (and transactions) must be done on the
+ * thread that created the store; only reads on the reader connections (see {@link #isConcurrent()}) may come from other threads.
+ * 
  * @author mstevens
  */
 public class JavaSQLiteRecordStore extends SQLiteRecordStore
@@ -42,6 +49,13 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 
 	private SQLiteConnection db;
 	
+	/**
+	 * Pool of read-only connections, only used in concurrent mode (null otherwise)
+	 */
+	private JavaSQLiteReaderPool readerPool;
+	
+	private final JavaSQLiteOnlineBackup onlineBackup;
+	
 	/**
 	 * @param client
 	 * @param folderPath
@@ -51,6 +65,25 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 	 * @throws DBException
 	 */
 	public JavaSQLiteRecordStore(StorageClient client, File folderPath, String baseName, int version, Upgrader upgrader) throws DBException
+	{
+		this(client, folderPath, baseName, version, upgrader, 0);
+	}
+	
+	/**
+	 * Creates a JavaSQLiteRecordStore which, if {@code readerConnections} is at least 1, operates in concurrent mode.
+	 * In concurrent mode the database uses WAL journaling, writes (and all queries within transactions) are executed on the
+	 * single writer connection, and SELECT queries outside of transactions are executed on a pool of read-only connections.
+	 * Hence retrievals (e.g. for long-running exports) do not stall writes, nor vice versa.
+	 * 
+	 * @param client
+	 * @param folderPath
+	 * @param baseName
+	 * @param version
+	 * @param upgrader
+	 * @param readerConnections number of read-only connections to use (0 disables concurrent mode)
+	 * @throws DBException
+	 */
+	public JavaSQLiteRecordStore(StorageClient client, File folderPath, String baseName, int version, Upgrader upgrader, int readerConnections) throws DBException
 	{
 		super(client, version);
 		
@@ -59,12 +92,20 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 		{
 			this.db = new SQLiteConnection(new File(folderPath, GetDBFileName(baseName)));
 			db.open(true); // allow creation
+			db.setBusyTimeout(JavaSQLiteReaderPool.BUSY_TIMEOUT_MS); // always needed, background back-ups use their own connection
 		}
 		catch(SQLiteException sqlE)
 		{
 			throw new DBException(sqlE);
 		}
 		
+		// Switch to WAL journaling (persistent, must happen before readers connect):
+		if(readerConnections > 0)
+		{
+			executeSQL("PRAGMA journal_mode=WAL;");
+			executeSQL("PRAGMA synchronous=NORMAL;"); // safe in WAL mode, only the last commits may be lost upon power failure
+		}
+		
 		boolean newDB = !doesTableExist(Model.MODEL_SCHEMA);
 		
 		// Get current user_version from SQLite file and change/set it if needed:
@@ -74,6 +115,21 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 		
 		// Initialise, and upgrade if necessary:
 		initialise(newDB, dbVersion, upgrader);
+		
+		// Start reader connections (only once the database is fully initialised):
+		if(readerConnections > 0)
+			readerPool = new JavaSQLiteReaderPool(db.getDatabaseFile(), readerConnections);
+		
+		// Back-up engine:
+		onlineBackup = new JavaSQLiteOnlineBackup(db.getDatabaseFile());
+	}
+	
+	/**
+	 * @return whether the store operates in concurrent mode (i.e. with WAL journaling and a pool of reader connections)
+	 */
+	public boolean isConcurrent()
+	{
+		return readerPool != null;
 	}
 	
 	protected int getVersion() throws DBException
@@ -118,17 +174,34 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 		}
 	}
 
+	/**
+	 * In concurrent mode queries outside of transactions are executed on a reader connection. Queries within a transaction
+	 * use the writer connection, as they must see the transaction's uncommitted changes.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore#executeQuery(java.lang.String, java.util.List, java.util.List)
+	 */
 	@Override
 	protected ISQLiteCursor executeQuery(String sql, List<SQLiteColumn<?, ?>> paramCols, List<? extends Object> sapArguments) throws DBException
 	{
-		// Get statement:
-		JavaSQLiteStatement selectStatement = getStatement(sql, paramCols);
-		
-		// Bind parameters:
-		selectStatement.bindAll(sapArguments);
-		
-		// Execute and return cursor:
-		return selectStatement.executeSelectRows();
+		Timer.Context timing = Metrics.Time("sqlite.executeQuery");
+		try
+		{
+			if(readerPool != null && !isInTransaction())
+				return readerPool.query(sql, paramCols, sapArguments);
+			
+			// Get statement:
+			JavaSQLiteStatement selectStatement = getStatement(sql, paramCols);
+			
+			// Bind parameters:
+			selectStatement.bindAll(sapArguments);
+			
+			// Execute and return cursor:
+			return selectStatement.executeSelectRows();
+		}
+		finally
+		{
+			timing.stop();
+		}
 	}
 	
 	@Override
@@ -148,11 +221,17 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 	@Override
 	protected void closeConnection() throws DBException
 	{
+		if(readerPool != null)
+		{
+			readerPool.close();
+			readerPool = null;
+		}
 		db.dispose();
 	}
 	
 	/**
-	 * Performs a back-up of the database using the SQLite Online Backup API
+	 * Performs a back-up of the database using the SQLite Online Backup API, on a separate connection and thread
+	 * (see {@link JavaSQLiteOnlineBackup}), and waits for it to finish.
 	 * 
 	 * @see com.almworks.sqlite4java.SQLiteBackup
 	 * @see <a href="http://www.sqlite.org/c3ref/backup_finish.html#sqlite3backupinit"> SQLite Online Backup API</a>
@@ -162,20 +241,49 @@ public class JavaSQLiteRecordStore extends SQLiteRecordStore
 	@Override
 	protected void doBackup(File destinationFile) throws Exception
 	{
-		SQLiteBackup backup = null;
 		try
 		{
-			backup = db.initializeBackup(destinationFile);
-			while(!backup.isFinished())
-				backup.backupStep(32);
+			backupInBackground(destinationFile).get();
 		}
-		finally
+		catch(ExecutionException ee)
 		{
-			if(backup != null)
-				backup.dispose();
+			if(ee.getCause() instanceof Exception)
+				throw (Exception) ee.getCause();
+			throw ee;
 		}
 	}
 	
+	/**
+	 * Starts a back-up of the database to the given file, which runs in the background (see {@link JavaSQLiteOnlineBackup}).
+	 * Unlike {@link #backup(uk.ac.ucl.excites.sapelli.shared.db.StoreBackupper, File)} this method returns immediately, so the
+	 * store can continue to be used (including for writing) while the back-up is in progress.
+	 * 
+	 * @param destinationFile
+	 * @return a Future which completes with the destination file once the back-up is finished, cancelling it aborts the back-up
+	 * @throws DBException
+	 */
+	public Future<File> backupInBackground(File destinationFile) throws DBException
+	{
+		try
+		{
+			return onlineBackup.start(	destinationFile,
+										db.getTotalChanges(),
+										getStatement("PRAGMA schema_version;", null).executeLongQuery()); // total_changes ignores DDL
+		}
+		catch(SQLiteException sqlE)
+		{
+			throw new DBException("Failed to get total number of changes", sqlE);
+		}
+	}
+	
+	/**
+	 * @return the back-up engine, which can be used to configure the back-up step size, pause, skip-if-unchanged mode & progress listener
+	 */
+	public JavaSQLiteOnlineBackup getOnlineBackup()
+	{
+		return onlineBackup;
+	}
+	
 	@Override
 	protected File getDatabaseFile()
 	{
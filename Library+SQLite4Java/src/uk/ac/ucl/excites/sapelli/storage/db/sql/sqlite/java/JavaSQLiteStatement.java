@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.almworks.sqlite4java.SQLiteConnection;
@@ -323,6 +324,34 @@ public class JavaSQLiteStatement extends SapelliSQLiteStatement implements ISQLi
 		}
 	}
 
+	/**
+	 * Executes the SELECT row query and reads all resulting rows into memory, such that they can be accessed
+	 * from another thread than the one this statement's connection is confined to.
+	 * 
+	 * @return a {@link BufferedCursor} holding all result rows
+	 * @throws DBException
+	 */
+	public BufferedCursor executeSelectRowsBuffered() throws DBException
+	{
+		executeSelectRows();
+		try
+		{
+			List<Object[]> rows = new ArrayList<Object[]>();
+			while(moveToNext())
+			{
+				Object[] row = new Object[javaSQLiteSt.columnCount()];
+				for(int c = 0; c < row.length; c++)
+					row[c] = javaSQLiteSt.columnValue(c);
+				rows.add(row);
+			}
+			return new BufferedCursor(rows);
+		}
+		catch(SQLiteException e)
+		{
+			throw new DBException("Failed to read SELECT rows query results", e);
+		}
+	}
+
 	@Override
 	public boolean hasRow()
 	{
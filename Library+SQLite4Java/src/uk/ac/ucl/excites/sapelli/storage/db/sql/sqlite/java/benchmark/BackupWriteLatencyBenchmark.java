@@ -0,0 +1,240 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.benchmark;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Histogram;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.BenchmarkClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.JavaSQLiteOnlineBackup;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.JavaSQLiteRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+
+/**
+ * Benchmark of the effect of background back-ups on the write latency of a {@link JavaSQLiteRecordStore}.
+ * 
+ * After populating the store, small write transactions are run on the thread that opened the store for a fixed duration:
+ * <ul>
+ * <li>without any back-up;</li>
+ * <li>while back-ups are continuously made (one after the other) using the default {@link JavaSQLiteOnlineBackup} settings;</li>
+ * <li>while back-ups are continuously made using a throttled configuration (fewer pages per step, with a pause between steps).</li>
+ * </ul>
+ * This is done both in rollback journal mode and in WAL mode (i.e. with reader connections). Finally, the duration of repeated
+ * back-ups of an unchanged database is compared between normal and skip-if-unchanged mode.
+ * 
+ * @author mstevens
+ */
+public class BackupWriteLatencyBenchmark
+{
+
+	// STATICS-------------------------------------------------------
+	static public final long DEFAULT_DURATION_MS = 10000;
+	
+	static private final long MODEL_ID = 48;
+	static private final String DATABASE_BASENAME = "Backup";
+	static private final int INITIAL_RECORDS = 50000;
+	static private final int RECORDS_PER_WRITE = 10;
+	static private final int THROTTLED_PAGES_PER_STEP = 8;
+	static private final long THROTTLED_STEP_PAUSE_MS = 10;
+	static private final int UNCHANGED_BACKUPS = 10;
+	static private final double NS_PER_MS = 1000000.0d;
+	
+	// DYNAMICS------------------------------------------------------
+	private final File folder;
+	private final PrintStream out;
+	private final BenchmarkClient client;
+	private final Schema schema;
+	private final IntegerColumn valueColumn;
+	private final StringColumn textColumn;
+	private long written = 0;
+	
+	/**
+	 * @param folder folder to create the database and back-ups in
+	 * @param out stream to report results to
+	 */
+	public BackupWriteLatencyBenchmark(File folder, PrintStream out)
+	{
+		this.folder = folder;
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Observations");
+		valueColumn = schema.addColumn(new IntegerColumn("Value", false, 32));
+		textColumn = schema.addColumn(StringColumn.ForCharacterCount("Text", true, 200));
+		schema.seal(); // adds auto-incrementing primary key
+		model.seal();
+		client = new BenchmarkClient()
+		{
+			@Override
+			protected RecordStore createRecordStore() throws DBException
+			{
+				throw new UnsupportedOperationException("Stores are opened by the benchmark");
+			}
+		};
+		client.addModel(model);
+	}
+	
+	/**
+	 * Runs the benchmark in rollback journal mode and in WAL mode.
+	 * 
+	 * @param durationMS duration of each measurement
+	 * @throws Exception
+	 */
+	public void run(long durationMS) throws Exception
+	{
+		run("Rollback journal", 0, durationMS);
+		run("WAL", 1, durationMS);
+	}
+	
+	private void run(String name, int readers, long durationMS) throws Exception
+	{
+		JavaSQLiteRecordStore store = JavaSQLiteBenchmarks.OpenNewStore(client, folder, DATABASE_BASENAME, readers);
+		try
+		{
+			// Populate:
+			store.startTransaction();
+			for(int r = 0; r < INITIAL_RECORDS; r++)
+				store.store(createRecord());
+			store.commitTransaction();
+			
+			// Write latency:
+			JavaSQLiteOnlineBackup onlineBackup = store.getOnlineBackup();
+			onlineBackup.setSkipIfUnchanged(false);
+			measureWrites(name + ", no back-up", store, false, durationMS);
+			onlineBackup.setPagesPerStep(JavaSQLiteOnlineBackup.DEFAULT_PAGES_PER_STEP);
+			onlineBackup.setStepPauseMS(JavaSQLiteOnlineBackup.DEFAULT_STEP_PAUSE_MS);
+			measureWrites(name + ", default back-ups", store, true, durationMS);
+			onlineBackup.setPagesPerStep(THROTTLED_PAGES_PER_STEP);
+			onlineBackup.setStepPauseMS(THROTTLED_STEP_PAUSE_MS);
+			measureWrites(name + ", throttled back-ups (" + THROTTLED_PAGES_PER_STEP + " pages/step, " + THROTTLED_STEP_PAUSE_MS + "ms pause)", store, true, durationMS);
+			
+			// Back-ups of an unchanged database:
+			onlineBackup.setPagesPerStep(JavaSQLiteOnlineBackup.DEFAULT_PAGES_PER_STEP);
+			onlineBackup.setStepPauseMS(JavaSQLiteOnlineBackup.DEFAULT_STEP_PAUSE_MS);
+			onlineBackup.setSkipIfUnchanged(false);
+			measureUnchangedBackups(name + ", unchanged database, normal", store);
+			onlineBackup.setSkipIfUnchanged(true);
+			measureUnchangedBackups(name + ", unchanged database, skip-if-unchanged", store);
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+	
+	/**
+	 * Runs write transactions for the given duration, optionally while continuously making back-ups, and reports the latency.
+	 */
+	private void measureWrites(String name, JavaSQLiteRecordStore store, boolean backUp, long durationMS) throws Exception
+	{
+		Histogram writeLatency = new Histogram();
+		Histogram backupDuration = new Histogram();
+		File backupFile = getBackupFile();
+		Future<File> backup = null;
+		long backupStartNS = 0;
+		long endNS = System.nanoTime() + durationMS * 1000000l;
+		while(System.nanoTime() < endNS)
+		{
+			// (Re)start back-up:
+			if(backUp && (backup == null || backup.isDone()))
+			{
+				if(backup != null)
+				{
+					backup.get(); // rethrows back-up failure
+					backupDuration.record(System.nanoTime() - backupStartNS);
+				}
+				backupStartNS = System.nanoTime();
+				backup = store.backupInBackground(backupFile);
+			}
+			// Write:
+			long startNS = System.nanoTime();
+			store.startTransaction();
+			for(int r = 0; r < RECORDS_PER_WRITE; r++)
+				store.store(createRecord());
+			store.commitTransaction();
+			writeLatency.record(System.nanoTime() - startNS);
+		}
+		if(backup != null)
+		{
+			backup.cancel(false); // the back-up thread stops after its current step
+			try
+			{
+				backup.get();
+			}
+			catch(Exception ignore) {}
+		}
+		
+		out.println(String.format(	"%s: %.1f writes/s (%d records each), write latency p50=%.2fms p99=%.2fms max=%.2fms%s",
+									name,
+									writeLatency.getCount() / (durationMS / 1000.0d),
+									RECORDS_PER_WRITE,
+									writeLatency.getValueAtPercentile(50.0d) / NS_PER_MS,
+									writeLatency.getValueAtPercentile(99.0d) / NS_PER_MS,
+									writeLatency.getMax() / NS_PER_MS,
+									backUp ? String.format("; %d back-ups completed, mean duration %.1fms", backupDuration.getCount(), backupDuration.getMean() / NS_PER_MS) : ""));
+	}
+	
+	/**
+	 * Makes a number of back-ups of the database (without writing in between) and reports their duration.
+	 */
+	private void measureUnchangedBackups(String name, JavaSQLiteRecordStore store) throws DBException, InterruptedException, ExecutionException
+	{
+		Histogram backupDuration = new Histogram();
+		File backupFile = getBackupFile();
+		for(int b = 0; b < UNCHANGED_BACKUPS; b++)
+		{
+			long startNS = System.nanoTime();
+			store.backupInBackground(backupFile).get();
+			backupDuration.record(System.nanoTime() - startNS);
+		}
+		out.println(String.format(	"%s: %d back-ups, duration p50=%.1fms max=%.1fms (%d bytes)",
+									name,
+									backupDuration.getCount(),
+									backupDuration.getValueAtPercentile(50.0d) / NS_PER_MS,
+									backupDuration.getMax() / NS_PER_MS,
+									backupFile.length()));
+	}
+	
+	private File getBackupFile()
+	{
+		File backupFile = new File(folder, DATABASE_BASENAME + "-Backup.sqlite3");
+		backupFile.delete();
+		return backupFile;
+	}
+	
+	private Record createRecord()
+	{
+		Record record = schema.createRecord();
+		valueColumn.storeValue(record, (int) (written % Integer.MAX_VALUE));
+		textColumn.storeValue(record, "Observation number " + written);
+		written++;
+		return record;
+	}
+	
+}
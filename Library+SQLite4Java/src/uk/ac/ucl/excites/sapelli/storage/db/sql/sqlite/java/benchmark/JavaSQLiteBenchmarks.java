@@ -0,0 +1,120 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.benchmark;
+
+import java.io.File;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.BenchmarkClient;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.ImportBenchmark;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.ProjectionBenchmark;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.TransactionStressTest;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.SQLiteRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.JavaSQLiteRecordStore;
+
+/**
+ * Runs storage benchmarks against {@link JavaSQLiteRecordStore}s.
+ * 
+ * Usage: JavaSQLiteBenchmarks &lt;benchmark&gt; [folder]
+ * 
+ * Note: sqlite4java connections are confined to the thread that opened them. Hence all writes happen on the thread which
+ * created the store, and only reads (on the reader connections of a store in concurrent mode) are done from other threads.
+ * For the same reason the transactions benchmark only runs {@link TransactionStressTest} in
+ * {@link TransactionStressTest.Mode#WRITER_QUEUE} mode, in which the writer threads hand their transactions to the store's thread.
+ * 
+ * @author mstevens
+ */
+public class JavaSQLiteBenchmarks
+{
+
+	static public final int DATABASE_VERSION = 1;
+	static private final String DATABASE_BASENAME = "Benchmarks";
+	
+	/**
+	 * @param args benchmark name, optionally followed by the folder to create the databases in (default: temp folder)
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 1)
+		{
+			System.err.println("Usage: " + JavaSQLiteBenchmarks.class.getSimpleName() + " <transactions|contention|import|backup|projection> [folder]");
+			System.exit(1);
+		}
+		final File folder = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), JavaSQLiteBenchmarks.class.getSimpleName());
+		if(!folder.exists())
+			folder.mkdirs();
+		BenchmarkClient client = new BenchmarkClient()
+		{
+			@Override
+			protected RecordStore createRecordStore() throws DBException
+			{
+				return OpenNewStore(this, folder, DATABASE_BASENAME, 0);
+			}
+		};
+		
+		boolean passed = true;
+		if("transactions".equals(args[0]))
+			passed = new TransactionStressTest(client, System.out).run(	TransactionStressTest.DEFAULT_THREADS,
+																		TransactionStressTest.DEFAULT_TRANSACTIONS_PER_THREAD,
+																		TransactionStressTest.DEFAULT_RECORDS_PER_TRANSACTION,
+																		TransactionStressTest.DEFAULT_ROLLBACK_RATE,
+																		TransactionStressTest.Mode.WRITER_QUEUE);
+		else if("contention".equals(args[0]))
+			new ReadWriteContentionBenchmark(folder, System.out).run(ReadWriteContentionBenchmark.DEFAULT_READERS, ReadWriteContentionBenchmark.DEFAULT_DURATION_MS);
+		else if("import".equals(args[0]))
+			passed = new ImportBenchmark(client, System.out).run(ImportBenchmark.DEFAULT_RECORDS, ImportBenchmark.DEFAULT_ERROR_RATE);
+		else if("backup".equals(args[0]))
+			new BackupWriteLatencyBenchmark(folder, System.out).run(BackupWriteLatencyBenchmark.DEFAULT_DURATION_MS);
+		else if("projection".equals(args[0]))
+			passed = new ProjectionBenchmark(client, System.out).run(ProjectionBenchmark.DEFAULT_RECORDS, ProjectionBenchmark.DEFAULT_ROUNDS);
+		else
+		{
+			System.err.println("Unknown benchmark: " + args[0]);
+			passed = false;
+		}
+		System.exit(passed ? 0 : 2);
+	}
+	
+	/**
+	 * Deletes the database with the given base name (if it exists) and opens a new, empty one.
+	 * 
+	 * @param client
+	 * @param folder
+	 * @param baseName
+	 * @param readerConnections number of read-only connections (0 disables concurrent mode)
+	 * @return the new store
+	 * @throws DBException
+	 */
+	static public JavaSQLiteRecordStore OpenNewStore(StorageClient client, File folder, String baseName, int readerConnections) throws DBException
+	{
+		String fileName = SQLiteRecordStore.GetDBFileName(baseName);
+		for(String suffix : new String[] { "", "-journal", "-wal", "-shm" })
+		{
+			File file = new File(folder, fileName + suffix);
+			if(file.exists() && !file.delete())
+				throw new DBException("Could not delete " + file.getAbsolutePath());
+		}
+		return new JavaSQLiteRecordStore(client, folder, baseName, DATABASE_VERSION, null, readerConnections);
+	}
+	
+}
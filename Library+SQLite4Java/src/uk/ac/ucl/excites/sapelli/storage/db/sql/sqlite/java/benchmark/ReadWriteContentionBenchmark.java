@@ -0,0 +1,218 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.benchmark;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Histogram;
+import uk.ac.ucl.excites.sapelli.storage.benchmark.BenchmarkClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.java.JavaSQLiteRecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+
+/**
+ * Read/write contention benchmark for {@link JavaSQLiteRecordStore}.
+ * 
+ * A writer stores small batches of records, one transaction per batch, while readers repeatedly retrieve all records
+ * of the schema (as an export would). This is done twice:
+ * <ul>
+ * <li>with a single connection: since all operations then go through that connection, the writer and the reads take turns
+ * (one batch, one read) on the thread that opened the store;</li>
+ * <li>in concurrent mode (WAL journaling and a pool of reader connections): the writer runs on the thread that opened the store
+ * while reader threads retrieve records through the pool.</li>
+ * </ul>
+ * For both the throughput of writes and reads and the latency percentiles of both are reported.
+ * 
+ * @author mstevens
+ */
+public class ReadWriteContentionBenchmark
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_READERS = 4;
+	static public final long DEFAULT_DURATION_MS = 10000;
+	
+	static private final long MODEL_ID = 41;
+	static private final String DATABASE_BASENAME = "Contention";
+	static private final int INITIAL_RECORDS = 10000;
+	static private final int RECORDS_PER_WRITE = 10;
+	static private final double NS_PER_MS = 1000000.0d;
+	
+	// DYNAMICS------------------------------------------------------
+	private final File folder;
+	private final PrintStream out;
+	private final BenchmarkClient client;
+	private final Schema schema;
+	private final IntegerColumn valueColumn;
+	private final StringColumn textColumn;
+	private final TimeStampColumn timeColumn;
+	private long written = 0;
+	
+	/**
+	 * @param folder folder to create the database in
+	 * @param out stream to report results to
+	 */
+	public ReadWriteContentionBenchmark(File folder, PrintStream out)
+	{
+		this.folder = folder;
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Observations");
+		valueColumn = schema.addColumn(new IntegerColumn("Value", false, 32));
+		textColumn = schema.addColumn(StringColumn.ForCharacterCount("Text", true, 200));
+		timeColumn = schema.addColumn(TimeStampColumn.Century21("Time", false, false));
+		schema.seal(); // adds auto-incrementing primary key
+		model.seal();
+		client = new BenchmarkClient()
+		{
+			@Override
+			protected RecordStore createRecordStore() throws DBException
+			{
+				throw new UnsupportedOperationException("Stores are opened by the benchmark");
+			}
+		};
+		client.addModel(model);
+	}
+	
+	/**
+	 * Runs the benchmark with a single connection and in concurrent mode.
+	 * 
+	 * @param readers number of reader threads & connections in concurrent mode
+	 * @param durationMS duration of each run
+	 * @throws DBException
+	 * @throws InterruptedException
+	 */
+	public void run(int readers, long durationMS) throws DBException, InterruptedException
+	{
+		run("Single connection", 0, durationMS);
+		run("Concurrent (" + readers + " readers)", readers, durationMS);
+	}
+	
+	private void run(String name, int readers, long durationMS) throws DBException, InterruptedException
+	{
+		final JavaSQLiteRecordStore store = JavaSQLiteBenchmarks.OpenNewStore(client, folder, DATABASE_BASENAME, readers);
+		try
+		{
+			// Populate:
+			store.startTransaction();
+			for(int r = 0; r < INITIAL_RECORDS; r++)
+				store.store(createRecord());
+			store.commitTransaction();
+			
+			final Histogram writeLatency = new Histogram();
+			final Histogram readLatency = new Histogram();
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final AtomicLong failedReads = new AtomicLong();
+			
+			// Start readers (concurrent mode only):
+			List<Thread> readerThreads = new ArrayList<Thread>();
+			for(int t = 0; t < readers; t++)
+			{
+				Thread reader = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						while(!stop.get())
+							if(!read(store, readLatency))
+								failedReads.incrementAndGet();
+					}
+				}, getClass().getSimpleName() + "-Reader-" + t);
+				reader.start();
+				readerThreads.add(reader);
+			}
+			
+			// Write (and, with a single connection, read in turns) on this thread:
+			long endNS = System.nanoTime() + durationMS * 1000000l;
+			while(System.nanoTime() < endNS)
+			{
+				long startNS = System.nanoTime();
+				store.startTransaction();
+				for(int r = 0; r < RECORDS_PER_WRITE; r++)
+					store.store(createRecord());
+				store.commitTransaction();
+				writeLatency.record(System.nanoTime() - startNS);
+				if(readers == 0 && !read(store, readLatency))
+					failedReads.incrementAndGet();
+			}
+			stop.set(true);
+			for(Thread reader : readerThreads)
+				reader.join();
+			
+			// Report:
+			double seconds = durationMS / 1000.0d;
+			out.println(String.format(	"%s: %.1f writes/s (%d records each), write latency p50=%.2fms p99=%.2fms max=%.2fms; %.1f reads/s, read latency p50=%.2fms p99=%.2fms%s",
+										name,
+										writeLatency.getCount() / seconds,
+										RECORDS_PER_WRITE,
+										writeLatency.getValueAtPercentile(50.0d) / NS_PER_MS,
+										writeLatency.getValueAtPercentile(99.0d) / NS_PER_MS,
+										writeLatency.getMax() / NS_PER_MS,
+										readLatency.getCount() / seconds,
+										readLatency.getValueAtPercentile(50.0d) / NS_PER_MS,
+										readLatency.getValueAtPercentile(99.0d) / NS_PER_MS,
+										failedReads.get() == 0 ? "" : "; " + failedReads.get() + " failed reads"));
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+	
+	private boolean read(RecordStore store, Histogram latency)
+	{
+		long startNS = System.nanoTime();
+		try
+		{
+			store.retrieveRecords(schema);
+			latency.record(System.nanoTime() - startNS);
+			return true;
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace(System.err);
+			return false;
+		}
+	}
+	
+	private Record createRecord()
+	{
+		Record record = schema.createRecord();
+		valueColumn.storeValue(record, (int) (written % Integer.MAX_VALUE));
+		textColumn.storeValue(record, "Observation number " + written);
+		timeColumn.storeValue(record, new TimeStamp());
+		written++;
+		return record;
+	}
+	
+}
@@ -18,17 +18,26 @@
 
 package uk.ac.ucl.excites.sapelli.collector;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import uk.ac.ucl.excites.sapelli.collector.db.ProjectRecordStore;
 import uk.ac.ucl.excites.sapelli.collector.db.ProjectStore;
+import uk.ac.ucl.excites.sapelli.collector.model.Field;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.Page;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.TextBoxField;
+import uk.ac.ucl.excites.sapelli.shared.compression.PresetDictionary;
 import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle;
 import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreCreator;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
@@ -88,6 +97,10 @@ public abstract class CollectorClient extends TransmissionClient implements Stor
 	}
 	
 	// DYNAMICS------------------------------------------------------
+	private final Map<Long, PresetDictionary> presetDictionaries = new HashMap<Long, PresetDictionary>();
+	private final Map<Long, EncryptionSettings> encryptionSettings = new HashMap<Long, EncryptionSettings>();
+	private final EncryptionSettings defaultEncryptionSettings = new EncryptionSettings();
+	
 	public final StoreHandle<ProjectStore> projectStoreHandle = new StoreHandle<ProjectStore>(new StoreCreator<ProjectStore>()
 	{
 		@Override
@@ -242,29 +255,39 @@ public abstract class CollectorClient extends TransmissionClient implements Stor
 		
 	}
 
-	/* (non-Javadoc)
+	/**
+	 * Sets the encryption settings to use for transmissions of records (and other model-specific payloads) of the given project.
+	 * 
+	 * @param project
+	 * @param settings the encryption settings, or {@code null} to fall back to the default settings
+	 */
+	public void setEncryptionSettings(Project project, EncryptionSettings settings)
+	{
+		synchronized(encryptionSettings)
+		{
+			if(settings != null)
+				encryptionSettings.put(project.getModel().getID(), settings);
+			else
+				encryptionSettings.remove(project.getModel().getID());
+		}
+	}
+	
+	/**
+	 * Returns the encryption settings set for the project the model belongs to (see {@link #setEncryptionSettings(Project, EncryptionSettings)}),
+	 * or the default settings (which allow encryption with the default key) if none were set. For models which do not belong to a known project
+	 * {@code null} is returned, meaning transmissions of their records will not be encrypted.
+	 * 
 	 * @see uk.ac.ucl.excites.sapelli.transmission.TransmissionClient#getEncryptionSettingsFor(Model)
 	 */
-	//@Override
+	@Override
 	public EncryptionSettings getEncryptionSettingsFor(Model model)
 	{
-		/*TODO FIX THIS
-		 * This is buggy/hacky! Because schema's can be shared by multiple forms (and no schema ID/version duplicates are allowed)
-		 * we cannot safely determine transmission settings based on the schema id/version.
-		 */
-//		List<Form> forms = dao.retrieveForms(schema.getID(), schema.getVersion());
-//		if(!forms.isEmpty())
-//		{
-//			if(forms.get(0)/*HACK!*/.getProject() != null)
-//				return forms.get(0).getProject().getTransmissionSettings();
-//			else
-//				return null;
-//		}
-//		else
-//		{
-//			return null;
-//		}
-		return null;
+		synchronized(encryptionSettings)
+		{
+			if(encryptionSettings.containsKey(model.getID()))
+				return encryptionSettings.get(model.getID());
+		}
+		return getProject(model.getID()) != null ? defaultEncryptionSettings : null;
 	}
 
 	@Override
@@ -278,5 +301,68 @@ public abstract class CollectorClient extends TransmissionClient implements Stor
 	{
 		return Collections.<Column<?>>emptySet(); // TODO pass transmission & export related columns
 	}
+	
+	/**
+	 * Returns the preset dictionary derived from the project the model belongs to (see {@link #CreatePresetDictionary(Project)}).
+	 * Because the dictionary is derived from the project definition alone both sides of a transmission arrive at the same
+	 * dictionary as long as they have the same project (which is implied by the model ID, as it contains the project fingerprint).
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.transmission.TransmissionClient#getPresetDictionary(uk.ac.ucl.excites.sapelli.storage.model.Model)
+	 */
+	@Override
+	public PresetDictionary getPresetDictionary(Model model)
+	{
+		synchronized(presetDictionaries)
+		{
+			if(presetDictionaries.containsKey(model.getID()))
+				return presetDictionaries.get(model.getID());
+			Project project = getProject(model.getID());
+			PresetDictionary dictionary = project != null ? CreatePresetDictionary(project) : null;
+			presetDictionaries.put(model.getID(), dictionary);
+			return dictionary;
+		}
+	}
+	
+	/**
+	 * Creates a preset dictionary containing the bit sequences of the given project which will literally appear in encoded
+	 * records: the initial values of text box fields, encoded by their column (including the presence bit and length field).
+	 * These appear in every record in which the user kept the initial value. Other strings in the project definition, such
+	 * as names and choice values, are of no use in the dictionary because they are never transmitted (choices are stored as
+	 * indexes). The dictionary is empty if the project contains no such values, in which case it will not be used.
+	 * 
+	 * @param project
+	 * @return the dictionary
+	 */
+	static public PresetDictionary CreatePresetDictionary(Project project)
+	{
+		List<BitArray> sequences = new ArrayList<BitArray>();
+		for(Form form : project.getForms())
+			addDictionarySequences(form.getFields(), sequences);
+		return new PresetDictionary(sequences);
+	}
+	
+	static private void addDictionarySequences(List<? extends Field> fields, List<BitArray> sequences)
+	{
+		for(Field field : fields)
+		{
+			if(field instanceof Page)
+				addDictionarySequences(((Page) field).getFields(), sequences);
+			else if(field instanceof TextBoxField && !field.isNoColumn() && ((TextBoxField) field).getInitialValue() != null)
+			{
+				Column<?> column = field.getColumn();
+				try
+				{
+					BitArrayOutputStream out = new BitArrayOutputStream();
+					column.writeObject(((TextBoxField) field).getInitialColumnValue(), out);
+					out.close();
+					sequences.add(out.toBitArray());
+				}
+				catch(Exception e)
+				{
+					// does nothing (the initial value is not valid for the column, so it will not appear in records either)
+				}
+			}
+		}
+	}
 
 }
@@ -0,0 +1,189 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.collector.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
+import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.ModelSerialiser;
+
+/**
+ * Compares the compact {@link ModelSerialiser} format with the (DEFLATE-compressed) Java serialisation which
+ * {@link Model#GetModelRecord(Model)} used before, in terms of blob size and (de)serialisation time, for the
+ * models of the given Sapelli projects.
+ * 
+ * Usage: ModelSerialisationBenchmark [sap_file_or_folder...] (default: the Projects folder in the working directory)
+ * 
+ * @author mstevens
+ */
+public class ModelSerialisationBenchmark
+{
+
+	// STATICS-------------------------------------------------------
+	static private final int WARM_UP_ITERATIONS = 200;
+	static private final int ITERATIONS = 1000;
+	static private final double NS_PER_US = 1000.0d;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		List<File> sapFiles = new ArrayList<File>();
+		if(args.length == 0)
+			args = new String[] { "Projects" };
+		for(String arg : args)
+			addSapFiles(new File(arg), sapFiles);
+		if(sapFiles.isEmpty())
+		{
+			System.err.println("No Sapelli files (*." + ProjectLoader.SAPELLI_FILE_EXTENSIONS[0] + ") found");
+			System.exit(1);
+		}
+		
+		File tempFolder = new File(System.getProperty("java.io.tmpdir"), ModelSerialisationBenchmark.class.getSimpleName());
+		if(!tempFolder.exists())
+			tempFolder.mkdirs();
+		ProjectLoader loader = new ProjectLoader(new FileStorageProvider(tempFolder, tempFolder));
+		ModelSerialisationBenchmark benchmark = new ModelSerialisationBenchmark(System.out);
+		for(File sapFile : sapFiles)
+		{
+			Project project = loader.loadParseOnly(sapFile);
+			benchmark.run(sapFile.getName(), project.getModel());
+		}
+	}
+	
+	static private void addSapFiles(File fileOrFolder, List<File> sapFiles)
+	{
+		if(fileOrFolder.isDirectory())
+		{
+			File[] children = fileOrFolder.listFiles();
+			if(children != null)
+				for(File child : children)
+					addSapFiles(child, sapFiles);
+		}
+		else if(fileOrFolder.getName().toLowerCase().endsWith("." + ProjectLoader.SAPELLI_FILE_EXTENSIONS[0]))
+			sapFiles.add(fileOrFolder);
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final PrintStream out;
+	
+	/**
+	 * @param out stream to report results to
+	 */
+	public ModelSerialisationBenchmark(PrintStream out)
+	{
+		this.out = out;
+	}
+	
+	/**
+	 * Reports the blob size and the mean (de)serialisation time of the given model in both formats.
+	 * 
+	 * @param name
+	 * @param model
+	 * @throws Exception
+	 */
+	public void run(String name, Model model) throws Exception
+	{
+		// Java serialisation:
+		byte[] javaBytes = null;
+		for(int i = 0; i < WARM_UP_ITERATIONS; i++)
+			deserialiseJava(javaBytes = serialiseJava(model));
+		long startNS = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			javaBytes = serialiseJava(model);
+		long javaSerialiseNS = System.nanoTime() - startNS;
+		startNS = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			deserialiseJava(javaBytes);
+		long javaDeserialiseNS = System.nanoTime() - startNS;
+		String javaReport = String.format("Java serialisation %d bytes, serialise %.1f us, deserialise %.1f us", javaBytes.length, javaSerialiseNS / NS_PER_US / ITERATIONS, javaDeserialiseNS / NS_PER_US / ITERATIONS);
+		
+		// Compact format:
+		byte[] compactBytes = null;
+		try
+		{
+			for(int i = 0; i < WARM_UP_ITERATIONS; i++)
+				ModelSerialiser.Deserialise(compactBytes = ModelSerialiser.Serialise(model));
+		}
+		catch(UnsupportedOperationException uoe)
+		{
+			out.println(String.format("%s (model %s): %s; compact format not supported: %s", name, model.getName(), javaReport, uoe.getMessage()));
+			return;
+		}
+		startNS = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			compactBytes = ModelSerialiser.Serialise(model);
+		long compactSerialiseNS = System.nanoTime() - startNS;
+		Model deserialised = null;
+		startNS = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++)
+			deserialised = ModelSerialiser.Deserialise(compactBytes);
+		long compactDeserialiseNS = System.nanoTime() - startNS;
+		
+		out.println(String.format(	"%s (model %s): %s; compact format %d bytes, serialise %.1f us, deserialise %.1f us%s",
+									name,
+									model.getName(),
+									javaReport,
+									compactBytes.length,
+									compactSerialiseNS / NS_PER_US / ITERATIONS,
+									compactDeserialiseNS / NS_PER_US / ITERATIONS,
+									deserialised.hashCode() == model.hashCode() ? "" : " (ROUND TRIP MISMATCH)"));
+	}
+	
+	/**
+	 * Serialises the model the way {@link Model#GetModelRecord(Model)} used to.
+	 */
+	private byte[] serialiseJava(Model model) throws IOException
+	{
+		ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+		ObjectOutputStream objOut = new ObjectOutputStream(CompressorFactory.getCompressorOutputStream(Compression.DEFLATE, rawOut));
+		objOut.writeObject(model);
+		objOut.flush();
+		objOut.close();
+		return rawOut.toByteArray();
+	}
+	
+	/**
+	 * Deserialises the model the way {@link Model#FromModelRecord(uk.ac.ucl.excites.sapelli.storage.model.Record)} used to.
+	 */
+	private Model deserialiseJava(byte[] bytes) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream objIn = new ObjectInputStream(CompressorFactory.getCompressorInputStream(Compression.DEFLATE, new ByteArrayInputStream(bytes)));
+		Model model = (Model) objIn.readObject();
+		objIn.close();
+		return model;
+	}
+	
+}
@@ -0,0 +1,331 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.collector.benchmark;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import uk.ac.ucl.excites.sapelli.collector.CollectorClient;
+import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
+import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
+import uk.ac.ucl.excites.sapelli.collector.model.Field;
+import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.Page;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.TextBoxField;
+import uk.ac.ucl.excites.sapelli.shared.compression.PresetDictionary;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+import uk.ac.ucl.excites.sapelli.transmission.EncryptionSettings;
+import uk.ac.ucl.excites.sapelli.transmission.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSAgent;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.binary.BinarySMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.RecordsPayload;
+
+/**
+ * Measures the effect of the preset dictionary created by {@link CollectorClient#CreatePresetDictionary(Project)} on the size
+ * of the {@link RecordsPayload}s of binary SMS transmissions, for records of the given Sapelli projects in which text fields
+ * hold their initial value (i.e. the user kept it). The other columns hold random values.
+ * 
+ * Usage: PresetDictionaryBenchmark [sap_file_or_project_folder...] (default: the Projects folder in the working directory)
+ * 
+ * @author mstevens
+ */
+public class PresetDictionaryBenchmark
+{
+
+	// STATICS-------------------------------------------------------
+	static private final int[] RECORDS_PER_PAYLOAD = { 1, 2, 5, 10 };
+	static private final long DEVICE_ID = 1234567890l;
+	
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length == 0)
+			args = new String[] { "Projects" };
+		File tempFolder = new File(System.getProperty("java.io.tmpdir"), PresetDictionaryBenchmark.class.getSimpleName());
+		if(!tempFolder.exists())
+			tempFolder.mkdirs();
+		ProjectLoader loader = new ProjectLoader(new FileStorageProvider(tempFolder, tempFolder));
+		PresetDictionaryBenchmark benchmark = new PresetDictionaryBenchmark(System.out);
+		for(String arg : args)
+			addProjects(new File(arg), loader, benchmark);
+	}
+	
+	/**
+	 * Runs the benchmark for the given Sapelli file, for the given project folder (containing a PROJECT.xml file), or for
+	 * the Sapelli files and project folders in the given folder.
+	 */
+	static private void addProjects(File fileOrFolder, ProjectLoader loader, PresetDictionaryBenchmark benchmark) throws Exception
+	{
+		if(fileOrFolder.isDirectory())
+		{
+			if(new File(fileOrFolder, ProjectLoader.PROJECT_FILE).exists())
+				benchmark.run(fileOrFolder.getName(), ProjectLoader.ParseProject(fileOrFolder));
+			else
+			{
+				File[] children = fileOrFolder.listFiles();
+				if(children != null)
+					for(File child : children)
+						addProjects(child, loader, benchmark);
+			}
+		}
+		else if(ProjectLoader.HasSapelliFileExtension(fileOrFolder))
+			benchmark.run(fileOrFolder.getName(), loader.loadParseOnly(fileOrFolder));
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final PrintStream out;
+	
+	/**
+	 * @param out stream to report results to
+	 */
+	public PresetDictionaryBenchmark(PrintStream out)
+	{
+		this.out = out;
+	}
+	
+	/**
+	 * Reports the payload size without and with the preset dictionary, for each form of the given project and for several numbers of records per payload.
+	 * 
+	 * @param name
+	 * @param project
+	 * @throws Exception
+	 */
+	public void run(String name, Project project) throws Exception
+	{
+		PresetDictionary dictionary = CollectorClient.CreatePresetDictionary(project);
+		if(dictionary.isEmpty())
+		{
+			out.println(String.format("%s: empty dictionary (no text field initial values), payloads are not affected", name));
+			return;
+		}
+		out.println(String.format("%s: dictionary of %d bytes", name, dictionary.getBytes().length));
+		Random random = new Random(0);
+		for(Form form : project.getForms())
+		{
+			if(!form.isProducesRecords())
+				continue;
+			for(int numberOfRecords : RECORDS_PER_PAYLOAD)
+			{
+				List<Record> records = new ArrayList<Record>(numberOfRecords);
+				for(int r = 0; r < numberOfRecords; r++)
+				{
+					Record record = createRecord(form, random);
+					if(record == null)
+					{
+						out.println(String.format("%s/%s: skipped (cannot generate values for all columns)", name, form.getName()));
+						break;
+					}
+					records.add(record);
+				}
+				if(records.size() < numberOfRecords)
+					break;
+				int bitsWithout = getPayloadBits(project.getModel(), null, records);
+				int bitsWith = getPayloadBits(project.getModel(), dictionary, records);
+				out.println(String.format(	"%s/%s: %d record(s): %d bits without dictionary, %d bits with dictionary (%.1f%% smaller)",
+											name,
+											form.getName(),
+											numberOfRecords,
+											bitsWithout,
+											bitsWith,
+											(bitsWithout - bitsWith) * 100.0d / bitsWithout));
+			}
+		}
+	}
+	
+	/**
+	 * @param form
+	 * @param random
+	 * @return a record with text fields holding their initial value and random values for the other non-optional columns, or {@code null} if a column of an unsupported type has to be set
+	 */
+	private Record createRecord(Form form, Random random)
+	{
+		Record record = form.newRecord(DEVICE_ID);
+		setInitialValues(form.getFields(), record);
+		for(Column<?> column : form.getSchema().getColumns(false))
+		{
+			if(column.isOptional() || column.isValueSet(record))
+				continue;
+			if(column instanceof IntegerColumn)
+			{
+				IntegerColumn intCol = (IntegerColumn) column;
+				BigInteger low = intCol.getRangeMapping().lowBound();
+				BigInteger range = intCol.getRangeMapping().highBound().subtract(low).add(BigInteger.ONE);
+				intCol.storeValue(record, low.add(new BigInteger(range.bitLength(), random).mod(range)).longValue());
+			}
+			else if(column instanceof BooleanColumn)
+				((BooleanColumn) column).storeValue(record, random.nextBoolean());
+			else if(column instanceof TimeStampColumn)
+				((TimeStampColumn) column).storeValue(record, TimeStamp.now());
+			else
+				return null;
+		}
+		return record;
+	}
+	
+	private void setInitialValues(List<? extends Field> fields, Record record)
+	{
+		for(Field field : fields)
+		{
+			if(field instanceof Page)
+				setInitialValues(((Page) field).getFields(), record);
+			else if(field instanceof TextBoxField && !field.isNoColumn() && ((TextBoxField) field).getInitialValue() != null)
+			{
+				try
+				{
+					field.getColumn().storeObject(record, ((TextBoxField) field).getInitialColumnValue());
+				}
+				catch(Exception e)
+				{
+					// does nothing (leave the value unset)
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @param model
+	 * @param dictionary may be null
+	 * @param records
+	 * @return the size of the serialised payload (in bits)
+	 * @throws Exception
+	 */
+	private int getPayloadBits(Model model, PresetDictionary dictionary, List<Record> records) throws Exception
+	{
+		RecordsPayload payload = new RecordsPayload();
+		new BinarySMSTransmission(new Client(model, dictionary), new SMSAgent("+440000000000"), payload);
+		payload.addRecords(records);
+		return payload.serialise().length();
+	}
+	
+	/**
+	 * Minimal {@link TransmissionClient} which only knows the benchmarked model and (optionally) its preset dictionary.
+	 */
+	static private class Client extends TransmissionClient
+	{
+		
+		private final Model model;
+		private final PresetDictionary dictionary;
+		
+		public Client(Model model, PresetDictionary dictionary)
+		{
+			this.model = model;
+			this.dictionary = dictionary;
+		}
+		
+		@Override
+		protected Model getClientModel(long modelID) throws UnknownModelException
+		{
+			if(modelID != model.getID())
+				throw new UnknownModelException(modelID, null);
+			return model;
+		}
+		
+		@Override
+		public PresetDictionary getPresetDictionary(Model model)
+		{
+			return dictionary;
+		}
+
+		@Override
+		public Schema getSchemaV1(int schemaID, int schemaVersion) throws UnknownModelException
+		{
+			throw new UnknownModelException(schemaID, schemaVersion);
+		}
+
+		@Override
+		public void recordInserted(Record record)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordUpdated(Record record)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordDeleted(Record record)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordDeleted(RecordReference recordReference)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordsDeleted(RecordsQuery query, int numberOfDeletedRecords)
+		{
+			// does nothing
+		}
+
+		@Override
+		protected RecordStore createRecordStore() throws DBException
+		{
+			throw new DBException("Not supported");
+		}
+
+		@Override
+		public EncryptionSettings getEncryptionSettingsFor(Model model) throws UnknownModelException
+		{
+			return null; // no encryption
+		}
+
+		@Override
+		public Payload createPayload(int nonBuiltinType)
+		{
+			throw new IllegalArgumentException("Unsupported payload type: " + nonBuiltinType);
+		}
+
+		@Override
+		public Set<Column<?>> getNonTransmittableColumns(Schema schema)
+		{
+			return Collections.<Column<?>> emptySet();
+		}
+		
+	}
+	
+}
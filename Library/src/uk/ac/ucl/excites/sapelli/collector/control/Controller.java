@@ -136,7 +136,10 @@ public abstract class Controller<CUI extends CollectorUI<?, ?>> implements Field
 	 */
 	static public boolean IsFieldEnabled(FormSession currFormSession, Field field)
 	{
-		return IsFieldEnabled(currFormSession.mode, currFormSession.getRuntimeEnabled(field), field);
+		Boolean runtimeEnabled = currFormSession.getRuntimeEnabled(field);
+		if(runtimeEnabled == null)
+			return currFormSession.navigation.isEnabled(field); // precomputed
+		return IsFieldEnabled(currFormSession.mode, runtimeEnabled, field);
 	}
 	
 	/**
@@ -319,7 +322,7 @@ public abstract class Controller<CUI extends CollectorUI<?, ?>> implements Field
 		else
 		{	// Normal going forward:
 			if(currFormSession.atField())
-				goTo(currFormSession.form.getNextFieldAndArguments(getCurrentField(), allowJump));
+				goTo(currFormSession.navigation.getNext(getCurrentField(), allowJump));
 			else
 				openFormSession(currFormSession); // this shouldn't happen really...
 		}
@@ -461,7 +464,7 @@ public abstract class Controller<CUI extends CollectorUI<?, ?>> implements Field
 	 */
 	public boolean isFieldToBeShown(Field field)
 	{
-		return IsFieldToBeShown(currFormSession.mode, field);
+		return currFormSession.navigation.isShown(field);
 	}
 	
 	protected void saveRecordAndAttachments()
@@ -30,6 +30,7 @@ import uk.ac.ucl.excites.sapelli.collector.control.Controller.Mode;
 import uk.ac.ucl.excites.sapelli.collector.model.Field;
 import uk.ac.ucl.excites.sapelli.collector.model.FieldParameters;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.FormNavigation;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 
 /**
@@ -54,6 +55,7 @@ public class FormSession
 	// DYNAMIC ------------------------------------------------------
 	protected final Form form;
 	protected final Mode mode;
+	protected final FormNavigation navigation;
 	protected Record record; //TODO make final? do we really need to make the record null in Controller#discardRecordAndAttachments()?
 	protected final long startTime;
 	
@@ -76,6 +78,7 @@ public class FormSession
 			throw new NullPointerException("Record cannot be null because this is a record-producing form!");	
 		this.form = form;
 		this.mode = mode;
+		this.navigation = form.getNavigation(mode);
 		this.record = record;
 		this.fieldAndArgumentHistory = new Stack<FieldWithArguments>();
 		this.startTime = startTime;
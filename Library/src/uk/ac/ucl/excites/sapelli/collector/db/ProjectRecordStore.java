@@ -31,6 +31,7 @@ import uk.ac.ucl.excites.sapelli.collector.db.exceptions.ProjectSignatureClashEx
 import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.FormSchemaInfoProvider;
 import uk.ac.ucl.excites.sapelli.collector.load.ProjectLoader;
+import uk.ac.ucl.excites.sapelli.collector.load.ProjectSnapshot;
 import uk.ac.ucl.excites.sapelli.collector.model.Field;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
@@ -228,14 +229,17 @@ public class ProjectRecordStore extends ProjectStore implements StoreHandle.Stor
 		// First check the cache:
 		project = cache.get(getCacheKey(projDescr.getID(), projDescr.getFingerPrint()));
 		
-		// Parse project if we didn't get it from the cache: 
+		// Read snapshot or parse project if we didn't get it from the cache: 
 		if(project == null)
 		{
-			project = ProjectLoader.ParseProject(	fileStorageProvider.getProjectInstallationFolder(	projDescr.getName(),
-																										projDescr.getVariant(), 
-																										projDescr.getVersion(),
-																										false),
-													this); // pass this as FormSchemaInfoProvider
+			File installFolder = fileStorageProvider.getProjectInstallationFolder(projDescr.getName(), projDescr.getVariant(), projDescr.getVersion(), false);
+			project = ProjectSnapshot.Read(installFolder, projDescr); // avoids parsing PROJECT.xml
+			if(project == null)
+			{
+				project = ProjectLoader.ParseProject(installFolder, this); // pass this as FormSchemaInfoProvider
+				if(project != null)
+					ProjectSnapshot.Write(installFolder, project);
+			}
 			// Check if we have a project:
 			if(project == null)
 				delete(projDescr);
@@ -20,11 +20,21 @@ package uk.ac.ucl.excites.sapelli.collector.load;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.io.FileUtils;
 
@@ -36,6 +46,8 @@ import uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor;
 import uk.ac.ucl.excites.sapelli.collector.model.Project;
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.Unzipper;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
 import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper;
 
 /**
@@ -49,6 +61,23 @@ public class ProjectLoader implements WarningKeeper
 	// STATICS -----------------------------------------------------------
 	static public final String[] SAPELLI_FILE_EXTENSIONS = { "sap", "sapelli", "excites", "zip" };
 	static public final String PROJECT_FILE = "PROJECT.xml";
+	
+	/**
+	 * Used to give concurrently extracted files (possibly by different ProjectLoader instances) their own temp folder
+	 */
+	static private final AtomicInteger EXTRACT_COUNTER = new AtomicInteger();
+	
+	static private final String STAGING_FOLDER_SUFFIX = "_staging_";
+	
+	/**
+	 * Number of threads used to extract the files contained in a Sapelli file
+	 */
+	static public final int EXTRACTION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	
+	/**
+	 * Upper bound on the number of post-processing tasks executed concurrently (regardless of what the {@link PostProcessor} allows)
+	 */
+	static public final int MAX_POST_PROCESSING_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
 
 	/**
 	 * Checks if the given file has a support sapelli file extension
@@ -110,6 +139,9 @@ public class ProjectLoader implements WarningKeeper
 	
 	private final File tempFolder;
 	private final ProjectParser parser;
+	
+	private volatile PostProcessingListener postProcessingListener;
+	private volatile boolean cancelled = false;
 
 	/**
 	 * @param fileStorageProvider
@@ -150,11 +182,30 @@ public class ProjectLoader implements WarningKeeper
 	 */
 	public Project load(File sapelliFile) throws Exception
 	{
-		return load(FileHelpers.openInputStream(sapelliFile, true));
+		if(sapelliFile == null || !sapelliFile.exists() || sapelliFile.length() == 0)
+			throw new IllegalArgumentException("Invalid Sapelli file");
+		ZipFile zip = null;
+		try
+		{
+			zip = new ZipFile(sapelliFile);
+		}
+		catch(Exception e)
+		{
+			throw new Exception("Error on opening Sapelli file.", e);
+		}
+		try
+		{
+			return load(zip);
+		}
+		finally
+		{
+			zip.close();
+		}
 	}
 	
 	/**
 	 * Extract the given sapelli file (provided as an InputStream) and parses the PROJECT.xml; returns the resulting Project object.
+	 * The stream is first spooled to a temporary file because random access is needed to read PROJECT.xml before any other entry.
 	 * 
 	 * @param sapelliFileInputStream
 	 * @return the loaded Project
@@ -162,26 +213,49 @@ public class ProjectLoader implements WarningKeeper
 	 */
 	public Project load(InputStream sapelliFileInputStream) throws Exception
 	{
-		clearWarnings();
-		Project project = null;
-		File extractFolder = new File(tempFolder.getAbsolutePath() + File.separator + System.currentTimeMillis());
+		File spoolFile = new File(tempFolder.getAbsolutePath() + File.separator + System.currentTimeMillis() + "_" + EXTRACT_COUNTER.incrementAndGet() + "." + SAPELLI_FILE_EXTENSIONS[0]);
 		try
 		{
-			// STEP 1 - Extract the content of the Sapelli file to a new subfolder of the temp folder:
 			try
 			{
-				FileHelpers.createDirectory(extractFolder);
-				Unzipper.unzip(sapelliFileInputStream, extractFolder);
+				FileUtils.copyInputStreamToFile(sapelliFileInputStream, spoolFile);
 			}
 			catch(Exception e)
 			{
-				throw new Exception("Error on extracting contents of Sapelli file.", e);
+				throw new Exception("Error on reading Sapelli file.", e);
 			}
+			return load(spoolFile);
+		}
+		finally
+		{
+			FileUtils.deleteQuietly(spoolFile);
+		}
+	}
+	
+	/**
+	 * Parses PROJECT.xml straight from the given zip file, checks the project and only then extracts the contents
+	 * (in parallel) to a staging folder next to the installation folder, which is renamed into place once complete.
+	 * 
+	 * @param zip
+	 * @return the loaded Project
+	 * @throws Exception
+	 */
+	private Project load(ZipFile zip) throws Exception
+	{
+		Timer.Context timing = Metrics.Time("project.load");
+		try
+		{
+			clearWarnings();
+			cancelled = false;
+			Project project = null;
 			
-			// STEP 2 - Parse PROJECT.xml:
+			// STEP 1 - Parse PROJECT.xml (without extracting anything):
 			try
-			{	
-				project = parser.parseProject(new File(extractFolder.getAbsolutePath() + File.separator + PROJECT_FILE));
+			{
+				ZipEntry projectEntry = Unzipper.getEntry(zip, PROJECT_FILE);
+				if(projectEntry == null)
+					throw new FileNotFoundException(PROJECT_FILE + " not found in Sapelli file");
+				project = parser.parseProject(zip.getInputStream(projectEntry));
 			}
 			catch(Exception e)
 			{
@@ -190,56 +264,177 @@ public class ProjectLoader implements WarningKeeper
 			// Copy parser warnings:
 			addWarnings(parser.getWarnings());
 			
-			// STEP 3 - Check if project is acceptable:
+			// STEP 2 - Check if project is acceptable (before any files are written):
 			checkProject(project); // throws IllegalArgumentException if something is wrong
-
-			// STEP 4 - Create move extracted files to project folder:
-			try
-			{
-				File installFolder = fileStorageProvider.getProjectInstallationFolder(project, true);
-				FileHelpers.moveDirectory(extractFolder, installFolder);
-				extractFolder = installFolder;
-			}
-			catch(Exception e)
-			{
-				throw new Exception("Error on moving extracted files to project folder.", e);
-			}
 			
-			// STEP 5 - Run post-processing tasks:
-			List<PostProcessTask> tasks = parser.getPostProcessingTasks();
-			if(!tasks.isEmpty())
+			File installFolder = fileStorageProvider.getProjectInstallationFolder(project, false);
+			File stagingFolder = new File(installFolder.getParentFile(), installFolder.getName() + STAGING_FOLDER_SUFFIX + EXTRACT_COUNTER.incrementAndGet());
+			File extractFolder = stagingFolder;
+			try
 			{
-				if(postProcessor != null)
+				// STEP 3 - Extract the content of the Sapelli file to the staging folder:
+				try
+				{
+					if(!FileHelpers.createDirectory(stagingFolder))
+						throw new FileStorageException("Could not create folder: " + stagingFolder.getAbsolutePath());
+					Unzipper.unzip(zip, stagingFolder, EXTRACTION_THREADS);
+				}
+				catch(Exception e)
+				{
+					throw new Exception("Error on extracting contents of Sapelli file.", e);
+				}
+				
+				// STEP 4 - Move extracted files into the project folder (atomically, unless the folder already exists):
+				try
+				{
+					if(installFolder.exists() || !stagingFolder.renameTo(installFolder))
+						FileHelpers.moveDirectory(stagingFolder, installFolder); // merge
+					extractFolder = installFolder;
+				}
+				catch(Exception e)
+				{
+					throw new Exception("Error on moving extracted files to project folder.", e);
+				}
+				
+				// STEP 5 - Run post-processing tasks:
+				List<PostProcessTask> tasks = parser.getPostProcessingTasks();
+				if(!tasks.isEmpty())
 				{
-					postProcessor.initialise(project);
-					for(PostProcessTask task : tasks)
+					if(postProcessor != null)
 					{
+						postProcessor.initialise(project);
 						try
 						{
-							task.execute(postProcessor, project, this);
+							postProcess(project, tasks);
 						}
-						catch(Exception e)
+						finally
 						{
-							throw new Exception("Error on executing post-processing task", e);
+							postProcessor.freeResources();
 						}
 					}
-					
-					postProcessor.freeResources();
+					else
+						addWarning("Unable to perform " + tasks.size() + " post-processing");
 				}
-				else
-					addWarning("Unable to perform " + tasks.size() + " post-processing");
+				
+				// STEP 6 - Write binary snapshot (speeds up subsequent loading of the project):
+				ProjectSnapshot.Write(installFolder, project);
 			}
+			catch(Exception e)
+			{
+				// Delete staging or install folder:
+				FileUtils.deleteQuietly(extractFolder);
+				// Re-throw Exception:
+				throw e;
+			}
+			
+			// Return project object:
+			return project;
 		}
-		catch(Exception e)
+		finally
 		{
-			// Delete temp or install folder:
-			FileUtils.deleteQuietly(extractFolder);
-			// Re-throw Exception:
-			throw e;
+			timing.stop();
+		}
+	}
+	
+	/**
+	 * Executes the given post-processing tasks, concurrently if the {@link PostProcessor} allows it.
+	 * Warnings added by concurrently executed tasks are collected per task and copied in task order.
+	 * 
+	 * @param project
+	 * @param tasks
+	 * @throws Exception
+	 */
+	private void postProcess(final Project project, final List<PostProcessTask> tasks) throws Exception
+	{
+		final int total = tasks.size();
+		int numberOfThreads = Math.min(Math.min(postProcessor.getMaxConcurrentTasks(), MAX_POST_PROCESSING_THREADS), total);
+		if(numberOfThreads <= 1)
+		{	// Sequential execution:
+			int done = 0;
+			for(PostProcessTask task : tasks)
+			{
+				checkCancelled();
+				try
+				{
+					task.execute(postProcessor, project, this);
+				}
+				catch(Exception e)
+				{
+					throw new Exception("Error on executing post-processing task", e);
+				}
+				reportProgress(project, ++done, total);
+			}
+			return;
 		}
 		
-		// Return project object:
-		return project;
+		// Concurrent execution:
+		final AtomicInteger done = new AtomicInteger();
+		List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(total);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try
+		{
+			for(final PostProcessTask task : tasks)
+				results.add(executor.submit(new Callable<List<String>>()
+				{
+					@Override
+					public List<String> call() throws Exception
+					{
+						checkCancelled();
+						TaskWarnings taskWarnings = new TaskWarnings();
+						task.execute(postProcessor, project, taskWarnings);
+						reportProgress(project, done.incrementAndGet(), total);
+						return taskWarnings.getWarnings();
+					}
+				}));
+			for(Future<List<String>> result : results)
+			{
+				try
+				{
+					addWarnings(result.get());
+				}
+				catch(ExecutionException ee)
+				{
+					if(ee.getCause() instanceof CancellationException)
+						throw (CancellationException) ee.getCause();
+					throw new Exception("Error on executing post-processing task", ee.getCause());
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	private void checkCancelled() throws CancellationException
+	{
+		if(cancelled)
+			throw new CancellationException("Project loading cancelled");
+	}
+	
+	private void reportProgress(Project project, int done, int total)
+	{
+		PostProcessingListener listener = postProcessingListener;
+		if(listener != null)
+			listener.postProcessingProgress(project, done, total);
+	}
+	
+	/**
+	 * @param listener the listener to inform about post-processing progress (may be null)
+	 */
+	public void setPostProcessingListener(PostProcessingListener listener)
+	{
+		this.postProcessingListener = listener;
+	}
+	
+	/**
+	 * Cancels the ongoing load operation (if any). Post-processing stops as soon as the tasks currently being
+	 * executed have finished, after which the load method throws a {@link CancellationException} and the
+	 * installation folder is deleted. The flag is reset at the start of each load operation.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
 	}
 	
 	/**
@@ -321,6 +516,61 @@ public class ProjectLoader implements WarningKeeper
 		warnings = null;
 	}
 	
+	/**
+	 * Collects the warnings of a single concurrently executed post-processing task
+	 * 
+	 * @author mstevens
+	 */
+	static private class TaskWarnings implements WarningKeeper
+	{
+		
+		private final List<String> warnings = new ArrayList<String>();
+
+		@Override
+		public void addWarning(String warning)
+		{
+			warnings.add(warning);
+		}
+
+		@Override
+		public void addWarnings(Collection<String> warnings)
+		{
+			this.warnings.addAll(warnings);
+		}
+
+		@Override
+		public List<String> getWarnings()
+		{
+			return warnings;
+		}
+
+		@Override
+		public void clearWarnings()
+		{
+			warnings.clear();
+		}
+		
+	}
+	
+	/**
+	 * Callback interface for following the progress of post-processing
+	 * 
+	 * @author mstevens
+	 */
+	public interface PostProcessingListener
+	{
+		
+		/**
+		 * Called after each post-processing task has completed, possibly from a worker thread.
+		 * 
+		 * @param project
+		 * @param done number of tasks completed so far
+		 * @param total total number of tasks
+		 */
+		public void postProcessingProgress(Project project, int done, int total);
+		
+	}
+	
 	/**
 	 * Callback interface for checking Project acceptance
 	 * 
@@ -0,0 +1,193 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.collector.model.ProjectDescriptor;
+
+/**
+ * Binary snapshot of a parsed {@link Project}, stored next to the PROJECT.xml file in the project's installation folder.
+ * Reading a snapshot avoids having to parse the XML (and rebuild all Forms, Fields, Schemas, etc.) on warm starts.
+ * 
+ * A snapshot starts with a header holding a format version, the project ID & fingerprint, and a CRC32 checksum of the
+ * PROJECT.xml file it was created from. A snapshot is only used if all of these match, otherwise it is ignored (and
+ * will be overwritten after the project has been parsed again).
+ * 
+ * @author mstevens
+ */
+public final class ProjectSnapshot
+{
+
+	static public final String SNAPSHOT_FILE = "PROJECT.bin";
+	
+	static private final int MAGIC = 0x53415053; // "SAPS"
+	
+	/**
+	 * Must be incremented whenever the (serialised) Project object model changes in an incompatible way
+	 */
+	static private final byte FORMAT_VERSION = 1;
+	
+	private ProjectSnapshot()
+	{
+		// should never be instantiated
+	}
+	
+	/**
+	 * @param folder the installation folder of the project
+	 * @param descriptor describes the project which is expected to be in the folder (may be null)
+	 * @return the project from the snapshot in the given folder, or null if there is no (valid and up-to-date) snapshot
+	 */
+	static public Project Read(File folder, ProjectDescriptor descriptor)
+	{
+		File snapshotFile = new File(folder, SNAPSHOT_FILE);
+		if(!snapshotFile.isFile())
+			return null;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			if(in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION)
+				return null;
+			int id = in.readInt();
+			int fingerPrint = in.readInt();
+			if(descriptor != null && (id != descriptor.getID() || fingerPrint != descriptor.getFingerPrint()))
+				return null;
+			if(in.readLong() != GetChecksum(new File(folder, ProjectLoader.PROJECT_FILE)))
+				return null; // PROJECT.xml has changed
+			Project project = (Project) new ObjectInputStream(in).readObject();
+			return project.getID() == id && project.getFingerPrint() == fingerPrint ? project : null;
+		}
+		catch(Exception e)
+		{
+			System.err.println("Could not read project snapshot (" + snapshotFile.getAbsolutePath() + "): " + e.getMessage());
+			return null;
+		}
+		finally
+		{
+			if(in != null)
+				try
+				{
+					in.close();
+				}
+				catch(IOException ignore)
+				{
+				}
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the given project to the given folder (failure is not fatal, it is only reported).
+	 * The snapshot is first written to a temporary file, which is then renamed, so that readers never see a partial snapshot.
+	 * 
+	 * @param folder the installation folder of the project (containing the PROJECT.xml file it was parsed from)
+	 * @param project
+	 * @return whether the snapshot was written successfully
+	 */
+	static public boolean Write(File folder, Project project)
+	{
+		File snapshotFile = new File(folder, SNAPSHOT_FILE);
+		File tempFile = new File(folder, SNAPSHOT_FILE + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(project.getID());
+			out.writeInt(project.getFingerPrint());
+			out.writeLong(GetChecksum(new File(folder, ProjectLoader.PROJECT_FILE)));
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(project);
+			oos.close();
+			out = null;
+			if(!tempFile.renameTo(snapshotFile))
+			{
+				FileUtils.deleteQuietly(snapshotFile);
+				if(!tempFile.renameTo(snapshotFile))
+					throw new IOException("Could not rename temporary file");
+			}
+			return true;
+		}
+		catch(Exception e)
+		{
+			System.err.println("Could not write project snapshot (" + snapshotFile.getAbsolutePath() + "): " + e.getMessage());
+			FileUtils.deleteQuietly(tempFile);
+			return false;
+		}
+		finally
+		{
+			if(out != null)
+				try
+				{
+					out.close();
+				}
+				catch(IOException ignore)
+				{
+				}
+		}
+	}
+	
+	/**
+	 * Deletes the snapshot in the given folder, if there is one.
+	 * 
+	 * @param folder
+	 */
+	static public void Delete(File folder)
+	{
+		FileUtils.deleteQuietly(new File(folder, SNAPSHOT_FILE));
+	}
+	
+	/**
+	 * @param file
+	 * @return CRC32 checksum of the (raw) contents of the given file
+	 * @throws IOException
+	 */
+	static private long GetChecksum(File file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[8192];
+			for(int c = in.read(buffer); c != -1; c = in.read(buffer))
+				crc.update(buffer, 0, c);
+		}
+		finally
+		{
+			in.close();
+		}
+		return crc.getValue();
+	}
+	
+}
@@ -308,6 +308,8 @@ public class ProjectParser extends DocumentParser
 					}
 					addWarnings(form.getWarnings()); // !!!
 					form.clearWarnings();
+					// precompile navigation tables (cached with the form):
+					form.compileNavigation();
 				}
 				// Seal project model:
 				project.getModel().seal();
@@ -0,0 +1,110 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.load.process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.collector.model.Project;
+import uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper;
+
+/**
+ * Dummy post-processor (does not produce any files) for use on the JVM/in tests.
+ * It merely records the tasks it is asked to execute, optionally taking a fixed amount of time for each one.
+ * 
+ * @author mstevens
+ */
+public class DummyPostProcessor implements PostProcessor
+{
+
+	private final int maxConcurrentTasks;
+	private final long taskDurationMS;
+	private final List<PostProcessTask> executedTasks = Collections.synchronizedList(new ArrayList<PostProcessTask>());
+	
+	/**
+	 * Creates a DummyPostProcessor which executes tasks one at a time and instantaneously
+	 */
+	public DummyPostProcessor()
+	{
+		this(1, 0);
+	}
+	
+	/**
+	 * @param maxConcurrentTasks
+	 * @param taskDurationMS time (in ms) each task takes to execute
+	 */
+	public DummyPostProcessor(int maxConcurrentTasks, long taskDurationMS)
+	{
+		if(maxConcurrentTasks < 1)
+			throw new IllegalArgumentException("maxConcurrentTasks must be at least 1");
+		this.maxConcurrentTasks = maxConcurrentTasks;
+		this.taskDurationMS = taskDurationMS;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#initialise(uk.ac.ucl.excites.sapelli.collector.model.Project)
+	 */
+	@Override
+	public void initialise(Project project)
+	{
+		executedTasks.clear();
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#getMaxConcurrentTasks()
+	 */
+	@Override
+	public int getMaxConcurrentTasks()
+	{
+		return maxConcurrentTasks;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#execute(uk.ac.ucl.excites.sapelli.collector.load.process.TTVSynthesisTask, uk.ac.ucl.excites.sapelli.collector.model.Project, uk.ac.ucl.excites.sapelli.shared.util.WarningKeeper)
+	 */
+	@Override
+	public void execute(TTVSynthesisTask ttsTask, Project project, WarningKeeper warningKeeper) throws Exception
+	{
+		if(taskDurationMS > 0)
+			Thread.sleep(taskDurationMS);
+		executedTasks.add(ttsTask);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.collector.load.process.PostProcessor#freeResources()
+	 */
+	@Override
+	public void freeResources()
+	{
+		// does nothing
+	}
+	
+	/**
+	 * @return the tasks executed since the last call to {@link #initialise(Project)}, in order of completion
+	 */
+	public List<PostProcessTask> getExecutedTasks()
+	{
+		synchronized(executedTasks)
+		{
+			return new ArrayList<PostProcessTask>(executedTasks);
+		}
+	}
+
+}
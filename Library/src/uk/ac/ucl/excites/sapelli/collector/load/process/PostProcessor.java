@@ -38,6 +38,14 @@ public interface PostProcessor
 	 */
 	public void initialise(Project project);
 	
+	/**
+	 * Indicates how many tasks this post-processor can execute concurrently. When more than 1 is returned
+	 * the execute() methods may be called from multiple threads at once (each call with its own {@link WarningKeeper}).
+	 * 
+	 * @return the maximum number of tasks to execute concurrently (1 if the post-processor is not thread-safe)
+	 */
+	public int getMaxConcurrentTasks();
+	
 	/**
 	 * @param ttsTask
 	 * @param project
@@ -31,6 +31,8 @@ import uk.ac.ucl.excites.sapelli.shared.util.Parameters;
 public class FieldParameters extends Parameters
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	/**
 	 * Empty & immutable FieldParameters instance 
 	 */
@@ -19,6 +19,7 @@
 package uk.ac.ucl.excites.sapelli.collector.model;
 
 import java.io.File;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -26,6 +27,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import uk.ac.ucl.excites.sapelli.collector.control.Controller.Mode;
 import uk.ac.ucl.excites.sapelli.collector.control.FieldWithArguments;
 import uk.ac.ucl.excites.sapelli.collector.io.FileStorageProvider;
 import uk.ac.ucl.excites.sapelli.collector.model.fields.EndField;
@@ -48,10 +50,12 @@ import uk.ac.ucl.excites.sapelli.storage.util.ModelFullException;
  * @author mstevens, Michalis Vitos
  *
  */
-public class Form implements WarningKeeper
+public class Form implements WarningKeeper, Serializable
 {
 
 	// Statics--------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	public static final boolean END_TIME_DEFAULT = false;
 
 	static public final int MAX_ID_LENGTH = 256;
@@ -114,6 +118,7 @@ public class Form implements WarningKeeper
 	private boolean skipOnBack = DEFAULT_SKIP_ON_BACK;
 	private Schema schema;
 	private ColumnOptionalityAdvisor columnOptionalityAdvisor;
+	private transient FormNavigation[] navigations; // one per Mode, only instantiated when needed
 
 	private transient List<String> warnings;
 	
@@ -210,6 +215,7 @@ public class Form implements WarningKeeper
 		 if(fields.size() == MAX_FIELDS)
 			throw new IllegalStateException("Maximum number of fields reached");
 		fields.add(f);
+		navigations = null; // discard outdated navigation tables
 	}
 
 	public int getFieldPosition(Field field)
@@ -244,6 +250,34 @@ public class Form implements WarningKeeper
 		return new FieldWithArguments(nextF, current.getNextFieldArguments());
 	}
 
+	/**
+	 * Returns the (cached) navigation table for the given mode, it is compiled upon the first call.
+	 * Should only be called once the form is complete (i.e. all fields have been added and jumps resolved).
+	 * 
+	 * @param mode
+	 * @return the navigation table for this form in the given mode
+	 */
+	public FormNavigation getNavigation(Mode mode)
+	{
+		synchronized(fields)
+		{
+			if(navigations == null)
+				navigations = new FormNavigation[Mode.values().length];
+			if(navigations[mode.ordinal()] == null)
+				navigations[mode.ordinal()] = new FormNavigation(this, mode);
+			return navigations[mode.ordinal()];
+		}
+	}
+	
+	/**
+	 * Compiles the navigation tables for all modes, so they are ready before the form is first used.
+	 */
+	public void compileNavigation()
+	{
+		for(Mode mode : Mode.values())
+			getNavigation(mode);
+	}
+	
 	/**
 	 * Returns the Form ID
 	 * 
@@ -572,6 +606,7 @@ public class Form implements WarningKeeper
 		{
 			this.next = Next.valueOf(nextStr);
 			getDefaultEndField(); // update default EndField accordingly
+			navigations = null; // discard outdated navigation tables
 		}
 		catch(IllegalArgumentException iae)
 		{
@@ -0,0 +1,166 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.collector.model;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.ucl.excites.sapelli.collector.control.Controller;
+import uk.ac.ucl.excites.sapelli.collector.control.Controller.Mode;
+import uk.ac.ucl.excites.sapelli.collector.control.FieldWithArguments;
+import uk.ac.ucl.excites.sapelli.collector.model.fields.ChoiceField;
+
+/**
+ * Precompiled navigation table for a {@link Form} in a given {@link Mode}.
+ * 
+ * Resolves (in constant time) the position of a field within the form, the field to go to next (with or without
+ * following jumps) and whether a field is to be shown/statically enabled in the mode. Fields which are not part of the
+ * form's top-level field list or of the choice trees rooted there (e.g. fields on Pages) are not in the table, for
+ * those the results are computed on the fly in the same way {@link Form#getNextFieldAndArguments(Field, boolean)} and
+ * {@link Controller} would.
+ * 
+ * Tables are built once the form is complete (see {@link Form#getNavigation(Mode)}), changes made to the form or its
+ * fields afterwards are not reflected.
+ * 
+ * @author mstevens
+ */
+public class FormNavigation
+{
+
+	private final Form form;
+	private final Mode mode;
+	private final Map<Field, Entry> entries;
+	
+	/**
+	 * @param form
+	 * @param mode
+	 */
+	/*package*/ FormNavigation(Form form, Mode mode)
+	{
+		this.form = form;
+		this.mode = mode;
+		this.entries = new IdentityHashMap<Field, Entry>();
+		List<Field> fields = form.getFields();
+		for(int p = 0; p < fields.size(); p++)
+		{
+			Field below = p + 1 < fields.size() ? fields.get(p + 1) : form.getDefaultEndField();
+			add(fields.get(p), p, below);
+		}
+	}
+	
+	private void add(Field field, int position, Field below)
+	{
+		entries.put(field, new Entry(field, position, below));
+		if(field instanceof ChoiceField)
+			for(ChoiceField child : ((ChoiceField) field).getChildren())
+				add(child, position, below);
+	}
+	
+	/**
+	 * @return the form
+	 */
+	public Form getForm()
+	{
+		return form;
+	}
+	
+	/**
+	 * @return the mode
+	 */
+	public Mode getMode()
+	{
+		return mode;
+	}
+	
+	/**
+	 * @param field
+	 * @return the position of the (root of the) field in the form, or -1 if it is not part of the form's top-level fields (e.g. because it is on a page)
+	 */
+	public int getPosition(Field field)
+	{
+		Entry entry = entries.get(field);
+		return entry != null ? entry.position : form.getFieldPosition(field);
+	}
+	
+	/**
+	 * Same as {@link Form#getNextFieldAndArguments(Field, boolean)}, but using the precompiled table.
+	 * 
+	 * @param current (should not be null)
+	 * @param allowJump
+	 * @return the next field to go to along with passed arguments, or null if the next field could not be determined (likely because the current field is part of a page)
+	 * @throws NullPointerException when current is null
+	 */
+	public FieldWithArguments getNext(Field current, boolean allowJump) throws NullPointerException
+	{
+		if(current == null)
+			throw new NullPointerException("Given \"current\" field cannot be null");
+		Entry entry = entries.get(current);
+		if(entry == null)
+			return form.getNextFieldAndArguments(current, allowJump);
+		Field nextF = allowJump && entry.jump != null ? entry.jump : entry.below;
+		return new FieldWithArguments(nextF, current.getNextFieldArguments());
+	}
+	
+	/**
+	 * @param field
+	 * @return whether the given field is to be shown in the mode of this table
+	 * @see Controller#IsFieldToBeShown(Mode, Field)
+	 */
+	public boolean isShown(Field field)
+	{
+		Entry entry = entries.get(field);
+		return entry != null ? entry.shown : Controller.IsFieldToBeShown(mode, field);
+	}
+	
+	/**
+	 * @param field
+	 * @return whether the given field is enabled in the mode of this table, disregarding "runtime enabledness"
+	 * @see Controller#IsFieldEnabled(Mode, Field)
+	 */
+	public boolean isEnabled(Field field)
+	{
+		Entry entry = entries.get(field);
+		return entry != null ? entry.enabled : Controller.IsFieldEnabled(mode, field);
+	}
+	
+	/**
+	 * @author mstevens
+	 */
+	private class Entry
+	{
+		
+		final int position;
+		final Field below;
+		final Field jump;
+		final boolean shown;
+		final boolean enabled;
+		
+		Entry(Field field, int position, Field below)
+		{
+			this.position = position;
+			this.below = below;
+			this.jump = field.getJump(); // resolves the jump of parents in case of ChoiceField
+			this.shown = Controller.IsFieldToBeShown(mode, field);
+			this.enabled = Controller.IsFieldEnabled(mode, field);
+		}
+		
+	}
+	
+}
@@ -18,15 +18,19 @@
 
 package uk.ac.ucl.excites.sapelli.collector.model;
 
+import java.io.Serializable;
+
 
 /**
  * Super class for Field & Trigger
  * 
  * @author mstevens
  */
-public abstract class JumpSource
+public abstract class JumpSource implements Serializable
 {
 
+	private static final long serialVersionUID = 2L;
+
 	protected Field jump;
 	protected FieldParameters nextFieldArgs;
 	
@@ -42,6 +42,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 public class Project extends ProjectDescriptor
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	//STATICS-------------------------------------------------------------
 	static public final String DEFAULT_DEFAULT_LANGUAGE = "en"; // the default "default language" to set if there isn't one specified (English)
 	
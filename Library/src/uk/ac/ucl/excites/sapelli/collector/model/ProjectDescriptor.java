@@ -1,13 +1,17 @@
 package uk.ac.ucl.excites.sapelli.collector.model;
 
+import java.io.Serializable;
+
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
 import uk.ac.ucl.excites.sapelli.shared.util.Objects;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 
-public class ProjectDescriptor implements Comparable<ProjectDescriptor>
+public class ProjectDescriptor implements Comparable<ProjectDescriptor>, Serializable
 {
 	
 	//STATICS-------------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public final int PROJECT_ID_SIZE = Schema.V1X_SCHEMA_ID_SIZE; // = 24 bits (kept the same was the v1.x Schema#id, for backwards compatibility)
 	static public final IntegerRangeMapping PROJECT_ID_FIELD = IntegerRangeMapping.ForSize(0, PROJECT_ID_SIZE); // unsigned(!) 24bit integer (compatible with old schemaID)
 	
@@ -28,6 +28,8 @@ import java.util.List;
  */
 public class Trigger extends JumpSource
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	// Statics----------------------------------------------
 	static public final int NO_TIMEOUT = -1;
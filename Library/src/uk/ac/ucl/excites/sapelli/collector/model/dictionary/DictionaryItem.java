@@ -18,13 +18,14 @@
 
 package uk.ac.ucl.excites.sapelli.collector.model.dictionary;
 
+import java.io.Serializable;
 import java.util.List;
 
 /**
  * @author mstevens
  *
  */
-public interface DictionaryItem
+public interface DictionaryItem extends Serializable
 {
 
 	public String getValue();
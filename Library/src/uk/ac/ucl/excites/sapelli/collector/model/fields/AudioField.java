@@ -33,6 +33,8 @@ import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
  */
 public class AudioField extends MediaField
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	static public final boolean DEFAULT_USE_NATIVE_APP = false;
 	static private final String MEDIA_TYPE_3GPP = "MEDIA_TYPE_3GPP";
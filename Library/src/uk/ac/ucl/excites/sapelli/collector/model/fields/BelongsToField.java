@@ -33,6 +33,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.ForeignKeyColumn;
  */
 public class BelongsToField extends Relationship
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	//STATICS -------------------------------------------------------
 	static public final String PARAMETER_EDIT = "edit";
@@ -36,6 +36,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
 public class ButtonField extends Field
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	// Statics --------------------------------------------
 	static public enum ButtonColumnType
 	{
@@ -53,6 +53,8 @@ import uk.ac.ucl.excites.sapelli.storage.util.StringListMapper;
 public class ChoiceField extends Field implements DictionaryItem
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	static public final int DEFAULT_NUM_COLS = 1;
 	static public final int DEFAULT_NUM_ROWS = 2;
 	static public final boolean DEFAULT_MATCH_TEXT_SIZE = true;
@@ -567,6 +569,8 @@ public class ChoiceField extends Field implements DictionaryItem
 	 */
 	public static class ChoiceDictionary extends Dictionary<ChoiceField>
 	{
+		
+		private static final long serialVersionUID = 2L;
 
 		/**
 		 * <b>Note:</b> This method should only be called after the whole choice tree is parsed & constructed (i.e. from createColumn()).
@@ -588,7 +592,7 @@ public class ChoiceField extends Field implements DictionaryItem
 			{
 				if(choice.getValue() != null) // (do not merge the if's)
 				{
-					itemToIndex.put(choice, indexed.size());
+					getItemToIndex().put(choice, indexed.size());
 					indexed.add(choice);
 				}
 			}
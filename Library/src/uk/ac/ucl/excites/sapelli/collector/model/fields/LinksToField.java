@@ -34,6 +34,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Column;
  */
 public class LinksToField extends Relationship
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	/**
 	 * @param form
@@ -36,6 +36,8 @@ import uk.ac.ucl.excites.sapelli.storage.types.Location;
 public class LocationField extends Field implements Timeoutable
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	// Statics----------------------------------------------
 	static public final int TYPE_ANY = 0;
 	static public final int TYPE_GPS = 1;
@@ -43,6 +43,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
  */
 public abstract class MediaField extends Field
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	//static public final int DEFAULT_MIN = 0;
 	static public final int DEFAULT_MAX = 255; //column will use 1 byte (up to 255 items)
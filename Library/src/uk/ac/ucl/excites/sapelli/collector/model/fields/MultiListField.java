@@ -44,6 +44,8 @@ import uk.ac.ucl.excites.sapelli.storage.util.StringListMapper;
  */
 public class MultiListField extends Field
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	static public final String UNKNOWN_LABEL_PREFIX = "Level"; //TODO multilang
 	static public final boolean DEFAULT_PRESELECT = true;
@@ -246,6 +248,8 @@ public class MultiListField extends Field
 	public static class MultiListItem implements DictionaryItem
 	{
 		
+		private static final long serialVersionUID = 2L;
+		
 		static public final int NO_DEFAULT_ITEM_SET_IDX = -1; 
 
 		static public MultiListItem GetDummyItem(MultiListField field, String value)
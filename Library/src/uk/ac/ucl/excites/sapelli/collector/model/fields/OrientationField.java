@@ -35,6 +35,8 @@ import uk.ac.ucl.excites.sapelli.storage.types.Orientation;
 public class OrientationField extends Field
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	//Statics
 	static public final boolean DEFAULT_STORE_AZIMUTH = true; 
 	static public final boolean DEFAULT_STORE_PITCH = true;
@@ -33,6 +33,8 @@ import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
  */
 public class PhotoField extends MediaField
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	//STATICS--------------------------------------------------------
 	static private final String MEDIA_TYPE_JPEG = "PHOTO_JPEG";
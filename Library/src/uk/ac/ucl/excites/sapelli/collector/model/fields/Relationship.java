@@ -50,6 +50,8 @@ import uk.ac.ucl.excites.sapelli.storage.queries.constraints.Constraint;
  */
 public abstract class Relationship extends UILessField
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	//STATICS -------------------------------------------------------
 	static public final boolean DEFAULT_HOLD_FOREIGN_RECORD = false;
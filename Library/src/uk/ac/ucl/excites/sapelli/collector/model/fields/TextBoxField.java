@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.collector.model.fields;
 
+import java.text.ParseException;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -39,6 +40,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
  */
 public class TextBoxField extends Field
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	static public final String ID_PREFIX = "txt";
 
@@ -164,6 +167,20 @@ public class TextBoxField extends Field
 			throw new IllegalArgumentException("Initial/default value is too long (length: " + initValue.length() + "; max: " + maxLength + ")");
 		this.initialValue = initValue;
 	}
+	
+	/**
+	 * Converts the initial value to a value of the field's column, in the same way as {@link TextBoxUI} does with user input.
+	 * 
+	 * @return the initial value as it is stored in records if the user keeps it, or {@code null} if there is no initial value
+	 * @throws ParseException when the initial value cannot be parsed as a value of the column's type
+	 */
+	public Object getInitialColumnValue() throws ParseException
+	{
+		if(initialValue == null)
+			return null;
+		Column<?> column = getColumn();
+		return column instanceof StringColumn ? initialValue : column.parse(initialValue);
+	}
 
 	/**
 	 * @return the multiline
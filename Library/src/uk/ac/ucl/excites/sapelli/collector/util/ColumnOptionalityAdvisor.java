@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.collector.util;
 
+import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -29,7 +30,6 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
 
-import uk.ac.ucl.excites.sapelli.collector.control.Controller;
 import uk.ac.ucl.excites.sapelli.collector.control.Controller.Mode;
 import uk.ac.ucl.excites.sapelli.collector.control.FieldVisitor;
 import uk.ac.ucl.excites.sapelli.collector.control.FieldWithArguments;
@@ -37,6 +37,7 @@ import uk.ac.ucl.excites.sapelli.collector.model.Control;
 import uk.ac.ucl.excites.sapelli.collector.model.Field;
 import uk.ac.ucl.excites.sapelli.collector.model.FieldParameters;
 import uk.ac.ucl.excites.sapelli.collector.model.Form;
+import uk.ac.ucl.excites.sapelli.collector.model.FormNavigation;
 import uk.ac.ucl.excites.sapelli.collector.model.Trigger;
 import uk.ac.ucl.excites.sapelli.collector.model.fields.BelongsToField;
 import uk.ac.ucl.excites.sapelli.collector.model.fields.ButtonField;
@@ -59,10 +60,12 @@ import uk.ac.ucl.excites.sapelli.shared.collections.SingletonQueue;
  * 
  * @author mstevens
  */
-public final class ColumnOptionalityAdvisor
+public final class ColumnOptionalityAdvisor implements Serializable
 {
 
 	// STATICS-------------------------------------------------------
+	private static final long serialVersionUID = 2L;
+	
 	static public ColumnOptionalityAdvisor Analyse(final Form form)
 	{
 		//System.out.println("Analysing form: " + form.id);
@@ -144,6 +147,7 @@ public final class ColumnOptionalityAdvisor
 		private final List<String> bypassableFieldIDs;
 		
 		private Mode mode;
+		private FormNavigation navigation;
 		
 		/**
 		 * Contains visited Fields and nulls for skipped fields
@@ -191,13 +195,14 @@ public final class ColumnOptionalityAdvisor
 		public void traverse(final Mode mode)
 		{
 			this.mode = mode;
+			this.navigation = form.getNavigation(mode); // precompiled (& cached) navigation table
 			
 			// Fields that are not to be shown in the current mode are will be "by-passed" by definition...
 			Iterator<Field> iter = fieldsToCheck.iterator();
 			while(iter.hasNext())
 			{
 				Field fieldToCheck = iter.next();
-				if(!Controller.IsFieldToBeShown(mode, fieldToCheck))
+				if(!navigation.isShown(fieldToCheck))
 				{
 					bypassableFieldIDs.add(fieldToCheck.id);
 					iter.remove(); // !!! remove field from fieldsToCheck (we now know it is "by-passable" so we don't need to check it against paths)
@@ -254,7 +259,7 @@ public final class ColumnOptionalityAdvisor
 			// Clear assembleNextFields set:
 			assembleNextFields.clear();
 			
-			if(Controller.IsFieldToBeShown(mode, currentField))
+			if(navigation.isShown(currentField))
 			{	
 				// This field would be shown to the user...
 				passed.push(currentField); // remember we visited it
@@ -269,7 +274,7 @@ public final class ColumnOptionalityAdvisor
 				passed.push(null); // *and* also insert a null on passed skip
 				
 				// Go to field below:
-				addNext(form.getNextFieldAndArguments(currentField, false)); // no jump allowed
+				addNext(navigation.getNext(currentField, false)); // no jump allowed
 			}
 			
 			// Return queue of next fields (w/ args) to visit:
@@ -284,7 +289,7 @@ public final class ColumnOptionalityAdvisor
 		
 		private void goForward()
 		{
-			addNext(form.getNextFieldAndArguments(currentField, true)); // jump allowed
+			addNext(navigation.getNext(currentField, true)); // jump allowed
 		}
 		
 		private boolean enterLinearField(final boolean withPage)
@@ -317,7 +322,7 @@ public final class ColumnOptionalityAdvisor
 			if(!cf.isLeaf())
 				// Children the user can choose from:
 				for(ChoiceField child : cf.getChildren())
-					if(Controller.IsFieldEnabled(mode, child))
+					if(navigation.isEnabled(child))
 					{
 						atLeast1Child = true;
 						// Add to next stack/list:
@@ -353,7 +358,7 @@ public final class ColumnOptionalityAdvisor
 			
 			// Enter child fields (but signal that they are entered as part of entering the page):
 			for(Field fieldOnPage : page.getFields())
-				if(Controller.IsFieldToBeShown(mode, fieldOnPage))
+				if(navigation.isShown(fieldOnPage))
 				{
 					// Remember the field is visited:
 					passed.push(fieldOnPage);
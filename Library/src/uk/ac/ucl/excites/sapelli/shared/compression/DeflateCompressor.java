@@ -42,6 +42,7 @@ public class DeflateCompressor extends Compressor
 	static public final boolean DEFAULT_HEADERLESS = true;
 	
 	private final boolean headerless;
+	private final PresetDictionary dictionary;
 	
 	/**
 	 * 
@@ -57,18 +58,36 @@ public class DeflateCompressor extends Compressor
 	public DeflateCompressor(boolean headerless)
 	{
 		this.headerless = headerless;
+		this.dictionary = null;
+	}
+	
+	/**
+	 * Creates a headerless DEFLATE compressor which uses the given preset dictionary.
+	 * 
+	 * @param dictionary
+	 */
+	public DeflateCompressor(PresetDictionary dictionary)
+	{
+		this.headerless = true; // the dictionary is set in advance on both sides, rather than being requested through the header
+		this.dictionary = dictionary;
 	}
 	
 	@Override
 	public OutputStream getOutputStream(OutputStream sink) throws IOException
 	{
-		return new DeflaterOutputStream(sink, new Deflater(Deflater.BEST_COMPRESSION, headerless)); // best compression & no header)
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, headerless); // best compression & no header
+		if(dictionary != null)
+			deflater.setDictionary(dictionary.getBytes());
+		return new DeflaterOutputStream(sink, deflater);
 	}
 
 	@Override
 	public InputStream getInputStream(InputStream source) throws IOException
 	{
-		return new InflaterInputStream(source, new Inflater(headerless));
+		Inflater inflater = new Inflater(headerless);
+		if(dictionary != null)
+			inflater.setDictionary(dictionary.getBytes());
+		return new InflaterInputStream(source, inflater);
 	}
 
 	@Override
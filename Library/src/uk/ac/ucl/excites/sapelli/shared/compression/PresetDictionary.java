@@ -0,0 +1,138 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+
+/**
+ * A preset dictionary for DEFLATE compression, which allows short messages to be compressed much better by
+ * letting the compressor refer back to strings in the dictionary as if they appeared earlier in the data.
+ * Obviously the compressing and decompressing side must use the exact same dictionary, which is why each
+ * dictionary has an ID (a hash of its contents) which can be used to verify that both sides agree. Like the
+ * dictionary ID used by zlib, this is the Adler-32 checksum of the dictionary contents.
+ * 
+ * The dictionary is only of use if it contains sequences which literally occur in the compressed data, so it is built
+ * from bit sequences as they are encoded in the data (e.g. a column value written by its column), rather than from
+ * strings or other values which may be encoded differently. Because the dictionary is meant for use with bit-packed
+ * data, in which these sequences do not necessarily start at a byte boundary, every sequence is added in 8 versions,
+ * one for each possible bit offset.
+ * 
+ * DEFLATE can only refer back up to 32 KiB, and references to nearby sequences are cheaper, so sequences which are
+ * expected to occur most often should be added last. When there are too many sequences the ones added first are
+ * dropped.
+ * 
+ * @author mstevens
+ * @see <a href="http://www.gzip.org/zlib/rfc-deflate.html">DEFLATE specification</a>
+ */
+public class PresetDictionary
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int MAX_SIZE = 32 * 1024; // bytes (= DEFLATE window size)
+	
+	static public final int ID_SIZE = 32; // bits
+	
+	// DYNAMICS------------------------------------------------------
+	private final byte[] bytes;
+	private final long id;
+	
+	/**
+	 * @param sequences bit sequences expected to occur in the data, from least to most common (duplicates and sequences shorter than a byte are ignored)
+	 */
+	public PresetDictionary(Collection<BitArray> sequences)
+	{
+		// Remove duplicates (keeping last occurrence) & sequences too short to be of use:
+		Set<BitArray> unique = new LinkedHashSet<BitArray>();
+		for(BitArray sequence : sequences)
+			if(sequence != null && sequence.length() >= Byte.SIZE)
+			{
+				unique.remove(sequence);
+				unique.add(sequence);
+			}
+		
+		// Add bit-shifted versions of each sequence:
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(BitArray sequence : unique)
+			for(int shift = 0; shift < Byte.SIZE; shift++)
+				writeShifted(sequence, shift, out);
+		
+		// Keep (at most) the last MAX_SIZE bytes:
+		byte[] all = out.toByteArray();
+		if(all.length > MAX_SIZE)
+		{
+			bytes = new byte[MAX_SIZE];
+			System.arraycopy(all, all.length - MAX_SIZE, bytes, 0, MAX_SIZE);
+		}
+		else
+			bytes = all;
+		
+		// Compute ID:
+		Adler32 adler = new Adler32();
+		adler.update(bytes);
+		id = adler.getValue();
+	}
+	
+	/**
+	 * Writes the bytes which are fully covered by the given bit sequence when it is written starting at the
+	 * given bit offset within a byte (i.e. the partially covered first and last byte are skipped).
+	 * 
+	 * @param sequence
+	 * @param shift bit offset (0-7)
+	 * @param out
+	 */
+	private void writeShifted(BitArray sequence, int shift, ByteArrayOutputStream out)
+	{
+		// Byte k covers sequence bits [k * 8 - shift, (k + 1) * 8 - shift):
+		for(int start = shift == 0 ? 0 : Byte.SIZE - shift; start + Byte.SIZE <= sequence.length(); start += Byte.SIZE)
+		{
+			int b = 0;
+			for(int i = 0; i < Byte.SIZE; i++)
+				b = (b << 1) | (sequence.get(start + i) ? 1 : 0);
+			out.write(b);
+		}
+	}
+	
+	/**
+	 * @return the dictionary contents
+	 */
+	public byte[] getBytes()
+	{
+		return bytes;
+	}
+	
+	/**
+	 * @return the ID (an unsigned {@value #ID_SIZE} bit hash of the contents)
+	 */
+	public long getID()
+	{
+		return id;
+	}
+	
+	public boolean isEmpty()
+	{
+		return bytes.length == 0;
+	}
+	
+}
@@ -132,10 +132,24 @@ public final class Hashing
 	 */
 	static public int getCRC16Hash(byte[] data)
 	{
-		int crc = 0x0000;
-		for(byte b : data)
-			crc = (crc >>> 8) ^ CRC16_TABLE[((crc ^ b) & 0xff)];
-		return (int) crc;
+		return getCRC16Hash(0x0000, data, 0, data.length);
+	}
+	
+	/**
+	 * Continues the computation of a 16 bit Cyclic Redundancy Check (CRC16) hash code, which allows data that is
+	 * produced or consumed incrementally (e.g. as a stream) to be hashed without holding all of it in memory.
+	 * 
+	 * @param crc the hash of the preceding data (use 0 to start)
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return CRC16 hash (unsigned 16 bit integer value) of the preceding data followed by the given bytes
+	 */
+	static public int getCRC16Hash(int crc, byte[] data, int offset, int length)
+	{
+		for(int i = offset; i < offset + length; i++)
+			crc = (crc >>> 8) ^ CRC16_TABLE[((crc ^ data[i]) & 0xff)];
+		return crc;
 	}
 
 }
@@ -18,34 +18,86 @@
 
 package uk.ac.ucl.excites.sapelli.shared.db;
 
-import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
 
 /**
+ * Thread-safe, reference-counted handle on a {@link Store}.
  * 
+ * The Store is created upon the first {@link #getStore(StoreUser)} call and is kept open (through a strong reference) as long
+ * as at least one {@link StoreUser} is using it. Each user may call {@link #getStore(StoreUser)} several times (e.g. in nested
+ * method calls), as long as every call is matched by a call to {@link #doneUsing(StoreUser)}. Once all users have done so the Store is closed,
+ * either immediately or, if a keep-alive time was given, when it has remained unused for that long. The latter avoids the cost of
+ * repeatedly re-opening (and re-initialising) the Store when users come and go in quick succession.
+ * 
+ * Note that with a keep-alive time the Store is closed on a (shared) background thread, so this should only be used for
+ * Store implementations which may be closed from another thread than the one which created them.
  * 
  * @author mstevens
  */
 public class StoreHandle<S extends Store>
 {
-
+	
+	// STATICS-------------------------------------------------------
+	static public final long NO_KEEP_ALIVE = 0;
+	
+	static private ScheduledExecutorService closer;
+	
+	static private synchronized ScheduledExecutorService GetCloser()
+	{
+		if(closer == null)
+		{
+			closer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, StoreHandle.class.getSimpleName() + "-closer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return closer;
+	}
+	
+	// DYNAMICS------------------------------------------------------
 	private final StoreCreator<S> storeCreator;
-	private WeakReference<S> storeRef;
-	private Set<Integer> users;
+	private final long keepAliveMS;
+	
+	private S store;
+	private final Map<StoreUser, Integer> users = new IdentityHashMap<StoreUser, Integer>(); // user -> number of unmatched getStore() calls
+	private ScheduledFuture<?> pendingClose;
+	
+	private long openCount = 0;
+	private long closeCount = 0;
+	private long reopenCount = 0;
+	private long keepAliveHitCount = 0;
 	
 	public StoreHandle(StoreCreator<S> storeCreator)
 	{
-		if(storeCreator == null)
-			throw new NullPointerException("StoreCreator cannot be null");
-		this.storeCreator = storeCreator;
+		this(storeCreator, NO_KEEP_ALIVE);
 	}
 	
-	private S getStoreFromWeakRef()
+	/**
+	 * @param storeCreator
+	 * @param keepAliveMS time (in ms) an unused Store is kept open before it is closed, use {@link #NO_KEEP_ALIVE} to close it as soon as the last user is done using it
+	 */
+	public StoreHandle(StoreCreator<S> storeCreator, long keepAliveMS)
 	{
-		return storeRef != null ? storeRef.get() : null; 
+		if(storeCreator == null)
+			throw new NullPointerException("StoreCreator cannot be null");
+		if(keepAliveMS < 0)
+			throw new IllegalArgumentException("Keep-alive time cannot be negative");
+		this.storeCreator = storeCreator;
+		this.keepAliveMS = keepAliveMS;
 	}
 	
 	/**
@@ -53,53 +105,153 @@ public class StoreHandle<S extends Store>
 	 * @return
 	 * @throws DBException
 	 */
-	public S getStore(StoreUser user) throws DBException
+	public synchronized S getStore(StoreUser user) throws DBException
 	{
+		// Cancel pending close (if any):
+		if(pendingClose != null)
+		{
+			pendingClose.cancel(false);
+			pendingClose = null;
+			if(store != null && !store.isClosed())
+				keepAliveHitCount++;
+		}
+		
 		// Get or create Store object:
-		S store = getStoreFromWeakRef();
 		if(store == null || store.isClosed())
 		{
 			store = storeCreator.createStore();
-			storeRef = new WeakReference<S>(store);
+			if(openCount++ > 0)
+				reopenCount++;
 		}
 		
-		// Register user:
-		if(users == null)
-			users = new HashSet<Integer>();
-		users.add(System.identityHashCode(user)); // add to set of users currently using the store
+		// Register user (or increase its count):
+		Integer count = users.get(user);
+		users.put(user, count == null ? 1 : count + 1);
 
 		// Return store:
 		return store;
 	}
 	
 	/**
-	 * Called by a Store user to signal that will no longer use the Store
+	 * Called by a Store user to signal that will no longer use the Store, this must be called once for each preceding {@link #getStore(StoreUser)} call
 	 * 
 	 * @param user
 	 */
-	public void doneUsing(StoreUser user)
+	public synchronized void doneUsing(StoreUser user)
 	{
-		// Just in case...
-		if(users == null)
-			return;
-		
-		// Remove client for this store:
-		users.remove(System.identityHashCode(user));
+		// Decrease count or remove user:
+		Integer count = users.get(user);
+		if(count == null)
+			return; // not a (current) user
+		if(count > 1)
+		{
+			users.put(user, count - 1);
+			return; // still used by this user
+		}
+		users.remove(user);
 		
-		// Finalise if no longer used by other clients:
-		if(users.isEmpty())
+		// Close (now or later) if no longer used by other clients:
+		if(users.isEmpty() && store != null)
 		{
-			try
-			{
-				S store = getStoreFromWeakRef();
-				if(store != null)
-					store.close();
-			}
-			catch(DBException dbE)
+			if(keepAliveMS == NO_KEEP_ALIVE)
+				closeStore();
+			else if(pendingClose == null)
+				pendingClose = GetCloser().schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						closeIfUnused();
+					}
+				}, keepAliveMS, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Closes the Store if it is still unused and the close was not cancelled in the meantime.
+	 */
+	private synchronized void closeIfUnused()
+	{
+		if(pendingClose == null || !users.isEmpty())
+			return;
+		pendingClose = null;
+		closeStore();
+	}
+	
+	private void closeStore()
+	{
+		try
+		{
+			if(!store.isClosed())
 			{
-				dbE.printStackTrace(System.err);
+				store.close();
+				closeCount++;
 			}
 		}
+		catch(DBException dbE)
+		{
+			dbE.printStackTrace(System.err);
+		}
+		finally
+		{
+			store = null;
+		}
+	}
+	
+	/**
+	 * @return the number of users currently using the Store
+	 */
+	public synchronized int getNumberOfUsers()
+	{
+		return users.size();
+	}
+	
+	/**
+	 * @return whether or not the Store is currently open (possibly without users, pending its keep-alive time)
+	 */
+	public synchronized boolean isStoreOpen()
+	{
+		return store != null && !store.isClosed();
+	}
+	
+	/**
+	 * @return the keep-alive time in ms
+	 */
+	public long getKeepAliveMS()
+	{
+		return keepAliveMS;
+	}
+	
+	/**
+	 * @return the number of times the Store was opened (i.e. created)
+	 */
+	public synchronized long getOpenCount()
+	{
+		return openCount;
+	}
+	
+	/**
+	 * @return the number of times the Store was closed by this handle
+	 */
+	public synchronized long getCloseCount()
+	{
+		return closeCount;
+	}
+	
+	/**
+	 * @return the number of times the Store had to be opened again after having been closed before
+	 */
+	public synchronized long getReopenCount()
+	{
+		return reopenCount;
+	}
+	
+	/**
+	 * @return the number of times a Store which was being kept alive was reused (i.e. a reopen was avoided)
+	 */
+	public synchronized long getKeepAliveHitCount()
+	{
+		return keepAliveHitCount;
 	}
 	
 	/**
@@ -0,0 +1,51 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.shared.db.exceptions;
+
+/**
+ * Unchecked wrapper for a {@link DBException} which occurred while iterating over records retrieved from a store
+ * (e.g. upon retrieving the next page), thrown by {@link java.util.Iterator#hasNext()} and {@link java.util.Iterator#next()},
+ * which cannot throw checked exceptions. Iteration cannot be continued after it has been thrown.
+ * 
+ * @author mstevens
+ */
+public class DBIterationException extends RuntimeException
+{
+
+	private static final long serialVersionUID = 2L;
+
+	/**
+	 * @param cause
+	 */
+	public DBIterationException(DBException cause)
+	{
+		super(cause.getMessage(), cause);
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Throwable#getCause()
+	 */
+	@Override
+	public synchronized DBException getCause()
+	{
+		return (DBException) super.getCause();
+	}
+
+}
@@ -182,7 +182,7 @@ public class BitArray implements Iterable<Boolean>
 			to = this.length;
 		BitArray sub = new BitArray(to - offset);
 		for(int i = offset; i < to; i++)
-			sub.set(i, this.get(i));
+			sub.set(i - offset, this.get(i));
 		return sub;
 	}
 	
@@ -219,7 +219,7 @@ public abstract class BitInputStream extends InputStream
 	{
 		try
 		{
-			return (int) readByte();
+			return readByte() & 0xFF; // unsigned, as specified above
 		}
 		catch(EOFException eof)
 		{
@@ -302,7 +302,16 @@ public abstract class BitInputStream extends InputStream
 			throw new IllegalArgumentException("Cannot store more than 64 bits in a variable of type long; use readBigInteger() instead.");
 		if(numberOfBits == 64 && !signed)
 			throw new IllegalArgumentException("Cannot safely store unsigned values of more than 63 bits in a variable of type long; use readBigInteger() instead.");
-		return readBigInteger(numberOfBits, signed).longValue();
+		if(numberOfBits < 0)
+			throw new IllegalArgumentException("numberOfBits (" + numberOfBits + ") cannot be negative!");
+		// Read the value bit by bit, most significant bit first (without conversion to BigInteger, to avoid object allocation):
+		long value = 0l;
+		for(int i = 0; i < numberOfBits; i++)
+			value = (value << 1) | (readBit() ? 1l : 0l); //throws IOException and EOFException
+		// Sign-extend negative values (Two's complement):
+		if(signed && numberOfBits > 0 && numberOfBits < Long.SIZE && (value >>> (numberOfBits - 1)) != 0)
+			value |= -1l << numberOfBits;
+		return value;
 	}
 	
 	/**
@@ -198,28 +198,26 @@ public abstract class BitOutputStream extends OutputStream
 	public void write(long value, int numberOfBits, boolean signed/*, ByteOrder order*/) throws IOException
 	{
 		//TODO add support for little-endian byte order (and perhaps LSB 0 bit numbering)
-		write(BigInteger.valueOf(value), numberOfBits, signed);
-		/*
-		//Version without conversion to BigInteger (works just as well; kept for reference only):
-		//Do checks:
-		if(numberOfBits < 1)
-			throw new IllegalArgumentException("Invalid number of bits (" + numberOfBits + ").");
-		if(signed)
-		{	//Signed
-			if(value < (long) (- Math.pow(2, numberOfBits - 1)) || value > (long) (Math.pow(2, numberOfBits - 1) - 1))
-				throw new IllegalArgumentException("Signed value (" + value + ") does not fit in " + numberOfBits + " bits.");
+		if(numberOfBits > Long.SIZE)
+		{	// sign/zero-extension beyond 64 bits is left to the BigInteger version:
+			write(BigInteger.valueOf(value), numberOfBits, signed);
+			return;
 		}
-		else
-		{	//Unsigned
-			if(value < 0l)
-				throw new IllegalArgumentException("Cannot write negative value as unsigned integer.");
-			if(value > (long) (Math.pow(2, numberOfBits) - 1))
-				throw new IllegalArgumentException("Unsigned value (" + value + ") does not fit in " + numberOfBits + " bits.");
+		//Do checks (without conversion to BigInteger, to avoid object allocation):
+		if(numberOfBits < 0)
+			throw new IllegalArgumentException("numberOfBits (" + numberOfBits + ") cannot be negative!");
+		if(!signed && value < 0l)
+			throw new IllegalArgumentException("Cannot write negative value (" + value + ") as unsigned integer.");
+		if(numberOfBits < Long.SIZE)
+		{
+			long minValue = signed && numberOfBits > 0 ? -(1l << (numberOfBits - 1)) : 0l;
+			long maxValue = numberOfBits == 0 ? 0l : (signed ? (1l << (numberOfBits - 1)) - 1 : (1l << numberOfBits) - 1);
+			if(value < minValue || value > maxValue)
+				throw new IllegalArgumentException((signed ? "S" : "Uns") + "igned value (" + value + ") does not fit in " + numberOfBits + " bits, values must be in range [" + minValue + "; " + maxValue + "] (inclusive).");
 		}
 		//Write the bits (MSB first):
 		for(int i = numberOfBits - 1; i >= 0; i--)
-			write((value >> i) % 2l != 0);
-		*/
+			write(((value >>> i) & 1l) != 0);
 	}
 	
 	/**
@@ -0,0 +1,199 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.shared.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.compression.LZMACompressor;
+import uk.ac.ucl.excites.sapelli.shared.util.BinaryHelpers;
+
+/**
+ * A {@link FileWriter} which compresses its output on the fly, either using one of the {@link Compression} modes
+ * supported by the {@link CompressorFactory}, or by writing a zip archive with a single entry.
+ * 
+ * It also keeps track of the number of bytes written to the file and computes a SHA-256 hash of the file contents,
+ * such that neither requires the file to be read back.
+ * 
+ * @author mstevens
+ */
+public class CompressedFileWriter extends FileWriter
+{
+
+	static public final String HASH_ALGORITHM = "SHA-256";
+	
+	/**
+	 * @param compression
+	 * @return the usual file extension for the given compression mode, or {@code null} for {@link Compression#NONE}
+	 */
+	static public String GetFileExtension(Compression compression)
+	{
+		switch(compression)
+		{
+			case NONE	: return null;
+			case GZIP	: return "gz";
+			case BZIP2	: return "bz2";
+			case LZMA	: return "lzma";
+			case LZMA2	: return "lzma2";
+			default		: return compression.name().toLowerCase();
+		}
+	}
+	
+	private final Compression compression;
+	private final String zipEntryName;
+	
+	private CountingStream countingStream;
+	private String hash;
+	
+	/**
+	 * Creates a writer which compresses its output using the given compression mode
+	 * 
+	 * @param fullPath
+	 * @param charset
+	 * @param bufferSize
+	 * @param compression
+	 */
+	public CompressedFileWriter(String fullPath, Charset charset, int bufferSize, Compression compression)
+	{
+		super(fullPath, charset, bufferSize);
+		if(compression == null)
+			throw new NullPointerException("compression cannot be null");
+		this.compression = compression;
+		this.zipEntryName = null;
+	}
+	
+	/**
+	 * Creates a writer which writes its output to a zip archive, as single entry with the given name
+	 * 
+	 * @param fullPath
+	 * @param charset
+	 * @param bufferSize
+	 * @param zipEntryName
+	 */
+	public CompressedFileWriter(String fullPath, Charset charset, int bufferSize, String zipEntryName)
+	{
+		super(fullPath, charset, bufferSize);
+		if(zipEntryName == null)
+			throw new NullPointerException("zipEntryName cannot be null");
+		this.compression = null;
+		this.zipEntryName = zipEntryName;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.shared.io.FileWriter#openOutputStream(java.io.File, boolean)
+	 */
+	@Override
+	protected OutputStream openOutputStream(File file, boolean append) throws IOException
+	{
+		if(append)
+			throw new IOException("Cannot append to a compressed file");
+		try
+		{
+			countingStream = new CountingStream(new FileOutputStream(file), MessageDigest.getInstance(HASH_ALGORITHM));
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IOException(HASH_ALGORITHM + " is not supported", e);
+		}
+		hash = null;
+		if(zipEntryName != null)
+		{
+			ZipOutputStream zipStream = new ZipOutputStream(countingStream);
+			zipStream.putNextEntry(new ZipEntry(zipEntryName));
+			return zipStream; // entry will be closed along with the stream
+		}
+		else if(compression == Compression.LZMA)
+			return new LZMACompressor(false).getOutputStream(countingStream); // with header, as expected in .lzma files
+		else
+			return CompressorFactory.getCompressorOutputStream(compression, countingStream);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.shared.io.FileWriter#close()
+	 */
+	@Override
+	public void close()
+	{
+		super.close();
+		if(countingStream != null && hash == null)
+			hash = BinaryHelpers.toHexadecimealString(countingStream.digest.digest(), false);
+	}
+	
+	/**
+	 * Note: this does not include output which is still buffered, either by the writer or by the compressor.
+	 * 
+	 * @return the number of (compressed) bytes written to the file so far
+	 */
+	public long getBytesWritten()
+	{
+		return countingStream != null ? countingStream.count : 0;
+	}
+	
+	/**
+	 * @return the hexadecimal SHA-256 hash of the file contents, or {@code null} if the writer has not been closed yet
+	 */
+	public String getHash()
+	{
+		return hash;
+	}
+	
+	/**
+	 * @author mstevens
+	 */
+	private static class CountingStream extends FilterOutputStream
+	{
+		
+		final MessageDigest digest;
+		long count = 0;
+		
+		public CountingStream(OutputStream out, MessageDigest digest)
+		{
+			super(out);
+			this.digest = digest;
+		}
+		
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write(b);
+			digest.update((byte) b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+			digest.update(b, off, len);
+			count += len;
+		}
+		
+	}
+	
+}
@@ -18,10 +18,13 @@
 
 package uk.ac.ucl.excites.sapelli.shared.io;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
@@ -31,16 +34,21 @@ import uk.ac.ucl.excites.sapelli.shared.util.UnicodeHelpers;
 /**
  * Text-based file writer class
  * 
+ * Unless a buffer size is specified, all output is flushed to the file immediately.
+ * 
  * @author mstevens
  */
 public class FileWriter
 {
+	
+	static public final int NO_BUFFER = 0;
 
 	//protected String fullPath;
 	protected Charset charset; 
+	protected final int bufferSize;
 
-	protected OutputStreamWriter writer = null;
-	protected StringBuffer transactionBuffer = null; 
+	protected Writer writer = null;
+	protected StringBuilder transactionBuffer = null; 
 
 	private File file = null;
 
@@ -67,13 +75,30 @@ public class FileWriter
 	 *            The full filepath (e.g. "/my/path/myfile.raw")
 	 */
 	public FileWriter(String fullPath, Charset charset)
+	{
+		this(fullPath, charset, NO_BUFFER);
+	}
+	
+	/**
+	 * We create this writer, providing the full filepath (e.g. "/my/path/myfile.raw")
+	 * 
+	 * @param fullPath
+	 *            The full filepath (e.g. "/my/path/myfile.raw")
+	 * @param charset
+	 * @param bufferSize
+	 *            Size (in chars) of the output buffer, output is only flushed when it is full, upon {@link #flush()} or when the writer is closed. Use {@link #NO_BUFFER} to flush all output immediately.
+	 */
+	public FileWriter(String fullPath, Charset charset, int bufferSize)
 	{
 		if(fullPath == null)
 			throw new NullPointerException("fullPath cannot be null");
 		if(charset == null)
 			throw new NullPointerException("charSet cannot be null");
+		if(bufferSize < 0)
+			throw new IllegalArgumentException("Invalid buffer size");
 		this.file = new File(fullPath);
 		this.charset = charset;
+		this.bufferSize = bufferSize;
 	}
 
 	public boolean isWritable()
@@ -126,14 +151,30 @@ public class FileWriter
 		}
 		
 		// Open file for writing:
-		FileOutputStream fos = new FileOutputStream(file, append);
+		OutputStream fos = openOutputStream(file, append);
 		
 		// If not appending, insert UTF-x BOM (the OutputStreamWriter does not do this!):
 		if(!append && UnicodeHelpers.getBom(charset) != null)
 			fos.write(UnicodeHelpers.getBom(charset));
 		
-		// Instantiate OutputStreamWriter:
-		writer = new OutputStreamWriter(fos, charset);
+		// Instantiate OutputStreamWriter (buffered or not):
+		if(bufferSize != NO_BUFFER)
+			writer = new BufferedWriter(new OutputStreamWriter(fos, charset), bufferSize);
+		else
+			writer = new OutputStreamWriter(fos, charset);
+	}
+
+	/**
+	 * Opens the stream to which the (encoded) text is written, subclasses may override this to wrap or replace the file stream.
+	 * 
+	 * @param file
+	 * @param append
+	 * @return
+	 * @throws IOException
+	 */
+	protected OutputStream openOutputStream(File file, boolean append) throws IOException
+	{
+		return new FileOutputStream(file, append);
 	}
 
 	public void close()
@@ -177,7 +218,8 @@ public class FileWriter
 			try
 			{
 				writer.write(stringToWrite);
-				writer.flush();
+				if(bufferSize == NO_BUFFER)
+					writer.flush();
 			}
 			catch(Exception e)
 			{
@@ -188,6 +230,26 @@ public class FileWriter
 		}
 	}
 
+	/**
+	 * Flushes buffered output (if any) to the file. Does not commit an open transaction.
+	 */
+	public void flush()
+	{
+		if(writer != null)
+		{
+			try
+			{
+				writer.flush();
+			}
+			catch(Exception e)
+			{
+				System.err.println("FileWriter: Could not flush to file: " + e.getMessage());
+				e.printStackTrace(System.err);
+				close();
+			}
+		}
+	}
+
 	public void writeLine(String stringToWrite)
 	{
 		write(stringToWrite + "\n");
@@ -196,7 +258,7 @@ public class FileWriter
 	public void openTransaction()
 	{
 		if(transactionBuffer == null) // we currently only support a single open transaction at the time
-			transactionBuffer = new StringBuffer();
+			transactionBuffer = new StringBuilder();
 	}
 	
 	public void commitTransaction()
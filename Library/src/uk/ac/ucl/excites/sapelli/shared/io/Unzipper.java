@@ -22,7 +22,19 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -69,6 +81,126 @@ public final class Unzipper
 		}
 	}
 	
+	/**
+	 * Extracts all entries of the given zip file into the given folder, using (at most) the given number of threads.
+	 * Unlike a {@link ZipInputStream} a {@link ZipFile} allows its entries to be read concurrently, so both decompression
+	 * and writing happen in parallel. Entries are processed largest first to balance the load over the threads.
+	 * 
+	 * @param zipFile
+	 * @param extractionFolder
+	 * @param numberOfThreads
+	 * @throws IOException
+	 */
+	static public void unzip(final ZipFile zipFile, File extractionFolder, int numberOfThreads) throws IOException
+	{
+		String extractionPath = extractionFolder.getCanonicalPath() + File.separator;
+		
+		// Create folders & list files to extract:
+		final List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+		final List<File> targets = new ArrayList<File>();
+		Enumeration<? extends ZipEntry> entries = zipFile.entries();
+		while(entries.hasMoreElements())
+		{
+			ZipEntry ze = entries.nextElement();
+			File target = new File(extractionPath + ze.getName());
+			if(!target.getCanonicalPath().startsWith(extractionPath))
+				throw new IOException("Archive entry (" + ze.getName() + ") would be extracted outside of the extraction folder");
+			File folder = ze.isDirectory() ? target : target.getParentFile();
+			if(!FileHelpers.createDirectory(folder))
+				throw new IOException("Could not create folder: " + folder.getAbsolutePath());
+			if(!ze.isDirectory())
+				fileEntries.add(ze);
+		}
+		Collections.sort(fileEntries, new Comparator<ZipEntry>()
+		{
+			@Override
+			public int compare(ZipEntry lhs, ZipEntry rhs)
+			{
+				return Long.valueOf(rhs.getSize()).compareTo(lhs.getSize()); // largest first (unknown sizes are -1)
+			}
+		});
+		for(ZipEntry ze : fileEntries)
+			targets.add(new File(extractionPath + ze.getName()));
+		
+		// Extract files:
+		numberOfThreads = Math.min(numberOfThreads, fileEntries.size());
+		if(numberOfThreads <= 1)
+		{
+			for(int e = 0; e < fileEntries.size(); e++)
+				extract(zipFile, fileEntries.get(e), targets.get(e));
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try
+		{
+			List<Future<Void>> results = new ArrayList<Future<Void>>(fileEntries.size());
+			for(int e = 0; e < fileEntries.size(); e++)
+			{
+				final ZipEntry entry = fileEntries.get(e);
+				final File target = targets.get(e);
+				results.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						extract(zipFile, entry, target);
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> result : results)
+				result.get();
+		}
+		catch(ExecutionException ee)
+		{
+			throw new IOException("Error on unzipping archive", ee.getCause());
+		}
+		catch(InterruptedException ie)
+		{
+			throw new IOException("Interrupted while unzipping archive", ie);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+	
+	static private void extract(ZipFile zipFile, ZipEntry entry, File target) throws IOException
+	{
+		InputStream in = zipFile.getInputStream(entry);
+		OutputStream out = null;
+		try
+		{
+			out = new FileOutputStream(target, false);
+			byte[] buffer = new byte[8192];
+			for(int c = in.read(buffer); c != -1; c = in.read(buffer))
+				out.write(buffer, 0, c);
+		}
+		finally
+		{
+			in.close();
+			if(out != null)
+				out.close();
+		}
+	}
+	
+	/**
+	 * @param zipFile
+	 * @param filename
+	 * @return the entry with the given name, ignoring case, or null if there is no such entry
+	 */
+	static public ZipEntry getEntry(ZipFile zipFile, String filename)
+	{
+		ZipEntry ze = zipFile.getEntry(filename);
+		if(ze != null)
+			return ze;
+		Enumeration<? extends ZipEntry> entries = zipFile.entries();
+		while(entries.hasMoreElements())
+			if((ze = entries.nextElement()).getName().equalsIgnoreCase(filename))
+				return ze;
+		return null;
+	}
+	
 	public static InputStream getInputStreamForFileInZip(InputStream zipFileStream, String filename) throws IOException
 	{
 		ZipInputStream zin = new ZipInputStream(zipFileStream);
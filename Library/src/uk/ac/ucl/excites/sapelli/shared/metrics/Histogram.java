@@ -0,0 +1,158 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.shared.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe, fixed-size histogram of non-negative long values (e.g. latencies in nanoseconds), in the style of HdrHistogram.
+ * 
+ * Values are counted in log-linear buckets: each power-of-2 range is split into {@link #SUB_BUCKETS} linear sub-buckets, such that
+ * the relative error on reported values is at most 1/{@value #SUB_BUCKETS} while the entire long range is covered using a few
+ * thousand counters. Recording a value is wait-free apart from the updates of the minimum and maximum.
+ * 
+ * @author mstevens
+ */
+public class Histogram
+{
+
+	// STATICS-------------------------------------------------------
+	static private final int SUB_BUCKET_BITS = 5;
+	static public final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static private final int NUMBER_OF_BUCKETS = SUB_BUCKETS + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	/**
+	 * @param value non-negative value
+	 * @return index of the bucket the value is counted in
+	 */
+	static private int GetIndex(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value; // small values are counted exactly
+		int magnitude = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS; // >= 0
+		return SUB_BUCKETS + magnitude * SUB_BUCKETS + (int) ((value >>> magnitude) & (SUB_BUCKETS - 1));
+	}
+	
+	/**
+	 * @param index
+	 * @return the largest value counted in the bucket with the given index
+	 */
+	static private long GetHighestValue(int index)
+	{
+		if(index < SUB_BUCKETS)
+			return index;
+		int magnitude = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long sub = SUB_BUCKETS + ((index - SUB_BUCKETS) % SUB_BUCKETS);
+		return ((sub + 1) << magnitude) - 1;
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final AtomicLongArray counts = new AtomicLongArray(NUMBER_OF_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(0);
+	
+	/**
+	 * @param value value to record, negative values are recorded as 0
+	 */
+	public void record(long value)
+	{
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(GetIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while(value < (current = min.get()) && !min.compareAndSet(current, value));
+		while(value > (current = max.get()) && !max.compareAndSet(current, value));
+	}
+	
+	public long getCount()
+	{
+		return count.get();
+	}
+	
+	/**
+	 * @return the smallest recorded value, or 0 if nothing has been recorded
+	 */
+	public long getMin()
+	{
+		long m = min.get();
+		return m == Long.MAX_VALUE ? 0 : m;
+	}
+	
+	/**
+	 * @return the largest recorded value, or 0 if nothing has been recorded
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @return the mean of the recorded values, or 0 if nothing has been recorded
+	 */
+	public double getMean()
+	{
+		long c = count.get();
+		return c == 0 ? 0 : (double) sum.get() / c;
+	}
+	
+	/**
+	 * @param percentile value between 0 and 100
+	 * @return the (approximated) value below or at which the given percentage of the recorded values lies, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		if(percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		long total = 0;
+		long[] snapshot = new long[NUMBER_OF_BUCKETS];
+		for(int i = 0; i < NUMBER_OF_BUCKETS; i++)
+			total += (snapshot[i] = counts.get(i));
+		if(total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0d * total));
+		long cumulative = 0;
+		for(int i = 0; i < NUMBER_OF_BUCKETS; i++)
+		{
+			cumulative += snapshot[i];
+			if(cumulative >= target)
+				return Math.min(GetHighestValue(i), getMax());
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Clears all recorded values. Values recorded concurrently with the reset may be partially lost.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < NUMBER_OF_BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(0);
+	}
+	
+}
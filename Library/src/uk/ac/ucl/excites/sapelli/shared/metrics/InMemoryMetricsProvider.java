@@ -0,0 +1,189 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.shared.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.ucl.excites.sapelli.shared.util.Logger;
+
+/**
+ * {@link MetricsProvider} which keeps counters and latency {@link Histogram}s in memory, and can report them to a {@link Logger}.
+ * 
+ * @author mstevens
+ */
+public class InMemoryMetricsProvider implements MetricsProvider
+{
+
+	// STATICS-------------------------------------------------------
+	static private final double NS_PER_MS = 1000000.0d;
+	static private final double[] REPORTED_PERCENTILES = { 50.0d, 90.0d, 99.0d, 99.9d };
+	
+	// DYNAMICS------------------------------------------------------
+	private final ConcurrentMap<String, CounterImpl> counters = new ConcurrentHashMap<String, CounterImpl>();
+	private final ConcurrentMap<String, TimerImpl> timers = new ConcurrentHashMap<String, TimerImpl>();
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.shared.metrics.MetricsProvider#getCounter(java.lang.String)
+	 */
+	@Override
+	public Counter getCounter(String name)
+	{
+		CounterImpl counter = counters.get(name);
+		if(counter == null)
+		{
+			CounterImpl existing = counters.putIfAbsent(name, counter = new CounterImpl());
+			if(existing != null)
+				counter = existing;
+		}
+		return counter;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.shared.metrics.MetricsProvider#getTimer(java.lang.String)
+	 */
+	@Override
+	public Timer getTimer(String name)
+	{
+		TimerImpl timer = timers.get(name);
+		if(timer == null)
+		{
+			TimerImpl existing = timers.putIfAbsent(name, timer = new TimerImpl());
+			if(existing != null)
+				timer = existing;
+		}
+		return timer;
+	}
+	
+	/**
+	 * @param name
+	 * @return the latency histogram (in nanoseconds) of the timer with the given name, or {@code null} if there is no such timer
+	 */
+	public Histogram getHistogram(String name)
+	{
+		TimerImpl timer = timers.get(name);
+		return timer != null ? timer.histogram : null;
+	}
+	
+	/**
+	 * Writes a line per counter and per timer, in alphabetical order, to the given logger.
+	 * Timer lines hold the count and the min, mean, percentiles and max of the durations (in ms).
+	 * 
+	 * @param logger
+	 */
+	public void report(Logger logger)
+	{
+		for(Map.Entry<String, CounterImpl> entry : new TreeMap<String, CounterImpl>(counters).entrySet())
+			logger.addLine("counter", entry.getKey(), Long.toString(entry.getValue().getCount()));
+		for(Map.Entry<String, TimerImpl> entry : new TreeMap<String, TimerImpl>(timers).entrySet())
+		{
+			Histogram histogram = entry.getValue().histogram;
+			String[] fields = new String[REPORTED_PERCENTILES.length + 6];
+			int f = 0;
+			fields[f++] = "timer";
+			fields[f++] = entry.getKey();
+			fields[f++] = "count=" + histogram.getCount();
+			fields[f++] = "min=" + toMS(histogram.getMin());
+			fields[f++] = "mean=" + toMS(histogram.getMean());
+			for(double percentile : REPORTED_PERCENTILES)
+				fields[f++] = "p" + (percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile)) + "=" + toMS(histogram.getValueAtPercentile(percentile));
+			fields[f++] = "max=" + toMS(histogram.getMax());
+			logger.addLine(fields);
+		}
+	}
+	
+	private String toMS(double ns)
+	{
+		return String.format("%.3fms", ns / NS_PER_MS);
+	}
+	
+	/**
+	 * Resets all counters and timers.
+	 */
+	public void reset()
+	{
+		for(CounterImpl counter : counters.values())
+			counter.count.set(0);
+		for(TimerImpl timer : timers.values())
+			timer.histogram.reset();
+	}
+	
+	/**
+	 * @author mstevens
+	 */
+	static private final class CounterImpl implements Counter
+	{
+		
+		final AtomicLong count = new AtomicLong();
+
+		@Override
+		public void increment()
+		{
+			count.incrementAndGet();
+		}
+
+		@Override
+		public void add(long amount)
+		{
+			count.addAndGet(amount);
+		}
+
+		@Override
+		public long getCount()
+		{
+			return count.get();
+		}
+		
+	}
+	
+	/**
+	 * @author mstevens
+	 */
+	static private final class TimerImpl implements Timer
+	{
+		
+		final Histogram histogram = new Histogram();
+
+		@Override
+		public Context start()
+		{
+			final long startNS = System.nanoTime();
+			return new Context()
+			{
+				@Override
+				public void stop()
+				{
+					record(System.nanoTime() - startNS);
+				}
+			};
+		}
+
+		@Override
+		public void record(long durationNS)
+		{
+			histogram.record(durationNS);
+		}
+		
+	}
+
+}
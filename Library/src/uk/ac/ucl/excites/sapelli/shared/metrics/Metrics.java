@@ -0,0 +1,143 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.shared.metrics;
+
+/**
+ * Static entry point for instrumented code, which delegates to the installed {@link MetricsProvider}.
+ * 
+ * By default a no-op provider is installed, in which case instrumentation costs no more than a volatile read and a virtual call.
+ * Instrumented code should use this class, rather than holding on to {@link Counter}s or {@link Timer}s, so that providers can be
+ * installed or replaced at any time. Typical usage:
+ * <pre>
+ * Timer.Context timing = Metrics.Time("storage.store");
+ * try
+ * {
+ * 	// ...
+ * }
+ * finally
+ * {
+ * 	timing.stop();
+ * }
+ * </pre>
+ * 
+ * @author mstevens
+ */
+public final class Metrics
+{
+	
+	// STATICS-------------------------------------------------------
+	static public final MetricsProvider NO_OP = new NoOpMetricsProvider();
+	
+	static private volatile MetricsProvider provider = NO_OP;
+	
+	/**
+	 * @param provider the provider to install, or {@code null} to (re)install the no-op provider
+	 */
+	static public void SetProvider(MetricsProvider provider)
+	{
+		Metrics.provider = provider != null ? provider : NO_OP;
+	}
+	
+	static public MetricsProvider GetProvider()
+	{
+		return provider;
+	}
+	
+	static public boolean IsEnabled()
+	{
+		return provider != NO_OP;
+	}
+	
+	static public void Count(String name)
+	{
+		provider.getCounter(name).increment();
+	}
+	
+	static public void Count(String name, long amount)
+	{
+		provider.getCounter(name).add(amount);
+	}
+	
+	static public Timer.Context Time(String name)
+	{
+		return provider.getTimer(name).start();
+	}
+	
+	private Metrics() {}
+	
+	/**
+	 * Provider which does not record anything. Hands out shared instances, so nothing is allocated on the hot path.
+	 * 
+	 * @author mstevens
+	 */
+	static private final class NoOpMetricsProvider implements MetricsProvider, Counter, Timer, Timer.Context
+	{
+
+		@Override
+		public Counter getCounter(String name)
+		{
+			return this;
+		}
+
+		@Override
+		public Timer getTimer(String name)
+		{
+			return this;
+		}
+
+		@Override
+		public void increment()
+		{
+			// does nothing
+		}
+
+		@Override
+		public void add(long amount)
+		{
+			// does nothing
+		}
+
+		@Override
+		public long getCount()
+		{
+			return 0;
+		}
+
+		@Override
+		public Context start()
+		{
+			return this;
+		}
+
+		@Override
+		public void record(long durationNS)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void stop()
+		{
+			// does nothing
+		}
+		
+	}
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.shared.metrics;
+
+/**
+ * Service provider interface for metrics implementations.
+ * Implementations must be thread-safe and should return the same {@link Counter}/{@link Timer} instance for the same name.
+ * 
+ * @author mstevens
+ * @see Metrics
+ */
+public interface MetricsProvider
+{
+
+	public Counter getCounter(String name);
+	
+	public Timer getTimer(String name);
+	
+}
@@ -0,0 +1,56 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.shared.metrics;
+
+/**
+ * Records the durations of (timed) operations.
+ * 
+ * @author mstevens
+ */
+public interface Timer
+{
+
+	/**
+	 * Starts timing an operation.
+	 * 
+	 * @return a context on which {@link Context#stop()} must be called when the operation has ended
+	 */
+	public Context start();
+	
+	/**
+	 * Records the duration of an operation that was timed externally.
+	 * 
+	 * @param durationNS duration in nanoseconds
+	 */
+	public void record(long durationNS);
+	
+	/**
+	 * A single timing of an operation.
+	 * 
+	 * @author mstevens
+	 */
+	public interface Context
+	{
+		
+		public void stop();
+		
+	}
+	
+}
@@ -72,6 +72,27 @@ public final class BinaryHelpers
 		return toHexadecimealString(data, true);
 	}
 
+	/**
+	 * @param hex - a String of hexadecimal digits (upper or lower case), with an even length
+	 * @return the corresponding bytes
+	 * @throws IllegalArgumentException when the String is not a valid hexadecimal representation of a byte array
+	 */
+	static public byte[] fromHexadecimalString(String hex) throws IllegalArgumentException
+	{
+		if(hex.length() % 2 != 0)
+			throw new IllegalArgumentException("Hexadecimal string must have an even length");
+		byte[] data = new byte[hex.length() / 2];
+		for(int i = 0; i < data.length; i++)
+		{
+			int hi = Character.digit(hex.charAt(2 * i), 16);
+			int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+			if(hi == -1 || lo == -1)
+				throw new IllegalArgumentException("Invalid hexadecimal string: " + hex);
+			data[i] = (byte) ((hi << 4) | lo);
+		}
+		return data;
+	}
+
 	static public String toBinaryString(byte b)
 	{
 		String str = "";
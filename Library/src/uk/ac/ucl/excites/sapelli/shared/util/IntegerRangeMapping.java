@@ -33,6 +33,9 @@ import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
  * 
  * Integers of [x, y] are called logical values (to be used by client code), Integers of [0, m] are called raw values (to be used in underlying storage)
  * 
+ * Whenever the effective logical range (see {@link #highBound(boolean)}) fits within the long range, which is the case for virtually all
+ * mappings in practice, the methods which take or return longs use primitive arithmetic, such that no BigIntegers are allocated.
+ * 
  * @author mstevens
  */
 public class IntegerRangeMapping implements Serializable
@@ -150,6 +153,16 @@ public class IntegerRangeMapping implements Serializable
 	 */
 	private final BigInteger hiBound;
 	
+	/**
+	 * Whether or not all logical values in the effective range, as well as all raw values, fit in a long.
+	 * If so, the fields below hold the bounds as longs and are used by the long-based methods instead of BigInteger arithmetic.
+	 * Note: will be {@code false} on instances deserialised from a stream written before this field existed, which is safe.
+	 */
+	private final boolean longMapping;
+	private final long loBoundLong;
+	private final long hiBoundLong;
+	private final long effectiveHiBoundLong;
+	
 	/**
 	 * Creates an {@link IntegerRangeMapping} [x, y] (inclusive!) with x = 0 and y = {@code hiBound}.
 	 * 
@@ -220,6 +233,11 @@ public class IntegerRangeMapping implements Serializable
 		BigInteger max = hiBound.subtract(loBound);
 		size = max.bitLength(); // will be 0 if loBound = hiBound (only allowed when allowEmpty = true)
 		// Without BigInteger: size = Long.SIZE - Long.numberOfLeadingZeros(max); //gets the numbers of bits needed to store a positive non-0 integer (log2(x))
+		BigInteger effectiveHiBound = highBound(false);
+		longMapping = size < Long.SIZE && loBound.bitLength() < Long.SIZE && effectiveHiBound.bitLength() < Long.SIZE; // bitLength() < 64 means the value fits in a (signed) long
+		loBoundLong = loBound.longValue();
+		hiBoundLong = hiBound.longValue();
+		effectiveHiBoundLong = effectiveHiBound.longValue();
 	}
 	
 	/**
@@ -345,6 +363,8 @@ public class IntegerRangeMapping implements Serializable
 	 */
 	public boolean inRange(long logicalValue, boolean strict)
 	{
+		if(longMapping)
+			return loBoundLong <= logicalValue && logicalValue <= (strict ? hiBoundLong : effectiveHiBoundLong);
 		return inRange(BigInteger.valueOf(logicalValue), strict);
 	}
 	
@@ -416,7 +436,14 @@ public class IntegerRangeMapping implements Serializable
 	 */
 	public void write(long logicalValue, BitOutputStream to) throws IllegalArgumentException, IOException
 	{
-		write(BigInteger.valueOf(logicalValue), to);
+		if(longMapping)
+		{
+			if(!inRange(logicalValue, false))
+				throw new IllegalArgumentException("Logical value (" + logicalValue + ") does not fit in effective logical range: " + getRangeString(false));
+			to.write(logicalValue - loBoundLong, size, false); // cannot overflow: the raw value is in [0, 2^size - 1] with size < 64
+		}
+		else
+			write(BigInteger.valueOf(logicalValue), to);
 	}
 
 	/**
@@ -449,6 +476,8 @@ public class IntegerRangeMapping implements Serializable
 	 */
 	public long readLong(BitInputStream from) throws IOException
 	{
+		if(longMapping)
+			return from.readInteger(size, false) + loBoundLong;
 		return read(from).longValue();
 	}
 	
@@ -459,7 +488,7 @@ public class IntegerRangeMapping implements Serializable
 	 */
 	public int readInt(BitInputStream from) throws IOException
 	{
-		return read(from).intValue();
+		return (int) readLong(from); // same truncation as BigInteger#intValue()
 	}
 	
 	/**
@@ -469,7 +498,7 @@ public class IntegerRangeMapping implements Serializable
 	 */
 	public short readShort(BitInputStream from) throws IOException
 	{
-		return read(from).shortValue();
+		return (short) readLong(from); // same truncation as BigInteger#shortValue()
 	}
 	
 	public String toString()
@@ -18,6 +18,8 @@
 
 package uk.ac.ucl.excites.sapelli.shared.util;
 
+import java.io.Serializable;
+
 /**
  * Abstract superclass for key-value mapping classes where both key and value are Strings.
  * Provides helpful parsing methods for various types.
@@ -26,8 +28,10 @@ package uk.ac.ucl.excites.sapelli.shared.util;
  * @author mstevens
  *
  */
-public abstract class Parameters
+public abstract class Parameters implements Serializable
 {
+
+	private static final long serialVersionUID = 2L;
 	
 	// Static
 	public static final String ENABLED = "enabled";
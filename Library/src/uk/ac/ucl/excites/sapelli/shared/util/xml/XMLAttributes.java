@@ -28,6 +28,8 @@ import uk.ac.ucl.excites.sapelli.shared.util.Parameters;
  */
 public class XMLAttributes extends Parameters
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	private Attributes attributes;
 	
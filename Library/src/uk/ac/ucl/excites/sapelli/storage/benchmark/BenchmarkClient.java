@@ -0,0 +1,104 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+
+/**
+ * Minimal {@link StorageClient} for benchmarks and stress tests. It only knows the {@link Model}s which are added to it
+ * and ignores all record events. Subclasses decide which kind of RecordStore is benchmarked by implementing {@link #createRecordStore()}.
+ * 
+ * @author mstevens
+ */
+public abstract class BenchmarkClient extends StorageClient
+{
+
+	// DYNAMICS------------------------------------------------------
+	private final Map<Long, Model> models = new HashMap<Long, Model>();
+	
+	/**
+	 * @param model the model to make known to the client (and hence to its record store)
+	 */
+	public void addModel(Model model)
+	{
+		models.put(model.getID(), model);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#getClientModel(long)
+	 */
+	@Override
+	protected Model getClientModel(long modelID) throws UnknownModelException
+	{
+		Model model = models.get(modelID);
+		if(model == null)
+			throw new UnknownModelException(modelID, null);
+		return model;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.StorageClient#getSchemaV1(int, int)
+	 */
+	@Override
+	public Schema getSchemaV1(int schemaID, int schemaVersion) throws UnknownModelException
+	{
+		throw new UnknownModelException(schemaID, schemaVersion);
+	}
+
+	@Override
+	public void recordInserted(Record record)
+	{
+		// does nothing
+	}
+
+	@Override
+	public void recordUpdated(Record record)
+	{
+		// does nothing
+	}
+
+	@Override
+	public void recordDeleted(Record record)
+	{
+		// does nothing
+	}
+
+	@Override
+	public void recordDeleted(RecordReference recordReference)
+	{
+		// does nothing
+	}
+
+	@Override
+	public void recordsDeleted(RecordsQuery query, int numberOfDeletedRecords)
+	{
+		// does nothing
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.lang.reflect.Method;
+
+/**
+ * Helper methods for benchmarks
+ * 
+ * @author mstevens
+ */
+public final class BenchmarkHelpers
+{
+	
+	static private final double NS_PER_S = 1000000000.0d;
+
+	/**
+	 * The ThreadMXBean and its getThreadAllocatedBytes(long) method, looked up reflectively because they are specific to
+	 * HotSpot-based JVMs (they are not available on Android). Both are null if unavailable.
+	 */
+	static private final Object THREAD_MX_BEAN;
+	static private final Method GET_THREAD_ALLOCATED_BYTES;
+	static
+	{
+		Object bean = null;
+		Method method = null;
+		try
+		{
+			bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			if(!method.getDeclaringClass().isInstance(bean))
+				bean = method = null;
+		}
+		catch(Exception e)
+		{
+			bean = method = null;
+		}
+		THREAD_MX_BEAN = bean;
+		GET_THREAD_ALLOCATED_BYTES = method;
+	}
+	
+	private BenchmarkHelpers() {}
+	
+	/**
+	 * @return the number of bytes allocated on the heap by the calling thread so far, or -1 if the JVM cannot tell
+	 */
+	static public long GetAllocatedBytes()
+	{
+		if(GET_THREAD_ALLOCATED_BYTES == null)
+			return -1l;
+		try
+		{
+			return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(THREAD_MX_BEAN, Thread.currentThread().getId());
+		}
+		catch(Exception e)
+		{
+			return -1l;
+		}
+	}
+	
+	/**
+	 * @param count number of operations
+	 * @param durationNS duration of all operations, in nanoseconds
+	 * @return operations per second
+	 */
+	static public double PerSecond(long count, long durationNS)
+	{
+		return count * NS_PER_S / durationNS;
+	}
+	
+	/**
+	 * @param allocatedBytes bytes allocated by all operations, or a negative value if unknown
+	 * @param count number of operations
+	 * @return a description of the number of bytes allocated per operation
+	 */
+	static public String BytesPer(long allocatedBytes, long count)
+	{
+		return allocatedBytes < 0 ? "? bytes" : String.format("%.1f bytes", allocatedBytes / (double) count);
+	}
+	
+}
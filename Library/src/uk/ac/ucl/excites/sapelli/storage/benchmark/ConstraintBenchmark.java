@@ -0,0 +1,200 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.FloatColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.AndConstraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.CompiledConstraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.Constraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.EqualityConstraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.OrConstraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint.Comparison;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+
+/**
+ * Benchmark of in-memory record filtering.
+ * 
+ * A list of randomly populated records is filtered using a number of typical constraints, both by evaluating
+ * {@link Constraint#isValid(Record)} on each record (which is what {@link Constraint#filter(List)} used to do) and through
+ * {@link Constraint#filter(List)}, which compiles the constraint into a {@link CompiledConstraint} first (the compilation is
+ * included in the measured time). For each the throughput and the bytes allocated (if the JVM can tell) per record are reported,
+ * and the numbers of matching records are compared.
+ * 
+ * Usage: ConstraintBenchmark [records [rounds]]
+ * 
+ * @author mstevens
+ */
+public class ConstraintBenchmark
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_RECORDS = 2000000;
+	static public final int DEFAULT_ROUNDS = 5;
+	
+	static private final long MODEL_ID = 49;
+	
+	/**
+	 * @param args optionally the number of records and the number of measured rounds
+	 */
+	public static void main(String[] args)
+	{
+		int records = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+		if(!new ConstraintBenchmark(System.out).run(records, rounds))
+			System.exit(1);
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final PrintStream out;
+	private final Random random = new Random(49);
+	
+	private final Schema schema;
+	private final IntegerColumn idColumn;
+	private final IntegerColumn countColumn;
+	private final FloatColumn temperatureColumn;
+	private final StringColumn siteColumn;
+	private final BooleanColumn flaggedColumn;
+	private final TimeStampColumn timeColumn;
+	
+	/**
+	 * @param out stream to report results to
+	 */
+	public ConstraintBenchmark(PrintStream out)
+	{
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Observations");
+		idColumn = schema.addColumn(new IntegerColumn("ID", false, 32));
+		countColumn = schema.addColumn(new IntegerColumn("Count", false, 0, 1000));
+		temperatureColumn = schema.addColumn(new FloatColumn("Temperature", true));
+		siteColumn = schema.addColumn(StringColumn.ForCharacterCount("Site", false, 20));
+		flaggedColumn = schema.addColumn(new BooleanColumn("Flagged", false));
+		timeColumn = schema.addColumn(TimeStampColumn.Century21("Time", false, false));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn));
+		schema.seal();
+		model.seal();
+	}
+	
+	/**
+	 * Populates a list of records and runs the benchmark.
+	 * 
+	 * @param records number of records to filter
+	 * @param rounds number of times each constraint is applied in each way
+	 * @return whether or not both ways of filtering gave the same number of records for all constraints
+	 */
+	public boolean run(int records, int rounds)
+	{
+		List<Record> population = new ArrayList<Record>(records);
+		for(int r = 0; r < records; r++)
+			population.add(createRecord(r));
+		out.println(String.format("Filtering %d records, %d rounds:", records, rounds));
+		
+		boolean passed = true;
+		passed &= measure("Integer equality", new EqualityConstraint(countColumn, 500l), population, rounds);
+		passed &= measure("Integer range", new AndConstraint(new RuleConstraint(countColumn, Comparison.GREATER_OR_EQUAL, 100l), new RuleConstraint(countColumn, Comparison.SMALLER, 200l)), population, rounds);
+		passed &= measure("Float rule (optional column)", new RuleConstraint(temperatureColumn, Comparison.GREATER, 25.0d), population, rounds);
+		passed &= measure("String equality", new EqualityConstraint(siteColumn, "Site 7"), population, rounds);
+		passed &= measure("Source & nested and/or", new AndConstraint(	Source.From(schema),
+																		new OrConstraint(	new AndConstraint(new EqualityConstraint(flaggedColumn, Boolean.TRUE), new RuleConstraint(countColumn, Comparison.SMALLER, 50l)),
+																							new RuleConstraint(temperatureColumn, Comparison.SMALLER_OR_EQUAL, -5.0d),
+																							EqualityConstraint.IsNull(temperatureColumn))), population, rounds);
+		passed &= measure("Time stamp rule (generic comparison)", new RuleConstraint(timeColumn, Comparison.GREATER, new TimeStamp(1400000000000l + 30l * 24 * 60 * 60 * 1000)), population, rounds);
+		return passed;
+	}
+	
+	/**
+	 * Filters the records using the given constraint (once each way to warm up and then the given number of rounds).
+	 */
+	private boolean measure(String name, Constraint constraint, List<Record> records, int rounds)
+	{
+		int interpretedMatches = filterInterpreted(constraint, records).size(); // warm-up
+		int compiledMatches = constraint.filter(records).size(); // warm-up
+		
+		long allocatedBefore = BenchmarkHelpers.GetAllocatedBytes();
+		long startNS = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+			if(filterInterpreted(constraint, records).size() != interpretedMatches)
+				interpretedMatches = -1;
+		long interpretedNS = System.nanoTime() - startNS;
+		long interpretedAllocated = allocatedBefore < 0 ? -1l : BenchmarkHelpers.GetAllocatedBytes() - allocatedBefore;
+		
+		allocatedBefore = BenchmarkHelpers.GetAllocatedBytes();
+		startNS = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+			if(constraint.filter(records).size() != compiledMatches)
+				compiledMatches = -1;
+		long compiledNS = System.nanoTime() - startNS;
+		long compiledAllocated = allocatedBefore < 0 ? -1l : BenchmarkHelpers.GetAllocatedBytes() - allocatedBefore;
+		
+		boolean passed = interpretedMatches >= 0 && interpretedMatches == compiledMatches;
+		long count = (long) rounds * records.size();
+		out.println(String.format(	"%s (%d matches): isValid() %.0f records/s & %s per record, compiled %.0f records/s & %s per record, speed-up %.1fx%s",
+									name,
+									compiledMatches,
+									BenchmarkHelpers.PerSecond(count, interpretedNS),
+									BenchmarkHelpers.BytesPer(interpretedAllocated, count),
+									BenchmarkHelpers.PerSecond(count, compiledNS),
+									BenchmarkHelpers.BytesPer(compiledAllocated, count),
+									interpretedNS / (double) compiledNS,
+									passed ? "" : " (RESULT MISMATCH)"));
+		return passed;
+	}
+	
+	/**
+	 * Filters the records by calling {@link Constraint#isValid(Record)} on each of them.
+	 */
+	private List<Record> filterInterpreted(Constraint constraint, List<Record> records)
+	{
+		List<Record> result = new ArrayList<Record>();
+		for(Record record : records)
+			if(constraint.isValid(record))
+				result.add(record);
+		return result;
+	}
+	
+	private Record createRecord(int r)
+	{
+		Record record = schema.createRecord();
+		idColumn.storeValue(record, r);
+		countColumn.storeValue(record, random.nextInt(1001));
+		if(random.nextInt(10) != 0) // leave 10% empty
+			temperatureColumn.storeValue(record, random.nextDouble() * 50.0d - 15.0d);
+		siteColumn.storeValue(record, "Site " + random.nextInt(100));
+		flaggedColumn.storeValue(record, random.nextBoolean());
+		timeColumn.storeValue(record, new TimeStamp(1400000000000l + (long) (random.nextDouble() * 60 * 24 * 60 * 60 * 1000)));
+		return record;
+	}
+	
+}
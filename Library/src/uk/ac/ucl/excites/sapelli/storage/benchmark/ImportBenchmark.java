@@ -0,0 +1,209 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreUser;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+
+/**
+ * Import throughput benchmark with an injected error rate.
+ * 
+ * A batch of records is inserted using {@link RecordStore#insert(Record)}. A given fraction of them reuses the primary key of
+ * the first record, with different values, so that inserting it fails. Two strategies are compared:
+ * <ul>
+ * <li>{@link Strategy#PER_RECORD_COMMIT}: each record is inserted (and committed) in its own transaction;</li>
+ * <li>{@link Strategy#OUTER_TRANSACTION}: all records are inserted within a single outer transaction, which is committed at the
+ * end, relying on each failing insert to only roll back its own nested transaction.</li>
+ * </ul>
+ * After each run the benchmark checks that the store holds exactly the records which were inserted successfully. On stores
+ * which only simulate nested transactions a failing insert may roll back the whole outer transaction, which is reported.
+ * 
+ * @author mstevens
+ */
+public class ImportBenchmark implements StoreUser
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_RECORDS = 5000;
+	static public final double DEFAULT_ERROR_RATE = 0.01d;
+	
+	static private final long MODEL_ID = 42;
+	
+	/**
+	 * How records are imported
+	 * 
+	 * @author mstevens
+	 */
+	public static enum Strategy
+	{
+		PER_RECORD_COMMIT,
+		OUTER_TRANSACTION
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final BenchmarkClient client;
+	private final PrintStream out;
+	
+	private final Schema schema;
+	private final IntegerColumn idColumn;
+	private final IntegerColumn valueColumn;
+	private final StringColumn textColumn;
+	
+	/**
+	 * @param client the client providing the store to benchmark, the benchmark's model is added to it
+	 * @param out stream to report results to
+	 */
+	public ImportBenchmark(BenchmarkClient client, PrintStream out)
+	{
+		this.client = client;
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Imports");
+		idColumn = schema.addColumn(new IntegerColumn("ID", false, 32));
+		valueColumn = schema.addColumn(new IntegerColumn("Value", false, 32));
+		textColumn = schema.addColumn(StringColumn.ForCharacterCount("Text", true, 200));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn));
+		schema.seal();
+		model.seal();
+		client.addModel(model);
+	}
+	
+	/**
+	 * Runs the benchmark with each {@link Strategy}, on the client's record store.
+	 * 
+	 * @param records number of records to import
+	 * @param errorRate fraction of records whose insertion fails
+	 * @return whether or not the store held exactly the successfully inserted records after each run
+	 * @throws DBException
+	 */
+	public boolean run(int records, double errorRate) throws DBException
+	{
+		RecordStore store = client.recordStoreHandle.getStore(this);
+		try
+		{
+			boolean passed = true;
+			for(Strategy strategy : Strategy.values())
+				passed &= run(store, strategy, records, errorRate);
+			return passed;
+		}
+		finally
+		{
+			client.recordStoreHandle.doneUsing(this);
+		}
+	}
+	
+	/**
+	 * Imports the records using the given strategy and reports the throughput and whether the store holds the expected records.
+	 * 
+	 * @param store
+	 * @param strategy
+	 * @param records number of records to import
+	 * @param errorRate fraction of records whose insertion fails
+	 * @return whether or not the store held exactly the successfully inserted records
+	 * @throws DBException
+	 */
+	public boolean run(RecordStore store, Strategy strategy, int records, double errorRate) throws DBException
+	{
+		store.delete(new RecordsQuery(Source.From(schema))); // start from an empty table
+		
+		// Prepare records (the first one is always valid):
+		Random random = new Random(42);
+		List<Record> batch = new ArrayList<Record>(records);
+		int faults = 0;
+		for(int r = 0; r < records; r++)
+		{
+			boolean faulty = r > 0 && random.nextDouble() < errorRate;
+			if(faulty)
+				faults++;
+			Record record = schema.createRecord();
+			idColumn.storeValue(record, faulty ? 0 : r); // reuses the primary key of the first record
+			valueColumn.storeValue(record, r);
+			textColumn.storeValue(record, "Imported record " + r);
+			batch.add(record);
+		}
+		
+		// Import:
+		Set<Long> inserted = new HashSet<Long>();
+		int failed = 0;
+		long startNS = System.nanoTime();
+		if(strategy == Strategy.OUTER_TRANSACTION)
+			store.startTransaction();
+		for(Record record : batch)
+		{
+			try
+			{
+				store.insert(record);
+				inserted.add(idColumn.retrieveValue(record));
+			}
+			catch(DBException dbE)
+			{
+				failed++;
+			}
+		}
+		boolean rolledBack = false;
+		if(strategy == Strategy.OUTER_TRANSACTION)
+		{
+			try
+			{
+				store.commitTransaction();
+			}
+			catch(DBException dbE)
+			{	// the whole batch was rolled back (e.g. because the store could not roll back a failed nested insert on its own)
+				rolledBack = true;
+				inserted.clear();
+			}
+		}
+		long durationNS = System.nanoTime() - startNS;
+		
+		// Check stored records:
+		Set<Long> stored = new HashSet<Long>();
+		for(Record record : store.retrieveRecords(schema))
+			stored.add(idColumn.retrieveValue(record));
+		boolean passed = failed == faults && stored.equals(inserted);
+		
+		out.println(String.format(	"%s: %d records (%d of %d faulty ones failed) in %.3fs: %.1f records/s, %s",
+									strategy.name(),
+									records,
+									failed,
+									faults,
+									durationNS / 1000000000.0d,
+									BenchmarkHelpers.PerSecond(records, durationNS),
+									passed ? (rolledBack ? "outer transaction rolled back, store holds no records" : "store holds all " + inserted.size() + " inserted records") : "store holds " + stored.size() + " records but " + inserted.size() + " were inserted successfully"));
+		return passed;
+	}
+	
+}
@@ -0,0 +1,219 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.Random;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+
+/**
+ * Microbenchmark for the encoding and decoding of integer values through {@link IntegerRangeMapping}s.
+ * 
+ * For a number of typical mappings it compares the primitive long path ({@link IntegerRangeMapping#write(long, uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream)}
+ * & {@link IntegerRangeMapping#readLong(uk.ac.ucl.excites.sapelli.shared.io.BitInputStream)}) with the BigInteger path, through which
+ * those methods used to delegate all values. It also measures the throughput of encoding and decoding whole records whose
+ * columns use such mappings. Times are reported per value or per record, as are the bytes allocated (if the JVM can tell).
+ * 
+ * Usage: IntegerRangeMappingBenchmark [rounds]
+ * 
+ * @author mstevens
+ */
+public class IntegerRangeMappingBenchmark
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_ROUNDS = 2000;
+	static private final int WARM_UP_ROUNDS = 500;
+	static private final int VALUES_PER_ROUND = 1000;
+	static private final int RECORDS_PER_ROUND = 100;
+	
+	/**
+	 * @param args optionally the number of measured rounds
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+		IntegerRangeMappingBenchmark benchmark = new IntegerRangeMappingBenchmark(System.out);
+		benchmark.runMapping("[0, 255]", new IntegerRangeMapping(0, 255), rounds);
+		benchmark.runMapping("[-50, 60]", new IntegerRangeMapping(-50, 60), rounds);
+		benchmark.runMapping("signed 32 bit", IntegerRangeMapping.ForSize(32, true), rounds);
+		benchmark.runMapping("Century21 timestamp", TimeStampColumn.Century21("Time", false, false).getTimeMapping(), rounds);
+		benchmark.runRecords(rounds);
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final PrintStream out;
+	private final Random random = new Random(46);
+	
+	/**
+	 * @param out stream to report results to
+	 */
+	public IntegerRangeMappingBenchmark(PrintStream out)
+	{
+		this.out = out;
+	}
+	
+	/**
+	 * Encodes and decodes random values of the given mapping through the long and the BigInteger path.
+	 * 
+	 * @param name
+	 * @param mapping
+	 * @param rounds
+	 * @throws IOException
+	 */
+	public void runMapping(String name, IntegerRangeMapping mapping, int rounds) throws IOException
+	{
+		long[] values = new long[VALUES_PER_ROUND];
+		long lo = mapping.lowBound().longValue();
+		long range = mapping.highBound().longValue() - lo + 1;
+		for(int v = 0; v < values.length; v++)
+			values[v] = lo + (long) (random.nextDouble() * range);
+		
+		long longChecksum = 0;
+		long bigIntegerChecksum = 0;
+		for(int r = 0; r < WARM_UP_ROUNDS; r++)
+		{
+			longChecksum += roundTripLong(mapping, values);
+			bigIntegerChecksum += roundTripBigInteger(mapping, values);
+		}
+		
+		long allocatedBefore = BenchmarkHelpers.GetAllocatedBytes();
+		long startNS = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+			longChecksum += roundTripLong(mapping, values);
+		long longNS = System.nanoTime() - startNS;
+		long longAllocated = allocatedBefore < 0 ? -1l : BenchmarkHelpers.GetAllocatedBytes() - allocatedBefore;
+		
+		allocatedBefore = BenchmarkHelpers.GetAllocatedBytes();
+		startNS = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+			bigIntegerChecksum += roundTripBigInteger(mapping, values);
+		long bigIntegerNS = System.nanoTime() - startNS;
+		long bigIntegerAllocated = allocatedBefore < 0 ? -1l : BenchmarkHelpers.GetAllocatedBytes() - allocatedBefore;
+		
+		long count = (long) rounds * VALUES_PER_ROUND;
+		out.println(String.format(	"%s (%d bits): long path %.1f ns & %s per value, BigInteger path %.1f ns & %s per value%s",
+									name,
+									mapping.size(),
+									longNS / (double) count,
+									BenchmarkHelpers.BytesPer(longAllocated, count),
+									bigIntegerNS / (double) count,
+									BenchmarkHelpers.BytesPer(bigIntegerAllocated, count),
+									longChecksum == bigIntegerChecksum ? "" : " (CHECKSUM MISMATCH)"));
+	}
+	
+	private long roundTripLong(IntegerRangeMapping mapping, long[] values) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		for(long value : values)
+			mapping.write(value, out);
+		BitArrayInputStream in = new BitArrayInputStream(out.toBitArray());
+		long checksum = 0;
+		for(int v = 0; v < values.length; v++)
+			checksum += mapping.readLong(in);
+		return checksum;
+	}
+	
+	private long roundTripBigInteger(IntegerRangeMapping mapping, long[] values) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		for(long value : values)
+			mapping.write(BigInteger.valueOf(value), out);
+		BitArrayInputStream in = new BitArrayInputStream(out.toBitArray());
+		long checksum = 0;
+		for(int v = 0; v < values.length; v++)
+			checksum += mapping.read(in).longValue();
+		return checksum;
+	}
+	
+	/**
+	 * Encodes and decodes records of a schema with range-mapped integer and timestamp columns.
+	 * 
+	 * @param rounds
+	 * @throws IOException
+	 */
+	public void runRecords(int rounds) throws IOException
+	{
+		Model model = new Model(46, getClass().getSimpleName());
+		Schema schema = new Schema(model, "Readings");
+		IntegerColumn idColumn = schema.addColumn(new IntegerColumn("ID", false, 0, Integer.MAX_VALUE));
+		IntegerColumn countColumn = schema.addColumn(new IntegerColumn("Count", false, 0, 1000));
+		IntegerColumn temperatureColumn = schema.addColumn(new IntegerColumn("Temperature", false, -50, 60));
+		IntegerColumn readingColumn = schema.addColumn(new IntegerColumn("Reading", false, -1000000, 1000000));
+		TimeStampColumn timeColumn = schema.addColumn(TimeStampColumn.Century21("Time", false, false));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn));
+		schema.seal();
+		model.seal();
+		
+		byte[][] encoded = new byte[RECORDS_PER_ROUND][];
+		Record[] records = new Record[RECORDS_PER_ROUND];
+		for(int r = 0; r < RECORDS_PER_ROUND; r++)
+		{
+			records[r] = schema.createRecord();
+			idColumn.storeValue(records[r], r);
+			countColumn.storeValue(records[r], random.nextInt(1001));
+			temperatureColumn.storeValue(records[r], random.nextInt(111) - 50);
+			readingColumn.storeValue(records[r], random.nextInt(2000001) - 1000000);
+			timeColumn.storeValue(records[r], new TimeStamp(1400000000000l + random.nextInt(Integer.MAX_VALUE)));
+		}
+		
+		for(int w = 0; w < WARM_UP_ROUNDS; w++)
+			for(int r = 0; r < RECORDS_PER_ROUND; r++)
+				schema.createRecord().fromBytes(encoded[r] = records[r].toBytes());
+		
+		long allocatedBefore = BenchmarkHelpers.GetAllocatedBytes();
+		long startNS = System.nanoTime();
+		for(int i = 0; i < rounds; i++)
+			for(int r = 0; r < RECORDS_PER_ROUND; r++)
+				encoded[r] = records[r].toBytes();
+		long encodeNS = System.nanoTime() - startNS;
+		long encodeAllocated = allocatedBefore < 0 ? -1l : BenchmarkHelpers.GetAllocatedBytes() - allocatedBefore;
+		
+		allocatedBefore = BenchmarkHelpers.GetAllocatedBytes();
+		startNS = System.nanoTime();
+		for(int i = 0; i < rounds; i++)
+			for(int r = 0; r < RECORDS_PER_ROUND; r++)
+				schema.createRecord().fromBytes(encoded[r]);
+		long decodeNS = System.nanoTime() - startNS;
+		long decodeAllocated = allocatedBefore < 0 ? -1l : BenchmarkHelpers.GetAllocatedBytes() - allocatedBefore;
+		
+		long count = (long) rounds * RECORDS_PER_ROUND;
+		out.println(String.format(	"Records (%d bytes): encode %.0f records/s & %s per record, decode %.0f records/s & %s per record",
+									encoded[0].length,
+									BenchmarkHelpers.PerSecond(count, encodeNS),
+									BenchmarkHelpers.BytesPer(encodeAllocated, count),
+									BenchmarkHelpers.PerSecond(count, decodeNS),
+									BenchmarkHelpers.BytesPer(decodeAllocated, count)));
+	}
+	
+}
@@ -0,0 +1,203 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreUser;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.queries.Order;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+
+/**
+ * Benchmark of column projection on a wide schema.
+ * 
+ * A schema with {@link #COLUMNS} columns (strings, integers and time stamps) is populated, after which the query a list screen
+ * would run (all records, most recent first) is timed with and without a projection onto the ID, title and time columns. This
+ * is done against the client's record store and in memory (using {@link RecordsQuery#execute(List)}). For each the time and
+ * the number of bytes allocated (if the JVM can tell) per query are reported.
+ * 
+ * @author mstevens
+ */
+public class ProjectionBenchmark implements StoreUser
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_RECORDS = 2000;
+	static public final int DEFAULT_ROUNDS = 20;
+	
+	static public final int COLUMNS = 51;
+	
+	static private final long MODEL_ID = 50;
+	static private final double NS_PER_MS = 1000000.0d;
+	
+	// DYNAMICS------------------------------------------------------
+	private final BenchmarkClient client;
+	private final PrintStream out;
+	
+	private final Schema schema;
+	private final IntegerColumn idColumn;
+	private final StringColumn titleColumn;
+	private final TimeStampColumn timeColumn;
+	private final List<StringColumn> stringColumns = new ArrayList<StringColumn>();
+	private final List<IntegerColumn> integerColumns = new ArrayList<IntegerColumn>();
+	private final List<TimeStampColumn> timeStampColumns = new ArrayList<TimeStampColumn>();
+	
+	/**
+	 * @param client the client providing the store to benchmark, the benchmark's model is added to it
+	 * @param out stream to report results to
+	 */
+	public ProjectionBenchmark(BenchmarkClient client, PrintStream out)
+	{
+		this.client = client;
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Wide");
+		idColumn = schema.addColumn(new IntegerColumn("ID", false, 32));
+		titleColumn = schema.addColumn(StringColumn.ForCharacterCount("Title", false, 100));
+		timeColumn = schema.addColumn(TimeStampColumn.Century21("Time", false, false));
+		for(int c = 3; c < COLUMNS; c++)
+			switch(c % 3)
+			{
+				case 0 :
+					stringColumns.add(schema.addColumn(StringColumn.ForCharacterCount("String" + c, true, 200)));
+					break;
+				case 1 :
+					integerColumns.add(schema.addColumn(new IntegerColumn("Integer" + c, true, 64)));
+					break;
+				default :
+					timeStampColumns.add(schema.addColumn(TimeStampColumn.Century21("Time" + c, true, false)));
+			}
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn));
+		schema.seal();
+		model.seal();
+		client.addModel(model);
+	}
+	
+	/**
+	 * Populates the client's record store and runs the benchmark.
+	 * 
+	 * @param records number of records to populate the store with
+	 * @param rounds number of times each query is run
+	 * @return whether or not all queries returned the expected number of records, with the projected ones being partial
+	 * @throws DBException
+	 */
+	public boolean run(int records, int rounds) throws DBException
+	{
+		RecordStore store = client.recordStoreHandle.getStore(this);
+		try
+		{
+			// Populate:
+			store.delete(new RecordsQuery(Source.From(schema))); // start from an empty table
+			List<Record> populated = new ArrayList<Record>(records);
+			store.startTransaction();
+			for(int r = 0; r < records; r++)
+			{
+				Record record = createRecord(r);
+				store.store(record);
+				populated.add(record);
+			}
+			store.commitTransaction();
+			
+			// Query:
+			RecordsQuery fullQuery = new RecordsQuery(Source.From(schema), Order.DescendingBy(timeColumn));
+			RecordsQuery projectedQuery = fullQuery.project(idColumn, titleColumn, timeColumn);
+			boolean passed = true;
+			passed &= measure("Store, complete records", store, null, fullQuery, records, rounds);
+			passed &= measure("Store, projected records", store, null, projectedQuery, records, rounds);
+			passed &= measure("In memory, complete records", null, populated, fullQuery, records, rounds);
+			passed &= measure("In memory, projected records", null, populated, projectedQuery, records, rounds);
+			return passed;
+		}
+		finally
+		{
+			client.recordStoreHandle.doneUsing(this);
+		}
+	}
+	
+	/**
+	 * Runs the query (once to warm up and then the given number of rounds) against the store, or in memory if store is null.
+	 */
+	private boolean measure(String name, RecordStore store, List<Record> sourceRecords, RecordsQuery query, int expected, int rounds) throws DBException
+	{
+		boolean passed = check(run(store, sourceRecords, query), query, expected); // warm-up
+		long startAllocated = BenchmarkHelpers.GetAllocatedBytes();
+		long startNS = System.nanoTime();
+		for(int r = 0; r < rounds; r++)
+			passed &= check(run(store, sourceRecords, query), query, expected);
+		long durationNS = System.nanoTime() - startNS;
+		long endAllocated = BenchmarkHelpers.GetAllocatedBytes();
+		
+		out.println(String.format(	"%s: %.2fms/query, %s/query%s",
+									name,
+									durationNS / NS_PER_MS / rounds,
+									BenchmarkHelpers.BytesPer(startAllocated < 0 || endAllocated < 0 ? -1l : endAllocated - startAllocated, rounds),
+									passed ? "" : " (unexpected results)"));
+		return passed;
+	}
+	
+	private List<Record> run(RecordStore store, List<Record> sourceRecords, RecordsQuery query) throws DBException
+	{
+		if(store != null)
+			return store.retrieveRecords(query);
+		else
+			return query.execute(new ArrayList<Record>(sourceRecords)); // copy because execute() sorts the list it is given
+	}
+	
+	private boolean check(List<Record> result, RecordsQuery query, int expected)
+	{
+		if(result.size() != expected)
+			return false;
+		for(Record record : result)
+			if(record.isPartial() != (query.getProjection() != null))
+				return false;
+		return true;
+	}
+	
+	private Record createRecord(int r)
+	{
+		Record record = schema.createRecord();
+		idColumn.storeValue(record, r);
+		titleColumn.storeValue(record, "Record number " + r);
+		long ms = System.currentTimeMillis() - r * 60000l;
+		timeColumn.storeValue(record, new TimeStamp(ms));
+		for(StringColumn col : stringColumns)
+			col.storeValue(record, col.getName() + " of record " + r + ", which is some longer free text as entered on a form");
+		for(int c = 0; c < integerColumns.size(); c++)
+			integerColumns.get(c).storeValue(record, (long) r * (c + 1));
+		for(int c = 0; c < timeStampColumns.size(); c++)
+			timeStampColumns.get(c).storeValue(record, new TimeStamp(ms + c + 1));
+		return record;
+	}
+	
+}
@@ -0,0 +1,379 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.ucl.excites.sapelli.shared.db.StoreHandle.StoreUser;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.Transaction;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.EqualityConstraint;
+
+/**
+ * Multi-threaded stress test and throughput benchmark for {@link RecordStore} transactions.
+ * 
+ * Several writer threads each run a series of transactions. Each transaction stores a batch of records and is then committed,
+ * or rolled back at a given rate. In {@link Mode#TRANSACTION_HANDLES} mode each thread uses its own {@link Transaction} handle.
+ * In {@link Mode#EXTERNALLY_SYNCHRONISED} mode each transaction is wrapped in a block which synchronises on the store, which
+ * is how concurrent writers had to be serialised before transactions were confined to threads. In {@link Mode#WRITER_QUEUE}
+ * mode each thread hands its transactions to a queue which is worked off by the thread that runs the test (and opened the
+ * store). This is how writes must be done on back-ends whose connection is confined to the thread that opened the store
+ * (e.g. sqlite4java), on which only that mode can be run.
+ * 
+ * Isolation is asserted twice. Before a transaction ends its thread must see exactly the records it stored in it. At the end
+ * the store must hold exactly the records of the committed transactions. What threads outside of a transaction see of other
+ * threads' open transactions depends on the back-end, so that is not checked.
+ * 
+ * @author mstevens
+ */
+public class TransactionStressTest implements StoreUser
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_THREADS = 8;
+	static public final int DEFAULT_TRANSACTIONS_PER_THREAD = 10;
+	static public final int DEFAULT_RECORDS_PER_TRANSACTION = 10;
+	static public final double DEFAULT_ROLLBACK_RATE = 0.2d;
+	
+	static private final long MODEL_ID = 43;
+	static private final int MAX_REPORTED_FAILURES = 10;
+	static private final long WRITER_QUEUE_POLL_MS = 10;
+	
+	/**
+	 * How writer threads use the store's transactions
+	 * 
+	 * @author mstevens
+	 */
+	public static enum Mode
+	{
+		TRANSACTION_HANDLES,
+		EXTERNALLY_SYNCHRONISED,
+		WRITER_QUEUE
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final BenchmarkClient client;
+	private final PrintStream out;
+	
+	private final Schema schema;
+	private final IntegerColumn threadColumn;
+	private final IntegerColumn transactionColumn;
+	private final IntegerColumn recordColumn;
+	private final StringColumn payloadColumn;
+	
+	/**
+	 * @param client the client providing the store to test, the test's model is added to it
+	 * @param out stream to report results to
+	 */
+	public TransactionStressTest(BenchmarkClient client, PrintStream out)
+	{
+		this.client = client;
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Writes");
+		threadColumn = schema.addColumn(new IntegerColumn("Thread", false, 32));
+		transactionColumn = schema.addColumn(new IntegerColumn("Transaction", false, 32));
+		recordColumn = schema.addColumn(new IntegerColumn("Record", false, 32));
+		payloadColumn = schema.addColumn(StringColumn.ForCharacterCount("Payload", true, 100));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(threadColumn, transactionColumn, recordColumn));
+		schema.seal();
+		model.seal();
+		client.addModel(model);
+	}
+	
+	/**
+	 * Runs the test in each {@link Mode}, on the client's record store, after an unreported warm-up run.
+	 * 
+	 * @param threads
+	 * @param transactionsPerThread
+	 * @param recordsPerTransaction
+	 * @param rollbackRate fraction of transactions to roll back
+	 * @return whether or not isolation held in all modes
+	 * @throws DBException
+	 * @throws InterruptedException
+	 */
+	public boolean run(int threads, int transactionsPerThread, int recordsPerTransaction, double rollbackRate) throws DBException, InterruptedException
+	{
+		return run(threads, transactionsPerThread, recordsPerTransaction, rollbackRate, Mode.values());
+	}
+	
+	/**
+	 * Runs the test in the given {@link Mode}s, on the client's record store, after an unreported warm-up run in the first mode.
+	 * 
+	 * @param threads
+	 * @param transactionsPerThread
+	 * @param recordsPerTransaction
+	 * @param rollbackRate fraction of transactions to roll back
+	 * @param modes
+	 * @return whether or not isolation held in all given modes
+	 * @throws DBException
+	 * @throws InterruptedException
+	 */
+	public boolean run(int threads, int transactionsPerThread, int recordsPerTransaction, double rollbackRate, Mode... modes) throws DBException, InterruptedException
+	{
+		RecordStore store = client.recordStoreHandle.getStore(this);
+		try
+		{
+			boolean passed = run(store, modes[0], threads, 1, recordsPerTransaction, rollbackRate, false);
+			for(Mode mode : modes)
+				passed &= run(store, mode, threads, transactionsPerThread, recordsPerTransaction, rollbackRate, true);
+			return passed;
+		}
+		finally
+		{
+			client.recordStoreHandle.doneUsing(this);
+		}
+	}
+	
+	/**
+	 * Runs the test in the given mode and (optionally) reports the throughput and any isolation failures.
+	 * In {@link Mode#WRITER_QUEUE} mode the calling thread works off the queue, so it should be the thread that opened the store.
+	 * 
+	 * @param store
+	 * @param mode
+	 * @param threads
+	 * @param transactionsPerThread
+	 * @param recordsPerTransaction
+	 * @param rollbackRate fraction of transactions to roll back
+	 * @param report whether or not to report the results
+	 * @return whether or not isolation held
+	 * @throws DBException
+	 * @throws InterruptedException
+	 */
+	public boolean run(final RecordStore store, final Mode mode, int threads, final int transactionsPerThread, final int recordsPerTransaction, final double rollbackRate, boolean report) throws DBException, InterruptedException
+	{
+		store.delete(new RecordsQuery(Source.From(schema))); // start from an empty table
+		
+		final Set<String> committed = Collections.synchronizedSet(new HashSet<String>());
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		final BlockingQueue<FutureTask<Boolean>> writerQueue = new LinkedBlockingQueue<FutureTask<Boolean>>();
+		Thread[] writers = new Thread[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			final int threadNo = t;
+			writers[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Random random = new Random(threadNo);
+					try
+					{
+						startSignal.await();
+						for(int transactionNo = 0; transactionNo < transactionsPerThread; transactionNo++)
+						{
+							final int transactionNoFinal = transactionNo;
+							final boolean rollback = random.nextDouble() < rollbackRate;
+							boolean done;
+							if(mode == Mode.WRITER_QUEUE)
+							{
+								FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>()
+								{
+									@Override
+									public Boolean call() throws Exception
+									{
+										return runTransaction(store, threadNo, transactionNoFinal, recordsPerTransaction, rollback, failures);
+									}
+								});
+								writerQueue.put(task);
+								done = task.get(); // wait for the transaction to be run by the store's thread
+							}
+							else if(mode == Mode.EXTERNALLY_SYNCHRONISED)
+								synchronized(store)
+								{
+									done = runSynchronisedTransaction(store, threadNo, transactionNo, recordsPerTransaction, rollback, failures);
+								}
+							else
+								done = runTransaction(store, threadNo, transactionNo, recordsPerTransaction, rollback, failures);
+							if(done)
+								committed.add(getKey(threadNo, transactionNo));
+						}
+					}
+					catch(Exception e)
+					{
+						failures.add(Thread.currentThread().getName() + " failed: " + e.toString());
+					}
+				}
+			}, getClass().getSimpleName() + "-" + threadNo);
+			writers[t].start();
+		}
+		long startNS = System.nanoTime();
+		startSignal.countDown();
+		if(mode == Mode.WRITER_QUEUE)
+		{	// Run the queued transactions on this thread until all writers are done:
+			while(isAnyAlive(writers) || !writerQueue.isEmpty())
+			{
+				FutureTask<Boolean> task = writerQueue.poll(WRITER_QUEUE_POLL_MS, TimeUnit.MILLISECONDS);
+				if(task != null)
+					task.run();
+			}
+		}
+		for(Thread writer : writers)
+			writer.join();
+		long durationNS = System.nanoTime() - startNS;
+		
+		// Check that the store holds exactly the records of the committed transactions:
+		Map<String, Integer> recordCounts = new HashMap<String, Integer>();
+		for(Record record : store.retrieveRecords(schema))
+		{
+			String key = getKey(threadColumn.retrieveValue(record).intValue(), transactionColumn.retrieveValue(record).intValue());
+			if(!committed.contains(key))
+				failures.add("Store holds record(s) of transaction " + key + ", which was rolled back");
+			Integer count = recordCounts.get(key);
+			recordCounts.put(key, count == null ? 1 : count + 1);
+		}
+		for(String key : committed)
+		{
+			Integer count = recordCounts.get(key);
+			if(count == null || count != recordsPerTransaction)
+				failures.add("Store holds " + (count == null ? 0 : count) + " records of committed transaction " + key + ", expected " + recordsPerTransaction);
+		}
+		
+		// Report:
+		if(!report)
+			return failures.isEmpty();
+		int transactions = threads * transactionsPerThread;
+		double seconds = durationNS / 1000000000.0d;
+		out.println(String.format(	"%s: %d threads, %d transactions (%d committed) of %d records in %.3fs: %.1f transactions/s, %.1f records/s, %s",
+									mode.name(),
+									threads,
+									transactions,
+									committed.size(),
+									recordsPerTransaction,
+									seconds,
+									transactions / seconds,
+									transactions * recordsPerTransaction / seconds,
+									failures.isEmpty() ? "isolation OK" : failures.size() + " isolation failure(s)"));
+		synchronized(failures)
+		{
+			for(String failure : failures.subList(0, Math.min(failures.size(), MAX_REPORTED_FAILURES)))
+				out.println("\t" + failure);
+		}
+		return failures.isEmpty();
+	}
+	
+	/**
+	 * Runs a transaction using a {@link Transaction} handle.
+	 * 
+	 * @return whether or not the transaction was committed
+	 */
+	private boolean runTransaction(RecordStore store, int threadNo, int transactionNo, int recordsPerTransaction, boolean rollback, List<String> failures) throws DBException
+	{
+		Transaction transaction = store.beginTransaction();
+		try
+		{
+			storeRecords(store, threadNo, transactionNo, recordsPerTransaction, failures);
+			if(rollback)
+				transaction.rollback();
+			else
+				transaction.commit();
+			return !rollback;
+		}
+		finally
+		{
+			transaction.close();
+		}
+	}
+	
+	/**
+	 * Runs a transaction using {@link RecordStore#startTransaction()}, {@link RecordStore#commitTransaction()} & {@link RecordStore#rollbackTransaction()}.
+	 * The caller must synchronise on the store.
+	 * 
+	 * @return whether or not the transaction was committed
+	 */
+	private boolean runSynchronisedTransaction(RecordStore store, int threadNo, int transactionNo, int recordsPerTransaction, boolean rollback, List<String> failures) throws DBException
+	{
+		store.startTransaction();
+		try
+		{
+			storeRecords(store, threadNo, transactionNo, recordsPerTransaction, failures);
+		}
+		catch(DBException dbE)
+		{
+			store.rollbackTransaction();
+			throw dbE;
+		}
+		if(rollback)
+			store.rollbackTransaction();
+		else
+			store.commitTransaction();
+		return !rollback;
+	}
+	
+	/**
+	 * Stores the records of a transaction and checks that the transaction sees exactly those records.
+	 */
+	private void storeRecords(RecordStore store, int threadNo, int transactionNo, int recordsPerTransaction, List<String> failures) throws DBException
+	{
+		for(int r = 0; r < recordsPerTransaction; r++)
+		{
+			Record record = schema.createRecord();
+			threadColumn.storeValue(record, threadNo);
+			transactionColumn.storeValue(record, transactionNo);
+			recordColumn.storeValue(record, r);
+			payloadColumn.storeValue(record, "Record " + r + " of transaction " + getKey(threadNo, transactionNo));
+			store.store(record);
+		}
+		int seen = store.retrieveRecords(new RecordsQuery(	Source.From(schema),
+															new EqualityConstraint(threadColumn, Long.valueOf(threadNo)),
+															new EqualityConstraint(transactionColumn, Long.valueOf(transactionNo)))).size();
+		if(seen != recordsPerTransaction)
+			failures.add("Transaction " + getKey(threadNo, transactionNo) + " sees " + seen + " of its own records, expected " + recordsPerTransaction);
+	}
+	
+	private boolean isAnyAlive(Thread[] threads)
+	{
+		for(Thread thread : threads)
+			if(thread.isAlive())
+				return true;
+		return false;
+	}
+	
+	private String getKey(int threadNo, int transactionNo)
+	{
+		return threadNo + ":" + transactionNo;
+	}
+	
+}
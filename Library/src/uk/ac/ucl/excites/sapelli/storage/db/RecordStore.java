@@ -22,14 +22,17 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.locks.ReentrantLock;
 
 import uk.ac.ucl.excites.sapelli.shared.db.Store;
 import uk.ac.ucl.excites.sapelli.shared.db.StoreBackupper;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBConstraintException;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBIterationException;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBPrimaryKeyException;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
@@ -44,6 +47,13 @@ import uk.ac.ucl.excites.sapelli.storage.queries.Source;
  * 
  * Note: Records of internal schemata are not to be stored/retrieved directly. 
  * 
+ * Note: some back-ends confine their connection to the thread that opened the store (sqlite4java connections throw an
+ * exception when used from any other thread). On those all writes, and hence all transactions, must be done on the store's
+ * thread; other threads must hand their writes to it (e.g. through a queue, as in the
+ * {@link uk.ac.ucl.excites.sapelli.storage.benchmark.TransactionStressTest.Mode#WRITER_QUEUE WRITER_QUEUE} mode of
+ * {@link uk.ac.ucl.excites.sapelli.storage.benchmark.TransactionStressTest}). The transaction lock described below only
+ * serialises writers on back-ends which can be used from multiple threads.
+ * 
  * @author mstevens
  */
 public abstract class RecordStore extends Store
@@ -52,16 +62,38 @@ public abstract class RecordStore extends Store
 	// STATIC -----------------------------------------------------------------
 	static public final String DATABASE_NAME_SUFFIX = "-RecordStore";
 	static public final String BACKUP_SUFFIX = "_Backup_"; // to be followed by a timestamp
+	static public final int DEFAULT_ITERATION_PAGE_SIZE = 1000;
 	
 	// DYNAMIC ----------------------------------------------------------------
 	protected StorageClient client;
 	
 	/**
 	 * Few DBMSs support nested transactions, but this counter allows us to simulate them,
-	 * which enables us to keep code that deals with transactions simpler. 
+	 * which enables us to keep code that deals with transactions simpler.
+	 * Only accessed by the thread holding the {@link #transactionLock}.
 	 */
 	private int openTransactions = 0;
 	
+	/**
+	 * Set when a nested transaction was rolled back by an implementation which cannot do so without also discarding the
+	 * changes of the enclosing transaction(s), see {@link #markRollbackOnly()}. Cleared when the outer-most transaction ends.
+	 * Only accessed by the thread holding the {@link #transactionLock}.
+	 */
+	private boolean rollbackOnly = false;
+	
+	/**
+	 * Held by the thread which owns the currently open transaction(s), and for the duration of single write operations
+	 * that are performed outside of a transaction. This confines each transaction to the thread that opened it, such
+	 * that concurrent writers are serialised at transaction granularity, instead of silently joining each other's transaction.
+	 * 
+	 * A single lock per store is deliberate: every back-end writes through a single connection (SQLite allows one writer per
+	 * database file at a time, and DB4O has a single implicit transaction per ObjectContainer), so transactions of different
+	 * threads could not run concurrently anyway. Finer-grained locks would only make them fail (e.g. with SQLITE_BUSY) or share
+	 * a transaction instead of waiting. Reads do not take the lock. Isolation and throughput are checked by
+	 * {@link uk.ac.ucl.excites.sapelli.storage.benchmark.TransactionStressTest}.
+	 */
+	private final ReentrantLock transactionLock = new ReentrantLock();
+	
 	/**
 	 * {@link Stack} with {@link List}s of {@link RollbackTask}s to execute upon roll-back of transaction(s)
 	 */
@@ -78,18 +110,21 @@ public abstract class RecordStore extends Store
 	}
 
 	/**
-	 * Starts a new transaction.
+	 * Starts a new transaction, bound to the calling thread.
+	 * If another thread has an open transaction this method blocks until that transaction has been committed or rolled back.
 	 * 
 	 * @throws DBException
 	 */
 	public void startTransaction() throws DBException
 	{
+		transactionLock.lock();
 		try
 		{
 			doStartTransaction();
 		}
 		catch(DBException dbE)
 		{
+			transactionLock.unlock();
 			throw dbE;
 		}
 		openTransactions++; // !!!
@@ -99,6 +134,20 @@ public abstract class RecordStore extends Store
 	
 	protected abstract void doStartTransaction() throws DBException;
 	
+	/**
+	 * Starts a new transaction and returns a handle to it. The handle can only be used by the calling thread.
+	 * If another thread has an open transaction this method blocks until that transaction has been committed or rolled back.
+	 * 
+	 * @return the transaction handle
+	 * @throws DBException
+	 * @see Transaction
+	 */
+	public Transaction beginTransaction() throws DBException
+	{
+		startTransaction();
+		return new Transaction(this, openTransactions);
+	}
+	
 	/**
 	 * Add task to be executed upon roll-back of (all) open transaction(s).
 	 * This can be used to perform in memory (as in non-DB) operations to make the (Java) runtime state reflect
@@ -133,13 +182,21 @@ public abstract class RecordStore extends Store
 	
 	/**
 	 * Commits the current transaction.
-
+	 * 
+	 * If the current transaction is the outer-most one and it has been marked as rollback-only (see {@link #markRollbackOnly()})
+	 * it is rolled back instead and a {@link DBException} is thrown, so that the caller learns none of its changes were kept.
+	 * 
 	 * @throws DBException
 	 */
 	public void commitTransaction() throws DBException
 	{
-		if(openTransactions > 0)
+		if(isInTransaction())
 		{
+			if(rollbackOnly && openTransactions == 1)
+			{
+				rollbackTransaction();
+				throw new DBException("Transaction was rolled back because a nested transaction was rolled back and " + getClass().getSimpleName() + " cannot do so on its own.");
+			}
 			try
 			{
 				doCommitTransaction();
@@ -159,6 +216,8 @@ public abstract class RecordStore extends Store
 				if(isInTransaction() && !tasks.isEmpty())
 					addRollbackTasks(tasks); // move task(s) to outer-more transaction
 			}
+			
+			transactionLock.unlock();
 		}
 		//else
 		//	System.err.println("Warning: there is no open transaction to commit!");
@@ -175,46 +234,84 @@ public abstract class RecordStore extends Store
 	{
 		//if(openTransactions == 0)
 		//	System.err.println("Warning: there is no open transaction to roll back!");
-		while(openTransactions > 0)
+		while(isInTransaction())
 			rollbackTransaction();
 	}
 	
 	/**
-	 * Rolls back the current transaction.
+	 * Rolls back the current (i.e. inner-most) transaction.
+	 * Implementations which only simulate nesting cannot roll back a nested transaction on its own. Instead of discarding the
+	 * changes of the enclosing transaction(s) while those remain open they mark the outer-most transaction as rollback-only
+	 * (see {@link #markRollbackOnly()}), so committing it will fail and none of the changes are kept.
 	 * 
 	 * @throws DBException
 	 */
-	private void rollbackTransaction() throws DBException
+	public void rollbackTransaction() throws DBException
 	{
-		if(openTransactions <= 0)
+		if(!isInTransaction())
 			return; // System.err.println("Warning: there is no open transaction to roll back!");
-		// Perform actual roll-back:
-		doRollbackTransaction();
-		// Reduce number of open transactions:
-		openTransactions--;
-		// Run RollbackTasks associated with the rolled-back transaction:
-		if(rollbackTasks != null)
-			for(RollbackTask task : rollbackTasks.pop())
-				task.run();
+		try
+		{
+			// Perform actual roll-back:
+			doRollbackTransaction();
+		}
+		finally
+		{	// Even if the roll-back failed the transaction has ended, so the lock must be released:
+			// Reduce number of open transactions:
+			openTransactions--;
+			if(openTransactions == 0)
+				rollbackOnly = false;
+			try
+			{
+				// Run RollbackTasks associated with the rolled-back transaction:
+				if(rollbackTasks != null)
+					for(RollbackTask task : rollbackTasks.pop())
+						task.run();
+			}
+			finally
+			{
+				transactionLock.unlock();
+			}
+		}
 	}
 	
 	protected abstract void doRollbackTransaction() throws DBException;
+	
+	/**
+	 * To be called by implementations from {@link #doRollbackTransaction()} when a nested transaction cannot be rolled back
+	 * without also discarding the changes of the enclosing transaction(s). The outer-most transaction will then be rolled
+	 * back instead of committed, see {@link #commitTransaction()}.
+	 */
+	protected void markRollbackOnly()
+	{
+		if(isInTransaction())
+			rollbackOnly = true;
+	}
+	
+	/**
+	 * @return whether or not the calling thread's transaction has been marked as rollback-only, meaning committing it will fail
+	 */
+	public boolean isRollbackOnly()
+	{
+		return isInTransaction() && rollbackOnly;
+	}
 
 	/**
-	 * @return whether or not there is an open transaction
+	 * @return whether or not the calling thread has an open transaction
 	 */
 	public boolean isInTransaction()
 	{
-		return openTransactions > 0;
+		return transactionLock.isHeldByCurrentThread() && openTransactions > 0;
 	}
 	
 	/**
-	 * @return the number of currently open (possibly simulated) transactions
+	 * @return the number of (possibly simulated) transactions currently opened by the calling thread
 	 */
 	protected int numberOfOpenTransactions()
 	{
-		return openTransactions;
+		return transactionLock.isHeldByCurrentThread() ? openTransactions : 0;
 	}
+
 	
 	/**
 	 * Verifies if a given record can be stored.
@@ -225,13 +322,14 @@ public abstract class RecordStore extends Store
 	public boolean isStorable(Record record)
 	{
 		return 	record != null &&					// obviously it makes no sense to store null records
-				!record.getSchema().isInternal();	// records of "internal" schemata cannot be stored directly
+				!record.getSchema().isInternal() &&	// records of "internal" schemata cannot be stored directly
+				!record.isPartial();				// partial records (retrieved with a projection) would overwrite the missing values
 	}
 	
 	/**
 	 * Stores a single record, if it already exists it is updated.
-	 * Note that this method does not start a new transaction. If this is a desired the client code should take care of that by first calling {@link #startTransaction()}.
-	 * However, if an error occurs any open transaction will be rolled back!
+	 * The operation is performed in its own (possibly nested) transaction, so if an error occurs only that transaction is rolled back,
+	 * leaving any enclosing transaction (e.g. a batch started by the client code) open (see {@link #rollbackTransaction()}).
 	 * 
 	 * @param record - the record to store or update; records of internal schemata will be rejected
 	 * @throws DBConstraintException when a table/index constraint is violated
@@ -244,15 +342,22 @@ public abstract class RecordStore extends Store
 		if(!isStorable(record))
 			throw new IllegalArgumentException(String.format("Record (%s) cannot be stored!", record.toString(false)));
 		Boolean insert = null;
+		startTransaction(); // also makes sure we don't join another thread's transaction
 		try
 		{
 			insert = doStore(record);
 		}
 		catch(DBException e)
 		{
-			rollbackTransactions(); // !!!
+			rollbackTransaction(); // only the inner-most one!
 			throw e;
 		}
+		catch(RuntimeException e)
+		{
+			rollbackTransaction(); // only the inner-most one!
+			throw e;
+		}
+		commitTransaction();
 		// Inform client:
 		if(insert == null)
 			return; // record was unchanged
@@ -264,8 +369,8 @@ public abstract class RecordStore extends Store
 	
 	/**
 	 * Insert a single record, if it already exists a DuplicateException will be thrown.
-	 * Note that this method does not start a new transaction. If this is a desired the client code should take care of that by first calling {@link #startTransaction()}.
-	 * However, if an error occurs any open transaction will be rolled back!
+	 * The operation is performed in its own (possibly nested) transaction, so if an error occurs only that transaction is rolled back,
+	 * leaving any enclosing transaction (e.g. a batch started by the client code) open (see {@link #rollbackTransaction()}).
 	 * 
 	 * @param record
 	 * @throws DBPrimaryKeyException when the record already exists
@@ -279,15 +384,22 @@ public abstract class RecordStore extends Store
 		if(!isStorable(record))
 			throw new IllegalArgumentException(String.format("Record (%s) cannot be inserted!", record.toString(false)));
 		boolean inserted = false;
+		startTransaction(); // also makes sure we don't join another thread's transaction
 		try
 		{
 			inserted = doInsert(record);
 		}
 		catch(DBException e)
 		{
-			rollbackTransactions(); // !!!
+			rollbackTransaction(); // only the inner-most one!
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			rollbackTransaction(); // only the inner-most one!
 			throw e;
 		}
+		commitTransaction();
 		// Inform client if a real insert happened:
 		if(inserted)
 			client.recordInserted(record);
@@ -325,12 +437,13 @@ public abstract class RecordStore extends Store
 		r = 0;
 		for(Record record : records)
 		{
-			if(insert[r] == null)
-				return; // record was unchanged
-			else if(insert[r])
-				client.recordInserted(record);
-			else
-				client.recordUpdated(record);
+			if(insert[r] != null) // null means record was unchanged
+			{
+				if(insert[r])
+					client.recordInserted(record);
+				else
+					client.recordUpdated(record);
+			}
 			r++;
 		}
 	}
@@ -394,10 +507,111 @@ public abstract class RecordStore extends Store
 	 * Retrieve records by query
 	 * 
 	 * @param query
-	 * @return a list of records, possibly empty, never null
+	 * @return a list of records, possibly empty, never null; the records will be partial if the query has a projection (see {@link RecordsQuery#project(java.util.Collection)})
 	 */
 	public abstract List<Record> retrieveRecords(RecordsQuery query);
 	
+	/**
+	 * Iterate over the records resulting from the given query, using the default page size.
+	 * 
+	 * @param query
+	 * @return an iterator over the resulting records, never null
+	 * @see #iterateRecords(RecordsQuery, int)
+	 */
+	public Iterator<Record> iterateRecords(RecordsQuery query)
+	{
+		return iterateRecords(query, DEFAULT_ITERATION_PAGE_SIZE);
+	}
+	
+	/**
+	 * Iterate over the records resulting from the given query.
+	 * Subclasses may override this method to retrieve records in pages of (at most) the given size, as the iteration
+	 * progresses, such that not all resulting records have to be held in memory at once. The default implementation
+	 * simply iterates over the list returned by {@link #retrieveRecords(RecordsQuery)}.
+	 * Records may be retrieved in a different order than {@link #retrieveRecords(RecordsQuery)} would return them
+	 * in, unless the query has a defined {@link RecordsQuery#getOrder() order}.
+	 * If retrieving a page fails the iterator's {@code hasNext()} or {@code next()} method throws a {@link DBIterationException},
+	 * rather than ending the iteration early, so callers can tell an incomplete iteration from a complete one.
+	 * 
+	 * @param query
+	 * @param pageSize maximum number of records to retrieve at once (> 0)
+	 * @return an iterator over the resulting records, never null
+	 */
+	public Iterator<Record> iterateRecords(RecordsQuery query, int pageSize)
+	{
+		return retrieveRecords(query).iterator();
+	}
+
+	/**
+	 * Whether or not this RecordStore keeps track of changes to records, see {@link #getChangeSequence(Schema)}.
+	 * The default implementation returns {@code false}.
+	 *
+	 * @return
+	 */
+	public boolean hasChangeTracking()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns the current change sequence for the given schema. For each schema the RecordStore keeps a monotonically increasing
+	 * sequence number which is incremented, and assigned to the affected record, whenever a record is inserted or updated.
+	 * Note that deletions are not tracked.
+	 *
+	 * @param schema
+	 * @return the current change sequence number, or 0 if no records of the schema have ever been stored
+	 * @throws DBException
+	 * @throws UnsupportedOperationException when the RecordStore does not track changes
+	 * @see #hasChangeTracking()
+	 */
+	public long getChangeSequence(Schema schema) throws DBException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not track changes");
+	}
+
+	/**
+	 * Iterate over the records of the given schema which were inserted or last updated after the given change sequence number
+	 * (exclusive) and up to the other (inclusive), in the order in which they were changed.
+	 *
+	 * If retrieving records fails the iterator throws a {@link DBIterationException}, as for {@link #iterateRecords(RecordsQuery, int)}.
+	 *
+	 * @param schema
+	 * @param afterSequence
+	 * @param upToSequence
+	 * @return an iterator over the changed records, never null
+	 * @throws DBException
+	 * @throws UnsupportedOperationException when the RecordStore does not track changes
+	 * @see #getChangeSequence(Schema)
+	 */
+	public ChangedRecordIterator iterateChangedRecords(Schema schema, long afterSequence, long upToSequence) throws DBException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not track changes");
+	}
+
+	/**
+	 * @param destination - identifies the destination of (incremental) exports
+	 * @param schema
+	 * @return the change sequence number up to which records of the given schema have been exported to the given destination, or 0 if none have been
+	 * @throws DBException
+	 * @throws UnsupportedOperationException when the RecordStore does not track changes
+	 */
+	public long getExportWatermark(String destination, Schema schema) throws DBException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not track changes");
+	}
+
+	/**
+	 * @param destination - identifies the destination of (incremental) exports
+	 * @param schema
+	 * @param sequence - the change sequence number up to which records of the given schema have been exported to the given destination
+	 * @throws DBException
+	 * @throws UnsupportedOperationException when the RecordStore does not track changes
+	 */
+	public void setExportWatermark(String destination, Schema schema, long sequence) throws DBException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not track changes");
+	}
+	
 	/**
 	 * Retrieve a single record by SingleRecordQuery.
 	 * 
@@ -408,23 +622,30 @@ public abstract class RecordStore extends Store
 
 	/**
 	 * Deletes a single record.
-	 * Note that this method does not start a new transaction. If this is a desired the client code should take care of that by first calling {@link #startTransaction()}.
-	 * However, if an error occurs any open transaction will be rolled back!
+	 * The operation is performed in its own (possibly nested) transaction, so if an error occurs only that transaction is rolled back,
+	 * leaving any enclosing transaction (e.g. a batch started by the client code) open (see {@link #rollbackTransaction()}).
 	 * 
 	 * @param record - the record to delete
 	 * @throws DBException
 	 */
 	public void delete(Record record) throws DBException
 	{
+		startTransaction(); // also makes sure we don't join another thread's transaction
 		try
 		{
 			doDelete(record);
 		}
 		catch(DBException e)
 		{
-			rollbackTransactions(); // !!!
+			rollbackTransaction(); // only the inner-most one!
 			throw e;
 		}
+		catch(RuntimeException e)
+		{
+			rollbackTransaction(); // only the inner-most one!
+			throw e;
+		}
+		commitTransaction();
 		// Inform client:
 		client.recordDeleted(record);
 	}
@@ -549,9 +770,17 @@ public abstract class RecordStore extends Store
 	@Override
 	public void backup(StoreBackupper backuper, File destinationFolder) throws DBException
 	{
-		if(isInTransaction())
-			throw new DBException("Cannot back-up database due to uncommited transaction!");
-		doBackup(backuper, destinationFolder);
+		transactionLock.lock(); // wait for other threads' transactions to end
+		try
+		{
+			if(isInTransaction())
+				throw new DBException("Cannot back-up database due to uncommited transaction!");
+			doBackup(backuper, destinationFolder);
+		}
+		finally
+		{
+			transactionLock.unlock();
+		}
 	}
 	
 	/**
@@ -566,6 +795,21 @@ public abstract class RecordStore extends Store
 	 */
 	public abstract boolean hasFullIndexSupport();
 	
+	/**
+	 * Iterator over changed records, see {@link RecordStore#iterateChangedRecords(Schema, long, long)}
+	 * 
+	 * @author mstevens
+	 */
+	public interface ChangedRecordIterator extends Iterator<Record>
+	{
+		
+		/**
+		 * @return the change sequence number of the record last returned by {@link #next()}, or the lower bound of the iteration if no record has been returned yet
+		 */
+		public long getChangeSequence();
+		
+	}
+	
 	/**
 	 * A task to execute upon roll-back of open transaction(s)
 	 * 
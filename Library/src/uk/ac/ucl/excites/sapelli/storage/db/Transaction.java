@@ -0,0 +1,152 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.db;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+
+/**
+ * Handle on a (possibly nested) transaction of a {@link RecordStore}, obtained through {@link RecordStore#beginTransaction()}.
+ * 
+ * A transaction is confined to the thread that began it: other threads which try to open a transaction on (or write to)
+ * the same store are blocked until it has ended, and using the handle from another thread results in an {@link IllegalStateException}.
+ * Nested transactions must be ended before the transactions enclosing them.
+ * On back-ends whose connection is confined to the thread that opened the store (such as the sqlite4java one) transactions
+ * can only be begun by that thread, see {@link RecordStore}.
+ * 
+ * Typical usage:
+ * <pre>
+ * Transaction transaction = store.beginTransaction();
+ * try
+ * {
+ * 	// store/delete records...
+ * 	transaction.commit();
+ * }
+ * finally
+ * {
+ * 	transaction.close(); // rolls back if not committed
+ * }
+ * </pre>
+ * 
+ * @author mstevens
+ */
+public final class Transaction
+{
+
+	private final RecordStore store;
+	private final Thread owner;
+	private final int depth;
+	private boolean ended = false;
+	
+	/**
+	 * @param store
+	 * @param depth the number of transactions opened by the owner thread, including this one
+	 */
+	Transaction(RecordStore store, int depth)
+	{
+		this.store = store;
+		this.owner = Thread.currentThread();
+		this.depth = depth;
+	}
+	
+	/**
+	 * Commits the transaction.
+	 * 
+	 * @throws DBException when committing failed, or when the transaction was rolled back instead because it was marked as rollback-only (see {@link RecordStore#rollbackTransaction()})
+	 * @throws IllegalStateException when the transaction has already ended, is used from another thread, or has nested transactions which are still open
+	 */
+	public void commit() throws DBException, IllegalStateException
+	{
+		checkUsable();
+		store.commitTransaction();
+		ended = true;
+	}
+	
+	/**
+	 * Rolls back the transaction. Any enclosing transaction(s) remain open.
+	 * 
+	 * @throws DBException
+	 * @throws IllegalStateException when the transaction has already ended, is used from another thread, or has nested transactions which are still open
+	 */
+	public void rollback() throws DBException, IllegalStateException
+	{
+		checkUsable();
+		store.rollbackTransaction();
+		ended = true;
+	}
+	
+	/**
+	 * Rolls back the transaction unless it has already been committed or rolled back.
+	 * Meant to be called from a finally block.
+	 * 
+	 * @throws DBException
+	 * @throws IllegalStateException when the transaction is still open but used from another thread, or has nested transactions which are still open
+	 */
+	public void close() throws DBException, IllegalStateException
+	{
+		if(!ended)
+		{
+			if(Thread.currentThread() == owner && store.numberOfOpenTransactions() < depth)
+				ended = true; // already rolled back by the store (e.g. due to a failed write)
+			else
+				rollback();
+		}
+	}
+	
+	/**
+	 * @return whether or not the transaction is still open
+	 */
+	public boolean isOpen()
+	{
+		return !ended;
+	}
+	
+	/**
+	 * @return the thread to which the transaction is confined
+	 */
+	public Thread getOwner()
+	{
+		return owner;
+	}
+	
+	/**
+	 * @return the store the transaction belongs to
+	 */
+	public RecordStore getStore()
+	{
+		return store;
+	}
+	
+	private void checkUsable() throws IllegalStateException
+	{
+		if(ended)
+			throw new IllegalStateException("Transaction has already ended");
+		if(Thread.currentThread() != owner)
+			throw new IllegalStateException("Transaction belongs to thread " + owner.getName() + " and cannot be used from thread " + Thread.currentThread().getName());
+		int open = store.numberOfOpenTransactions();
+		if(open < depth)
+		{
+			ended = true;
+			throw new IllegalStateException("Transaction has already been rolled back (e.g. due to a failed write)");
+		}
+		if(open > depth)
+			throw new IllegalStateException("Nested transaction(s) must be ended first");
+	}
+
+}
@@ -27,11 +27,16 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBConstraintException;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBIterationException;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBPrimaryKeyException;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
 import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TransactionalStringBuilder;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
@@ -53,6 +58,7 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.LineColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.columns.LocationColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.columns.OrientationColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.columns.PolygonColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.AutoIncrementingPrimaryKey;
 import uk.ac.ucl.excites.sapelli.storage.model.indexes.Index;
 import uk.ac.ucl.excites.sapelli.storage.queries.ExtremeValueRecordQuery;
 import uk.ac.ucl.excites.sapelli.storage.queries.FirstRecordQuery;
@@ -111,7 +117,7 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	{
 		super(client, true); // make use of roll-back tasks
 		this.version = version;
-		this.tables = new HashMap<RecordReference, STable>();
+		this.tables = new ConcurrentHashMap<RecordReference, STable>(); // concurrent because tables may also be looked up by reading threads
 		this.valuePlaceHolder = valuePlaceHolder;
 	}
 	
@@ -425,7 +431,15 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	protected Boolean doStore(Record record) throws DBException, IllegalStateException
 	{
-		return getTable(record.getSchema(), true).store(record, true); // getTable() will create table in db if it is not there
+		Timer.Context timing = Metrics.Time("storage.store");
+		try
+		{
+			return getTable(record.getSchema(), true).store(record, true); // getTable() will create table in db if it is not there
+		}
+		finally
+		{
+			timing.stop();
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -434,20 +448,36 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	protected boolean doInsert(Record record) throws DBPrimaryKeyException, DBConstraintException, DBException, IllegalStateException
 	{
-		Boolean inserted = getTable(record.getSchema(), true).store(record, false); // getTable() will create table in db if it is not there
-		if(inserted == null)
-			return false; // record was already stored with identical values
-		if(inserted) // new record was inserted
-			return true;
-		else // record existed and would have been UPDATEd if it were allowed 
-			throw new DBPrimaryKeyException("This record already exists in the record store (with different values).");
+		Timer.Context timing = Metrics.Time("storage.insert");
+		try
+		{
+			Boolean inserted = getTable(record.getSchema(), true).store(record, false); // getTable() will create table in db if it is not there
+			if(inserted == null)
+				return false; // record was already stored with identical values
+			if(inserted) // new record was inserted
+				return true;
+			else // record existed and would have been UPDATEd if it were allowed 
+				throw new DBPrimaryKeyException("This record already exists in the record store (with different values).");
+		}
+		finally
+		{
+			timing.stop();
+		}
 	}
 
 	@Override
 	protected boolean doDelete(Record record) throws DBException
 	{
-		STable table = getTable(record.getSchema(), false); // no need to create the table in the db if it isn't there!
-		return table.isInDB() && table.delete(record);
+		Timer.Context timing = Metrics.Time("storage.delete");
+		try
+		{
+			STable table = getTable(record.getSchema(), false); // no need to create the table in the db if it isn't there!
+			return table.isInDB() && table.delete(record);
+		}
+		finally
+		{
+			timing.stop();
+		}
 	}
 	
 	/**
@@ -500,30 +530,38 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	public List<Record> retrieveRecords(RecordsQuery query)
 	{
-		List<Record> resultAcc = null;
-		// Run subqueries for each schema in the query, or all known schemata (if the query is for "any" schema):
-		for(Schema s : getSchemata(query.getSource()))
+		Timer.Context timing = Metrics.Time("storage.retrieveRecords");
+		try
 		{
-			try
+			List<Record> resultAcc = null;
+			// Run subqueries for each schema in the query, or all known schemata (if the query is for "any" schema):
+			for(Schema s : getSchemata(query.getSource()))
 			{
-				STable table = getTable(s, false);
-				if(!table.isInDB())
-					continue; // table does no exist in DB, so there are no records to retrieve
-				List<Record> subResult = table.select(query);
-				if(!subResult.isEmpty())
+				try
 				{
-					if(resultAcc == null)
-						resultAcc = subResult;
-					else
-						resultAcc.addAll(subResult);
+					STable table = getTable(s, false);
+					if(!table.isInDB())
+						continue; // table does no exist in DB, so there are no records to retrieve
+					List<Record> subResult = table.select(query);
+					if(!subResult.isEmpty())
+					{
+						if(resultAcc == null)
+							resultAcc = subResult;
+						else
+							resultAcc.addAll(subResult);
+					}
+				}
+				catch(DBException dbE)
+				{
+					dbE.printStackTrace(System.err);
 				}
 			}
-			catch(DBException dbE)
-			{
-				dbE.printStackTrace(System.err);
-			}
+			return resultAcc != null ? resultAcc : Collections.<Record> emptyList();
+		}
+		finally
+		{
+			timing.stop();
 		}
-		return resultAcc != null ? resultAcc : Collections.<Record> emptyList();
 	}
 
 	/* (non-Javadoc)
@@ -532,30 +570,56 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	@Override
 	public Record retrieveRecord(SingleRecordQuery query)
 	{
-		List<Record> candidates = null;
-		// Run subqueries for each schema in the query, or all known schemata (if the query is for "any" schema):
-		RecordsQuery recsQuery = query.getRecordsQuery();
-		for(Schema s : getSchemata(recsQuery.getSource()))
+		Timer.Context timing = Metrics.Time("storage.retrieveRecord");
+		try
 		{
-			try
+			List<Record> candidates = null;
+			// Run subqueries for each schema in the query, or all known schemata (if the query is for "any" schema):
+			RecordsQuery recsQuery = query.getRecordsQuery();
+			for(Schema s : getSchemata(recsQuery.getSource()))
 			{
-				STable table = getTable(s, false);
-				if(!table.isInDB())
-					continue; // table does no exist in DB, so there are no records to retrieve
-				Record candidate = table.select(query);
-				if(candidate != null)
+				try
 				{
-					if(candidates == null)
-						candidates = new ArrayList<Record>();
-					candidates.add(candidate);
+					STable table = getTable(s, false);
+					if(!table.isInDB())
+						continue; // table does no exist in DB, so there are no records to retrieve
+					Record candidate = table.select(query);
+					if(candidate != null)
+					{
+						if(candidates == null)
+							candidates = new ArrayList<Record>();
+						candidates.add(candidate);
+					}
+				}
+				catch(DBException dbE)
+				{
+					dbE.printStackTrace(System.err);
 				}
 			}
-			catch(DBException dbE)
-			{
-				dbE.printStackTrace(System.err);
-			}
+			return query.execute(candidates, false); // reduce to 1 record (execute() will return null when passed a null list)
+		}
+		finally
+		{
+			timing.stop();
 		}
-		return query.execute(candidates, false); // reduce to 1 record (execute() will return null when passed a null list)
+	}
+	
+	/**
+	 * Iterates over the query results one schema at a time. Records of schemata with an {@link AutoIncrementingPrimaryKey} are
+	 * retrieved in pages using "keyset pagination" on the key column (i.e. "... WHERE key > lastKey ORDER BY key LIMIT pageSize"),
+	 * such that no more than pageSize of them are held in memory at once. Records of other schemata are retrieved one schema at a time.
+	 * If the query has a defined order or limit the records are retrieved all at once, using {@link #retrieveRecords(RecordsQuery)}.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#iterateRecords(uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery, int)
+	 */
+	@Override
+	public Iterator<Record> iterateRecords(RecordsQuery query, int pageSize)
+	{
+		if(pageSize < 1)
+			throw new IllegalArgumentException("Page size must be at least 1");
+		if(query.isLimited() || query.getOrder().isDefined())
+			return retrieveRecords(query).iterator();
+		return new PagingRecordIterator(query, pageSize);
 	}
 	
 	protected abstract String getNullString();
@@ -584,6 +648,97 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		return null; // this should never happen
 	}
 	
+	/**
+	 * Iterator which retrieves the results of a {@link RecordsQuery} schema per schema and, where possible, page per page.
+	 * 
+	 * @author mstevens
+	 * @see SQLRecordStore#iterateRecords(RecordsQuery, int)
+	 */
+	private class PagingRecordIterator implements Iterator<Record>
+	{
+		
+		private final RecordsQuery query;
+		private final int pageSize;
+		private final Iterator<Schema> schemata;
+		
+		private Schema currentSchema;
+		private IntegerColumn currentKeyColumn; // null if records of the current schema cannot be paged
+		private Long lastKey;
+		private boolean lastPage = true;
+		private Iterator<Record> page = Collections.<Record> emptyList().iterator();
+		
+		public PagingRecordIterator(RecordsQuery query, int pageSize)
+		{
+			this.query = query;
+			this.pageSize = pageSize;
+			this.schemata = getSchemata(query.getSource()).iterator();
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while(!page.hasNext())
+			{
+				if(lastPage)
+				{	// Move on to next schema:
+					if(!schemata.hasNext())
+						return false;
+					currentSchema = schemata.next();
+					currentKeyColumn = currentSchema.getAutoIncrementingPrimaryKeyColumn();
+					lastKey = null;
+				}
+				page = retrieveNextPage().iterator();
+			}
+			return true;
+		}
+		
+		/**
+		 * @return the next page of records
+		 * @throws DBIterationException when the page could not be retrieved, iteration cannot continue (but the caller must know that it ended early)
+		 */
+		private List<Record> retrieveNextPage() throws DBIterationException
+		{
+			lastPage = true;
+			try
+			{
+				STable table = getTable(currentSchema, false);
+				if(!table.isInDB())
+					return Collections.<Record> emptyList(); // table does no exist in DB, so there are no records to retrieve
+				if(currentKeyColumn == null)
+					return table.select(query); // retrieve all records of the schema at once
+				List<Record> records = table.select(new RecordsQuery(	Source.From(currentSchema),
+																		Order.AscendingBy(currentKeyColumn),
+																		pageSize,
+																		query.getConstraints(),
+																		lastKey != null ? new RuleConstraint(currentKeyColumn, Comparison.GREATER, lastKey) : null)
+														.project(query.getProjection())); // keep the projection (primary key values are always retrieved)
+				if(!records.isEmpty())
+					lastKey = currentKeyColumn.retrieveValue(records.get(records.size() - 1));
+				lastPage = records.size() < pageSize;
+				return records;
+			}
+			catch(DBException dbE)
+			{
+				throw new DBIterationException(dbE);
+			}
+		}
+		
+		@Override
+		public Record next()
+		{
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return page.next();
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+	}
+	
 	/**
 	 * @author mstevens
 	 *
@@ -1901,6 +2056,9 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 	protected class RecordSelectHelper extends RecordsByConstraintsHelper
 	{
 		
+		private final Set<Column<?>> projection;
+		private final Collection<SColumn> selectedColumns;
+		
 		/**
 		 * @param table
 		 * @param recordQuery
@@ -1909,10 +2067,63 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		{
 			super(table);
 			
+			// Determine which columns to select:
+			this.projection = recordsQuery.getProjection();
+			if(projection == RecordsQuery.NO_PROJECTION)
+				this.selectedColumns = table.sqlColumns.values();
+			else
+			{
+				Set<SColumn> projectedSqlCols = new HashSet<SColumn>();
+				for(Column<?> projCol : projection)
+					addProjectedSQLColumns(projCol, projectedSqlCols);
+				if(table.schema.hasPrimaryKey())
+					for(Column<?> keyPartCol : table.schema.getPrimaryKey().getColumns(false))
+						addProjectedSQLColumns(keyPartCol, projectedSqlCols);
+				// Preserve table column order:
+				List<SColumn> selectedSqlCols = new ArrayList<SColumn>(projectedSqlCols.size());
+				for(SColumn sqlCol : table.sqlColumns.values())
+					if(projectedSqlCols.contains(sqlCol))
+						selectedSqlCols.add(sqlCol);
+				this.selectedColumns = selectedSqlCols;
+			}
+			
 			// Build SELECT query:
-			buildQuery(recordsQuery, "*"); // * = select all columns
+			if(projection == RecordsQuery.NO_PROJECTION)
+				buildQuery(recordsQuery, "*"); // * = select all columns
+			else if(selectedColumns.isEmpty())
+				buildQuery(recordsQuery, "1"); // none of the projected columns is in this table, but we still need the rows (as empty partial records)
+			else
+			{
+				TransactionalStringBuilder colNames = new TransactionalStringBuilder(", ");
+				for(SColumn sqlCol : selectedColumns)
+					colNames.append(sqlCol.name);
+				buildQuery(recordsQuery, colNames.toString());
+			}
 			bldr.append(";", false);
 		}
+		
+		/**
+		 * Adds the SQLColumn(s) corresponding to the given (top-level) column of the table's schema, or to the schema column
+		 * which is compatible with it, to the given set.
+		 * 
+		 * @param projCol
+		 * @param projectedSqlCols
+		 */
+		private void addProjectedSQLColumns(Column<?> projCol, Set<SColumn> projectedSqlCols)
+		{
+			if(table.schema.getValuePosition(projCol) == Schema.UNKNOWN_COLUMN_POSITION)
+				return; // column is not part of this table's schema
+			Column<?> schemaCol = table.schema.getColumn(projCol.getName(), false);
+			List<SColumn> sqlCols = schemaCol instanceof RecordColumn ? table.composite2SqlColumns.get((RecordColumn<?>) schemaCol) : null;
+			if(sqlCols != null)
+				projectedSqlCols.addAll(sqlCols); // all SQLColumns of a composite
+			else
+			{
+				SColumn sqlCol = table.getSQLColumn(schemaCol);
+				if(sqlCol != null)
+					projectedSqlCols.add(sqlCol);
+			}
+		}
 
 		/**
 		 * @param table
@@ -1921,6 +2132,8 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		public RecordSelectHelper(STable table, ExtremeValueRecordQuery extremeValueRecordQuery)
 		{
 			super(table);
+			this.projection = RecordsQuery.NO_PROJECTION; // single record queries always result in complete records
+			this.selectedColumns = table.sqlColumns.values();
 			
 			SColumn extremeValueSqlCol = table.getSQLColumn(extremeValueRecordQuery.getColumnPointer());
 			if(extremeValueSqlCol == null)
@@ -1951,6 +2164,24 @@ public abstract class SQLRecordStore<SRS extends SQLRecordStore<SRS, STable, SCo
 		protected RecordSelectHelper(STable table)
 		{
 			super(table);
+			this.projection = RecordsQuery.NO_PROJECTION;
+			this.selectedColumns = table.sqlColumns.values();
+		}
+		
+		/**
+		 * @return the SQLColumns which are selected by the query, in the order in which they appear in result rows
+		 */
+		public Collection<SColumn> getSelectedColumns()
+		{
+			return selectedColumns;
+		}
+		
+		/**
+		 * @return a new record to store the values of a result row in, partial if the query has a projection
+		 */
+		public Record createRecord()
+		{
+			return projection == RecordsQuery.NO_PROJECTION ? table.schema.createRecord() : table.schema.createPartialRecord(projection);
 		}
 		
 		protected void buildQuery(RecordsQuery recordsQuery, String projection)
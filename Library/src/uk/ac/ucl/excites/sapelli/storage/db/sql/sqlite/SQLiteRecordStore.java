@@ -20,15 +20,18 @@ package uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 
 import uk.ac.ucl.excites.sapelli.shared.db.StoreBackupper;
 import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBIterationException;
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.TimeUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TransactionalStringBuilder;
@@ -41,6 +44,7 @@ import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.types.SQLiteIntegerColumn
 import uk.ac.ucl.excites.sapelli.storage.db.sql.sqlite.types.SQLiteStringColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.ListColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
@@ -75,6 +79,14 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 	 */
 	static public final Pattern identifierPattern = Pattern.compile("[a-zA-Z_]+[0-9a-zA-Z_]*");
 	
+	/**
+	 * Name of the column, added to the tables of all non-meta schemata, which holds the change sequence number of each record.
+	 * It is not mapped to a column of the schema and its value is maintained by triggers, see {@link SQLiteTable#enableChangeTracking()}.
+	 */
+	static public final String CHANGE_SEQUENCE_COLUMN = "_changeSeq";
+	static public final String CHANGE_SEQUENCES_TABLE = "_ChangeSequences";
+	static public final String EXPORT_WATERMARKS_TABLE = "_ExportWatermarks";
+	
 	static public String GetDBFileName(String baseName)
 	{
 		return baseName + DATABASE_NAME_SUFFIX + "." + DATABASE_FILE_EXTENSION;
@@ -94,6 +106,9 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 	
 	// Dynamics---------------------------------------------
 	private final SQLiteTableFactory factory;
+	private final List<SQLiteColumn<?, ?>> tableNameParamCols;
+	private final List<SQLiteColumn<?, ?>> destinationAndTableNameParamCols;
+	private boolean changeTrackingTablesCreated = false;
 	
 	/**
 	 * @param client
@@ -103,6 +118,9 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 	{
 		super(client, version, PARAM_PLACEHOLDER);
 		factory = new SQLiteTableFactory();
+		SQLiteColumn<?, ?> tableNameCol = new SQLiteStringColumn<String>(this, "tableName", null, null, null);
+		tableNameParamCols = Collections.<SQLiteColumn<?, ?>> singletonList(tableNameCol);
+		destinationAndTableNameParamCols = Arrays.<SQLiteColumn<?, ?>> asList(new SQLiteStringColumn<String>(this, "destination", null, null, null), tableNameCol);
 	}
 
 	/* (non-Javadoc)
@@ -116,54 +134,108 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 
 	/**
 	 * In SQlite basic transactions (those controlled with BEGIN...COMMIT/ROLLBACK) cannot
-	 * be nested (for that one needs to use the SAVEPOINT and RELEASE commands, which we won't
-	 * use here). However, for flexibility reasons we will pretend that it is possible (i.e. we
-	 * don't throw an exception if a request arrives to open a 2nd, 3rd, etc. transaction).
+	 * be nested. Therefore only the outer-most transaction is a basic transaction, while nested
+	 * ones are implemented using the SAVEPOINT, RELEASE and ROLLBACK TO commands. This means
+	 * an inner transaction can be rolled back (e.g. when a single record fails to import)
+	 * without affecting the changes made earlier on in the enclosing transaction(s).
 	 * 
 	 * @see <a href="http://sqlite.org/lang_transaction.html">http://sqlite.org/lang_transaction.html</a>
+	 * @see <a href="http://sqlite.org/lang_savepoint.html">http://sqlite.org/lang_savepoint.html</a>
 	 * 
 	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#doStartTransaction()
 	 */
 	@Override
 	protected void doStartTransaction() throws DBException
 	{
-		if(!isInTransaction()) // TODO re-assess this for android/java
-			try
-			{
-				executeSQL("BEGIN TRANSACTION;");
-			}
-			catch(Exception ex)
-			{
-				throw new DBException("Could not open SQLite transaction", ex);
-			}
+		try
+		{
+			if(!isInTransaction())
+				beginOuterTransaction();
+			else
+				executeSQL("SAVEPOINT " + getSavepointName(numberOfOpenTransactions()) + ";");
+		}
+		catch(Exception ex)
+		{
+			throw new DBException("Could not open SQLite transaction", ex);
+		}
 	}
 
 	@Override
 	protected void doCommitTransaction() throws DBException
 	{
-		if(numberOfOpenTransactions() == 1) // higher numbers indicate nested transactions which are simulated
-			try
-			{
-				executeSQL("COMMIT TRANSACTION;");
-			}
-			catch(Exception ex)
-			{
-				throw new DBException("Could not commit SQLite transaction", ex);
-			}
+		try
+		{
+			if(numberOfOpenTransactions() == 1)
+				commitOuterTransaction();
+			else // higher numbers indicate nested transactions, which are implemented as savepoints
+				executeSQL("RELEASE SAVEPOINT " + getSavepointName(numberOfOpenTransactions() - 1) + ";");
+		}
+		catch(Exception ex)
+		{
+			throw new DBException("Could not commit SQLite transaction", ex);
+		}
 	}
 
 	@Override
 	protected void doRollbackTransaction() throws DBException
 	{
-		if(numberOfOpenTransactions() == 1) // higher numbers indicate nested transactions which are simulated
-			try
-			{
-				executeSQL("ROLLBACK TRANSACTION;");
-			}
-			catch(Exception ex)
+		try
+		{
+			if(numberOfOpenTransactions() == 1)
+				rollbackOuterTransaction();
+			else // higher numbers indicate nested transactions, which are implemented as savepoints
 			{
-				throw new DBException("Could not roll-back SQLite transaction", ex);
+				String savepoint = getSavepointName(numberOfOpenTransactions() - 1);
+				executeSQL("ROLLBACK TO SAVEPOINT " + savepoint + ";");
+				executeSQL("RELEASE SAVEPOINT " + savepoint + ";"); // ROLLBACK TO leaves the savepoint on the stack
 			}
+		}
+		catch(Exception ex)
+		{
+			throw new DBException("Could not roll-back SQLite transaction", ex);
+		}
+	}
+	
+	/**
+	 * @param depth nesting depth of the transaction (1 for the first transaction nested within the outer-most one)
+	 * @return the name of the savepoint backing the nested transaction at the given depth
+	 */
+	private String getSavepointName(int depth)
+	{
+		return "sapelli_sp" + depth;
+	}
+	
+	/**
+	 * Begins the outer-most (i.e. non-nested) transaction.
+	 * Subclasses may override this to use a dedicated API rather than raw SQL.
+	 * 
+	 * @throws Exception
+	 */
+	protected void beginOuterTransaction() throws Exception
+	{
+		executeSQL("BEGIN TRANSACTION;");
+	}
+	
+	/**
+	 * Commits the outer-most (i.e. non-nested) transaction.
+	 * Subclasses may override this to use a dedicated API rather than raw SQL.
+	 * 
+	 * @throws Exception
+	 */
+	protected void commitOuterTransaction() throws Exception
+	{
+		executeSQL("COMMIT TRANSACTION;");
+	}
+	
+	/**
+	 * Rolls back the outer-most (i.e. non-nested) transaction.
+	 * Subclasses may override this to use a dedicated API rather than raw SQL.
+	 * 
+	 * @throws Exception
+	 */
+	protected void rollbackOuterTransaction() throws Exception
+	{
+		executeSQL("ROLLBACK TRANSACTION;");
 	}
 	
 	/**
@@ -203,6 +275,153 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 		}
 	}
 	
+	/**
+	 * @param triggerName
+	 * @return whether or not a trigger with the given name exists in the database
+	 * @throws DBException
+	 */
+	protected boolean doesTriggerExist(String triggerName) throws DBException
+	{
+		ISQLiteCursor cursor = null;
+		try
+		{
+			cursor = executeQuery(	"SELECT name FROM sqlite_master WHERE type='trigger' AND name=?;",
+									tableNameParamCols,
+									Collections.<String> singletonList(triggerName));
+			return cursor != null && cursor.hasRow();
+		}
+		finally
+		{
+			if(cursor != null)
+				cursor.close();
+		}
+	}
+	
+	/**
+	 * Creates the tables which hold the per-table change sequence counters and the export watermarks, if they do not exist yet.
+	 * This is only done once per store instance (unless the transaction in which it was done is rolled back).
+	 * 
+	 * @throws DBException
+	 */
+	protected void createChangeTrackingTables() throws DBException
+	{
+		if(changeTrackingTablesCreated)
+			return;
+		if(isInTransaction())
+		{	// this means the creation might be rolled-back...
+			addRollbackTask(new RollbackTask()
+			{
+				@Override
+				public void run() throws DBException
+				{
+					changeTrackingTablesCreated = false; // check again when needed
+				}
+			});
+		}
+		executeSQL("CREATE TABLE IF NOT EXISTS " + CHANGE_SEQUENCES_TABLE + " (tableName TEXT PRIMARY KEY, seq INTEGER NOT NULL);");
+		executeSQL("CREATE TABLE IF NOT EXISTS " + EXPORT_WATERMARKS_TABLE + " (destination TEXT NOT NULL, tableName TEXT NOT NULL, seq INTEGER NOT NULL, PRIMARY KEY (destination, tableName));");
+		changeTrackingTablesCreated = true;
+	}
+	
+	/**
+	 * @param sql a query returning a single integer value and taking the given string arguments
+	 * @param paramCols
+	 * @param arguments
+	 * @return the result, or 0 if there was none
+	 * @throws DBException
+	 */
+	private long executeLongQuery(String sql, List<SQLiteColumn<?, ?>> paramCols, List<String> arguments) throws DBException
+	{
+		createChangeTrackingTables();
+		SapelliSQLiteStatement statement = getStatement(sql, paramCols);
+		try
+		{
+			statement.bindAll(arguments);
+			Long result = statement.executeLongQuery();
+			return result != null ? result : 0l;
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+	
+	/**
+	 * Change tracking is implemented using triggers, see {@link SQLiteTable#enableChangeTracking()}.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#hasChangeTracking()
+	 */
+	@Override
+	public boolean hasChangeTracking()
+	{
+		return true;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#getChangeSequence(uk.ac.ucl.excites.sapelli.storage.model.Schema)
+	 */
+	@Override
+	public long getChangeSequence(Schema schema) throws DBException
+	{
+		SQLiteTable table = getTable(schema, false);
+		if(table.isInDB())
+			table.ensureChangeTracking();
+		// Note: the counter is kept when the table is dropped, so we query it even if the table is not in the DB:
+		return executeLongQuery("SELECT seq FROM " + CHANGE_SEQUENCES_TABLE + " WHERE tableName=?;", tableNameParamCols, Collections.singletonList(table.tableName));
+	}
+	
+	/**
+	 * Records are retrieved in pages of (at most) {@link #DEFAULT_ITERATION_PAGE_SIZE}, using "keyset pagination" on the change sequence column.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#iterateChangedRecords(uk.ac.ucl.excites.sapelli.storage.model.Schema, long, long)
+	 */
+	@Override
+	public ChangedRecordIterator iterateChangedRecords(Schema schema, long afterSequence, long upToSequence) throws DBException
+	{
+		SQLiteTable table = getTable(schema, false);
+		if(!table.isInDB() || afterSequence >= upToSequence)
+			return new PagingChangedRecordIterator(null, afterSequence, upToSequence, DEFAULT_ITERATION_PAGE_SIZE); // no records
+		table.ensureChangeTracking();
+		return new PagingChangedRecordIterator(table, afterSequence, upToSequence, DEFAULT_ITERATION_PAGE_SIZE);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#getExportWatermark(java.lang.String, uk.ac.ucl.excites.sapelli.storage.model.Schema)
+	 */
+	@Override
+	public long getExportWatermark(String destination, Schema schema) throws DBException
+	{
+		return executeLongQuery("SELECT seq FROM " + EXPORT_WATERMARKS_TABLE + " WHERE destination=? AND tableName=?;", destinationAndTableNameParamCols, Arrays.asList(destination, getTableName(schema)));
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#setExportWatermark(java.lang.String, uk.ac.ucl.excites.sapelli.storage.model.Schema, long)
+	 */
+	@Override
+	public void setExportWatermark(String destination, Schema schema, long sequence) throws DBException
+	{
+		createChangeTrackingTables();
+		SapelliSQLiteStatement statement = getStatement("INSERT OR REPLACE INTO " + EXPORT_WATERMARKS_TABLE + " (destination, tableName, seq) VALUES (?, ?, " + sequence + ");", destinationAndTableNameParamCols);
+		try
+		{
+			statement.bindAll(Arrays.asList(destination, getTableName(schema)));
+			statement.executeInsert();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+	
+	/**
+	 * @param value
+	 * @return the given String as a quoted SQL literal
+	 */
+	private String toLiteral(String value)
+	{
+		return QUOTE_CHAR + value.replace(String.valueOf(QUOTE_CHAR), QUOTE_ESCAPE_STRING) + QUOTE_CHAR;
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore#hasFullIndexSupport()
 	 */
@@ -307,12 +526,157 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 		private SapelliSQLiteStatement updateStatement;
 		private SapelliSQLiteStatement deleteStatement;
 		private SapelliSQLiteStatement countStatement;
+		
+		/**
+		 * Whether the table has the change sequence column and triggers, {@code null} if not checked yet
+		 */
+		private Boolean changeTracking;
 
 		public SQLiteTable(Schema schema)
 		{
 			super(schema);
 		}
 		
+		/**
+		 * Also enables change tracking on the new table (unless it is one of the meta tables).
+		 * 
+		 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore.SQLTable#create()
+		 */
+		@Override
+		public synchronized void create() throws DBException
+		{
+			super.create();
+			if(schema != Model.MODEL_SCHEMA && schema != Model.META_SCHEMA)
+				enableChangeTracking();
+		}
+		
+		/**
+		 * Enables change tracking on the table if it was created before change tracking was introduced.
+		 * Assumes the table exists in the database!
+		 * 
+		 * @throws DBException
+		 */
+		public synchronized void ensureChangeTracking() throws DBException
+		{
+			if(changeTracking == null)
+				changeTracking = doesTriggerExist(getTriggerName("insert"));
+			if(!changeTracking)
+			{
+				startTransaction();
+				try
+				{
+					enableChangeTracking();
+				}
+				catch(DBException e)
+				{
+					rollbackTransactions();
+					throw e;
+				}
+				commitTransaction();
+			}
+		}
+		
+		/**
+		 * Adds the change sequence column (indexed) to the table, and creates triggers which, upon every insert or update of a row,
+		 * increment the table's counter in the {@value #CHANGE_SEQUENCES_TABLE} table and assign the new value to the row.
+		 * Rows which already exist (i.e. when change tracking is enabled on an existing table) are each assigned their own new value,
+		 * in ROWID order, such that paging over the change sequence column (see {@link #selectChanged(long, long, int, List)}) never skips rows.
+		 * The counter is not reset when the table is dropped, such that sequence numbers remain monotonic if the table is re-created.
+		 * Assumes the table exists in the database!
+		 * 
+		 * @throws DBException
+		 */
+		protected void enableChangeTracking() throws DBException
+		{
+			if(isInTransaction())
+			{	// this means enabling might be rolled-back...
+				addRollbackTask(new RollbackTask()
+				{
+					@Override
+					public void run() throws DBException
+					{
+						changeTracking = null; // check again when needed
+					}
+				});
+			}
+			createChangeTrackingTables();
+			String tableNameLiteral = toLiteral(tableName);
+			String counterQuery = "SELECT seq FROM " + CHANGE_SEQUENCES_TABLE + " WHERE tableName=" + tableNameLiteral;
+			String incrementCounter = "UPDATE " + CHANGE_SEQUENCES_TABLE + " SET seq = seq + 1 WHERE tableName=" + tableNameLiteral + ";";
+			
+			// Column, counter & index:
+			executeSQL("ALTER TABLE " + tableName + " ADD COLUMN " + CHANGE_SEQUENCE_COLUMN + " INTEGER;");
+			executeSQL("INSERT OR IGNORE INTO " + CHANGE_SEQUENCES_TABLE + " (tableName, seq) VALUES (" + tableNameLiteral + ", 0);");
+			//	Number existing rows 1, 2, 3, ... in ROWID order (using a temporary table, of which the INTEGER PRIMARY KEY is assigned sequentially):
+			String numberingTable = sanitiseIdentifier("temp_" + client.getTableName(schema) + CHANGE_SEQUENCE_COLUMN);
+			executeSQL("CREATE TEMP TABLE " + numberingTable + " (n INTEGER PRIMARY KEY, rid INTEGER NOT NULL UNIQUE);");
+			executeSQL("INSERT INTO " + numberingTable + " (rid) SELECT ROWID FROM " + tableName + " ORDER BY ROWID;");
+			//	Assign each existing row its own sequence number, following the current counter value, and advance the counter past them:
+			executeSQL("UPDATE " + tableName + " SET " + CHANGE_SEQUENCE_COLUMN + " = (" + counterQuery + ") + (SELECT n FROM " + numberingTable + " WHERE rid = " + tableName + ".ROWID);");
+			executeSQL("UPDATE " + CHANGE_SEQUENCES_TABLE + " SET seq = seq + (SELECT COUNT(*) FROM " + numberingTable + ") WHERE tableName=" + tableNameLiteral + ";");
+			executeSQL("DROP TABLE " + numberingTable + ";");
+			executeSQL("CREATE INDEX " + sanitiseIdentifier(client.getTableName(schema) + CHANGE_SEQUENCE_COLUMN) + " ON " + tableName + " (" + CHANGE_SEQUENCE_COLUMN + ");");
+			
+			// Triggers:
+			String triggerBody = "FOR EACH ROW BEGIN " + incrementCounter + " UPDATE " + tableName + " SET " + CHANGE_SEQUENCE_COLUMN + " = (" + counterQuery + ") WHERE ROWID = NEW.ROWID; END;";
+			executeSQL("CREATE TRIGGER " + getTriggerName("insert") + " AFTER INSERT ON " + tableName + " " + triggerBody);
+			TransactionalStringBuilder columnNames = new TransactionalStringBuilder(", ");
+			for(SQLiteColumn<?, ?> sqliteCol : sqlColumns.values())
+				columnNames.append(sqliteCol.name);
+			// 	Note: the trigger only fires upon updates of the schema's columns, and hence not upon the update of the change sequence column it performs itself
+			executeSQL("CREATE TRIGGER " + getTriggerName("update") + " AFTER UPDATE OF " + columnNames.toString() + " ON " + tableName + " " + triggerBody);
+			
+			changeTracking = true;
+		}
+		
+		private String getTriggerName(String event)
+		{
+			return sanitiseIdentifier(client.getTableName(schema) + CHANGE_SEQUENCE_COLUMN + "_" + event);
+		}
+		
+		/**
+		 * Selects records of which the change sequence number is within the given range, in order of that number.
+		 * Assumes the table exists in the database and has change tracking enabled!
+		 * 
+		 * @param afterSequence exclusive lower bound
+		 * @param upToSequence inclusive upper bound
+		 * @param limit maximum number of records to select
+		 * @param records list to add the selected records to
+		 * @param sequences list to add the change sequence numbers of the selected records to (in the same order)
+		 * @return the change sequence number of the last selected record, or afterSequence if no records were selected
+		 * @throws DBException
+		 */
+		public synchronized long selectChanged(long afterSequence, long upToSequence, int limit, List<Record> records, List<Long> sequences) throws DBException
+		{
+			ISQLiteCursor cursor = null;
+			try
+			{
+				cursor = executeQuery(	"SELECT " + CHANGE_SEQUENCE_COLUMN + ", * FROM " + tableName +
+										" WHERE " + CHANGE_SEQUENCE_COLUMN + " > " + afterSequence + " AND " + CHANGE_SEQUENCE_COLUMN + " <= " + upToSequence +
+										" ORDER BY " + CHANGE_SEQUENCE_COLUMN + " LIMIT " + limit + ";",
+										Collections.<SQLiteColumn<?, ?>> emptyList(),
+										Collections.emptyList());
+				long lastSequence = afterSequence;
+				if(cursor != null && cursor.hasRow())
+					while(cursor.moveToNext())
+					{
+						lastSequence = cursor.getLong(0);
+						Record record = schema.createRecord();
+						int i = 1; // column 0 holds the change sequence number
+						for(SQLiteColumn<?, ?> sqliteCol : sqlColumns.values())
+							sqliteCol.store(record, cursor, i++);
+						records.add(record);
+						sequences.add(lastSequence);
+					}
+				return lastSequence;
+			}
+			finally
+			{
+				if(cursor != null)
+					cursor.close(); // !!!
+			}
+		}
+		
 		@Override
 		protected SQLRecordStore<SQLiteRecordStore, SQLiteTable, SQLiteColumn<?, ?>>.TableCreationHelper getTableCreationHelper()
 		{
@@ -453,11 +817,14 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 			return affected;
 		}
 
-		/* (non-Javadoc)
+		/**
+		 * Not synchronised because no statements of this table are (re)used, which allows selections to
+		 * run concurrently with each other and with writes when the subclass uses separate reader connections.
+		 * 
 		 * @see uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore.SQLTable#executeRecordSelection(uk.ac.ucl.excites.sapelli.storage.db.sql.SQLRecordStore.RecordSelectHelper)
 		 */
 		@Override
-		protected synchronized List<Record> executeRecordSelection(RecordSelectHelper selection) throws DBException
+		protected List<Record> executeRecordSelection(RecordSelectHelper selection) throws DBException
 		{
 			ISQLiteCursor cursor = null;
 			try
@@ -473,9 +840,9 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 					List<Record> result = new ArrayList<Record>();
 					while(cursor.moveToNext())
 					{
-						Record record = schema.createRecord();
+						Record record = selection.createRecord();
 						int i = 0;
-						for(SQLiteColumn<?, ?> sqliteCol : sqlColumns.values())
+						for(SQLiteColumn<?, ?> sqliteCol : selection.getSelectedColumns())
 							sqliteCol.store(record, cursor, i++);
 						result.add(record);
 					}
@@ -857,6 +1224,96 @@ public abstract class SQLiteRecordStore extends SQLRecordStore<SQLiteRecordStore
 		
 	}
 	
+	/**
+	 * Iterator over the changed records of a single table, retrieved page per page.
+	 * 
+	 * @author mstevens
+	 * @see SQLiteRecordStore#iterateChangedRecords(Schema, long, long)
+	 */
+	private class PagingChangedRecordIterator implements ChangedRecordIterator
+	{
+		
+		private final SQLiteTable table;
+		private final long upToSequence;
+		private final int pageSize;
+		
+		private long lastSelectedSequence;
+		private long lastReturnedSequence;
+		private boolean lastPage;
+		private Iterator<Record> page = Collections.<Record> emptyList().iterator();
+		private Iterator<Long> pageSequences = Collections.<Long> emptyList().iterator();
+		
+		/**
+		 * @param table the table to iterate over, or {@code null} if there are no records to iterate over
+		 * @param afterSequence
+		 * @param upToSequence
+		 * @param pageSize
+		 */
+		public PagingChangedRecordIterator(SQLiteTable table, long afterSequence, long upToSequence, int pageSize)
+		{
+			this.table = table;
+			this.lastSelectedSequence = afterSequence;
+			this.lastReturnedSequence = afterSequence;
+			this.upToSequence = upToSequence;
+			this.pageSize = pageSize;
+			this.lastPage = table == null;
+		}
+		
+		/**
+		 * @throws DBIterationException when the next page could not be retrieved
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() throws DBIterationException
+		{
+			while(!page.hasNext())
+			{
+				if(lastPage)
+					return false;
+				List<Record> records = new ArrayList<Record>(pageSize);
+				List<Long> sequences = new ArrayList<Long>(pageSize);
+				try
+				{
+					lastSelectedSequence = table.selectChanged(lastSelectedSequence, upToSequence, pageSize, records, sequences);
+				}
+				catch(DBException dbE)
+				{
+					lastPage = true; // iteration cannot continue
+					throw new DBIterationException(dbE);
+				}
+				lastPage = records.size() < pageSize;
+				page = records.iterator();
+				pageSequences = sequences.iterator();
+			}
+			return true;
+		}
+		
+		@Override
+		public Record next()
+		{
+			if(!hasNext())
+				throw new NoSuchElementException();
+			lastReturnedSequence = pageSequences.next();
+			return page.next();
+		}
+		
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.db.RecordStore.ChangedRecordIterator#getChangeSequence()
+		 */
+		@Override
+		public long getChangeSequence()
+		{
+			return lastReturnedSequence;
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+	}
+	
 	/**
 	 * 
 	 * @author mstevens
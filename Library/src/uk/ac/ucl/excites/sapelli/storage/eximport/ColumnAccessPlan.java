@@ -0,0 +1,306 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.eximport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
+import uk.ac.ucl.excites.sapelli.storage.visitors.ColumnVisitor;
+import uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser;
+
+/**
+ * Precomputed plan to access the (sub)column values of records of a given schema, in the order in which a
+ * {@link SimpleSchemaTraverser} would visit them. The schema is only traversed once, when the plan is compiled.
+ * Executing the plan walks a flat list of steps and keeps track of the current (sub)record on a stack, such that
+ * no {@link ColumnPointer} path lookups are needed per value. 
+ * 
+ * A compiled plan is immutable and can be executed on multiple threads concurrently.
+ * 
+ * @author mstevens
+ */
+public class ColumnAccessPlan
+{
+
+	// STATICS-------------------------------------------------------
+	/**
+	 * Compiles a plan for the given schema, traversing it according to the settings of the given visitor
+	 * (i.e. {@link ColumnVisitor#allowLocationSelfTraversal()}, {@link ColumnVisitor#includeVirtualColumns()}, etc.).
+	 * 
+	 * @param schema
+	 * @param settings
+	 * @return
+	 */
+	static public ColumnAccessPlan Compile(Schema schema, ColumnVisitor settings)
+	{
+		return new Planner(	settings.allowLocationSelfTraversal(),
+							settings.allowOrientationSelfTraversal(),
+							settings.allowForeignKeySelfTraversal(),
+							settings.skipNonBinarySerialisedLocationSubColumns(),
+							settings.skipNonBinarySerialisedOrientationSubColumns(),
+							settings.includeVirtualColumns()).compile(schema);
+	}
+	
+	/**
+	 * Compiles a plan for the given schema, applying the same traversal settings to location, orientation & foreign key columns.
+	 * 
+	 * @param schema
+	 * @param allowSelfTraversal whether to traverse the subcolumns of location, orientation & foreign key columns
+	 * @param skipNonBinarySerialisedSubColumns whether to skip location & orientation subcolumns which are not binary serialised
+	 * @param includeVirtualColumns whether to visit virtual columns
+	 * @return
+	 */
+	static public ColumnAccessPlan Compile(Schema schema, boolean allowSelfTraversal, boolean skipNonBinarySerialisedSubColumns, boolean includeVirtualColumns)
+	{
+		return new Planner(	allowSelfTraversal,
+							allowSelfTraversal,
+							allowSelfTraversal,
+							skipNonBinarySerialisedSubColumns,
+							skipNonBinarySerialisedSubColumns,
+							includeVirtualColumns).compile(schema);
+	}
+	
+	/**
+	 * Traverses a schema to collect the steps of a plan.
+	 * 
+	 * @author mstevens
+	 */
+	static private class Planner extends SimpleSchemaTraverser
+	{
+		
+		private final boolean allowLocationSelfTraversal;
+		private final boolean allowOrientationSelfTraversal;
+		private final boolean allowForeignKeySelfTraversal;
+		private final boolean skipNonBinarySerialisedLocationSubColumns;
+		private final boolean skipNonBinarySerialisedOrientationSubColumns;
+		private final boolean includeVirtualColumns;
+		
+		private List<Step> steps;
+		private int depth;
+		private int maxDepth;
+		
+		public Planner(boolean allowLocationSelfTraversal, boolean allowOrientationSelfTraversal, boolean allowForeignKeySelfTraversal, boolean skipNonBinarySerialisedLocationSubColumns, boolean skipNonBinarySerialisedOrientationSubColumns, boolean includeVirtualColumns)
+		{
+			this.allowLocationSelfTraversal = allowLocationSelfTraversal;
+			this.allowOrientationSelfTraversal = allowOrientationSelfTraversal;
+			this.allowForeignKeySelfTraversal = allowForeignKeySelfTraversal;
+			this.skipNonBinarySerialisedLocationSubColumns = skipNonBinarySerialisedLocationSubColumns;
+			this.skipNonBinarySerialisedOrientationSubColumns = skipNonBinarySerialisedOrientationSubColumns;
+			this.includeVirtualColumns = includeVirtualColumns;
+		}
+		
+		public ColumnAccessPlan compile(Schema schema)
+		{
+			steps = new ArrayList<Step>();
+			depth = 0;
+			maxDepth = 0;
+			traverse(schema);
+			return new ColumnAccessPlan(schema, steps, maxDepth);
+		}
+		
+		@Override
+		public void enter(RecordColumn<?> recordCol)
+		{
+			super.enter(recordCol);
+			steps.add(new Step(StepType.ENTER, getColumnPointer()));
+			maxDepth = Math.max(maxDepth, ++depth);
+		}
+		
+		@Override
+		public void leave(RecordColumn<?> recordCol)
+		{
+			steps.add(new Step(StepType.LEAVE, getColumnPointer()));
+			depth--;
+			super.leave(recordCol);
+		}
+		
+		@Override
+		public void visit(ColumnPointer leafColumnPointer)
+		{
+			steps.add(new Step(StepType.VISIT, leafColumnPointer));
+		}
+		
+		@Override
+		public boolean allowLocationSelfTraversal()
+		{
+			return allowLocationSelfTraversal;
+		}
+		
+		@Override
+		public boolean allowOrientationSelfTraversal()
+		{
+			return allowOrientationSelfTraversal;
+		}
+		
+		@Override
+		public boolean allowForeignKeySelfTraversal()
+		{
+			return allowForeignKeySelfTraversal;
+		}
+		
+		@Override
+		public boolean skipNonBinarySerialisedLocationSubColumns()
+		{
+			return skipNonBinarySerialisedLocationSubColumns;
+		}
+		
+		@Override
+		public boolean skipNonBinarySerialisedOrientationSubColumns()
+		{
+			return skipNonBinarySerialisedOrientationSubColumns;
+		}
+		
+		@Override
+		public boolean includeVirtualColumns()
+		{
+			return includeVirtualColumns;
+		}
+		
+	}
+	
+	static public enum StepType
+	{
+		ENTER,
+		VISIT,
+		LEAVE
+	}
+	
+	/**
+	 * A single step of the plan: entering or leaving a {@link RecordColumn}, or visiting a leaf column.
+	 * 
+	 * @author mstevens
+	 */
+	static public class Step
+	{
+		
+		public final StepType type;
+		public final ColumnPointer columnPointer;
+		public final Column<?> column;
+		public final String qualifiedColumnName;
+		
+		private Step(StepType type, ColumnPointer columnPointer)
+		{
+			this.type = type;
+			this.columnPointer = columnPointer;
+			this.column = columnPointer.getColumn();
+			this.qualifiedColumnName = columnPointer.getQualifiedColumnName();
+		}
+		
+	}
+	
+	/**
+	 * Receives the steps of a plan as it is executed on a record.
+	 * 
+	 * @author mstevens
+	 */
+	public interface Handler
+	{
+		
+		/**
+		 * @param step - an {@link StepType#ENTER} step
+		 * @param subRecord - the value of the entered {@link RecordColumn}, may be {@code null}
+		 * @throws Exception
+		 */
+		public void enter(Step step, Record subRecord) throws Exception;
+		
+		/**
+		 * @param step - a {@link StepType#VISIT} step
+		 * @param record - the (sub)record which holds the value of the visited column, {@code null} if it or one of its parents is not set
+		 * @throws Exception
+		 */
+		public void visit(Step step, Record record) throws Exception;
+		
+		/**
+		 * @param step - a {@link StepType#LEAVE} step
+		 * @param subRecord - the value of the left {@link RecordColumn}, may be {@code null}
+		 * @throws Exception
+		 */
+		public void leave(Step step, Record subRecord) throws Exception;
+		
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	public final Schema schema;
+	private final List<Step> steps;
+	private final int maxDepth;
+	
+	private ColumnAccessPlan(Schema schema, List<Step> steps, int maxDepth)
+	{
+		this.schema = schema;
+		this.steps = Collections.unmodifiableList(steps);
+		this.maxDepth = maxDepth;
+	}
+	
+	/**
+	 * @return all steps, in order of execution
+	 */
+	public List<Step> getSteps()
+	{
+		return steps;
+	}
+	
+	/**
+	 * @return the {@link StepType#VISIT} steps, in order of execution
+	 */
+	public List<Step> getVisitSteps()
+	{
+		List<Step> visitSteps = new ArrayList<Step>();
+		for(Step step : steps)
+			if(step.type == StepType.VISIT)
+				visitSteps.add(step);
+		return visitSteps;
+	}
+	
+	/**
+	 * @param record - a record of the plan's schema
+	 * @param handler
+	 * @throws Exception
+	 */
+	public void execute(Record record, Handler handler) throws Exception
+	{
+		Record[] recordStack = new Record[maxDepth + 1];
+		int depth = 0;
+		recordStack[depth] = record;
+		for(Step step : steps)
+		{
+			switch(step.type)
+			{
+				case ENTER :
+					Record parent = recordStack[depth];
+					Record subRecord = parent != null ? ((RecordColumn<?>) step.column).retrieveValue(parent) : null;
+					recordStack[++depth] = subRecord;
+					handler.enter(step, subRecord);
+					break;
+				case VISIT :
+					handler.visit(step, recordStack[depth]);
+					break;
+				case LEAVE :
+					handler.leave(step, recordStack[depth]);
+					recordStack[depth--] = null;
+					break;
+			}
+		}
+	}
+	
+}
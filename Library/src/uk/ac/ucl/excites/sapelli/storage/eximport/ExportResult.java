@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.List;
 
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.util.RecordReferenceBitmap;
 
 /**
  * @author mstevens
@@ -34,41 +35,78 @@ public class ExportResult
 	// STATICS-------------------------------------------------------
 	static public ExportResult Success(List<Record> exportedRecords, String destination)
 	{
-		return new ExportResult(exportedRecords, destination, null, null, 0);
+		return new ExportResult(exportedRecords, null, sizeOf(exportedRecords), destination, null, null, 0);
 	}
 	
 	static public ExportResult Success(List<Record> exportedRecords, File folder, List<File> files)
 	{
-		return new ExportResult(exportedRecords, folder.getAbsolutePath(), files, null, 0);
+		return new ExportResult(exportedRecords, null, sizeOf(exportedRecords), folder.getAbsolutePath(), files, null, 0);
+	}
+	
+	/**
+	 * For use by streaming exports, which do not keep the exported records in memory.
+	 * 
+	 * @param exportedRecordReferences
+	 * @param numberOfExportedRecords
+	 * @param folder
+	 * @param files
+	 * @return
+	 */
+	static public ExportResult Success(RecordReferenceBitmap exportedRecordReferences, int numberOfExportedRecords, File folder, List<File> files)
+	{
+		return new ExportResult(null, exportedRecordReferences, numberOfExportedRecords, folder.getAbsolutePath(), files, null, 0);
 	}
 	
 	static public ExportResult PartialFailure(List<Record> exportedRecords, String destination, Exception reason, int numberOfUnexportedRecords)
 	{
-		return new ExportResult(exportedRecords, destination, null, reason, numberOfUnexportedRecords);
+		return new ExportResult(exportedRecords, null, sizeOf(exportedRecords), destination, null, reason, numberOfUnexportedRecords);
 	}
 	
 	static public ExportResult PartialFailure(List<Record> exportedRecords, File folder, List<File> files, Exception reason, int numberOfUnexportedRecords)
 	{
-		return new ExportResult(exportedRecords, folder.getAbsolutePath(), files, reason, numberOfUnexportedRecords);
+		return new ExportResult(exportedRecords, null, sizeOf(exportedRecords), folder.getAbsolutePath(), files, reason, numberOfUnexportedRecords);
+	}
+	
+	/**
+	 * For use by streaming exports, which do not keep the exported records in memory.
+	 * 
+	 * @param exportedRecordReferences
+	 * @param numberOfExportedRecords
+	 * @param folder
+	 * @param files
+	 * @param reason
+	 * @param numberOfUnexportedRecords
+	 * @return
+	 */
+	static public ExportResult PartialFailure(RecordReferenceBitmap exportedRecordReferences, int numberOfExportedRecords, File folder, List<File> files, Exception reason, int numberOfUnexportedRecords)
+	{
+		return new ExportResult(null, exportedRecordReferences, numberOfExportedRecords, folder.getAbsolutePath(), files, reason, numberOfUnexportedRecords);
 	}
 	
 	static public ExportResult Failure(String destination, Exception reason, int numberOfUnexportedRecords)
 	{
-		return new ExportResult(null, destination, null, reason, numberOfUnexportedRecords);
+		return new ExportResult(null, null, 0, destination, null, reason, numberOfUnexportedRecords);
 	}
 	
 	static public ExportResult Failure(File folder, Exception reason, int numberOfUnexportedRecords)
 	{
-		return new ExportResult(null, folder.getAbsolutePath(), null, reason, numberOfUnexportedRecords);
+		return new ExportResult(null, null, 0, folder.getAbsolutePath(), null, reason, numberOfUnexportedRecords);
 	}
 	
 	static public ExportResult NothingToExport()
 	{
-		return new ExportResult(null, "", null, null, 0);
+		return new ExportResult(null, null, 0, "", null, null, 0);
+	}
+	
+	static private int sizeOf(List<Record> records)
+	{
+		return records == null ? 0 : records.size();
 	}
 	
 	// DYNAMICS------------------------------------------------------
 	private final List<Record> exportedRecords;
+	private RecordReferenceBitmap exportedRecordReferences;
+	private final int numberOfExportedRecords;
 	private final String destination;
 	private final List<File> files;
 	private final Exception failureReason;
@@ -76,13 +114,17 @@ public class ExportResult
 	
 	/**
 	 * @param exportedRecords
+	 * @param exportedRecordReferences
+	 * @param numberOfExportedRecords
 	 * @param destination
 	 * @param files
 	 * @param failureReason
 	 */
-	private ExportResult(List<Record> exportedRecords, String destination, List<File> files, Exception failureReason, int numberOfUnexportedRecords)
+	private ExportResult(List<Record> exportedRecords, RecordReferenceBitmap exportedRecordReferences, int numberOfExportedRecords, String destination, List<File> files, Exception failureReason, int numberOfUnexportedRecords)
 	{
 		this.exportedRecords = exportedRecords;
+		this.exportedRecordReferences = exportedRecordReferences;
+		this.numberOfExportedRecords = numberOfExportedRecords;
 		this.destination = destination;
 		this.files = files;
 		this.failureReason = failureReason;
@@ -94,16 +136,35 @@ public class ExportResult
 	 */
 	public int getNumberedOfExportedRecords()
 	{
-		return getExportedRecords().size();
+		return numberOfExportedRecords;
 	}
 
 	/**
+	 * Note: streaming exports (i.e. of an Iterator or RecordsQuery) do not keep the exported records,
+	 * use {@link #getExportedRecordReferences()} instead.
+	 * 
 	 * @return the successfully exported records
 	 */
 	public List<Record> getExportedRecords()
 	{
 		return exportedRecords == null ? Collections.<Record> emptyList() : exportedRecords;
 	}
+	
+	/**
+	 * Note: exported records of which the primary key has not been set are not referenced. 
+	 * 
+	 * @return references to the successfully exported records
+	 */
+	public RecordReferenceBitmap getExportedRecordReferences()
+	{
+		if(exportedRecordReferences == null)
+		{
+			exportedRecordReferences = new RecordReferenceBitmap();
+			for(Record record : getExportedRecords())
+				exportedRecordReferences.add(record);
+		}
+		return exportedRecordReferences;
+	}
 
 	/**
 	 * @return the destination
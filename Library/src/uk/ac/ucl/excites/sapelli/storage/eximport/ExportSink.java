@@ -0,0 +1,267 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.eximport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.io.CompressedFileWriter;
+import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
+import uk.ac.ucl.excites.sapelli.shared.io.FileWriter;
+import uk.ac.ucl.excites.sapelli.shared.io.Zipper;
+import uk.ac.ucl.excites.sapelli.shared.util.UnicodeHelpers;
+
+/**
+ * Determines how exporters write their output files: plain, compressed on the fly (using one of the
+ * {@link Compression} modes, or as zip archives), split into parts of a maximum size, and/or accompanied
+ * by a manifest which lists the number of records, the size and the SHA-256 hash of each file.
+ * 
+ * Because compression, counting and hashing happen while the records are being written, no second pass
+ * over the exported files is needed.
+ * 
+ * @author mstevens
+ */
+public class ExportSink
+{
+
+	// STATICS-------------------------------------------------------
+	static public final long NO_SPLIT = 0;
+	static public final String MANIFEST_EXTENSION = "manifest";
+	static public final String PART_SUFFIX = "_part";
+	
+	static public final ExportSink PLAIN = new ExportSink(Compression.NONE, NO_SPLIT, false);
+	
+	/**
+	 * @param maxPartSize maximum size (in bytes) of each file, or {@link #NO_SPLIT}
+	 * @param writeManifest
+	 * @return a sink which writes each file as a zip archive with a single entry 
+	 */
+	static public ExportSink Zip(long maxPartSize, boolean writeManifest)
+	{
+		return new ExportSink(null, maxPartSize, writeManifest);
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	/**
+	 * {@code null} means zip
+	 */
+	private final Compression compression;
+	private final long maxPartSize;
+	private final boolean writeManifest;
+	
+	/**
+	 * @param compression
+	 * @param maxPartSize maximum size (in bytes) of each file, or {@link #NO_SPLIT}. Note that part files may slightly exceed the maximum size because the size is checked after each record and some output may still be buffered at that point.
+	 * @param writeManifest
+	 */
+	public ExportSink(Compression compression, long maxPartSize, boolean writeManifest)
+	{
+		if(maxPartSize < NO_SPLIT)
+			throw new IllegalArgumentException("Invalid maximum part size");
+		this.compression = compression;
+		this.maxPartSize = maxPartSize;
+		this.writeManifest = writeManifest;
+	}
+	
+	public boolean isZip()
+	{
+		return compression == null;
+	}
+	
+	public boolean isSplit()
+	{
+		return maxPartSize != NO_SPLIT;
+	}
+	
+	/**
+	 * @param folder
+	 * @param baseName file name without extension(s)
+	 * @param extension the extension of the uncompressed content (e.g. "csv")
+	 * @param bufferSize
+	 * @param manifest the manifest to which to add the resulting files, may be {@code null}
+	 * @return a newly opened file series
+	 * @throws IOException
+	 */
+	public FileSeries open(File folder, String baseName, String extension, int bufferSize, Manifest manifest) throws IOException
+	{
+		return new FileSeries(folder, baseName, extension, bufferSize, manifest);
+	}
+	
+	/**
+	 * @return a new manifest, or {@code null} if this sink does not write manifests
+	 */
+	public Manifest createManifest()
+	{
+		return writeManifest ? new Manifest() : null;
+	}
+	
+	/**
+	 * A series of one or more part files to which a single stream of output is written. Not thread-safe.
+	 * 
+	 * @author mstevens
+	 */
+	public class FileSeries
+	{
+		
+		private final File folder;
+		private final String baseName;
+		private final String extension;
+		private final int bufferSize;
+		private final Manifest manifest;
+		private final List<File> files = new ArrayList<File>();
+		
+		private FileWriter writer;
+		private int partNumber = 0;
+		private int partRecordCount;
+		
+		private FileSeries(File folder, String baseName, String extension, int bufferSize, Manifest manifest) throws IOException
+		{
+			this.folder = folder;
+			this.baseName = baseName;
+			this.extension = extension;
+			this.bufferSize = bufferSize;
+			this.manifest = manifest;
+			openPart();
+		}
+		
+		private void openPart() throws IOException
+		{
+			partNumber++;
+			partRecordCount = 0;
+			String contentName = FileHelpers.makeValidFileName(baseName + (isSplit() ? PART_SUFFIX + partNumber : "") + "." + extension);
+			String path = folder.getAbsolutePath() + File.separator + contentName;
+			if(isZip())
+				writer = new CompressedFileWriter(path + "." + Zipper.ZIP_EXTENSION, UnicodeHelpers.UTF8, bufferSize, contentName);
+			else if(compression != Compression.NONE || isSplit() || manifest != null)
+			{
+				String compressionExtension = CompressedFileWriter.GetFileExtension(compression);
+				writer = new CompressedFileWriter(path + (compressionExtension != null ? "." + compressionExtension : ""), UnicodeHelpers.UTF8, bufferSize, compression);
+			}
+			else
+				writer = new FileWriter(path, UnicodeHelpers.UTF8, bufferSize);
+			writer.open(FileHelpers.FILE_EXISTS_STRATEGY_REPLACE, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);
+		}
+		
+		private void closePart()
+		{
+			File file = writer.getFile();
+			writer.close();
+			if(partRecordCount == 0)
+				file.delete(); // don't keep empty (parts of) files
+			else
+			{
+				files.add(file);
+				if(manifest != null)
+					manifest.add(file, partRecordCount, (CompressedFileWriter) writer);
+			}
+			writer.dispose();
+			writer = null;
+		}
+		
+		/**
+		 * @return the writer for the current part
+		 */
+		public FileWriter getWriter()
+		{
+			return writer;
+		}
+		
+		/**
+		 * To be called after each record has been written (and committed) to the current part's writer.
+		 */
+		public void recordWritten()
+		{
+			partRecordCount++;
+		}
+		
+		/**
+		 * @return whether the current part has reached the maximum size, in which case the caller should end it (e.g. by writing a footer) and call {@link #nextPart()}
+		 */
+		public boolean isPartFull()
+		{
+			return isSplit() && partRecordCount > 0 && ((CompressedFileWriter) writer).getBytesWritten() >= maxPartSize;
+		}
+		
+		/**
+		 * Closes the current part and opens the next one
+		 * 
+		 * @throws IOException
+		 */
+		public void nextPart() throws IOException
+		{
+			closePart();
+			openPart();
+		}
+		
+		/**
+		 * Closes the series. Parts to which no records were written are deleted.
+		 * 
+		 * @return the files which were written
+		 */
+		public List<File> close()
+		{
+			if(writer != null)
+				closePart();
+			return files;
+		}
+		
+	}
+	
+	/**
+	 * Collects the number of records, size and hash of exported files, and writes them to a manifest file. Thread-safe.
+	 * 
+	 * @author mstevens
+	 */
+	public class Manifest
+	{
+		
+		private final StringBuilder lines = new StringBuilder();
+		
+		private Manifest()
+		{
+			lines.append("file,records,bytes," + CompressedFileWriter.HASH_ALGORITHM.replace("-", "").toLowerCase() + "\n");
+		}
+		
+		private synchronized void add(File file, int numberOfRecords, CompressedFileWriter writer)
+		{
+			lines.append(file.getName()).append(',').append(numberOfRecords).append(',').append(writer.getBytesWritten()).append(',').append(writer.getHash()).append('\n');
+		}
+		
+		/**
+		 * @param folder
+		 * @param baseName
+		 * @return the manifest file
+		 * @throws IOException
+		 */
+		public synchronized File write(File folder, String baseName) throws IOException
+		{
+			FileWriter writer = new FileWriter(folder.getAbsolutePath() + File.separator + FileHelpers.makeValidFileName(baseName + "." + MANIFEST_EXTENSION), UnicodeHelpers.UTF8);
+			writer.open(FileHelpers.FILE_EXISTS_STRATEGY_REPLACE, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);
+			writer.write(lines.toString());
+			File file = writer.getFile();
+			writer.dispose(); // also closes
+			return file;
+		}
+		
+	}
+	
+}
@@ -18,9 +18,13 @@
 
 package uk.ac.ucl.excites.sapelli.storage.eximport;
 
+import java.util.Iterator;
 import java.util.List;
 
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBIterationException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
 
 public interface Exporter
 {
@@ -33,4 +37,29 @@ public interface Exporter
 	
 	public ExportResult export(List<Record> records, String description);
 	
+	/**
+	 * Exports the records as they are produced by the iterator, without holding them all in memory.
+	 * The resulting {@link ExportResult} does not contain the exported records themselves, only references to them.
+	 * If the export fails the iterator is not exhausted, so records which were never read are not included in
+	 * {@link ExportResult#getNumberOfUnexportedRecords()}. If the iterator itself fails (e.g. by throwing a
+	 * {@link DBIterationException}) the result is a (partial) failure too.
+	 * 
+	 * @param records
+	 * @param description
+	 * @return
+	 */
+	public ExportResult export(Iterator<Record> records, String description);
+	
+	/**
+	 * Exports the records resulting from the given query, streaming them from the given store.
+	 * 
+	 * @param store
+	 * @param query
+	 * @param description
+	 * @return
+	 * @see #export(Iterator, String)
+	 * @see RecordStore#iterateRecords(RecordsQuery)
+	 */
+	public ExportResult export(RecordStore store, RecordsQuery query, String description);
+	
 }
@@ -0,0 +1,236 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.eximport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBIterationException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore.ChangedRecordIterator;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.util.RecordReferenceBitmap;
+
+/**
+ * Performs incremental ("changed since") exports of the records in a {@link RecordStore} which tracks changes, to a named destination.
+ * For each schema the change sequence number up to which records have been exported to the destination (the "watermark") is stored
+ * in the RecordStore, such that each export only contains the records that were inserted or updated since the previous one.
+ * 
+ * After a completely successful export the watermarks are advanced to the change sequence numbers the export went up to. After a (partial)
+ * failure each watermark is only advanced up to the last record of its schema which was exported without any preceding record of that schema
+ * having failed (or not having been reached), such that the next export resumes from the first record which was not exported.
+ * Deleted records are not tracked and hence not reflected in incremental exports.
+ * 
+ * @author mstevens
+ * @see RecordStore#getChangeSequence(Schema)
+ */
+public class IncrementalExporter
+{
+
+	private final RecordStore store;
+	private final String destination;
+	
+	/**
+	 * @param store
+	 * @param destination - identifies the destination (e.g. a server or data warehouse) the records are exported to
+	 * @throws IllegalArgumentException when the store does not track changes
+	 */
+	public IncrementalExporter(RecordStore store, String destination) throws IllegalArgumentException
+	{
+		if(store == null || destination == null)
+			throw new NullPointerException("Store and destination cannot be null");
+		if(!store.hasChangeTracking())
+			throw new IllegalArgumentException(store.getClass().getSimpleName() + " does not track changes");
+		this.store = store;
+		this.destination = destination;
+	}
+	
+	/**
+	 * Exports the records of the given schema which were inserted or updated after the given change sequence number.
+	 * Does not use or affect the watermark.
+	 * 
+	 * @param exporter
+	 * @param schema
+	 * @param sequence
+	 * @param description
+	 * @return
+	 * @throws DBException
+	 */
+	public ExportResult exportChangesSince(Exporter exporter, Schema schema, long sequence, String description) throws DBException
+	{
+		long upTo = store.getChangeSequence(schema);
+		if(sequence >= upTo)
+			return ExportResult.NothingToExport();
+		return exporter.export(store.iterateChangedRecords(schema, sequence, upTo), description);
+	}
+	
+	/**
+	 * Exports the records of the given schemata which were inserted or updated since the previous export to the destination,
+	 * and advances the watermarks up to the records which were actually exported.
+	 * 
+	 * @param exporter
+	 * @param schemata
+	 * @param description
+	 * @return
+	 * @throws DBException
+	 */
+	public ExportResult exportChanges(Exporter exporter, Collection<Schema> schemata, String description) throws DBException
+	{
+		// Determine which changes to export (changes made while the export is in progress will be exported next time):
+		Map<Schema, Long> since = new LinkedHashMap<Schema, Long>();
+		Map<Schema, Long> upTo = new LinkedHashMap<Schema, Long>();
+		List<Iterator<Record>> changedRecords = new ArrayList<Iterator<Record>>();
+		for(Schema schema : schemata)
+		{
+			long watermark = store.getExportWatermark(destination, schema);
+			long sequence = store.getChangeSequence(schema);
+			if(watermark < sequence)
+			{
+				since.put(schema, watermark);
+				upTo.put(schema, sequence);
+				changedRecords.add(store.iterateChangedRecords(schema, watermark, sequence));
+			}
+		}
+		if(upTo.isEmpty())
+			return ExportResult.NothingToExport();
+		
+		// Export:
+		ExportResult result = exporter.export(new ConcatenatedIterator(changedRecords), description);
+		
+		// Determine new watermarks:
+		Map<Schema, Long> newWatermarks = upTo;
+		if(!result.wasSuccessful())
+		{
+			newWatermarks = new LinkedHashMap<Schema, Long>();
+			RecordReferenceBitmap exported = result.getExportedRecordReferences();
+			for(Schema schema : upTo.keySet())
+			{
+				long watermark = getLastExportedSequence(schema, since.get(schema), upTo.get(schema), exported);
+				if(watermark > since.get(schema))
+					newWatermarks.put(schema, watermark);
+			}
+		}
+		
+		// Advance watermarks:
+		if(!newWatermarks.isEmpty())
+		{
+			store.startTransaction();
+			try
+			{
+				for(Map.Entry<Schema, Long> entry : newWatermarks.entrySet())
+					store.setExportWatermark(destination, entry.getKey(), entry.getValue());
+			}
+			catch(DBException e)
+			{
+				store.rollbackTransactions();
+				throw e;
+			}
+			store.commitTransaction();
+		}
+		return result;
+	}
+	
+	/**
+	 * Determines the change sequence number up to which the changed records of the given schema have all been exported, by
+	 * iterating over them again until a record is found which was not exported.
+	 * 
+	 * @param schema
+	 * @param since the (exclusive) lower bound of the export
+	 * @param upTo the (inclusive) upper bound of the export
+	 * @param exported references to the exported records
+	 * @return the change sequence number of the last record which was exported without any record of the same schema before it not being exported, or since if there is no such record
+	 * @throws DBException
+	 */
+	private long getLastExportedSequence(Schema schema, long since, long upTo, RecordReferenceBitmap exported) throws DBException
+	{
+		if(exported.isEmpty())
+			return since;
+		ChangedRecordIterator records = store.iterateChangedRecords(schema, since, upTo);
+		long sequence = since;
+		try
+		{
+			while(records.hasNext() && exported.contains(records.next()))
+				sequence = records.getChangeSequence();
+		}
+		catch(DBIterationException dbIE)
+		{
+			dbIE.printStackTrace(System.err); // the records after the last one we could check will be exported again next time
+		}
+		return sequence;
+	}
+	
+	/**
+	 * @return the destination
+	 */
+	public String getDestination()
+	{
+		return destination;
+	}
+	
+	/**
+	 * @author mstevens
+	 */
+	static private class ConcatenatedIterator implements Iterator<Record>
+	{
+		
+		private final Iterator<Iterator<Record>> iterators;
+		private Iterator<Record> current = Collections.<Record> emptyList().iterator();
+		
+		public ConcatenatedIterator(List<Iterator<Record>> iterators)
+		{
+			this.iterators = iterators.iterator();
+		}
+		
+		@Override
+		public boolean hasNext()
+		{
+			while(!current.hasNext())
+			{
+				if(!iterators.hasNext())
+					return false;
+				current = iterators.next();
+			}
+			return true;
+		}
+		
+		@Override
+		public Record next()
+		{
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return current.next();
+		}
+		
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+		
+	}
+	
+}
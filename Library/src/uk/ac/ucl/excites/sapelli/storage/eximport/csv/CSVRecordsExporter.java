@@ -20,30 +20,39 @@ package uk.ac.ucl.excites.sapelli.storage.eximport.csv;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
 
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.FileWriter;
 import uk.ac.ucl.excites.sapelli.shared.util.TimeUtils;
-import uk.ac.ucl.excites.sapelli.shared.util.UnicodeHelpers;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ColumnAccessPlan;
 import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportSink;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
-import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsImporter;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
 import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
-import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
-import uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.util.RecordReferenceBitmap;
 
 
 /**
- * Class to export {@link Record}s to XML files, which can be re-imported by {@link XMLRecordsImporter}.
+ * Class to export {@link Record}s to CSV files, one per schema.
  * 
  * Follows the CSV specification outlined in RFC 4180 (i.e. with regardis to escaping/quoting), except for
  * the choice between different separators (tab & semicolon in addition to comma).
@@ -52,7 +61,7 @@ import uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser;
  * @author mstevens
  * @see <a href="http://www.ietf.org/rfc/rfc4180.txt">http://www.ietf.org/rfc/rfc4180.txt</a>
  */
-public class CSVRecordsExporter extends SimpleSchemaTraverser implements Exporter
+public class CSVRecordsExporter implements Exporter
 {
 
 	// STATICS------------------------------------------------------- 
@@ -94,12 +103,27 @@ public class CSVRecordsExporter extends SimpleSchemaTraverser implements Exporte
 	
 	static public final Separator DEFAULT_SEPARATOR = Separator.COMMA;
 	
+	static public final int DEFAULT_NUMBER_OF_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Number of records of the same schema that are handed to a writing thread at once
+	 */
+	static private final int BATCH_SIZE = 256;
+	
+	/**
+	 * Number of batches per thread that can be waiting to be written, limits memory usage when reading outpaces writing
+	 */
+	static private final int MAX_PENDING_BATCHES_PER_THREAD = 2;
+	
+	static private final int WRITER_BUFFER_SIZE = 64 * 1024; // chars
+	
+	static public final String CSV_EXTENSION = "csv";
+	
 	// DYNAMICS------------------------------------------------------
 	private File exportFolder;
 	private Separator separator;
-	
-	private FileWriter writer = null;
-	private List<ColumnPointer> columnPointers;
+	private int numberOfThreads;
+	private ExportSink sink;
 	
 	public CSVRecordsExporter(File exportFolder)
 	{
@@ -107,213 +131,505 @@ public class CSVRecordsExporter extends SimpleSchemaTraverser implements Exporte
 	}
 	
 	public CSVRecordsExporter(File exportFolder, Separator separator)
+	{
+		this(exportFolder, separator, DEFAULT_NUMBER_OF_THREADS);
+	}
+	
+	/**
+	 * @param exportFolder
+	 * @param separator
+	 * @param numberOfThreads maximum number of threads used to write the CSV files of different schemata concurrently, when 1 everything happens on the calling thread
+	 */
+	public CSVRecordsExporter(File exportFolder, Separator separator, int numberOfThreads)
+	{
+		this(exportFolder, separator, numberOfThreads, ExportSink.PLAIN);
+	}
+	
+	/**
+	 * @param exportFolder
+	 * @param separator
+	 * @param numberOfThreads maximum number of threads used to write the CSV files of different schemata concurrently, when 1 everything happens on the calling thread
+	 * @param sink determines whether files are compressed, split and/or accompanied by a manifest
+	 */
+	public CSVRecordsExporter(File exportFolder, Separator separator, int numberOfThreads, ExportSink sink)
 	{
 		if(!FileHelpers.createDirectory(exportFolder))
 			throw new IllegalArgumentException("Export folder (" + exportFolder + ") does not exist and could not be created!");
+		if(numberOfThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1");
 		this.exportFolder = exportFolder;
 		this.separator = separator;
-		this.columnPointers = new ArrayList<ColumnPointer>();
+		this.numberOfThreads = numberOfThreads;
+		this.sink = sink;
 	}
 	
-	private void openWriter(String description, DateTime timestamp) throws Exception
+	/**
+	 * @param records
+	 * @param description
+	 * @return
+	 */
+	@Override
+	public ExportResult export(List<Record> records, String description)
 	{
-		writer = new FileWriter(exportFolder + File.separator + FileHelpers.makeValidFileName("Records_" + description + "_" + TimeUtils.getTimestampForFileName(timestamp) + ".csv"), UnicodeHelpers.UTF8);
-		writer.open(FileHelpers.FILE_EXISTS_STRATEGY_REPLACE, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);	
+		if(records == null || records.isEmpty())
+			return ExportResult.NothingToExport();
+		return export(records.iterator(), records.size(), description, new ArrayList<Record>());
 	}
 	
-	private void deleteFile()
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Exporter#export(java.util.Iterator, java.lang.String)
+	 */
+	@Override
+	public ExportResult export(Iterator<Record> records, String description)
 	{
-		if(writer != null)
-			writer.delete();
-		closeWriter();
+		return export(records, -1, description, null);
 	}
 	
-	private void closeWriter()
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Exporter#export(uk.ac.ucl.excites.sapelli.storage.db.RecordStore, uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery, java.lang.String)
+	 */
+	@Override
+	public ExportResult export(RecordStore store, RecordsQuery query, String description)
 	{
-		if(writer != null)
-		{
-			writer.dispose(); // also closes
-			writer = null;
-		}
+		return export(store.iterateRecords(query), -1, description, null);
 	}
 	
 	/**
-	 * @param records all assumed to be of the same top-level schema
+	 * Exports the records to a separate CSV file per schema. The files are opened as soon as the first record of
+	 * their schema comes along, so records of different schemata can be mixed freely and are never grouped in memory.
+	 * Records are read from the iterator on the calling thread, but (unless numberOfThreads is 1) they are written
+	 * in batches by a pool of threads, such that different schemata are written concurrently. The records of any one
+	 * schema are always written in the order in which they were read.
+	 * 
+	 * @param records
+	 * @param numberOfRecords the total number of records the iterator produces, or -1 if unknown (in which case records which are never read because the export fails are not counted as unexported)
 	 * @param description
+	 * @param exported list to which to add the exported records, or {@code null} if only references to them are to be kept
 	 * @return
-	 * @throws Exception
 	 */
-	@Override
-	public ExportResult export(List<Record> records, String description)
+	private ExportResult export(Iterator<Record> records, int numberOfRecords, String description, List<Record> exported)
 	{
-		if(records == null || records.isEmpty())
+		ExportJob job = new ExportJob(description, exported);
+		try
+		{
+			while(records.hasNext() && job.getFailure() == null)
+			{
+				Record r = records.next();
+				if(r.getSchema().isInternal())
+					continue; // we do not export records of internal schemata
+				job.add(r);
+			}
+		}
+		catch(Exception e)
+		{
+			job.fail(e);
+		}
+		job.finish();
+		List<File> csvFiles = job.closeWriters();
+		
+		Exception failure = job.getFailure();
+		if(failure != null)
+		{
+			failure.printStackTrace(System.err);
+			int unexportedCount = (numberOfRecords >= 0 ? numberOfRecords : job.numberOfAddedRecords) - job.numberOfExportedRecords;
+			if(job.numberOfExportedRecords == 0)
+				return ExportResult.Failure(exportFolder, failure, unexportedCount);
+			else if(exported != null)
+				return ExportResult.PartialFailure(exported, exportFolder, csvFiles, failure, unexportedCount);
+			else
+				return ExportResult.PartialFailure(job.exportedReferences, job.numberOfExportedRecords, exportFolder, csvFiles, failure, unexportedCount);
+		}
+		if(job.numberOfExportedRecords == 0)
 			return ExportResult.NothingToExport();
+		else if(exported != null)
+			return ExportResult.Success(exported, exportFolder, csvFiles);
+		else
+			return ExportResult.Success(job.exportedReferences, job.numberOfExportedRecords, exportFolder, csvFiles);
+	}
+	
+	private String escapeAndQuote(String valueString, boolean forceQuotes)
+	{
+		StringBuilder bldr = new StringBuilder(valueString.length() + 2);
+		appendEscapedAndQuoted(bldr, valueString, forceQuotes);
+		return bldr.toString();
+	}
+	
+	private void appendEscapedAndQuoted(StringBuilder bldr, String valueString, boolean forceQuotes)
+	{
+		boolean needsQuotes = forceQuotes;
+		int start = bldr.length();
+		char separatorChar = separator.getSeparatorChar();
+		for(int i = 0, len = valueString.length(); i < len; i++)
+		{
+			char c = valueString.charAt(i);
+			if(c == DOUBLE_QUOTE)
+				bldr.append(DOUBLE_QUOTE); // escape double quote occurrences by doubling them
+			if(c == DOUBLE_QUOTE || c == '\r' || c == '\n' || c == separatorChar)
+				needsQuotes = true;
+			bldr.append(c);
+		}
+		if(needsQuotes)
+		{
+			bldr.insert(start, DOUBLE_QUOTE);
+			bldr.append(DOUBLE_QUOTE);
+		}
+	}
+	
+	/**
+	 * Keeps track of a single export operation, the CSV files it writes to, and the threads writing them.
+	 * 
+	 * @author mstevens
+	 */
+	private class ExportJob
+	{
+		
+		final String description;
+		final DateTime timestamp = DateTime.now(); // for filenames
+		final Map<Schema, SchemaWriter> writers = new LinkedHashMap<Schema, SchemaWriter>();
+		final ExecutorService executor;
+		final Semaphore batchPermits;
+		final ExportSink.Manifest manifest = sink.createManifest();
 		
-		// Timestamp for filenames:
-		DateTime timestamp = DateTime.now();
+		final List<Record> exported;
+		final RecordReferenceBitmap exportedReferences;
+		int numberOfAddedRecords = 0;
+		int numberOfExportedRecords = 0;
+		private Exception failure;
+		
+		public ExportJob(String description, List<Record> exported)
+		{
+			this.description = description;
+			this.exported = exported;
+			this.exportedReferences = exported == null ? new RecordReferenceBitmap() : null;
+			if(numberOfThreads > 1)
+			{
+				executor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread thread = new Thread(r, CSVRecordsExporter.class.getSimpleName());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				batchPermits = new Semaphore(numberOfThreads * MAX_PENDING_BATCHES_PER_THREAD);
+			}
+			else
+			{
+				executor = null;
+				batchPermits = null;
+			}
+		}
 		
-		// Group records by schema:
-		Map<Schema, List<Record>> recordsBySchema = new HashMap<Schema, List<Record>>();
-		for(Record r : records)
+		/**
+		 * Called on the reading thread.
+		 * 
+		 * @param record
+		 * @throws Exception
+		 */
+		public void add(Record record) throws Exception
 		{
-			List<Record> recordsForSchema;
-			if(recordsBySchema.containsKey(r.getSchema()))
-				recordsForSchema = recordsBySchema.get(r.getSchema());
+			numberOfAddedRecords++;
+			SchemaWriter schemaWriter = writers.get(record.getSchema());
+			if(schemaWriter == null)
+			{
+				schemaWriter = new SchemaWriter(this, record.getSchema());
+				writers.put(record.getSchema(), schemaWriter);
+			}
+			if(executor == null)
+			{
+				schemaWriter.write(record);
+				exported(record);
+			}
 			else
 			{
-				recordsForSchema = new ArrayList<Record>();
-				recordsBySchema.put(r.getSchema(), recordsForSchema);
+				schemaWriter.batch.add(record);
+				if(schemaWriter.batch.size() >= BATCH_SIZE)
+					submitBatch(schemaWriter);
 			}
-			recordsForSchema.add(r);
 		}
 		
-		// Export each group to a separate CSV file:
-		List<Record> exported = new ArrayList<Record>();
-		List<File> csvFiles = new ArrayList<File>();
-		for(Map.Entry<Schema, List<Record>> entry : recordsBySchema.entrySet())
+		private void submitBatch(SchemaWriter schemaWriter) throws InterruptedException
 		{
+			batchPermits.acquire(); // blocks while too many batches are waiting to be written
+			schemaWriter.submit(schemaWriter.batch);
+			schemaWriter.batch = new ArrayList<Record>(BATCH_SIZE);
+		}
+		
+		public synchronized void exported(Record record)
+		{
+			numberOfExportedRecords++;
+			if(exported != null)
+				exported.add(record);
+			else
+				exportedReferences.add(record);
+			// TODO mark record as exported?
+		}
+		
+		public synchronized void fail(Exception e)
+		{
+			if(failure == null)
+				failure = e; // only the first failure is kept
+		}
+		
+		public synchronized Exception getFailure()
+		{
+			return failure;
+		}
+		
+		/**
+		 * Submits the remaining batches and waits for all of them to be written.
+		 */
+		public void finish()
+		{
+			if(executor == null)
+				return;
 			try
 			{
-				Schema schema =  entry.getKey();
-				openWriter(description + "_" + schema.getName(), timestamp);
-
-				// Construct column list:
-				columnPointers.clear();
-				traverse(schema);
-				
-				// Write header:
-				writer.openTransaction(); // output will be buffered
+				for(SchemaWriter schemaWriter : writers.values())
+				{
+					if(!schemaWriter.batch.isEmpty() && getFailure() == null)
+						submitBatch(schemaWriter);
+					schemaWriter.submitClose(); // close on a writing thread (some compressor streams require this)
+				}
+				executor.shutdown();
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException ie)
+			{
+				fail(ie);
+				executor.shutdownNow();
+			}
+		}
+		
+		/**
+		 * Closes the writers, deletes files to which no records were written, and writes the manifest (if needed).
+		 * 
+		 * @return the files which do contain records, and the manifest
+		 */
+		public List<File> closeWriters()
+		{
+			List<File> csvFiles = new ArrayList<File>();
+			for(SchemaWriter schemaWriter : writers.values())
+				csvFiles.addAll(schemaWriter.close());
+			if(manifest != null && !csvFiles.isEmpty())
+			{
 				try
 				{
-					// Column names (separated by the separator):
-					for(ColumnPointer cp : columnPointers)
-						writer.write((!writer.isTransactionBufferEmpty() ? separator.getSeparatorChar() : "") + cp.getQualifiedColumnName());
-					// Postfix: separator+modelID=+...+separator+modelSchemaNumber=+...+separator+schemaName="+...+"separator
-					writer.write(	separator.getSeparatorChar() + Schema.ATTRIBUTE_MODEL_ID + "=" + schema.getModelID() +
-									separator.getSeparatorChar() + Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER + "=" + schema.getModelSchemaNumber() +
-									separator.getSeparatorChar() + Schema.ATTRIBUTE_SCHEMA_NAME + "=" + escapeAndQuote(schema.getName(), true) +
-									separator.getSeparatorChar());
-					writer.write('\n');
+					csvFiles.add(manifest.write(exportFolder, "Records_" + description + "_" + TimeUtils.getTimestampForFileName(timestamp)));
 				}
 				catch(Exception e)
 				{
-					writer.rollbackTransaction(); // !!!
-					throw e;
+					fail(e);
 				}
-				writer.commitTransaction(); // write out buffer
-				
-				// Write records:
-				for(Record r : entry.getValue())
+			}
+			return csvFiles;
+		}
+		
+	}
+	
+	/**
+	 * Writes the records of a single schema to a CSV file.
+	 * When writing happens on multiple threads, the batches of records submitted to a SchemaWriter are written one at the time, in order of submission.
+	 * 
+	 * @author mstevens
+	 */
+	private class SchemaWriter implements ColumnAccessPlan.Handler, Runnable
+	{
+		
+		final ExportJob job;
+		final ExportSink.FileSeries series;
+		FileWriter writer;
+		final ColumnAccessPlan plan;
+		final String header;
+		final StringBuilder line = new StringBuilder();
+		boolean firstValue;
+		
+		/**
+		 * Only accessed by the reading thread
+		 */
+		List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+		
+		/**
+		 * Guarded by this 
+		 */
+		final Queue<List<Record>> submittedBatches = new LinkedList<List<Record>>();
+		boolean running = false;
+		boolean closeRequested = false;
+		List<File> files = null;
+		
+		public SchemaWriter(ExportJob job, Schema schema) throws Exception
+		{
+			this.job = job;
+			series = sink.open(exportFolder, "Records_" + job.description + "_" + schema.getName() + "_" + TimeUtils.getTimestampForFileName(job.timestamp), CSV_EXTENSION, WRITER_BUFFER_SIZE, job.manifest);
+			writer = series.getWriter();
+			
+			// Compile plan, which determines the column list:
+			plan = ColumnAccessPlan.Compile(schema, true, false, true); // traverse all composite columns, including all subcolumns & virtual columns
+			
+			// Write header:
+			try
+			{
+				// Column names (separated by the separator):
+				for(ColumnAccessPlan.Step step : plan.getVisitSteps())
 				{
-					if(r.getSchema().isInternal())
-						continue; // we do not export records of internal schemata
-					writer.openTransaction(); // output will be buffered
-					try
-					{	
-						for(ColumnPointer cp : columnPointers)
-						{
-							if(!writer.isTransactionBufferEmpty())
-								writer.write(separator.getSeparatorChar());
-							Column<?> col = cp.getColumn();
-							Record rec = cp.getRecord(r, false);
-							if(rec != null && col.isValueSet(rec)) // do write nothing when the value is not set (i.e. null is represented by an empty String)
-							{
-								/* Get String representing the column value...
-								 * 	If the column type is String (meaning it is a StringColumn or a VirtualColumn with a StringColumn as its target),
-								 * 	then we use the raw String value returned by StringColumn#retrieveValue() instead of the singe-quoted String returned
-								 * 	by StringColumn#retrieveValueAsString(). */
-								String valueString = (col.getType() == String.class ? (String) col.retrieveValue(rec) : col.retrieveValueAsString(rec));
-								/* Write value and escape/quote if necessary or required...
-								 * 	We force (double) quotes on StringColumns in order to maintain ability to differentiate null and empty String.
-								 * 	We don't need to do this on VirtualColumns with target type String because their values will get quoted when needed
-								 * 	(i.e. due to occurrence of double quote, new line or separator) but they don't need to maintain the difference between
-								 * 	null and empty String since virtual columns would be ignored if we ever implement a CSVRecordsImporter class. */	
-								writer.write(escapeAndQuote(valueString, col instanceof StringColumn));
-							}
-						}
-						writer.write('\n');
-					}
-					catch(Exception e)
-					{
-						writer.rollbackTransaction(); // !!!
-						throw e;
-					}
-					writer.commitTransaction(); // write out buffer
-					exported.add(r);
-					// TODO mark record as exported?
+					if(line.length() > 0)
+						line.append(separator.getSeparatorChar());
+					line.append(step.qualifiedColumnName);
 				}
-				csvFiles.add(writer.getFile());
-				closeWriter();
+				// Postfix: separator+modelID=+...+separator+modelSchemaNumber=+...+separator+schemaName="+...+"separator
+				line.append(separator.getSeparatorChar()).append(Schema.ATTRIBUTE_MODEL_ID).append('=').append(schema.getModelID())
+					.append(separator.getSeparatorChar()).append(Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER).append('=').append(schema.getModelSchemaNumber())
+					.append(separator.getSeparatorChar()).append(Schema.ATTRIBUTE_SCHEMA_NAME).append('=').append(escapeAndQuote(schema.getName(), true))
+					.append(separator.getSeparatorChar())
+					.append('\n');
+				header = line.toString();
+				writer.write(header);
 			}
 			catch(Exception e)
 			{
-				e.printStackTrace(System.err);
-				deleteFile();
-				if(!exported.isEmpty())
-					return ExportResult.PartialFailure(exported, exportFolder, csvFiles, e, records.size() - exported.size());
-				else
-					return ExportResult.Failure(exportFolder, e, records.size());
+				series.close(); // will delete the file
+				throw e;
 			}
 		}
-		// Success:
-		return ExportResult.Success(exported, exportFolder, csvFiles);
-	}
-	
-	private String escapeAndQuote(String valueString, boolean forceQuotes)
-	{
-		boolean needsQuotes = forceQuotes;
-		StringBuilder bldr = new StringBuilder(valueString.length());
-		for(char c : valueString.toCharArray())
+		
+		public void write(Record r) throws Exception
 		{
-			if(c == DOUBLE_QUOTE)
-				bldr.append(DOUBLE_QUOTE); // escape double quote occurrences by doubling them
-			if(c == DOUBLE_QUOTE || c == '\r' || c == '\n' || c == separator.getSeparatorChar())
-				needsQuotes = true;
-			bldr.append(c);
-		}			
-		return (needsQuotes ? DOUBLE_QUOTE : "") + bldr.toString() + (needsQuotes ? DOUBLE_QUOTE : "");
-	}
-	
-	@Override
-	public void visit(ColumnPointer leafColumnPointer)
-	{
-		columnPointers.add(leafColumnPointer);
-	}
-	
-	@Override
-	public boolean allowLocationSelfTraversal()
-	{
-		return true;
-	}
-
-	@Override
-	public boolean allowOrientationSelfTraversal()
-	{
-		return true;
-	}
-
-	@Override
-	public boolean allowForeignKeySelfTraversal()
-	{
-		return true;
-	}
-
-	@Override
-	public boolean skipNonBinarySerialisedLocationSubColumns()
-	{
-		return false;
-	}
-
-	@Override
-	public boolean skipNonBinarySerialisedOrientationSubColumns()
-	{
-		return false;
-	}
-
-	@Override
-	public boolean includeVirtualColumns()
-	{
-		return true;
+			if(series.isPartFull())
+			{	// Move on to next part file:
+				series.nextPart();
+				writer = series.getWriter();
+				writer.write(header);
+			}
+			line.setLength(0); // output is buffered in line, nothing is written if an exception occurs
+			firstValue = true;
+			plan.execute(r, this);
+			line.append('\n');
+			writer.write(line.toString());
+			series.recordWritten();
+		}
+		
+		@Override
+		public void enter(ColumnAccessPlan.Step step, Record subRecord)
+		{
+			// does nothing
+		}
+		
+		@Override
+		public void visit(ColumnAccessPlan.Step step, Record record)
+		{
+			if(!firstValue)
+				line.append(separator.getSeparatorChar());
+			firstValue = false;
+			Column<?> col = step.column;
+			if(record != null && col.isValueSet(record)) // do write nothing when the value is not set (i.e. null is represented by an empty String)
+			{
+				/* Get String representing the column value...
+				 * 	If the column type is String (meaning it is a StringColumn or a VirtualColumn with a StringColumn as its target),
+				 * 	then we use the raw String value returned by StringColumn#retrieveValue() instead of the singe-quoted String returned
+				 * 	by StringColumn#retrieveValueAsString(). */
+				String valueString = (col.getType() == String.class ? (String) col.retrieveValue(record) : col.retrieveValueAsString(record));
+				/* Write value and escape/quote if necessary or required...
+				 * 	We force (double) quotes on StringColumns in order to maintain ability to differentiate null and empty String.
+				 * 	We don't need to do this on VirtualColumns with target type String because their values will get quoted when needed
+				 * 	(i.e. due to occurrence of double quote, new line or separator) but they don't need to maintain the difference between
+				 * 	null and empty String since virtual columns would be ignored if we ever implement a CSVRecordsImporter class. */	
+				appendEscapedAndQuoted(line, valueString, col instanceof StringColumn);
+			}
+		}
+		
+		@Override
+		public void leave(ColumnAccessPlan.Step step, Record subRecord)
+		{
+			// does nothing
+		}
+		
+		/**
+		 * Called on the reading thread.
+		 * 
+		 * @param batch
+		 */
+		public void submit(List<Record> batch)
+		{
+			synchronized(this)
+			{
+				submittedBatches.add(batch);
+				if(running)
+					return; // batch will be picked up by the running task
+				running = true;
+			}
+			job.executor.execute(this);
+		}
+		
+		/**
+		 * Called on the reading thread, after the last batch has been submitted.
+		 */
+		public void submitClose()
+		{
+			synchronized(this)
+			{
+				closeRequested = true;
+				if(running)
+					return; // will be closed by the running task
+				running = true;
+			}
+			job.executor.execute(this);
+		}
+		
+		/**
+		 * Writes submitted batches until there are none left, called on a writing thread.
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				List<Record> batch;
+				synchronized(this)
+				{
+					batch = submittedBatches.poll();
+					if(batch == null)
+					{
+						if(closeRequested)
+							close();
+						running = false;
+						return;
+					}
+				}
+				try
+				{
+					for(Record r : batch)
+					{
+						if(job.getFailure() != null)
+							break; // stop writing as soon as anything went wrong
+						write(r);
+						job.exported(r);
+					}
+				}
+				catch(Exception e)
+				{
+					job.fail(e);
+				}
+				finally
+				{
+					job.batchPermits.release();
+				}
+			}
+		}
+		
+		/**
+		 * @return the files which were kept (i.e. which contain at least one record)
+		 */
+		public synchronized List<File> close()
+		{
+			if(files == null)
+				files = series.close();
+			return files;
+		}
+		
 	}
 	
 }
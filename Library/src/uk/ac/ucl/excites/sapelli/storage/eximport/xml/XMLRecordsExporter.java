@@ -21,24 +21,33 @@ package uk.ac.ucl.excites.sapelli.storage.eximport.xml;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.joda.time.DateTime;
 
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBIterationException;
 import uk.ac.ucl.excites.sapelli.shared.io.FileHelpers;
 import uk.ac.ucl.excites.sapelli.shared.io.FileWriter;
 import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.TimeUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.UnicodeHelpers;
 import uk.ac.ucl.excites.sapelli.shared.util.xml.XMLUtils;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ColumnAccessPlan;
 import uk.ac.ucl.excites.sapelli.storage.eximport.ExportResult;
+import uk.ac.ucl.excites.sapelli.storage.eximport.ExportSink;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Exporter;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
 import uk.ac.ucl.excites.sapelli.storage.model.RecordColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
 import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
+import uk.ac.ucl.excites.sapelli.storage.util.RecordReferenceBitmap;
 import uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser;
 
 
@@ -99,14 +108,24 @@ public class XMLRecordsExporter extends SimpleSchemaTraverser implements Exporte
 	
 	static public CompositeMode DEFAULT_COMPOSITE_MODE = CompositeMode.Flat;
 	
+	static private final int WRITER_BUFFER_SIZE = 64 * 1024; // chars
+	
+	static public final String XML_EXTENSION = "xml";
+	
 	// DYNAMICS------------------------------------------------------
 	private File exportFolder;
 	private CompositeMode compositeMode;
 	
+	private ExportSink sink;
+	
+	private ExportSink.FileSeries series = null;
+	private ExportSink.Manifest manifest = null;
+	private String baseName;
 	private FileWriter writer = null;
 	private int tabs = 0;
 	
-	private Record currentRecord;
+	private final Map<Schema, ColumnAccessPlan> plans = new HashMap<Schema, ColumnAccessPlan>();
+	private final RecordWriter recordWriter = new RecordWriter();
 	
 	public XMLRecordsExporter(File exportFolder)
 	{
@@ -114,48 +133,131 @@ public class XMLRecordsExporter extends SimpleSchemaTraverser implements Exporte
 	}
 	
 	public XMLRecordsExporter(File exportFolder, CompositeMode compositeMode)
+	{
+		this(exportFolder, compositeMode, ExportSink.PLAIN);
+	}
+	
+	/**
+	 * @param exportFolder
+	 * @param compositeMode
+	 * @param sink determines whether files are compressed, split and/or accompanied by a manifest
+	 */
+	public XMLRecordsExporter(File exportFolder, CompositeMode compositeMode, ExportSink sink)
 	{
 		if(!FileHelpers.createDirectory(exportFolder))
 			throw new IllegalArgumentException("Export folder (" + exportFolder + ") does not exist and could not be created!");
 		this.exportFolder = exportFolder;
 		this.compositeMode = compositeMode;
-		this.currentRecord = null;
+		this.sink = sink;
 	}
 	
 	private void openWriter(String description) throws Exception
 	{
 		DateTime timestamp = DateTime.now();
-		writer = new FileWriter(exportFolder + File.separator + FileHelpers.makeValidFileName("Records_" + description + "_" + TimeUtils.getTimestampForFileName(timestamp) + ".xml"), UnicodeHelpers.UTF8);
-		writer.open(FileHelpers.FILE_EXISTS_STRATEGY_REPLACE, FileHelpers.FILE_DOES_NOT_EXIST_STRATEGY_CREATE);
+		baseName = "Records_" + description + "_" + TimeUtils.getTimestampForFileName(timestamp);
+		manifest = sink.createManifest();
+		series = sink.open(exportFolder, baseName, XML_EXTENSION, WRITER_BUFFER_SIZE, manifest);
+		writer = series.getWriter();
+		writeHeader(timestamp);
+	}
+	
+	private void writeHeader(DateTime timestamp)
+	{
 		writer.writeLine(XMLUtils.header(UnicodeHelpers.UTF8.displayName(), USES_XML_VERSION_11));
 		writer.writeLine("<" + TAG_RECORDS_EXPORT + " exportedAt=\"" + TimeUtils.getISOTimestamp(timestamp, false) + "\">");
 		//TODO add attributes: comment, device(?)
 	}
 	
-	private void closeWriter()
+	private void writeFooter()
 	{
-		if(writer != null)
+		writer.writeLine("</" + TAG_RECORDS_EXPORT + ">");
+	}
+	
+	/**
+	 * If the current part is full, ends it and starts the next one.
+	 * 
+	 * @throws Exception
+	 */
+	private void checkPart() throws Exception
+	{
+		if(series.isPartFull())
 		{
-			writer.writeLine("</" + TAG_RECORDS_EXPORT + ">");
-			writer.dispose(); // also closes
-			writer = null;
+			writeFooter();
+			series.nextPart();
+			writer = series.getWriter();
+			writeHeader(DateTime.now());
 		}
 	}
 	
+	/**
+	 * @return the files that were written, including the manifest (if any)
+	 * @throws Exception when writing the manifest fails
+	 */
+	private List<File> closeWriter() throws Exception
+	{
+		if(series == null)
+			return Collections.<File> emptyList();
+		writeFooter();
+		List<File> files = series.close();
+		series = null;
+		writer = null;
+		if(manifest != null && !files.isEmpty())
+			files.add(manifest.write(exportFolder, baseName));
+		manifest = null;
+		return files;
+	}
+	
 	@Override
 	public ExportResult export(List<Record> records, String description)
 	{
 		if(records == null || records.isEmpty())
 			return ExportResult.NothingToExport();
-		List<Record> exported = new ArrayList<Record>();
+		return export(records.iterator(), records.size(), description, new ArrayList<Record>());
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Exporter#export(java.util.Iterator, java.lang.String)
+	 */
+	@Override
+	public ExportResult export(Iterator<Record> records, String description)
+	{
+		return export(records, -1, description, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.storage.eximport.Exporter#export(uk.ac.ucl.excites.sapelli.storage.db.RecordStore, uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery, java.lang.String)
+	 */
+	@Override
+	public ExportResult export(RecordStore store, RecordsQuery query, String description)
+	{
+		return export(store.iterateRecords(query), -1, description, null);
+	}
+	
+	/**
+	 * Exports the records to a single XML file, which is only created once the first (non-internal) record comes along.
+	 * 
+	 * @param records
+	 * @param numberOfRecords the total number of records the iterator produces, or -1 if unknown (in which case records which are never read because the export fails are not counted as unexported)
+	 * @param description
+	 * @param exported list to which to add the exported records, or {@code null} if only references to them are to be kept
+	 * @return
+	 */
+	private ExportResult export(Iterator<Record> records, int numberOfRecords, String description, List<Record> exported)
+	{
+		RecordReferenceBitmap exportedReferences = exported == null ? new RecordReferenceBitmap() : null;
+		int exportedCount = 0;
 		try
 		{
-			openWriter(description);
-			tabs = 1;
-			for(Record r : records)
+			while(records.hasNext())
 			{
+				Record r = records.next();
 				if(r.getSchema().isInternal())
 					continue; // we do not export records of internal schemata
+				if(series == null)
+					openWriter(description);
+				else
+					checkPart();
+				tabs = 1;
 				writer.openTransaction(); // output will be buffered
 				try
 				{				
@@ -170,9 +272,14 @@ public class XMLRecordsExporter extends SimpleSchemaTraverser implements Exporte
 					// Indent: 
 					tabs++;
 				
-					// Traverse columns:
-					currentRecord = r;
-					traverse(r.getSchema());
+					// Write columns:
+					ColumnAccessPlan plan = plans.get(r.getSchema());
+					if(plan == null)
+					{
+						plan = ColumnAccessPlan.Compile(r.getSchema(), this);
+						plans.put(r.getSchema(), plan);
+					}
+					plan.execute(r, recordWriter);
 				
 					// Unindent:
 					tabs--;
@@ -189,86 +296,124 @@ public class XMLRecordsExporter extends SimpleSchemaTraverser implements Exporte
 					throw e; //!!!
 				}
 				writer.commitTransaction(); // write out buffer
-				exported.add(r);
+				series.recordWritten();
+				exportedCount++;
+				if(exported != null)
+					exported.add(r);
+				else
+					exportedReferences.add(r);
 				// TODO mark record as exported?
 			}
-			// Result...			
-			return ExportResult.Success(exported, exportFolder, Collections.singletonList(writer.getFile()));
+			// Result...
+			List<File> files = closeWriter();
+			if(exportedCount == 0)
+				return ExportResult.NothingToExport();
+			else if(exported != null)
+				return ExportResult.Success(exported, exportFolder, files);
+			else
+				return ExportResult.Success(exportedReferences, exportedCount, exportFolder, files);
 		}
 		catch(Exception e)
 		{
 			e.printStackTrace(System.err);
-			if(!exported.isEmpty())
-				return ExportResult.PartialFailure(exported, exportFolder, Collections.singletonList(writer.getFile()), e, records.size() - exported.size());
+			int unexportedCount = 0;
+			List<File> files = Collections.<File> emptyList();
+			if(series != null)
+			{	// the exception was thrown upon writing or retrieving a record (rather than upon closing)
+				if(!(e instanceof DBIterationException))
+					unexportedCount++; // the record which failed
+				try
+				{
+					files = closeWriter();
+				}
+				catch(Exception ignore)
+				{
+				}
+			}
+			if(numberOfRecords >= 0)
+				unexportedCount = numberOfRecords - exportedCount;
+			if(exportedCount == 0)
+				return ExportResult.Failure(exportFolder, e, unexportedCount);
+			else if(exported != null)
+				return ExportResult.PartialFailure(exported, exportFolder, files, e, unexportedCount);
 			else
-				return ExportResult.Failure(exportFolder, e, records.size());
-		}
-		finally
-		{
-			closeWriter();
+				return ExportResult.PartialFailure(exportedReferences, exportedCount, exportFolder, files, e, unexportedCount);
 		}
 	}
 
+	/**
+	 * Columns are written by means of a {@link ColumnAccessPlan} instead.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.storage.visitors.SimpleSchemaTraverser#visit(uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer)
+	 */
 	@Override
-	public void enter(RecordColumn<?> recordCol)
+	public void visit(ColumnPointer leafColumnPointer)
 	{
-		if(compositeMode == CompositeMode.String)
-			return; //this should never happen
-		
-		// Push on columnStack:
-		super.enter(recordCol);
-		
-		// Write null value comment if subrecord is null:
-		if(getColumnPointer().retrieveValue(currentRecord) == null)
-			writer.writeLine(StringUtils.addTabsFront(getNullRecordComment(recordCol.getName()), tabs));
-		else if(compositeMode == CompositeMode.Nested) 
-		{	// If in nested tags mode and subrecord is not null, open parent tag:
-			writer.writeLine(StringUtils.addTabsFront("<" + recordCol.getName() + ">", tabs));
-			tabs++;
-		}
+		// does nothing
 	}
 	
-	@Override
-	public void leave(RecordColumn<?> recordCol)
+	/**
+	 * Writes the column values of a record, as the {@link ColumnAccessPlan} of its schema is executed.
+	 * 
+	 * @author mstevens
+	 */
+	private class RecordWriter implements ColumnAccessPlan.Handler
 	{
-		if(compositeMode == CompositeMode.String)
-			return; //this should never happen
-
-		// If in nested tags mode and subrecord is not null, close parent tag:
-		if(compositeMode == CompositeMode.Nested && getColumnPointer().retrieveValue(currentRecord) != null)
+	
+		@Override
+		public void enter(ColumnAccessPlan.Step step, Record subRecord)
 		{
-			tabs--;
-			writer.writeLine(StringUtils.addTabsFront("</" + recordCol.getName() + ">", tabs));
+			if(compositeMode == CompositeMode.String)
+				return; //this should never happen
+			
+			// Write null value comment if subrecord is null:
+			if(subRecord == null)
+				writer.writeLine(StringUtils.addTabsFront(getNullRecordComment(step.column.getName()), tabs));
+			else if(compositeMode == CompositeMode.Nested) 
+			{	// If in nested tags mode and subrecord is not null, open parent tag:
+				writer.writeLine(StringUtils.addTabsFront("<" + step.column.getName() + ">", tabs));
+				tabs++;
+			}
 		}
 		
-		// Pop columnStack:
-		super.leave(recordCol);
-	}
+		@Override
+		public void leave(ColumnAccessPlan.Step step, Record subRecord)
+		{
+			if(compositeMode == CompositeMode.String)
+				return; //this should never happen
 	
-	@Override
-	public void visit(ColumnPointer leafColumnPointer)
-	{
-		Record record = leafColumnPointer.getRecord(currentRecord, false);
-		
-		// If in nested or flat tags mode and subrecord is null: return
-		if(record == null && compositeMode != CompositeMode.String)
-			return;
+			// If in nested tags mode and subrecord is not null, close parent tag:
+			if(compositeMode == CompositeMode.Nested && subRecord != null)
+			{
+				tabs--;
+				writer.writeLine(StringUtils.addTabsFront("</" + step.column.getName() + ">", tabs));
+			}
+		}
 		
-		// Write column value or null value comment:
-		Column<?> leafColumn = leafColumnPointer.getColumn();
-		String columnName = (compositeMode == CompositeMode.Flat ? leafColumnPointer.getQualifiedColumnName() : leafColumn.getName());
-		if(record != null && leafColumn.isValueSet(record))
+		@Override
+		public void visit(ColumnAccessPlan.Step step, Record record)
 		{
-			/* 	If the column type is String (meaning it is a StringColumn or a VirtualColumn with a StringColumn as its target), then
-				we use the raw (i.e. unquoted) String value. We can do this because the difference between null and the empty string
-				is preserved due to the fact that we do not put a tag (only an XML comment) in case the value is null.
-				See XMLRecordsImporter#characters(char[], int, int) for the corresponding import logic.
-				*/
-			String valueString = (leafColumn.getType() == String.class ? (String) leafColumn.retrieveValue(record) : leafColumn.retrieveValueAsString(record));
-			writer.writeLine(StringUtils.addTabsFront("<" + columnName + ">" + (USES_XML_VERSION_11 ? StringEscapeUtils.escapeXml11(valueString) : StringEscapeUtils.escapeXml10(valueString)) + "</" + columnName + ">", tabs));
+			// If in nested or flat tags mode and subrecord is null: return
+			if(record == null && compositeMode != CompositeMode.String)
+				return;
+			
+			// Write column value or null value comment:
+			Column<?> leafColumn = step.column;
+			String columnName = (compositeMode == CompositeMode.Flat ? step.qualifiedColumnName : leafColumn.getName());
+			if(record != null && leafColumn.isValueSet(record))
+			{
+				/* 	If the column type is String (meaning it is a StringColumn or a VirtualColumn with a StringColumn as its target), then
+					we use the raw (i.e. unquoted) String value. We can do this because the difference between null and the empty string
+					is preserved due to the fact that we do not put a tag (only an XML comment) in case the value is null.
+					See XMLRecordsImporter#characters(char[], int, int) for the corresponding import logic.
+					*/
+				String valueString = (leafColumn.getType() == String.class ? (String) leafColumn.retrieveValue(record) : leafColumn.retrieveValueAsString(record));
+				writer.writeLine(StringUtils.addTabsFront("<" + columnName + ">" + (USES_XML_VERSION_11 ? StringEscapeUtils.escapeXml11(valueString) : StringEscapeUtils.escapeXml10(valueString)) + "</" + columnName + ">", tabs));
+			}
+			else
+				writer.writeLine(StringUtils.addTabsFront(getNullRecordComment(columnName), tabs));
 		}
-		else
-			writer.writeLine(StringUtils.addTabsFront(getNullRecordComment(columnName), tabs));
+		
 	}
 	
 	private String getNullRecordComment(String columnName)
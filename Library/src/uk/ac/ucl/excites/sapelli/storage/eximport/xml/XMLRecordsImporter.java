@@ -20,7 +20,9 @@ package uk.ac.ucl.excites.sapelli.storage.eximport.xml;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 import org.xml.sax.SAXException;
@@ -28,7 +30,9 @@ import org.xml.sax.SAXException;
 import uk.ac.ucl.excites.sapelli.shared.util.StringUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.xml.DocumentParser;
 import uk.ac.ucl.excites.sapelli.shared.util.xml.XMLAttributes;
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
 import uk.ac.ucl.excites.sapelli.storage.eximport.Importer;
 import uk.ac.ucl.excites.sapelli.storage.eximport.xml.XMLRecordsExporter.CompositeMode;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
@@ -53,11 +57,32 @@ import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 public class XMLRecordsImporter extends DocumentParser implements Importer
 {
 
+	static public final int DEFAULT_BATCH_SIZE = 500;
+	
 	protected StorageClient client;
 	protected Record currentRecord;
 	protected boolean v1xExport;
 	protected Stack<Column<?>> columnStack;
 	protected List<Record> records;
+	
+	/**
+	 * Text content of the current element (SAX may deliver it in several pieces)
+	 */
+	private final StringBuilder valueBuffer = new StringBuilder();
+	
+	/**
+	 * Schemata resolved so far, by modelID and schema number (or, for v1.x exports, by schemaID and schemaVersion),
+	 * to avoid looking them up (which may involve opening a store and/or parsing a project) for every record
+	 */
+	private final Map<Long, Map<Integer, Schema>> schemaCache = new HashMap<Long, Map<Integer, Schema>>();
+	private final Map<Long, Map<Integer, Schema>> v1xSchemaCache = new HashMap<Long, Map<Integer, Schema>>();
+	
+	/**
+	 * Only used when importing in streaming mode (see {@link #importInto(File, RecordStore, int)}):
+	 */
+	private RecordStore store;
+	private int batchSize;
+	private int storedCount;
 
 	public XMLRecordsImporter(StorageClient client)
 	{
@@ -72,10 +97,99 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 	@Override
 	public List<Record> importFrom(File xmlFile) throws UnknownModelException, IndexOutOfBoundsException, Exception
 	{
+		store = null;
 		records = new ArrayList<Record>();
+		doImport(xmlFile);
+		return records;
+	}
+	
+	/**
+	 * Imports records from the given XML file and stores them in the given {@link RecordStore} as they are parsed, in
+	 * batches of the given size, each of which is stored in a single transaction. This means memory use does not grow
+	 * with the size of the file, but if storing a batch fails the batches which were stored before remain stored.
+	 * 
+	 * @param xmlFile
+	 * @param store
+	 * @param batchSize maximum number of records to keep in memory and to store per transaction
+	 * @return the number of records that were stored
+	 * @throws UnknownModelException when no model with the given {@code modelID} was found
+	 * @throws IndexOutOfBoundsException when the model with the given {@code modelID} does not have a schema with the given {@code schemaNumber}
+	 * @throws DBException when storing a batch of records fails
+	 * @throws Exception in case of another problem
+	 */
+	public int importInto(File xmlFile, RecordStore store, int batchSize) throws UnknownModelException, IndexOutOfBoundsException, DBException, Exception
+	{
+		if(store == null)
+			throw new NullPointerException("RecordStore cannot be null!");
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.store = store;
+		this.batchSize = batchSize;
+		this.storedCount = 0;
+		records = new ArrayList<Record>(batchSize);
+		try
+		{
+			doImport(xmlFile);
+			storeBatch(); // store remaining records
+			return storedCount;
+		}
+		finally
+		{
+			this.store = null;
+			records = null;
+		}
+	}
+	
+	private void doImport(File xmlFile) throws Exception
+	{
 		columnStack.clear();
+		currentRecord = null;
+		schemaCache.clear(); // models may have changed between imports
+		v1xSchemaCache.clear();
 		parse(open(xmlFile));
-		return records;
+	}
+	
+	private void storeBatch() throws DBException
+	{
+		if(records.isEmpty())
+			return;
+		store.store(records);
+		storedCount += records.size();
+		records.clear();
+	}
+	
+	private Schema getSchema(long modelID, int modelSchemaNo, String schemaName) throws UnknownModelException, IndexOutOfBoundsException
+	{
+		Map<Integer, Schema> schemata = schemaCache.get(modelID);
+		if(schemata == null)
+		{
+			schemata = new HashMap<Integer, Schema>();
+			schemaCache.put(modelID, schemata);
+		}
+		Schema schema = schemata.get(modelSchemaNo);
+		if(schema == null)
+		{
+			schema = client.getSchema(modelID, modelSchemaNo, schemaName);
+			schemata.put(modelSchemaNo, schema);
+		}
+		return schema;
+	}
+	
+	private Schema getSchemaV1(int schemaID, int schemaVersion) throws UnknownModelException
+	{
+		Map<Integer, Schema> schemata = v1xSchemaCache.get((long) schemaID);
+		if(schemata == null)
+		{
+			schemata = new HashMap<Integer, Schema>();
+			v1xSchemaCache.put((long) schemaID, schemata);
+		}
+		Schema schema = schemata.get(schemaVersion);
+		if(schema == null)
+		{
+			schema = client.getSchemaV1(schemaID, schemaVersion);
+			schemata.put(schemaVersion, schema);
+		}
+		return schema;
 	}
 
 	@Override
@@ -87,6 +201,8 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 	@Override
 	public void parseStartElement(String uri, String localName, String qName, XMLAttributes attributes) throws UnknownModelException, IndexOutOfBoundsException, SAXException
 	{
+		valueBuffer.setLength(0); // any text before a child element is not a value
+		
 		// <RecordsExport>
 		if(qName.equals(XMLRecordsExporter.TAG_RECORDS_EXPORT))
 		{
@@ -105,7 +221,7 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 				{	//This file contains records exported by Sapelli v1.x
 					int schemaID = attributes.getRequiredInteger(Record.TAG_RECORD, Schema.V1X_ATTRIBUTE_SCHEMA_ID, "because this is a v1.x record");
 					int schemaVersion = attributes.getInteger(Schema.V1X_ATTRIBUTE_SCHEMA_VERSION, Schema.V1X_DEFAULT_SCHEMA_VERSION);
-					schema = client.getSchemaV1(schemaID, schemaVersion);
+					schema = getSchemaV1(schemaID, schemaVersion);
 					v1xExport = true;
 				}
 				else
@@ -113,13 +229,13 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 					long modelID = attributes.getRequiredLong(Record.TAG_RECORD, Schema.ATTRIBUTE_MODEL_ID);
 					int modelSchemaNo = attributes.getRequiredInteger(Record.TAG_RECORD, Schema.ATTRIBUTE_MODEL_SCHEMA_NUMBER);
 					String schemaName = attributes.getString(Schema.ATTRIBUTE_SCHEMA_NAME, null, false, false);
-					schema = client.getSchema(modelID, modelSchemaNo, schemaName);
+					schema = getSchema(modelID, modelSchemaNo, schemaName);
 					v1xExport = false;
 				}
 			}
 			catch(IllegalArgumentException iae)
 			{
-				new SAXException("This is not a valid Sapelli XML record export (missing model/schema identification attribute(s))");
+				throw new SAXException("This is not a valid Sapelli XML record export (missing model/schema identification attribute(s))");
 			}
 			if(schema != null)
 				currentRecord = schema.createRecord();
@@ -129,11 +245,24 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 		else if(currentRecord != null)
 		{
 			Record record = currentRecord;
-			for(String colName : qName.split("\\" + RecordColumn.QUALIFIED_NAME_SEPARATOR))
+			int colNameStart = 0;
+			while(colNameStart <= qName.length())
 			{
+				// Split qualified name without using a regular expression:
+				int colNameEnd = qName.indexOf(RecordColumn.QUALIFIED_NAME_SEPARATOR, colNameStart);
+				if(colNameEnd == -1)
+					colNameEnd = qName.length();
+				String colName = qName.substring(colNameStart, colNameEnd);
+				colNameStart = colNameEnd + 1;
+				
 				// Deal with previous (record)column:
 				if(!columnStack.isEmpty())
 				{
+					if(!(columnStack.peek() instanceof RecordColumn))
+					{	// parent column was unrecognised (or is not a composite): skip this one too
+						columnStack.push(null); // one entry per qualified name part, which is what endElement() expects
+						continue;
+					}
 					RecordColumn<?> recCol = ((RecordColumn<?>) columnStack.peek());
 					// Create subrecord instance:
 					if(!recCol.isValueSet(record))
@@ -151,8 +280,6 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 					col = null;
 				}
 				columnStack.push(col); // even when null! (to deal with unrecognised columns)
-				if(col == null)
-					break;
 			}
 		}
 		// <?>
@@ -162,6 +289,16 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException
+	{
+		// Collect (part of) leaf value string, which is parsed when the element ends:
+		if(currentRecord != null && !columnStack.isEmpty() && columnStack.peek() != null)
+			valueBuffer.append(ch, start, length);
+	}
+	
+	/**
+	 * Parses the collected value string and stores the value in the (sub)record corresponding to the column at the top of the columnStack.
+	 */
+	private void storeValue()
 	{
 		// Reached leaf value string...
 		if(currentRecord != null && !columnStack.isEmpty() && columnStack.peek() != null)
@@ -176,7 +313,7 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 					record = ((RecordColumn<?>) col).retrieveValue(record);
 			
 			// Get string representation of column value:
-			String valueString = new String(ch, start, length);
+			String valueString = valueBuffer.toString();
 			// String checks:
 			if(!(column instanceof StringColumn)) // Note: We may want to try and do this without so many instanceof checks...
 			{
@@ -223,12 +360,32 @@ public class XMLRecordsImporter extends DocumentParser implements Importer
 		// </Record>
 		if(qName.equals(Record.TAG_RECORD))
 		{
-			records.add(currentRecord);
-			currentRecord = null;
+			if(currentRecord != null)
+			{
+				records.add(currentRecord);
+				currentRecord = null;
+				// Streaming mode: store batch once it is full:
+				if(store != null && records.size() >= batchSize)
+				{
+					try
+					{
+						storeBatch();
+					}
+					catch(DBException dbE)
+					{
+						throw new SAXException(dbE);
+					}
+				}
+			}
 		}
 		// Record columns:
 		else if(currentRecord != null && !columnStack.isEmpty())
 		{
+			if(valueBuffer.length() > 0)
+			{
+				storeValue();
+				valueBuffer.setLength(0);
+			}
 			for(int c = 0; c <= StringUtils.countOccurances(qName, RecordColumn.QUALIFIED_NAME_SEPARATOR); c++)
 				columnStack.pop();
 		}
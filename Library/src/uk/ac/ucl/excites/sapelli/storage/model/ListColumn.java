@@ -192,6 +192,14 @@ public abstract class ListColumn<L extends List<T>, T> extends Column<L>
 		return false;
 	}
 
+	/**
+	 * @return the singleColumn
+	 */
+	public Column<T> getSingleColumn()
+	{
+		return singleColumn;
+	}
+	
 	/**
 	 * @return the maxLength
 	 */
@@ -109,25 +109,39 @@ public class Model implements Serializable
 		META_SCHEMA.seal();
 	}
 	
+	/**
+	 * Compression used for the (legacy) Java serialisation of models, see {@link #GetModelRecord(Model)}
+	 */
 	private static Compression OBJECT_COMPRESSION = Compression.DEFLATE;
 	
 	/**
 	 * Returns "model record" which describes the given model (and contains a serialised version of it)
 	 * 
+	 * The model is serialised using the compact {@link ModelSerialiser} format, unless it contains schemata or columns
+	 * that format does not support, in which case we fall back to (compressed) Java serialisation.
+	 * 
 	 * @param schema
 	 * @return
 	 * @throws IOException
 	 */
 	static public Record GetModelRecord(Model model) throws IOException
 	{
-		// Serialise Model object:
-		ByteArrayOutputStream rawOut = new ByteArrayOutputStream();	
-		ObjectOutputStream objOut = new ObjectOutputStream(CompressorFactory.getCompressorOutputStream(OBJECT_COMPRESSION, rawOut));
-		objOut.writeObject(model);
-		objOut.flush();
-		objOut.close();
+		byte[] serialisedModel;
+		try
+		{
+			serialisedModel = ModelSerialiser.Serialise(model);
+		}
+		catch(UnsupportedOperationException uoe)
+		{	// Fall back to Java serialisation of the Model object:
+			ByteArrayOutputStream rawOut = new ByteArrayOutputStream();	
+			ObjectOutputStream objOut = new ObjectOutputStream(CompressorFactory.getCompressorOutputStream(OBJECT_COMPRESSION, rawOut));
+			objOut.writeObject(model);
+			objOut.flush();
+			objOut.close();
+			serialisedModel = rawOut.toByteArray();
+		}
 		// Return new Model record:
-		return MODEL_SCHEMA.createRecord(model.id, model.name, rawOut.toByteArray(), model.hashCode());
+		return MODEL_SCHEMA.createRecord(model.id, model.name, serialisedModel, model.hashCode());
 	}
 	
 	/**
@@ -160,10 +174,16 @@ public class Model implements Serializable
 		if(modelRecord.getSchema() != MODEL_SCHEMA)
 			throw new IllegalArgumentException("The given record is a not a " + MODEL_SCHEMA.name + " record!");
 		
-		// Decompress & deserialise Schema object bytes:
-		ObjectInputStream objIn = new ObjectInputStream(CompressorFactory.getCompressorInputStream(OBJECT_COMPRESSION, new ByteArrayInputStream(MODEL_OBJECT_SERIALISATION_COLUMN.retrieveValue(modelRecord))));
-		Model model = (Model) objIn.readObject();
-		objIn.close();
+		byte[] serialisedModel = MODEL_OBJECT_SERIALISATION_COLUMN.retrieveValue(modelRecord);
+		Model model;
+		if(ModelSerialiser.IsSerialisation(serialisedModel))
+			model = ModelSerialiser.Deserialise(serialisedModel);
+		else
+		{	// Decompress & deserialise (legacy) Model object bytes:
+			ObjectInputStream objIn = new ObjectInputStream(CompressorFactory.getCompressorInputStream(OBJECT_COMPRESSION, new ByteArrayInputStream(serialisedModel)));
+			model = (Model) objIn.readObject();
+			objIn.close();
+		}
 		
 		// Perform check:
 		if(model.hashCode() != MODEL_OBJECT_HASHCODE_COLUMN.retrieveValue(modelRecord))
@@ -0,0 +1,502 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.ByteArrayColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.FloatColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.ForeignKeyColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerListColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.LineColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.LocationColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.OrientationColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.PolygonColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.TimeStampColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.AutoIncrementingPrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.Index;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.util.StringListMapper;
+
+/**
+ * Compact, versioned binary serialisation of {@link Model}s, used for the blobs stored in "model records" (see {@link Model#GetModelRecord(Model)}).
+ * 
+ * Unlike Java serialisation this format does not contain class descriptors, so it is much smaller and does not break when classes are refactored.
+ * The flip side is that only the {@link Schema}, {@link Column}, {@link Index} & {@link VirtualColumn.ValueMapper} classes known to this class
+ * can be serialised. When a model contains anything else (or anything which would not survive the round trip unchanged) an
+ * {@link UnsupportedOperationException} is thrown and the caller is expected to fall back to Java serialisation.
+ * 
+ * A serialisation starts with a single (uncompressed) header byte holding the format version, followed by the DEFLATE-compressed body.
+ * The lowest 3 bits of the header byte are always {@code 110} (binary), which can never occur at the start of a raw (i.e. headerless)
+ * DEFLATE stream (block type {@code 11} is reserved), so serialisations can be told apart from older compressed Java serialisations.
+ * 
+ * @author mstevens
+ */
+public final class ModelSerialiser
+{
+
+	/**
+	 * Must be incremented whenever the format changes in an incompatible way (max. 31)
+	 */
+	static public final int FORMAT_VERSION = 1;
+	
+	static private final int HEADER_MARKER = 0x06;
+	static private final int HEADER_MARKER_MASK = 0x07;
+	static private final int HEADER_VERSION_SHIFT = 3;
+	
+	static private final Compression COMPRESSION = Compression.DEFLATE;
+	
+	// Column type tags:
+	static private final byte TAG_BOOLEAN = 0;
+	static private final byte TAG_INTEGER = 1;
+	static private final byte TAG_INTEGER_RANGE = 2;
+	static private final byte TAG_FLOAT = 3;
+	static private final byte TAG_STRING = 4;
+	static private final byte TAG_BYTE_ARRAY = 5;
+	static private final byte TAG_TIMESTAMP = 6;
+	static private final byte TAG_LOCATION = 7;
+	static private final byte TAG_ORIENTATION = 8;
+	static private final byte TAG_FOREIGN_KEY = 9;
+	static private final byte TAG_LIST = 10;
+	static private final byte TAG_INTEGER_LIST = 11;
+	static private final byte TAG_LINE = 12;
+	static private final byte TAG_POLYGON = 13;
+	
+	// Index kind tags:
+	static private final byte TAG_INDEX = 0;
+	static private final byte TAG_PRIMARY_KEY = 1;
+	static private final byte TAG_AUTO_INCREMENTING_PRIMARY_KEY = 2;
+	
+	private ModelSerialiser()
+	{
+		// should never be instantiated
+	}
+	
+	/**
+	 * @param bytes
+	 * @return whether the given bytes start with the header of a serialisation produced by this class (of any version)
+	 */
+	static public boolean IsSerialisation(byte[] bytes)
+	{
+		return bytes != null && bytes.length > 0 && (bytes[0] & HEADER_MARKER_MASK) == HEADER_MARKER;
+	}
+	
+	/**
+	 * Serialises the given model and checks that deserialising the result produces an equal model.
+	 * 
+	 * @param model
+	 * @return the serialised model
+	 * @throws UnsupportedOperationException when the model cannot be (faithfully) serialised in this format
+	 * @throws IOException
+	 */
+	static public byte[] Serialise(Model model) throws UnsupportedOperationException, IOException
+	{
+		ByteArrayOutputStream rawOut = new ByteArrayOutputStream();
+		rawOut.write(HEADER_MARKER | (FORMAT_VERSION << HEADER_VERSION_SHIFT));
+		DataOutputStream out = new DataOutputStream(CompressorFactory.getCompressorOutputStream(COMPRESSION, rawOut));
+		out.writeLong(model.getID());
+		out.writeUTF(model.getName());
+		out.writeBoolean(model.isSealed());
+		out.writeByte(model.getNumberOfSchemata());
+		for(Schema schema : model.getSchemata())
+			writeSchema(out, model, schema);
+		out.close();
+		byte[] bytes = rawOut.toByteArray();
+		
+		// Check round trip:
+		Model copy = Deserialise(bytes);
+		if(copy.hashCode() != model.hashCode() || !copy.equals(model))
+			throw new UnsupportedOperationException("Model " + model.getName() + " does not survive the round trip");
+		
+		return bytes;
+	}
+	
+	/**
+	 * @param bytes
+	 * @return the deserialised model
+	 * @throws IOException when the bytes are not a valid serialisation, or one of an unsupported format version
+	 */
+	static public Model Deserialise(byte[] bytes) throws IOException
+	{
+		if(!IsSerialisation(bytes))
+			throw new IOException("Not a model serialisation");
+		int version = (bytes[0] & 0xFF) >>> HEADER_VERSION_SHIFT;
+		if(version != FORMAT_VERSION)
+			throw new IOException("Unsupported model serialisation format version (" + version + ")");
+		DataInputStream in = new DataInputStream(CompressorFactory.getCompressorInputStream(COMPRESSION, new ByteArrayInputStream(bytes, 1, bytes.length - 1)));
+		try
+		{
+			Model model = new Model(in.readLong(), in.readUTF());
+			boolean sealed = in.readBoolean();
+			int numberOfSchemata = in.readUnsignedByte();
+			for(int s = 0; s < numberOfSchemata; s++)
+				readSchema(in, model);
+			if(sealed)
+				model.seal();
+			return model;
+		}
+		catch(RuntimeException re)
+		{	// thrown by constructors upon invalid arguments
+			throw new IOException("Invalid model serialisation", re);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	static private void writeSchema(DataOutputStream out, Model model, Schema schema) throws UnsupportedOperationException, IOException
+	{
+		// Schema subclasses are deserialised as plain Schema instances, so they must not hold any additional state:
+		for(Class<?> clazz = schema.getClass(); clazz != Schema.class; clazz = clazz.getSuperclass())
+			for(Field field : clazz.getDeclaredFields())
+				if(!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()))
+					throw new UnsupportedOperationException("Schema subclass " + clazz.getName() + " has instance field " + field.getName());
+		
+		out.writeUTF(schema.getName());
+		out.writeBoolean(schema.isSealed());
+		// Columns:
+		List<Column<?>> columns = schema.getColumns(false);
+		out.writeShort(columns.size());
+		for(Column<?> column : columns)
+			writeColumn(out, model, schema, column);
+		// Indexes (including the primary key):
+		List<Index> indexes = schema.getIndexes();
+		out.writeShort(indexes.size());
+		for(Index index : indexes)
+		{
+			if(index == schema.getPrimaryKey())
+				out.writeByte(index.getClass() == AutoIncrementingPrimaryKey.class ? TAG_AUTO_INCREMENTING_PRIMARY_KEY : TAG_PRIMARY_KEY);
+			else if(index.getClass() == Index.class)
+				out.writeByte(TAG_INDEX);
+			else
+				throw new UnsupportedOperationException("Unsupported index type: " + index.getClass().getName());
+			out.writeUTF(index.getName());
+			out.writeBoolean(index.isUnique());
+			List<Column<?>> indexedColumns = index.getColumns(false);
+			out.writeShort(indexedColumns.size());
+			for(Column<?> indexedColumn : indexedColumns)
+				out.writeShort(schema.getColumnPosition(indexedColumn.getName()));
+		}
+	}
+	
+	static private void readSchema(DataInputStream in, Model model) throws IOException
+	{
+		Schema schema = new Schema(model, in.readUTF());
+		boolean sealed = in.readBoolean();
+		// Columns:
+		int numberOfColumns = in.readUnsignedShort();
+		for(int c = 0; c < numberOfColumns; c++)
+			schema.addColumn(readColumn(in, model), true);
+		// Indexes (including the primary key):
+		int numberOfIndexes = in.readUnsignedShort();
+		for(int i = 0; i < numberOfIndexes; i++)
+		{
+			byte tag = in.readByte();
+			String name = in.readUTF();
+			boolean unique = in.readBoolean();
+			Column<?>[] indexedColumns = new Column<?>[in.readUnsignedShort()];
+			for(int c = 0; c < indexedColumns.length; c++)
+				indexedColumns[c] = schema.getColumn(in.readUnsignedShort());
+			switch(tag)
+			{
+				case TAG_INDEX :
+					schema.addIndex(new Index(name, unique, indexedColumns));
+					break;
+				case TAG_PRIMARY_KEY :
+					schema.setPrimaryKey(new PrimaryKey(name, indexedColumns));
+					break;
+				case TAG_AUTO_INCREMENTING_PRIMARY_KEY :
+					if(indexedColumns.length != 1)
+						throw new IOException("Auto-incrementing primary key must span exactly 1 column");
+					schema.setPrimaryKey(new AutoIncrementingPrimaryKey(name, (IntegerColumn) indexedColumns[0]));
+					break;
+				default :
+					throw new IOException("Unknown index tag (" + tag + ")");
+			}
+		}
+		if(sealed)
+			schema.seal(); // will not add an auto-incrementing primary key as the schema already has a primary key
+	}
+	
+	static private void writeColumn(DataOutputStream out, Model model, Schema schema, Column<?> column) throws UnsupportedOperationException, IOException
+	{
+		Class<?> type = column.getClass();
+		boolean writeVirtuals = true;
+		if(type == BooleanColumn.class)
+			writeHeader(out, TAG_BOOLEAN, column);
+		else if(type == IntegerColumn.class)
+		{
+			IntegerColumn intCol = (IntegerColumn) column;
+			if(intCol.getRangeMapping() == null)
+			{
+				writeHeader(out, TAG_INTEGER, column);
+				out.writeBoolean(intCol.isSigned());
+				out.writeByte(intCol.getSize());
+			}
+			else
+			{
+				writeHeader(out, TAG_INTEGER_RANGE, column);
+				writeRangeMapping(out, intCol.getRangeMapping());
+			}
+		}
+		else if(type == FloatColumn.class)
+		{
+			FloatColumn floatCol = (FloatColumn) column;
+			writeHeader(out, TAG_FLOAT, column);
+			out.writeBoolean(floatCol.isSigned());
+			out.writeBoolean(floatCol.isDoublePrecision());
+		}
+		else if(type == StringColumn.class)
+		{
+			StringColumn strCol = (StringColumn) column;
+			writeHeader(out, TAG_STRING, column);
+			out.writeInt(strCol.getMaximumBytes());
+			out.writeUTF(strCol.getCharset().name());
+		}
+		else if(type == ByteArrayColumn.class)
+			writeHeader(out, TAG_BYTE_ARRAY, column);
+		else if(type == TimeStampColumn.class)
+		{
+			TimeStampColumn tsCol = (TimeStampColumn) column;
+			writeHeader(out, TAG_TIMESTAMP, column);
+			writeRangeMapping(out, tsCol.getTimeMapping());
+			out.writeBoolean(tsCol.isKeepMS());
+			out.writeBoolean(tsCol.isKeepLocalTimezone());
+			out.writeBoolean(tsCol.isStrict());
+			// The virtual versions of TimeStampColumns (which use anonymous mappers) are recreated by the constructor:
+			out.writeBoolean(!tsCol.getVirtualVersions().isEmpty());
+			writeVirtuals = false;
+		}
+		else if(type == LocationColumn.class)
+		{
+			LocationColumn locCol = (LocationColumn) column;
+			writeHeader(out, TAG_LOCATION, column);
+			out.writeBoolean(locCol.isDoublePrecision());
+			out.writeBoolean(locCol.isStoreAltitude());
+			out.writeBoolean(locCol.isStoreBearing());
+			out.writeBoolean(locCol.isStoreSpeed());
+			out.writeBoolean(locCol.isStoreAccuracy());
+			out.writeBoolean(locCol.isStoreTime());
+			out.writeBoolean(locCol.isStoreProvider());
+		}
+		else if(type == OrientationColumn.class)
+		{
+			OrientationColumn orCol = (OrientationColumn) column;
+			writeHeader(out, TAG_ORIENTATION, column);
+			out.writeBoolean(orCol.isStoreAzimuth());
+			out.writeBoolean(orCol.isStorePitch());
+			out.writeBoolean(orCol.isStoreRoll());
+		}
+		else if(type == ForeignKeyColumn.class)
+		{
+			// Only references to earlier schemata of the same model can be restored:
+			Schema foreignSchema = ((ForeignKeyColumn) column).getForeignSchema();
+			if(foreignSchema.isInternal() || foreignSchema.getModel() != model || foreignSchema.getModelSchemaNumber() >= schema.getModelSchemaNumber())
+				throw new UnsupportedOperationException("Foreign key column " + column.getName() + " references a schema outside of the model, or a later one");
+			writeHeader(out, TAG_FOREIGN_KEY, column);
+			out.writeByte(foreignSchema.getModelSchemaNumber());
+		}
+		else if(type == ListColumn.Simple.class || type == IntegerListColumn.class)
+		{
+			ListColumn<?, ?> listCol = (ListColumn<?, ?>) column;
+			writeHeader(out, type == IntegerListColumn.class ? TAG_INTEGER_LIST : TAG_LIST, column);
+			out.writeInt(listCol.getMinimumLength());
+			out.writeInt(listCol.getMaximumLength());
+			writeColumn(out, model, schema, listCol.getSingleColumn());
+		}
+		else if(type == LineColumn.class || type == PolygonColumn.class)
+		{
+			LocationColumn pointCol = (LocationColumn) ((ListColumn<?, ?>) column).getSingleColumn();
+			writeHeader(out, type == LineColumn.class ? TAG_LINE : TAG_POLYGON, column);
+			out.writeBoolean(pointCol.isDoublePrecision());
+			out.writeBoolean(pointCol.isStoreAltitude());
+			out.writeBoolean(pointCol.isStoreAccuracy());
+			out.writeBoolean(pointCol.isStoreTime());
+			out.writeBoolean(pointCol.isStoreProvider());
+		}
+		else
+			throw new UnsupportedOperationException("Unsupported column type: " + type.getName());
+		
+		// Virtual versions:
+		if(writeVirtuals)
+		{
+			out.writeByte(column.getVirtualVersions().size());
+			for(VirtualColumn<?, ?> vCol : column.getVirtualVersions())
+			{
+				if(vCol.getValueMapper().getClass() != StringListMapper.class)
+					throw new UnsupportedOperationException("Unsupported value mapper type: " + vCol.getValueMapper().getClass().getName());
+				writeColumn(out, model, schema, vCol.getTargetColumn());
+				List<String> strings = ((StringListMapper) vCol.getValueMapper()).getStringList();
+				out.writeInt(strings.size());
+				for(String str : strings)
+					writeNullableString(out, str);
+			}
+		}
+	}
+	
+	static private Column<?> readColumn(DataInputStream in, Model model) throws IOException
+	{
+		byte tag = in.readByte();
+		String name = in.readUTF();
+		boolean optional = in.readBoolean();
+		Column<?> column;
+		switch(tag)
+		{
+			case TAG_BOOLEAN :
+				column = new BooleanColumn(name, optional);
+				break;
+			case TAG_INTEGER :
+				boolean signed = in.readBoolean();
+				column = new IntegerColumn(name, optional, signed, in.readUnsignedByte(), true);
+				break;
+			case TAG_INTEGER_RANGE :
+				column = new IntegerColumn(name, optional, readRangeMapping(in));
+				break;
+			case TAG_FLOAT :
+				column = new FloatColumn(name, optional, in.readBoolean(), in.readBoolean());
+				break;
+			case TAG_STRING :
+				column = new StringColumn(name, optional, in.readInt(), Charset.forName(in.readUTF()));
+				break;
+			case TAG_BYTE_ARRAY :
+				column = new ByteArrayColumn(name, optional);
+				break;
+			case TAG_TIMESTAMP :
+				// virtual versions are added by the constructor (if needed):
+				return new TimeStampColumn(name, readRangeMapping(in), in.readBoolean(), in.readBoolean(), in.readBoolean(), optional, in.readBoolean());
+			case TAG_LOCATION :
+				column = new LocationColumn(name, optional, in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean());
+				break;
+			case TAG_ORIENTATION :
+				column = new OrientationColumn(name, optional, in.readBoolean(), in.readBoolean(), in.readBoolean());
+				break;
+			case TAG_FOREIGN_KEY :
+				column = new ForeignKeyColumn(name, model.getSchema(in.readUnsignedByte()), optional);
+				break;
+			case TAG_LIST :
+			case TAG_INTEGER_LIST :
+				int minLength = in.readInt();
+				int maxLength = in.readInt();
+				Column<?> singleColumn = readColumn(in, model);
+				if(tag == TAG_INTEGER_LIST)
+					column = new IntegerListColumn(name, (IntegerColumn) singleColumn, optional, minLength, maxLength);
+				else
+					column = newSimpleListColumn(name, singleColumn, optional, minLength, maxLength);
+				break;
+			case TAG_LINE :
+				column = new LineColumn(name, optional, in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean());
+				break;
+			case TAG_POLYGON :
+				column = new PolygonColumn(name, optional, in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean(), in.readBoolean());
+				break;
+			default :
+				throw new IOException("Unknown column tag (" + tag + ")");
+		}
+		
+		// Virtual versions:
+		int numberOfVirtuals = in.readUnsignedByte();
+		for(int v = 0; v < numberOfVirtuals; v++)
+		{
+			Column<?> targetColumn = readColumn(in, model);
+			int numberOfStrings = in.readInt();
+			List<String> strings = new ArrayList<String>(numberOfStrings);
+			for(int s = 0; s < numberOfStrings; s++)
+				strings.add(readNullableString(in));
+			addStringListVirtualVersion(column, targetColumn, new StringListMapper(strings));
+		}
+		return column;
+	}
+	
+	static private <T> ListColumn.Simple<T> newSimpleListColumn(String name, Column<T> singleColumn, boolean optional, int minLength, int maxLength)
+	{
+		return new ListColumn.Simple<T>(name, singleColumn, optional, minLength, maxLength);
+	}
+	
+	/**
+	 * StringListMappers are only ever written for virtual versions of Long-typed (i.e. integer) columns with String-typed targets.
+	 */
+	@SuppressWarnings("unchecked")
+	static private void addStringListVirtualVersion(Column<?> sourceColumn, Column<?> targetColumn, StringListMapper mapper)
+	{
+		((Column<Long>) sourceColumn).addVirtualVersion((Column<String>) targetColumn, mapper);
+	}
+	
+	static private void writeHeader(DataOutputStream out, byte tag, Column<?> column) throws IOException
+	{
+		out.writeByte(tag);
+		out.writeUTF(column.getName());
+		out.writeBoolean(column.isOptional());
+	}
+	
+	static private void writeRangeMapping(DataOutputStream out, IntegerRangeMapping mapping) throws IOException
+	{
+		writeBigInteger(out, mapping.lowBound());
+		writeBigInteger(out, mapping.highBound());
+	}
+	
+	static private IntegerRangeMapping readRangeMapping(DataInputStream in) throws IOException
+	{
+		return new IntegerRangeMapping(readBigInteger(in), readBigInteger(in), true);
+	}
+	
+	static private void writeBigInteger(DataOutputStream out, BigInteger value) throws IOException
+	{
+		byte[] bytes = value.toByteArray();
+		out.writeByte(bytes.length);
+		out.write(bytes);
+	}
+	
+	static private BigInteger readBigInteger(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readUnsignedByte()];
+		in.readFully(bytes);
+		return new BigInteger(bytes);
+	}
+	
+	static private void writeNullableString(DataOutputStream out, String str) throws IOException
+	{
+		out.writeBoolean(str != null);
+		if(str != null)
+			out.writeUTF(str);
+	}
+	
+	static private String readNullableString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+}
@@ -62,6 +62,11 @@ public class Record implements Serializable
 	protected Schema schema;
 	protected Object[] values;
 	
+	/**
+	 * Flags indicating which values are available in case this is a partial record (see {@link #isPartial()}), null for complete records
+	 */
+	private boolean[] projected;
+	
 	/**
 	 * Creates a new "empty" record of the given schema
 	 * 
@@ -144,6 +149,75 @@ public class Record implements Serializable
 			Column<?> col = schema.getColumn(c);
 			this.values[c] = col.copyObject(another.values[c]);
 		}
+		
+		// A copy of a partial record is partial as well:
+		if(another.projected != null)
+			this.projected = another.projected.clone();
+	}
+	
+	/**
+	 * Turns this (new, empty) record into a partial record which only holds the values of the given columns
+	 * (or of compatible columns by the same name) and of the primary key columns (if the schema has a primary key).
+	 * 
+	 * @param projection top-level, non-virtual columns; other columns, or columns which are not part of the schema, are ignored
+	 * @see Schema#createPartialRecord(Collection)
+	 */
+	/*package*/ void setProjection(Collection<? extends Column<?>> projection)
+	{
+		projected = new boolean[values.length];
+		for(Column<?> col : projection)
+		{
+			int position = schema.getValuePosition(col);
+			if(position != Schema.UNKNOWN_COLUMN_POSITION)
+				projected[position] = true;
+		}
+		if(schema.hasPrimaryKey())
+			for(Column<?> keyPartCol : schema.getPrimaryKey().getColumns(false))
+				projected[getPosition(keyPartCol)] = true;
+	}
+	
+	/**
+	 * Returns a partial record of the same schema, holding (the same, uncopied) values as this record for the given columns and the primary key columns.
+	 * If this record is itself partial, values which are unavailable in it will be unavailable in the result as well.
+	 * 
+	 * @param projection top-level, non-virtual columns
+	 * @return a partial record
+	 */
+	public Record project(Collection<? extends Column<?>> projection)
+	{
+		Record partial = schema.createPartialRecord(projection);
+		for(int c = 0; c < values.length; c++)
+			if(partial.projected[c])
+			{
+				if(this.projected != null && !this.projected[c])
+					partial.projected[c] = false;
+				else
+					partial.values[c] = this.values[c];
+			}
+		return partial;
+	}
+	
+	/**
+	 * A partial record only holds the values of some of the columns of its schema, e.g. because it was retrieved by a query with a projection.
+	 * Accessing the values of other columns causes an {@link IllegalStateException}, and partial records cannot be stored.
+	 * 
+	 * @return whether this is a partial record
+	 */
+	public boolean isPartial()
+	{
+		return projected != null;
+	}
+	
+	/**
+	 * @param column a top-level column, or a virtual column derived from one
+	 * @return whether the value of the given column is available in this record, always {@code true} unless this record is partial
+	 */
+	public boolean isProjected(Column<?> column)
+	{
+		if(projected == null)
+			return true;
+		int position = schema.getValuePosition(column instanceof VirtualColumn ? ((VirtualColumn<?, ?>) column).getSourceColumn() : column);
+		return position != Schema.UNKNOWN_COLUMN_POSITION && projected[position];
 	}
 	
 	/**
@@ -196,10 +270,11 @@ public class Record implements Serializable
 	 * @param column
 	 * @param value the value to set (may be null, e.g. to clear earlier values)
 	 * @throws IllegalArgumentException when the column does not exist in the record's schema, because it is virtual, or because it is incompatible with the schema column by the same name
+	 * @throws IllegalStateException when this is a partial record which does not hold the value of the given column
 	 */
-	protected void setValue(Column<?> column, Object value) throws IllegalArgumentException
+	protected void setValue(Column<?> column, Object value) throws IllegalArgumentException, IllegalStateException
 	{
-		values[getPosition(column)] = value; // set value in array
+		values[getProjectedPosition(column)] = value; // set value in array
 	}
 	
 	/**
@@ -208,10 +283,44 @@ public class Record implements Serializable
 	 * @param column
 	 * @param the current value
 	 * @throws IllegalArgumentException when the column does not exist in the record's schema, because it is virtual, or because it is incompatible with the schema column by the same name
+	 * @throws IllegalStateException when this is a partial record which does not hold the value of the given column
+	 */
+	protected Object getValue(Column<?> column) throws IllegalArgumentException, IllegalStateException
+	{
+		return values[getProjectedPosition(column)]; // return value from array
+	}
+	
+	/**
+	 * Returns the value held at the given position, which is meant to have been obtained through {@link Schema#getValuePosition(Column)}
+	 * on the schema of this record. The returned value is the same as the one {@link Column#retrieveValue(Record)} would return for
+	 * that column, but without looking up its position again.
+	 * 
+	 * @param position
+	 * @return the current value (may be null)
+	 * @throws ArrayIndexOutOfBoundsException when the position is invalid
+	 * @throws IllegalStateException when this is a partial record which does not hold the value at the given position
+	 */
+	public Object getValueAt(int position) throws ArrayIndexOutOfBoundsException, IllegalStateException
+	{
+		if(projected != null && !projected[position])
+			throw new IllegalStateException("The value of column \"" + schema.getColumn(position).name + "\" is not available in this partial record.");
+		return values[position];
+	}
+	
+	/**
+	 * Same as {@link #getPosition(Column)} but also checks whether the value is available in case this is a partial record.
+	 * 
+	 * @param column
+	 * @return values array index
+	 * @throws IllegalArgumentException see {@link #getPosition(Column)}
+	 * @throws IllegalStateException when this is a partial record which does not hold the value of the given column
 	 */
-	protected Object getValue(Column<?> column) throws IllegalArgumentException
+	private int getProjectedPosition(Column<?> column) throws IllegalArgumentException, IllegalStateException
 	{
-		return values[getPosition(column)]; // return value from array
+		int position = getPosition(column);
+		if(projected != null && !projected[position])
+			throw new IllegalStateException("The value of column \"" + column.name + "\" is not available in this partial record.");
+		return position;
 	}
 	
 	/**
@@ -323,7 +432,8 @@ public class Record implements Serializable
 		StringBuffer bff = new StringBuffer();
 		bff.append(schema.toString());
 		for(Column<?> c : schema.getColumns(includeVirtual))
-			bff.append("|" + c.getName() + ": " + c.retrieveValueAsString(this));
+			if(isProjected(c))
+				bff.append("|" + c.getName() + ": " + c.retrieveValueAsString(this));
 		return bff.toString();
 	}
 	
@@ -23,6 +23,7 @@ import java.text.ParseException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -170,6 +171,23 @@ public abstract class RecordColumn<R extends Record> extends Column<R>
 		return schemaColumn;
 	}
 	
+	/**
+	 * Returns the subcolumns of which the values are included when values of this column are written to binary
+	 * storage/transmission (i.e. all non-virtual, non-skipped subcolumns), in schema order, each mapped to the
+	 * column that is used to read/write its values (typically the subcolumn itself, unless a "binaryColumn" has been
+	 * registered for it).
+	 * 
+	 * @return ordered map of schema subcolumns to the corresponding binary columns
+	 */
+	public Map<Column<?>, Column<?>> getBinarySubColumns()
+	{
+		Map<Column<?>, Column<?>> binarySubColumns = new LinkedHashMap<Column<?>, Column<?>>();
+		for(Column<?> subCol : schema.getColumns(false))
+			if(!isColumnSkipped(subCol))
+				binarySubColumns.put(subCol, getBinaryColumn(subCol));
+		return binarySubColumns;
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.ucl.excites.sapelli.storage.model.Column#parse(java.lang.String)
 	 */
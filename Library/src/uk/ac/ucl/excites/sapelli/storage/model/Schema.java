@@ -49,7 +49,7 @@ public class Schema implements Serializable
 	// Statics------------------------------------------------------------
 	private static final long serialVersionUID = 2L;
 	
-	static protected final int UNKNOWN_COLUMN_POSITION = -1;
+	static public final int UNKNOWN_COLUMN_POSITION = -1;
 	
 	static public final String COLUMN_AUTO_KEY_NAME = "AutoKey";
 	
@@ -421,6 +421,28 @@ public class Schema implements Serializable
 		return pos.intValue();
 	}
 
+	/**
+	 * Returns the position at which records of this Schema hold the value of the given non-virtual(!) column,
+	 * or of a compatible column by the same name. This allows callers which access the same column of many
+	 * records to resolve the position only once, see {@link Record#getValueAt(int)}.
+	 * 
+	 * @param realColumn a non-virtual column
+	 * @return the position, or {@link #UNKNOWN_COLUMN_POSITION} if the Schema contains no such column or only an incompatible one
+	 */
+	public int getValuePosition(Column<?> realColumn)
+	{
+		if(realColumn == null || realColumn instanceof VirtualColumn)
+			return UNKNOWN_COLUMN_POSITION;
+		int position = getColumnPosition(realColumn.name);
+		if(position != UNKNOWN_COLUMN_POSITION)
+		{
+			Column<?> schemaColumn = getColumn(position);
+			if(realColumn != schemaColumn && !realColumn.isCompatible(schemaColumn))
+				return UNKNOWN_COLUMN_POSITION;
+		}
+		return position;
+	}
+
 	/**
 	 * Returns a list of all columns (including virtual ones if {@code includeVirtual} is {@code true}) in the order of addition.
 	 * If {@code includeVirtual} is {@code true} virtual columns are inserted between their "real" owner and the next "real" column.
@@ -612,6 +634,20 @@ public class Schema implements Serializable
 		return new Record(this);
 	}
 	
+	/**
+	 * Creates a new, empty partial record which will only hold values of the given columns and of the primary key columns.
+	 * 
+	 * @param projection top-level, non-virtual columns
+	 * @return
+	 * @see Record#isPartial()
+	 */
+	public Record createPartialRecord(Collection<? extends Column<?>> projection)
+	{
+		Record record = new Record(this);
+		record.setProjection(projection);
+		return record;
+	}
+	
 	/**
 	 * @param values
 	 * @return
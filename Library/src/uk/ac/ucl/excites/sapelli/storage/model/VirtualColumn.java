@@ -186,6 +186,11 @@ public class VirtualColumn<TT, ST> extends Column<TT>
 		return targetColumn;
 	}
 	
+	public ValueMapper<TT, ST> getValueMapper()
+	{
+		return valueMapper;
+	}
+	
 	/**
 	 * Mapping of source to target types
 	 *
@@ -57,6 +57,14 @@ public class ForeignKeyColumn extends RecordColumn<RecordReference>
 		this.foreignSchema = foreignSchema;
 	}
 	
+	/**
+	 * @return the foreignSchema
+	 */
+	public Schema getForeignSchema()
+	{
+		return foreignSchema;
+	}
+	
 	@Override
 	public ForeignKeyColumn copy()
 	{
@@ -279,7 +279,7 @@ public class IntegerColumn extends ComparableColumn<Long>
 	protected Long read(BitInputStream bitStream) throws IOException
 	{
 		if(rangeMapping != null)
-			return rangeMapping.read(bitStream).longValue();
+			return rangeMapping.readLong(bitStream);
 		else
 			return bitStream.readInteger(size, signed);
 	}
@@ -303,6 +303,22 @@ public class IntegerColumn extends ComparableColumn<Long>
 	{
 		return signed;
 	}
+	
+	/**
+	 * @return the size in number of bits
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+	
+	/**
+	 * @return the rangeMapping, or null if the column was not constructed with a logical range
+	 */
+	public IntegerRangeMapping getRangeMapping()
+	{
+		return rangeMapping;
+	}
 
 	@Override
 	public String toString(Long value)
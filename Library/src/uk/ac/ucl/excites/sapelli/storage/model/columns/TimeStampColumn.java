@@ -169,7 +169,16 @@ public class TimeStampColumn extends ComparableColumn<TimeStamp>
 				addVirtuals);
 	}
 	
-	private TimeStampColumn(String name, IntegerRangeMapping timeMapping, boolean keepMS, boolean keepLocalTimezone, boolean strictHighBound, boolean optional, boolean addVirtuals)
+	/**
+	 * @param name
+	 * @param timeMapping the mapping of the (second- or millisecond-level, depending on keepMS) time values
+	 * @param keepMS whether to use millisecond-level (true) or second-level (false) accuracy
+	 * @param keepLocalTimezone whether or not to remember to local timezone
+	 * @param strictHighBound whether the high bound of the timeMapping should be strictly respected (true) or not (false)
+	 * @param optional
+	 * @param addVirtuals
+	 */
+	public TimeStampColumn(String name, IntegerRangeMapping timeMapping, boolean keepMS, boolean keepLocalTimezone, boolean strictHighBound, boolean optional, boolean addVirtuals)
 	{
 		super(name, optional);
 		this.timeMapping = timeMapping;
@@ -319,6 +328,38 @@ public class TimeStampColumn extends ComparableColumn<TimeStamp>
 	{
 		return new TimeStamp(timeMapping.highBound(strict).longValue() * (keepMS ? 1 : 1000));
 	}
+	
+	/**
+	 * @return the timeMapping
+	 */
+	public IntegerRangeMapping getTimeMapping()
+	{
+		return timeMapping;
+	}
+
+	/**
+	 * @return the keepMS
+	 */
+	public boolean isKeepMS()
+	{
+		return keepMS;
+	}
+
+	/**
+	 * @return the keepLocalTimezone
+	 */
+	public boolean isKeepLocalTimezone()
+	{
+		return keepLocalTimezone;
+	}
+
+	/**
+	 * @return the strict
+	 */
+	public boolean isStrict()
+	{
+		return strict;
+	}
 
 	@Override
 	protected boolean equalRestrictions(Column<TimeStamp> otherColumn)
@@ -18,9 +18,17 @@
 
 package uk.ac.ucl.excites.sapelli.storage.queries;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.VirtualColumn;
 import uk.ac.ucl.excites.sapelli.storage.queries.constraints.AndConstraint;
 import uk.ac.ucl.excites.sapelli.storage.queries.constraints.Constraint;
 
@@ -30,6 +38,7 @@ public class RecordsQuery
 	// STATICS-------------------------------------------------------
 	static public final int NO_LIMIT = 0;
 	static public final Constraint[] NO_CONSTRAINTS = null;
+	static public final Set<Column<?>> NO_PROJECTION = null;
 	
 	/**
 	 * Query for all records of any known schema, returned in undefined order
@@ -41,6 +50,7 @@ public class RecordsQuery
 	/*package*/ final Constraint constraints;
 	/*package*/ final Order order;
 	/*package*/ final int limit;
+	/*package*/ final Set<Column<?>> projection;
 	
 	/**
 	 * Query which is defined only by the source
@@ -149,6 +159,57 @@ public class RecordsQuery
 		if(limit < NO_LIMIT)
 			throw new IllegalArgumentException("Limit must be positive, or 0 (meaning there is no limit)");
 		this.limit = limit;
+		this.projection = NO_PROJECTION;
+	}
+	
+	/**
+	 * Copy constructor with different projection
+	 * 
+	 * @param another
+	 * @param projection
+	 */
+	private RecordsQuery(RecordsQuery another, Set<Column<?>> projection)
+	{
+		this.source = another.source;
+		this.constraints = another.constraints;
+		this.order = another.order;
+		this.limit = another.limit;
+		this.projection = projection;
+	}
+	
+	/**
+	 * Returns a query which is identical to this one, except that it only retrieves the values of the given columns.
+	 * The resulting records will be partial (see {@link Record#isPartial()}), and will hold the values of the given
+	 * columns (or equivalent ones in case of a query for multiple schemata) and of the primary key columns.
+	 * Constraints and order are unaffected by the projection, i.e. they may concern other columns.
+	 * 
+	 * @param columns top-level columns, virtual columns are replaced by their source column
+	 * @return
+	 */
+	public RecordsQuery project(Column<?>... columns)
+	{
+		return project(columns != null ? Arrays.asList(columns) : null);
+	}
+	
+	/**
+	 * Returns a query which is identical to this one, except that it only retrieves the values of the given columns.
+	 * 
+	 * @param columns top-level columns, virtual columns are replaced by their source column, pass null to retrieve complete records
+	 * @return
+	 * @see #project(Column...)
+	 */
+	public RecordsQuery project(Collection<? extends Column<?>> columns)
+	{
+		Set<Column<?>> projection = NO_PROJECTION;
+		if(columns != null)
+		{
+			projection = new LinkedHashSet<Column<?>>();
+			for(Column<?> col : columns)
+				if(col != null)
+					projection.add(col instanceof VirtualColumn ? ((VirtualColumn<?, ?>) col).getSourceColumn() : col);
+			projection = Collections.unmodifiableSet(projection);
+		}
+		return new RecordsQuery(this, projection);
 	}
 	
 	/**
@@ -172,9 +233,29 @@ public class RecordsQuery
 		if(limit != NO_LIMIT)
 			records = records.subList(0, limit);
 		
+		// Project:
+		if(projection != NO_PROJECTION)
+			records = project(records);
+		
 		return records;
 	}
 	
+	/**
+	 * Replaces the given records by partial ones in accordance with the projection.
+	 * 
+	 * @param records
+	 * @return
+	 */
+	public List<Record> project(List<Record> records)
+	{
+		if(projection == NO_PROJECTION)
+			return records;
+		List<Record> result = new ArrayList<Record>(records.size());
+		for(Record r : records)
+			result.add(r.project(projection));
+		return result;
+	}
+	
 	private Constraint getInMemoryConstraits()
 	{
 		return new AndConstraint(source, constraints).reduce(); // Source is a Constraint which filters records by schema!
@@ -227,5 +308,21 @@ public class RecordsQuery
 	{
 		return limit > NO_LIMIT;
 	}
+	
+	/**
+	 * @return the (unmodifiable) set of columns to retrieve, or {@link #NO_PROJECTION} (null) if complete records are to be retrieved
+	 */
+	public Set<Column<?>> getProjection()
+	{
+		return projection;
+	}
+	
+	/**
+	 * @return whether or not the query only retrieves the values of some columns
+	 */
+	public boolean hasProjection()
+	{
+		return projection != NO_PROJECTION;
+	}
 
 }
@@ -43,12 +43,15 @@ public abstract class SingleRecordQuery
 		this(new RecordsQuery(Source.From(sourceSchema)));
 	}
 	
+	/**
+	 * @param recordsQuery any projection it may have is dropped, single record queries always result in complete records
+	 */
 	public SingleRecordQuery(RecordsQuery recordsQuery)
 	{
 		if(recordsQuery == null)
 			this.recordsQuery = RecordsQuery.ALL; // query across all schemata without constraints
 		else
-			this.recordsQuery = recordsQuery;
+			this.recordsQuery = recordsQuery.hasProjection() ? recordsQuery.project(RecordsQuery.NO_PROJECTION) : recordsQuery;
 	}
 	
 	/**
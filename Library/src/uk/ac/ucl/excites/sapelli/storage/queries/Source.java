@@ -35,6 +35,8 @@ import uk.ac.ucl.excites.sapelli.storage.queries.constraints.ConstraintVisitor;
  */
 public class Source extends Constraint
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	// STATICS ------------------------------------------------------
 	static private final boolean BY_INCLUSION = true;
@@ -154,7 +156,16 @@ public class Source extends Constraint
 	@Override
 	protected boolean _isValid(Record record)
 	{
-		return schemata.isEmpty() || inclusion == schemata.contains(record.getSchema());
+		return isValid(record.getSchema());
+	}
+	
+	/**
+	 * @param schema
+	 * @return whether records of the given schema are accepted by this Source
+	 */
+	public boolean isValid(Schema schema)
+	{
+		return schemata.isEmpty() || inclusion == schemata.contains(schema);
 	}
 	
 	/**
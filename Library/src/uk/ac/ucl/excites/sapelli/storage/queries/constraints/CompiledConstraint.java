@@ -0,0 +1,631 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.storage.queries.constraints;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.ucl.excites.sapelli.shared.util.Objects;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.ComparableColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.BooleanColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.FloatColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint.Comparison;
+import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
+
+/**
+ * Evaluates a {@link Constraint} tree against (many) records in Java memory, giving the same results as {@link Constraint#isValid(Record)}.
+ * 
+ * For every {@link Schema} encountered the constraint is "compiled" into a tree of small predicate objects, in which {@link Source}s are
+ * evaluated up front, nested And/Or constraints are flattened, positions of top-level columns are resolved once and comparisons are
+ * specialised by value type. Any part which cannot be compiled (e.g. constraints on sub-columns or virtual columns) is evaluated by the
+ * original {@link Constraint}.
+ * 
+ * Instances are not thread-safe.
+ * 
+ * @author mstevens
+ */
+public final class CompiledConstraint
+{
+
+	// STATICS-------------------------------------------------------
+	/**
+	 * @param constraint may be null, in which case any (non-null) record is valid
+	 * @return
+	 */
+	static public CompiledConstraint Compile(Constraint constraint)
+	{
+		return new CompiledConstraint(constraint);
+	}
+	
+	static private final Predicate TRUE = new Predicate()
+	{
+		@Override
+		boolean test(Record record)
+		{
+			return true;
+		}
+	};
+	
+	static private final Predicate FALSE = new Predicate()
+	{
+		@Override
+		boolean test(Record record)
+		{
+			return false;
+		}
+	};
+	
+	// DYNAMICS------------------------------------------------------
+	private final Constraint constraint;
+	private final Map<Schema, Predicate> predicates = new IdentityHashMap<Schema, Predicate>();
+	private Schema lastSchema;
+	private Predicate lastPredicate;
+	
+	private CompiledConstraint(Constraint constraint)
+	{
+		this.constraint = constraint;
+	}
+	
+	/**
+	 * @return the original constraint, may be null
+	 */
+	public Constraint getConstraint()
+	{
+		return constraint;
+	}
+	
+	/**
+	 * @param record
+	 * @return same as {@link Constraint#isValid(Record)} on the original constraint
+	 */
+	public boolean isValid(Record record)
+	{
+		if(record == null)
+			return false;
+		Schema schema = record.getSchema();
+		if(schema != lastSchema)
+		{
+			lastPredicate = predicates.get(schema);
+			if(lastPredicate == null)
+			{
+				lastPredicate = constraint != null ? new Compiler(schema).compile(constraint) : TRUE;
+				predicates.put(schema, lastPredicate);
+			}
+			lastSchema = schema;
+		}
+		return lastPredicate.test(record);
+	}
+	
+	/**
+	 * Filters a list of records, same as {@link Constraint#filter(List)} on the original constraint
+	 * 
+	 * @param records
+	 * @return
+	 */
+	public List<Record> filter(List<Record> records)
+	{
+		List<Record> result = new ArrayList<Record>();
+		for(Record r : records)
+			if(isValid(r))
+				result.add(r);
+		return result;
+	}
+	
+	/**
+	 * Compiles a constraint tree into predicates for records of a given schema.
+	 * 
+	 * @author mstevens
+	 */
+	static private class Compiler implements ConstraintVisitor
+	{
+		
+		private final Schema schema;
+		private Predicate result;
+		
+		public Compiler(Schema schema)
+		{
+			this.schema = schema;
+		}
+		
+		public Predicate compile(Constraint constraint)
+		{
+			if(constraint instanceof Source)
+				return ((Source) constraint).isValid(schema) ? TRUE : FALSE; // only depends on the schema
+			try
+			{
+				constraint.accept(this);
+			}
+			catch(UnsupportedOperationException uoe)
+			{
+				result = new ConstraintPredicate(constraint);
+			}
+			return result;
+		}
+		
+		/**
+		 * @param composite
+		 * @param and whether the composite is an {@link AndConstraint} ({@code true}) or an {@link OrConstraint} ({@code false})
+		 * @return
+		 */
+		private Predicate compile(CompositeConstraint composite, boolean and)
+		{
+			List<Predicate> operands = new ArrayList<Predicate>();
+			if(composite.hasSubConstraints())
+				flatten(composite, and, operands);
+			// Drop neutral operands & cut off after the first absorbing one (operands before it are kept, so evaluation order is unchanged):
+			Predicate neutral = and ? TRUE : FALSE;
+			Predicate absorbing = and ? FALSE : TRUE;
+			List<Predicate> remaining = new ArrayList<Predicate>(operands.size());
+			for(Predicate operand : operands)
+				if(operand == absorbing)
+				{
+					if(remaining.isEmpty())
+						return absorbing;
+					remaining.add(operand);
+					break;
+				}
+				else if(operand != neutral)
+					remaining.add(operand);
+			if(remaining.isEmpty())
+				return operands.isEmpty() ? TRUE : neutral; // a composite without subConstraints accepts any record
+			if(remaining.size() == 1)
+				return remaining.get(0);
+			Predicate[] array = remaining.toArray(new Predicate[remaining.size()]);
+			return and ? new AndPredicate(array) : new OrPredicate(array);
+		}
+		
+		private void flatten(CompositeConstraint composite, boolean and, List<Predicate> operands)
+		{
+			for(Constraint subConstraint : composite.getSubConstraints())
+			{
+				if(subConstraint instanceof CompositeConstraint && (and ? subConstraint instanceof AndConstraint : subConstraint instanceof OrConstraint) && ((CompositeConstraint) subConstraint).hasSubConstraints())
+					flatten((CompositeConstraint) subConstraint, and, operands);
+				else
+					operands.add(compile(subConstraint));
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.queries.constraints.ConstraintVisitor#visit(uk.ac.ucl.excites.sapelli.storage.queries.constraints.AndConstraint)
+		 */
+		@Override
+		public void visit(AndConstraint andConstr)
+		{
+			result = compile(andConstr, true);
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.queries.constraints.ConstraintVisitor#visit(uk.ac.ucl.excites.sapelli.storage.queries.constraints.OrConstraint)
+		 */
+		@Override
+		public void visit(OrConstraint orConstr)
+		{
+			result = compile(orConstr, false);
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.queries.constraints.ConstraintVisitor#visit(uk.ac.ucl.excites.sapelli.storage.queries.constraints.NotConstraint)
+		 */
+		@Override
+		public void visit(NotConstraint notConstr)
+		{
+			Predicate negated = compile(notConstr.getNegatedConstraint());
+			result = negated == TRUE ? FALSE : (negated == FALSE ? TRUE : new NotPredicate(negated));
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.queries.constraints.ConstraintVisitor#visit(uk.ac.ucl.excites.sapelli.storage.queries.constraints.EqualityConstraint)
+		 */
+		@Override
+		public void visit(EqualityConstraint equalityConstr)
+		{
+			int position = getPosition(equalityConstr.getColumnPointer());
+			if(position == Schema.UNKNOWN_COLUMN_POSITION)
+				result = new ConstraintPredicate(equalityConstr);
+			else if(equalityConstr.isValueNull())
+				result = new NullPredicate(position, equalityConstr.isEqual());
+			else
+				result = new EqualityPredicate(position, equalityConstr.getValue(), equalityConstr.isEqual());
+		}
+
+		/* (non-Javadoc)
+		 * @see uk.ac.ucl.excites.sapelli.storage.queries.constraints.ConstraintVisitor#visit(uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint)
+		 */
+		@Override
+		public void visit(RuleConstraint ruleConstr)
+		{
+			result = null;
+			int lhsPosition = getPosition(ruleConstr.getLHSColumnPointer());
+			if(lhsPosition != Schema.UNKNOWN_COLUMN_POSITION)
+			{
+				ComparableColumn<?> lhsColumn = ruleConstr.getLHSCompareColumn();
+				Comparison comparison = ruleConstr.getComparison();
+				if(ruleConstr.isRHSColumn())
+				{
+					int rhsPosition = getPosition(ruleConstr.getRHSColumnPointer());
+					if(rhsPosition != Schema.UNKNOWN_COLUMN_POSITION)
+						result = new ColumnsRulePredicate(lhsPosition, lhsColumn, rhsPosition, comparison);
+				}
+				else
+				{
+					Object rhsValue = null;
+					boolean converted = false;
+					try
+					{
+						rhsValue = lhsColumn.convert(ruleConstr.getRHSValue());
+						converted = true;
+					}
+					catch(RuntimeException e) { /* leave it to the constraint itself (to throw the exception upon evaluation) */ }
+					if(converted && rhsValue != null)
+					{	// Specialise by value type (only for columns of which the comparison behaviour is known):
+						Class<?> columnClass = lhsColumn.getClass();
+						if(columnClass == IntegerColumn.class && rhsValue instanceof Long)
+							result = new LongRulePredicate(lhsPosition, (Long) rhsValue, comparison);
+						else if(columnClass == FloatColumn.class && rhsValue instanceof Double)
+							result = new DoubleRulePredicate(lhsPosition, (Double) rhsValue, comparison);
+						else if((columnClass == StringColumn.class && rhsValue instanceof String) || (columnClass == BooleanColumn.class && rhsValue instanceof Boolean))
+							result = new ComparableRulePredicate(lhsPosition, rhsValue, comparison);
+						else
+							result = new ValueRulePredicate(lhsPosition, lhsColumn, rhsValue, comparison);
+					}
+					else if(converted)
+						result = new ValueRulePredicate(lhsPosition, lhsColumn, null, comparison);
+				}
+			}
+			if(result == null)
+				result = new ConstraintPredicate(ruleConstr);
+		}
+		
+		/**
+		 * Resolves the position of the value pointed at by the given ColumnPointer in records of the schema.
+		 * Only done for top-level columns which are directly contained by the schema, in which case
+		 * {@link ColumnPointer#retrieveValue(Record)} comes down to {@link Column#retrieveValue(Record)}.
+		 * 
+		 * @param columnPointer
+		 * @return the position, or {@link Schema#UNKNOWN_COLUMN_POSITION} if no (safe) position could be found
+		 */
+		private int getPosition(ColumnPointer columnPointer)
+		{
+			if(!columnPointer.isTopLevelColumn())
+				return Schema.UNKNOWN_COLUMN_POSITION;
+			Column<?> column = columnPointer.getColumn();
+			if(!schema.containsEquivalentColumn(column))
+				return Schema.UNKNOWN_COLUMN_POSITION;
+			return schema.getValuePosition(column);
+		}
+		
+	}
+	
+	/**
+	 * @author mstevens
+	 */
+	static private abstract class Predicate
+	{
+		
+		/**
+		 * @param record guaranteed non-null and of the schema the predicate was compiled for
+		 * @return
+		 */
+		abstract boolean test(Record record);
+		
+	}
+	
+	/**
+	 * Predicate which delegates to the original constraint
+	 */
+	static private final class ConstraintPredicate extends Predicate
+	{
+		
+		private final Constraint constraint;
+		
+		public ConstraintPredicate(Constraint constraint)
+		{
+			this.constraint = constraint;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			return constraint._isValid(record);
+		}
+		
+	}
+	
+	static private final class AndPredicate extends Predicate
+	{
+		
+		private final Predicate[] operands;
+		
+		public AndPredicate(Predicate[] operands)
+		{
+			this.operands = operands;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			for(Predicate operand : operands)
+				if(!operand.test(record))
+					return false;
+			return true;
+		}
+		
+	}
+	
+	static private final class OrPredicate extends Predicate
+	{
+		
+		private final Predicate[] operands;
+		
+		public OrPredicate(Predicate[] operands)
+		{
+			this.operands = operands;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			for(Predicate operand : operands)
+				if(operand.test(record))
+					return true;
+			return false;
+		}
+		
+	}
+	
+	static private final class NotPredicate extends Predicate
+	{
+		
+		private final Predicate negated;
+		
+		public NotPredicate(Predicate negated)
+		{
+			this.negated = negated;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			return !negated.test(record);
+		}
+		
+	}
+	
+	static private final class NullPredicate extends Predicate
+	{
+		
+		private final int position;
+		private final boolean equal;
+		
+		public NullPredicate(int position, boolean equal)
+		{
+			this.position = position;
+			this.equal = equal;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			return equal == (record.getValueAt(position) == null);
+		}
+		
+	}
+	
+	/**
+	 * Same as {@link EqualityConstraint#_isValid(Record)}, for a non-null value
+	 */
+	static private final class EqualityPredicate extends Predicate
+	{
+		
+		private final int position;
+		private final Object value;
+		private final boolean equal;
+		private final boolean deep;
+		
+		public EqualityPredicate(int position, Object value, boolean equal)
+		{
+			this.position = position;
+			this.value = value;
+			this.equal = equal;
+			this.deep = value.getClass().isArray();
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			Object recordValue = record.getValueAt(position);
+			if(deep)
+				return equal == Objects.deepEquals(recordValue, value);
+			return equal == (recordValue != null && (recordValue == value || recordValue.equals(value)));
+		}
+		
+	}
+	
+	/**
+	 * Base class for predicates of {@link RuleConstraint}s, the outcome of the comparison (<0, 0 or >0) is mapped to a boolean
+	 * 
+	 * @author mstevens
+	 */
+	static private abstract class RulePredicate extends Predicate
+	{
+		
+		protected final int lhsPosition;
+		private final boolean acceptSmaller;
+		private final boolean acceptEqual;
+		private final boolean acceptGreater;
+		
+		public RulePredicate(int lhsPosition, Comparison comparison)
+		{
+			this.lhsPosition = lhsPosition;
+			switch(comparison)
+			{
+				case SMALLER			: acceptSmaller = true;		acceptEqual = false;	acceptGreater = false;	break;
+				case SMALLER_OR_EQUAL	: acceptSmaller = true;		acceptEqual = true;		acceptGreater = false;	break;
+				case EQUAL				: acceptSmaller = false;	acceptEqual = true;		acceptGreater = false;	break;
+				case NOT_EQUAL			: acceptSmaller = true;		acceptEqual = false;	acceptGreater = true;	break;
+				case GREATER_OR_EQUAL	: acceptSmaller = false;	acceptEqual = true;		acceptGreater = true;	break;
+				case GREATER			: acceptSmaller = false;	acceptEqual = false;	acceptGreater = true;	break;
+				default					: throw new IllegalStateException("Unknown comparison: " + comparison.name());
+			}
+		}
+		
+		protected final boolean accept(int compResult)
+		{
+			return compResult < 0 ? acceptSmaller : (compResult == 0 ? acceptEqual : acceptGreater);
+		}
+		
+	}
+	
+	/**
+	 * Rule on an {@link IntegerColumn} with a non-null rhs value
+	 */
+	static private final class LongRulePredicate extends RulePredicate
+	{
+		
+		private final long rhsValue;
+		
+		public LongRulePredicate(int lhsPosition, long rhsValue, Comparison comparison)
+		{
+			super(lhsPosition, comparison);
+			this.rhsValue = rhsValue;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			Long lhsValue = (Long) record.getValueAt(lhsPosition);
+			if(lhsValue == null)
+				return accept(-1); // null is smaller than any non-null value
+			long lhs = lhsValue.longValue();
+			return accept(lhs < rhsValue ? -1 : (lhs == rhsValue ? 0 : 1));
+		}
+		
+	}
+	
+	/**
+	 * Rule on a {@link FloatColumn} with a non-null rhs value
+	 */
+	static private final class DoubleRulePredicate extends RulePredicate
+	{
+		
+		private final double rhsValue;
+		
+		public DoubleRulePredicate(int lhsPosition, double rhsValue, Comparison comparison)
+		{
+			super(lhsPosition, comparison);
+			this.rhsValue = rhsValue;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			Double lhsValue = (Double) record.getValueAt(lhsPosition);
+			if(lhsValue == null)
+				return accept(-1); // null is smaller than any non-null value
+			return accept(Double.compare(lhsValue.doubleValue(), rhsValue)); // same as Double#compareTo(Double)
+		}
+		
+	}
+	
+	/**
+	 * Rule on a {@link StringColumn} or {@link BooleanColumn} (which compare values using their natural ordering) with a non-null rhs value
+	 */
+	static private final class ComparableRulePredicate extends RulePredicate
+	{
+		
+		private final Object rhsValue;
+		
+		public ComparableRulePredicate(int lhsPosition, Object rhsValue, Comparison comparison)
+		{
+			super(lhsPosition, comparison);
+			this.rhsValue = rhsValue;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		boolean test(Record record)
+		{
+			Comparable<Object> lhsValue = (Comparable<Object>) record.getValueAt(lhsPosition);
+			if(lhsValue == null)
+				return accept(-1); // null is smaller than any non-null value
+			return accept(lhsValue.compareTo(rhsValue));
+		}
+		
+	}
+	
+	/**
+	 * Rule on any {@link ComparableColumn} with a (pre-converted) rhs value
+	 */
+	static private final class ValueRulePredicate extends RulePredicate
+	{
+		
+		private final ComparableColumn<Object> lhsColumn;
+		private final Object rhsValue;
+		
+		@SuppressWarnings("unchecked")
+		public ValueRulePredicate(int lhsPosition, ComparableColumn<?> lhsColumn, Object rhsValue, Comparison comparison)
+		{
+			super(lhsPosition, comparison);
+			this.lhsColumn = (ComparableColumn<Object>) lhsColumn;
+			this.rhsValue = rhsValue;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			return accept(lhsColumn.compareValues(record.getValueAt(lhsPosition), rhsValue));
+		}
+		
+	}
+	
+	/**
+	 * Rule comparing the values of 2 top-level columns
+	 */
+	static private final class ColumnsRulePredicate extends RulePredicate
+	{
+		
+		private final ComparableColumn<Object> lhsColumn;
+		private final int rhsPosition;
+		
+		@SuppressWarnings("unchecked")
+		public ColumnsRulePredicate(int lhsPosition, ComparableColumn<?> lhsColumn, int rhsPosition, Comparison comparison)
+		{
+			super(lhsPosition, comparison);
+			this.lhsColumn = (ComparableColumn<Object>) lhsColumn;
+			this.rhsPosition = rhsPosition;
+		}
+		
+		@Override
+		boolean test(Record record)
+		{
+			return accept(lhsColumn.compareValues(record.getValueAt(lhsPosition), lhsColumn.convert(record.getValueAt(rhsPosition))));
+		}
+		
+	}
+	
+}
@@ -18,7 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.storage.queries.constraints;
 
-import java.util.ArrayList;
+import java.io.Serializable;
 import java.util.List;
 
 import uk.ac.ucl.excites.sapelli.storage.model.Record;
@@ -29,27 +29,34 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
  * 
  * @author mstevens
  */
-public abstract class Constraint
+public abstract class Constraint implements Serializable
 {
 	
+	private static final long serialVersionUID = 2L;
+
 	static public Constraint Reduce(Constraint constraint)
 	{
 		return constraint != null ? constraint.reduce() : null;
 	}
 	
 	/**
-	 * Filters a list of records based on certain criteria
+	 * Filters a list of records based on certain criteria.
+	 * The constraint is compiled (see {@link CompiledConstraint}) so that the columns involved are only looked up once per schema.
 	 * 
 	 * @param records
 	 * @return
 	 */
 	public List<Record> filter(List<Record> records)
 	{
-		List<Record> result = new ArrayList<Record>();
-		for(Record r : records)
-			if(isValid(r))
-				result.add(r);
-		return result;
+		return compile().filter(records);
+	}
+	
+	/**
+	 * @return a {@link CompiledConstraint} for efficient evaluation of this constraint against many records
+	 */
+	public CompiledConstraint compile()
+	{
+		return CompiledConstraint.Compile(this);
 	}
 
 	public boolean isValid(Record record)
@@ -31,6 +31,8 @@ import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
 public class EqualityConstraint extends Constraint
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	static public EqualityConstraint IsNull(Column<?> column)
 	{
 		return IsNull(new ColumnPointer(column));
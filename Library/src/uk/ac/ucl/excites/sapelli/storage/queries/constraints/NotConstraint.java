@@ -27,6 +27,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
  */
 public class NotConstraint extends Constraint
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	private final Constraint negatedConstraint;
 	
@@ -27,6 +27,8 @@ import uk.ac.ucl.excites.sapelli.storage.model.Record;
  */
 public class OrConstraint extends CompositeConstraint
 {
+	
+	private static final long serialVersionUID = 2L;
 
 	public OrConstraint(Constraint... constraints)
 	{
@@ -32,6 +32,8 @@ import uk.ac.ucl.excites.sapelli.storage.util.ColumnPointer;
 public class RuleConstraint extends Constraint
 {
 	
+	private static final long serialVersionUID = 2L;
+	
 	// STATICS-------------------------------------------------------
 	static public enum Comparison
 	{
@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.storage.util;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
@@ -35,9 +36,11 @@ import uk.ac.ucl.excites.sapelli.storage.model.Schema;
  * 
  * @author mstevens
  */
-public class ColumnPointer
+public class ColumnPointer implements Serializable
 {
 	
+	private static final long serialVersionUID = 2L;
+
 	private final Stack<Column<?>> columnStack;
 	
 	/**
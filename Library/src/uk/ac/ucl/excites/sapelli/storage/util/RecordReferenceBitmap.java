@@ -0,0 +1,215 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.storage.util;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+
+/**
+ * Compact set of references to records.
+ * 
+ * Records of schemata with an auto-incrementing primary key are represented by a single bit per key value (in a
+ * {@link BitSet} per schema), as long as the key value lies within [0, {@link Integer#MAX_VALUE}]. This means
+ * millions of references take up no more than a few hundred kilobytes. Other records are held as {@link RecordReference}s.
+ * Records of which the primary key value(s) have not been set cannot be referenced and are not added.
+ * 
+ * @author mstevens
+ */
+public class RecordReferenceBitmap implements Iterable<RecordReference>
+{
+
+	private final Map<Schema, BitSet> keyBitsBySchema = new LinkedHashMap<Schema, BitSet>();
+	private Set<RecordReference> otherReferences;
+	private int size = 0;
+	
+	/**
+	 * @param record
+	 * @return whether the record was added (false if it could not be referenced or was already contained)
+	 */
+	public boolean add(Record record)
+	{
+		Schema schema = record.getSchema();
+		long key = getBitmapKey(record);
+		if(key >= 0)
+		{
+			BitSet keyBits = keyBitsBySchema.get(schema);
+			if(keyBits == null)
+			{
+				keyBits = new BitSet();
+				keyBitsBySchema.put(schema, keyBits);
+			}
+			if(keyBits.get((int) key))
+				return false;
+			keyBits.set((int) key);
+		}
+		else
+		{
+			RecordReference reference;
+			try
+			{
+				reference = record.getReference();
+			}
+			catch(Exception e)
+			{	// schema has no primary key or key value(s) not set
+				return false;
+			}
+			if(otherReferences == null)
+				otherReferences = new LinkedHashSet<RecordReference>();
+			if(!otherReferences.add(reference))
+				return false;
+		}
+		size++;
+		return true;
+	}
+	
+	/**
+	 * @param record
+	 * @return whether a reference to the given record is contained
+	 */
+	public boolean contains(Record record)
+	{
+		long key = getBitmapKey(record);
+		if(key >= 0)
+		{
+			BitSet keyBits = keyBitsBySchema.get(record.getSchema());
+			return keyBits != null && keyBits.get((int) key);
+		}
+		try
+		{
+			return otherReferences != null && otherReferences.contains(record.getReference());
+		}
+		catch(Exception e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * @param record
+	 * @return the value of the record's auto-incrementing primary key, if it can be represented as a bit index, or -1 otherwise
+	 */
+	private long getBitmapKey(Record record)
+	{
+		IntegerColumn keyColumn = record.getSchema().getAutoIncrementingPrimaryKeyColumn();
+		if(keyColumn == null)
+			return -1;
+		Long key = keyColumn.retrieveValue(record);
+		return key != null && key >= 0 && key <= Integer.MAX_VALUE ? key : -1;
+	}
+	
+	/**
+	 * @return the number of record references
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	/**
+	 * @return the schemata of the referenced records
+	 */
+	public Set<Schema> getSchemata()
+	{
+		if(otherReferences == null)
+			return Collections.unmodifiableSet(keyBitsBySchema.keySet());
+		Set<Schema> schemata = new LinkedHashSet<Schema>(keyBitsBySchema.keySet());
+		for(RecordReference reference : otherReferences)
+			schemata.add(reference.getReferencedSchema());
+		return schemata;
+	}
+	
+	/**
+	 * Iterates over the record references, which are (re)created on the fly for the records held in the bitmaps.
+	 * 
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<RecordReference> iterator()
+	{
+		return new Iterator<RecordReference>()
+		{
+			
+			private final Iterator<Map.Entry<Schema, BitSet>> bitmaps = keyBitsBySchema.entrySet().iterator();
+			private Map.Entry<Schema, BitSet> bitmap;
+			private int lastKey = -1;
+			private int pendingKey = -1;
+			private Iterator<RecordReference> others;
+			
+			@Override
+			public boolean hasNext()
+			{
+				if(pendingKey >= 0)
+					return true;
+				while(bitmap != null || bitmaps.hasNext())
+				{
+					if(bitmap == null)
+					{
+						bitmap = bitmaps.next();
+						lastKey = -1;
+					}
+					pendingKey = lastKey < Integer.MAX_VALUE ? bitmap.getValue().nextSetBit(lastKey + 1) : -1;
+					if(pendingKey >= 0)
+						return true;
+					bitmap = null; // bitmap exhausted
+				}
+				if(others == null && otherReferences != null)
+					others = otherReferences.iterator();
+				return others != null && others.hasNext();
+			}
+			
+			@Override
+			public RecordReference next()
+			{
+				if(!hasNext())
+					throw new NoSuchElementException();
+				if(pendingKey >= 0)
+				{
+					lastKey = pendingKey;
+					pendingKey = -1;
+					return bitmap.getKey().createRecordReference(Long.valueOf(lastKey));
+				}
+				return others.next();
+			}
+			
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+			
+		};
+	}
+	
+}
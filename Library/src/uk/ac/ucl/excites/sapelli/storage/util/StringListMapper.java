@@ -18,6 +18,7 @@
 
 package uk.ac.ucl.excites.sapelli.storage.util;
 
+import java.util.Collections;
 import java.util.List;
 
 import uk.ac.ucl.excites.sapelli.storage.model.VirtualColumn;
@@ -52,6 +53,14 @@ public final class StringListMapper extends ValueMapper<String, Long>
 		return stringList.get(nonNullValue.intValue());
 	}
 	
+	/**
+	 * @return the stringList
+	 */
+	public List<String> getStringList()
+	{
+		return Collections.unmodifiableList(stringList);
+	}
+	
 	public int getMaxStringLength()
 	{
 		int maxStringLength = 0;
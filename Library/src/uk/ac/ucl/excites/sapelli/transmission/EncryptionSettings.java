@@ -18,11 +18,15 @@
 
 package uk.ac.ucl.excites.sapelli.transmission;
 
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import uk.ac.ucl.excites.sapelli.shared.crypto.Hashing;
+import uk.ac.ucl.excites.sapelli.transmission.crypto.PayloadCipher;
 import uk.ac.ucl.excites.sapelli.transmission.crypto.SecureKeyGenerator;
 
 
@@ -33,11 +37,29 @@ import uk.ac.ucl.excites.sapelli.transmission.crypto.SecureKeyGenerator;
 public class EncryptionSettings
 {
 
-	static public final boolean DEFAULT_ALLOW_ENCRYPTION = true;
+	/**
+	 * Encryption is opt-in: with only the default key (whose password is public) it would protect nothing, while it adds
+	 * {@link PayloadCipher#OVERHEAD_BITS} bits (plus the model ID) to each transmission, which matters for SMS.
+	 */
+	static public final boolean DEFAULT_ALLOW_ENCRYPTION = false;
 	
 	static public final String DEFAULT_PASSWORD = "ExCiteSWC1E6BT";
 	static public final String DEFAULT_PASSWORD_LABEL = "(Sapelli default)";
 	
+	static private Key DefaultKey;
+	
+	/**
+	 * The default key is derived only once, and then shared by all EncryptionSettings instances.
+	 * 
+	 * @return the key for the default password
+	 */
+	static private synchronized Key GetDefaultKey()
+	{
+		if(DefaultKey == null)
+			DefaultKey = new Key(DEFAULT_PASSWORD_LABEL, DEFAULT_PASSWORD);
+		return DefaultKey;
+	}
+	
 	protected boolean allowEncryption;
 	protected final List<Key> keys;
 	
@@ -45,7 +67,7 @@ public class EncryptionSettings
 	{
 		allowEncryption = DEFAULT_ALLOW_ENCRYPTION;
 		keys = new ArrayList<Key>();
-		keys.add(new Key(DEFAULT_PASSWORD_LABEL, DEFAULT_PASSWORD));
+		keys.add(GetDefaultKey());
 	}
 	
 	/**
@@ -56,8 +78,7 @@ public class EncryptionSettings
 	public EncryptionSettings(EncryptionSettings another)
 	{
 		allowEncryption = another.allowEncryption;
-		keys = new ArrayList<Key>();
-		Collections.copy(keys, another.keys);
+		keys = new ArrayList<Key>(another.keys); // Keys are immutable so they can be shared
 	}
 	
 	/**
@@ -102,28 +123,44 @@ public class EncryptionSettings
 	}
 
 	/**
+	 * A password-derived (master) encryption key.
+	 * 
+	 * The salt used for key derivation is itself derived from the label, such that sending and receiving sides which
+	 * share the same label and password end up with the same key. Model-specific payload encryption keys are derived
+	 * from the master key and cached, such that no key derivation is required per transmission.
+	 * 
 	 * @author mstevens
-	 *
 	 */
-	public class Key
+	static public class Key
 	{
 		
-		private String label;
-		private byte[] encryptionKey;
-		private byte[] encryptionSalt;
-		private byte[] encryptionKeyHash;
+		private final String label;
+		private final byte[] encryptionKey;
+		private final byte[] encryptionSalt;
+		private final byte[] encryptionKeyHash;
+		private final Map<Long, PayloadCipher> payloadCiphers = new HashMap<Long, PayloadCipher>();
 		
 		public Key(String label, String password)
+		{
+			this(label, password, GetSalt(label));
+		}
+		
+		public Key(String label, String password, byte[] salt)
 		{
 			this.label = label;
 			//Do never store the password itself!
-			SecureKeyGenerator keygen = new SecureKeyGenerator(password, 256);
+			SecureKeyGenerator keygen = new SecureKeyGenerator(password, salt, 256);
 			encryptionKey = keygen.getKey();
 			encryptionSalt = keygen.getSalt();
 			encryptionKeyHash = Hashing.getSHA256Hash(encryptionKey);
 			//hashedPassword = Cryptography.getSHA256Hash(password.trim());
 			//rehashedPassword = Cryptography.getSHA256Hash(hashedPassword);
 		}
+		
+		static private byte[] GetSalt(String label)
+		{
+			return Arrays.copyOf(Hashing.getSHA256Hash(label), SecureKeyGenerator.SALT_LENGTH);
+		}
 
 		/**
 		 * @return the label
@@ -157,6 +194,28 @@ public class EncryptionSettings
 			return encryptionKeyHash;
 		}
 		
+		/**
+		 * Returns the cipher used to encrypt/decrypt payloads of the given model with this key.
+		 * The model-specific key is derived upon first use and cached afterwards.
+		 * 
+		 * @param modelID
+		 * @return
+		 * @throws GeneralSecurityException
+		 */
+		public PayloadCipher getPayloadCipher(long modelID) throws GeneralSecurityException
+		{
+			synchronized(payloadCiphers)
+			{
+				PayloadCipher cipher = payloadCiphers.get(modelID);
+				if(cipher == null)
+				{
+					cipher = new PayloadCipher(PayloadCipher.DeriveModelKey(encryptionKey, modelID));
+					payloadCiphers.put(modelID, cipher);
+				}
+				return cipher;
+			}
+		}
+		
 	}
 
 }
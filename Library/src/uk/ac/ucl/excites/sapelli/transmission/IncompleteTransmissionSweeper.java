@@ -0,0 +1,284 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.transmission.db.TransmissionStore;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.NackPayload;
+import uk.ac.ucl.excites.sapelli.transmission.util.PayloadDecodeException;
+
+/**
+ * Background task which periodically scans the partially received SMS transmissions held by a {@link Receiver}'s
+ * {@link TransmissionStore}, in batches, in order to:
+ * <ul>
+ * <li>decode transmissions which are in fact complete (e.g. because the last part arrived while decoding failed or was interrupted), complete
+ * transmissions are only deleted when they turn out to be corrupt (i.e. upon a {@link PayloadDecodeException}), those that cannot be decoded
+ * for other (possibly temporary) reasons, such as an unknown model or key, are kept and retried upon every sweep;</li>
+ * <li>request the resending of missing parts (by means of a {@link NackPayload}) for transmissions which have not received new parts for a while;</li>
+ * <li>delete transmissions which have not received new parts for so long that they are considered to be expired.</li>
+ * </ul>
+ * Sweeps run on a single low-priority daemon thread, and the {@link Receiver} is only locked for the duration of the
+ * processing of a single transmission, so sweeping does not hold up the reception of incoming messages.
+ *
+ * @author mstevens
+ */
+public abstract class IncompleteTransmissionSweeper implements Runnable
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_BATCH_SIZE = 32;
+	static public final long DEFAULT_SWEEP_INTERVAL_MS = 5 * 60 * 1000; // 5 minutes
+	static public final long DEFAULT_NACK_DELAY_MS = 15 * 60 * 1000; // 15 minutes
+	static public final int DEFAULT_MAX_NACKS = 3;
+	static public final long DEFAULT_EXPIRY_MS = 7 * 24 * 60 * 60 * 1000L; // 1 week
+
+	// DYNAMICS------------------------------------------------------
+	private final Receiver receiver;
+	private final int batchSize;
+	private final long nackDelayMS;
+	private final int maxNacks;
+	private final long expiryMS;
+
+	/**
+	 * Guarantees only one sweep runs at a time, also when {@link #sweep()} is called directly while the sweeper thread is running
+	 */
+	private final Object sweepLock = new Object();
+	
+	/**
+	 * Keeps track of NACKs sent per transmission (by local ID), only accessed from within {@link #sweep()}, while holding the {@link #sweepLock}
+	 */
+	private final Map<Integer, NackState> nackStates = new HashMap<Integer, NackState>();
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param receiver
+	 */
+	public IncompleteTransmissionSweeper(Receiver receiver)
+	{
+		this(receiver, DEFAULT_BATCH_SIZE, DEFAULT_NACK_DELAY_MS, DEFAULT_MAX_NACKS, DEFAULT_EXPIRY_MS);
+	}
+
+	/**
+	 * @param receiver
+	 * @param batchSize - maximum number of transmissions retrieved from the store at once
+	 * @param nackDelayMS - time (in ms) since the last part of a transmission was received, or since the last NACK for it was sent, before (another) NACK is sent
+	 * @param maxNacks - maximum number of NACKs sent per transmission (use 0 to disable NACKs altogether)
+	 * @param expiryMS - time (in ms) since the last part of a transmission was received after which the transmission is deleted
+	 */
+	public IncompleteTransmissionSweeper(Receiver receiver, int batchSize, long nackDelayMS, int maxNacks, long expiryMS)
+	{
+		if(receiver == null)
+			throw new NullPointerException("Receiver cannot be null!");
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		this.receiver = receiver;
+		this.batchSize = batchSize;
+		this.nackDelayMS = nackDelayMS;
+		this.maxNacks = maxNacks;
+		this.expiryMS = expiryMS;
+	}
+
+	/**
+	 * Starts periodic sweeping, using the default interval.
+	 */
+	public void start()
+	{
+		start(DEFAULT_SWEEP_INTERVAL_MS);
+	}
+
+	/**
+	 * Starts periodic sweeping. Has no effect if the sweeper is already running.
+	 *
+	 * @param intervalMS - time (in ms) between the end of one sweep and the start of the next
+	 */
+	public synchronized void start(long intervalMS)
+	{
+		if(executor != null)
+			return; // already running
+		executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, IncompleteTransmissionSweeper.class.getSimpleName());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(this, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops periodic sweeping. A sweep that is in progress will be completed.
+	 */
+	public synchronized void stop()
+	{
+		if(executor == null)
+			return;
+		executor.shutdown();
+		executor = null;
+	}
+
+	public synchronized boolean isRunning()
+	{
+		return executor != null;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			sweep();
+		}
+		catch(Exception e)
+		{	// must not be thrown further, otherwise no more sweeps will be scheduled
+			System.err.println("Error upon sweeping incomplete transmissions: " + e.getMessage());
+			e.printStackTrace(System.err);
+		}
+	}
+
+	/**
+	 * Performs a single sweep over all incomplete transmissions.
+	 * Normally called on the sweeper thread, but may also be called directly, in which case it waits for any sweep in progress to finish.
+	 *
+	 * @throws Exception
+	 */
+	public void sweep() throws Exception
+	{
+		synchronized(sweepLock)
+		{
+			TransmissionStore store = receiver.getReceivedTransmissionStore();
+			long now = TimeStamp.now().getMsSinceEpoch();
+			Set<Integer> remaining = new HashSet<Integer>();
+			int lastLocalID = -1;
+			List<SMSTransmission<?>> batch;
+			do
+			{
+				synchronized(receiver)
+				{
+					batch = store.retrieveIncompleteSMSTransmissions(lastLocalID, batchSize);
+				}
+				for(SMSTransmission<?> transmission : batch)
+				{
+					lastLocalID = transmission.getLocalID();
+					if(process(store, transmission, now))
+						remaining.add(lastLocalID);
+					Thread.yield(); // give way to the ingest path
+				}
+			}
+			while(batch.size() == batchSize);
+			// Forget about transmissions which have been decoded or deleted:
+			nackStates.keySet().retainAll(remaining);
+		}
+	}
+
+	/**
+	 * @param store
+	 * @param transmission
+	 * @param now
+	 * @return whether the transmission remains stored as an incomplete transmission
+	 * @throws Exception
+	 */
+	private boolean process(TransmissionStore store, SMSTransmission<?> transmission, long now) throws Exception
+	{
+		synchronized(receiver)
+		{
+			// Decode complete transmissions:
+			if(transmission.isComplete())
+			{
+				try
+				{
+					return !receiver.receive(transmission);
+				}
+				catch(PayloadDecodeException pde)
+				{	// corrupt transmission: delete it, no point in retrying
+					System.err.println("Could not decode transmission " + transmission.getLocalID() + ", deleting it: " + pde.getMessage());
+					store.deleteTransmission(transmission);
+					return false;
+				}
+				catch(Exception e)
+				{	// possibly temporary condition (e.g. unknown model or key, database error): keep the transmission and retry upon the next sweep
+					System.err.println("Could not decode transmission " + transmission.getLocalID() + " (will retry later): " + e.toString());
+					return true;
+				}
+			}
+
+			// Check expiry:
+			TimeStamp lastActivity = transmission.getLastPartReceivedAt();
+			long idleMS = lastActivity != null ? now - lastActivity.getMsSinceEpoch() : Long.MAX_VALUE;
+			if(idleMS >= expiryMS)
+			{
+				store.deleteTransmission(transmission);
+				return false;
+			}
+
+			// Request missing parts if the transmission has been idle for long enough:
+			NackState nackState = nackStates.get(transmission.getLocalID());
+			if(idleMS >= nackDelayMS && (nackState == null ? maxNacks > 0 : (nackState.count < maxNacks && now - nackState.lastSentAt >= nackDelayMS)))
+			{
+				if(nackState == null)
+					nackState = new NackState();
+				sendNack(transmission, new NackPayload(transmission));
+				nackState.count++;
+				nackState.lastSentAt = now;
+				nackStates.put(transmission.getLocalID(), nackState);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Sends the given NACK payload back to the sender of the given incomplete transmission.
+	 * Called on the sweeping thread, while holding the lock on the {@link Receiver}.
+	 *
+	 * @param subject - the incompletely received transmission
+	 * @param nack - the payload listing its missing parts
+	 * @throws Exception
+	 */
+	protected abstract void sendNack(SMSTransmission<?> subject, NackPayload nack) throws Exception;
+
+	/**
+	 * @author mstevens
+	 */
+	private static class NackState
+	{
+
+		int count = 0;
+		long lastSentAt;
+
+	}
+
+}
@@ -28,8 +28,10 @@ import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 import uk.ac.ucl.excites.sapelli.transmission.payloads.AckPayload;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.NackPayload;
 import uk.ac.ucl.excites.sapelli.transmission.payloads.RecordsPayload;
 import uk.ac.ucl.excites.sapelli.transmission.util.PayloadDecodeException;
 import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
@@ -50,7 +52,8 @@ public abstract class Payload
 	{
 		Records,
 		Files,
-		Ack
+		Ack,
+		Nack
 		//... up to 16 different built-in types (ordinals 0 to 15)
 	}
 	
@@ -64,6 +67,8 @@ public abstract class Payload
 				return new RecordsPayload();
 			case Ack:
 				return new AckPayload();
+			case Nack:
+				return new NackPayload();
 			case Files:
 			default:
 				throw new IllegalArgumentException("Unsupport Payload type: " + type.name());
@@ -109,6 +114,19 @@ public abstract class Payload
 		return transmission != null;
 	}
 	
+	/**
+	 * Returns the Model the payload data belongs to, if any. Only payloads which belong to a model can be encrypted,
+	 * because the encryption key is determined by the model.
+	 * 
+	 * To be overridden by model-specific payloads.
+	 * 
+	 * @return the model, or {@code null} if the payload is not model-specific
+	 */
+	public Model getModel()
+	{
+		return null;
+	}
+	
 	public BitArray serialise() throws IOException, TransmissionCapacityExceededException, UnknownModelException
 	{
 		if(this.transmission == null)
@@ -127,21 +145,31 @@ public abstract class Payload
 	protected abstract void write(BitOutputStream bitstream) throws IOException, TransmissionCapacityExceededException, UnknownModelException;
 	
 	protected void deserialise(BitArray payloadBits) throws IllegalStateException, IOException, PayloadDecodeException, UnknownModelException
+	{
+		deserialise(new BitArrayInputStream(payloadBits));
+	}
+	
+	/**
+	 * Deserialises the payload while reading it from the given stream, which is closed afterwards.
+	 * 
+	 * @param bitstream
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 * @throws PayloadDecodeException
+	 * @throws UnknownModelException
+	 */
+	protected void deserialise(BitInputStream bitstream) throws IllegalStateException, IOException, PayloadDecodeException, UnknownModelException
 	{
 		if(this.transmission == null)
 			throw new IllegalStateException("Cannot deserialise before transmission has been set!");
-		BitArrayInputStream bitstream = null;
 		try
 		{
-			bitstream = new BitArrayInputStream(payloadBits);
-			
 			// Deserialise payload data:
 			read(bitstream);
 		}
 		finally
 		{
-			if(bitstream != null)
-				bitstream.close();	
+			bitstream.close();
 		}
 	}
 	
@@ -45,8 +45,33 @@ public abstract class Receiver
 	public Receiver(TransmissionStore receivedTransmissionStore, TransmissionClient client)
 	{
 		this.receivedTransmissionStore = receivedTransmissionStore;
+		this.client = client;
 	}
 	
+	/**
+	 * @return the store holding (partially) received transmissions
+	 */
+	/*package*/ TransmissionStore getReceivedTransmissionStore()
+	{
+		return receivedTransmissionStore;
+	}
+	
+	/**
+	 * @return the client
+	 */
+	public TransmissionClient getClient()
+	{
+		return client;
+	}
+	
+	/**
+	 * Note: callers which access the receivedTransmissionStore from other threads (e.g. the {@link IncompleteTransmissionSweeper})
+	 * must synchronise on this Receiver instance.
+	 * 
+	 * @param transmission
+	 * @return whether or not the transmission was complete and has been decoded
+	 * @throws Exception
+	 */
 	protected boolean receive(Transmission transmission) throws Exception
 	{
 		// Receive (i.e. decode) the transmission if it is complete
@@ -68,7 +93,7 @@ public abstract class Receiver
 	}
 	
 	
-	public void receive(BinaryMessage binSms) throws Exception
+	public synchronized void receive(BinaryMessage binSms) throws Exception
 	{
 		BinarySMSTransmission transmission = receivedTransmissionStore.retrieveBinarySMSTransmission(binSms.getSender(), false, binSms.getSendingSideTransmissionID(), binSms.getPayloadHash());
 		if(transmission == null) // we received the the first part
@@ -76,9 +101,17 @@ public abstract class Receiver
 		else
 			transmission.receivePart(binSms);
 		
-		// Store/Update transmission unless it was successfully received in its entirety:
-		if(!receive(transmission))
-			receivedTransmissionStore.storeTransmission(transmission);
+		// Store/Update transmission unless it was successfully received in its entirety (also when decoding fails, the IncompleteTransmissionSweeper will retry or delete it):
+		boolean received = false;
+		try
+		{
+			received = receive(transmission);
+		}
+		finally
+		{
+			if(!received)
+				receivedTransmissionStore.storeTransmission(transmission);
+		}
 	}
 	
 	public void receive(TextMessage txtSms)
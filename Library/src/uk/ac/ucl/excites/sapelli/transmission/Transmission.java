@@ -20,17 +20,26 @@ package uk.ac.ucl.excites.sapelli.transmission;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 
 import uk.ac.ucl.excites.sapelli.shared.crypto.Hashing;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
 import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+import uk.ac.ucl.excites.sapelli.transmission.crypto.PayloadCipher;
 import uk.ac.ucl.excites.sapelli.transmission.util.IncompleteTransmissionException;
 import uk.ac.ucl.excites.sapelli.transmission.util.PayloadDecodeException;
 import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionSendingException;
+import uk.ac.ucl.excites.sapelli.transmission.util.UnknownKeyException;
 
 /**
  * Abstract superclass for all Transmissions
@@ -58,13 +67,30 @@ public abstract class Transmission
 	static public final int PAYLOAD_HASH_SIZE = 16; // bits
 	static public final IntegerRangeMapping PAYLOAD_HASH_FIELD = IntegerRangeMapping.ForSize(0, PAYLOAD_HASH_SIZE); // unsigned(!) 16 bit integer
 	
+	/**
+	 * Transmission format version, written at the start of each transmission body such that the receiving side can
+	 * detect bodies written in a format it does not understand.<br/>
+	 * Versions:<br/>
+	 * 	- 1: introduced the encryption flag (and model ID field for encrypted payloads, which then leave the model ID out of their own header)
+	 */
+	static public final int FORMAT_VERSION = 1;
+	static public final int FORMAT_VERSION_SIZE = 3; // bits
+	static public final IntegerRangeMapping FORMAT_VERSION_FIELD = IntegerRangeMapping.ForSize(0, FORMAT_VERSION_SIZE); // unsigned(!) 3 bit integer
+	
+	/**
+	 * Size of the flag which indicates whether or not the payload data is encrypted
+	 */
+	static public final int ENCRYPTION_FLAG_SIZE = 1; // bit
+	
 	/**
 	 * Minimum number of bits needed to fit transmission body, composed of:
+	 * 	- format version field: FORMAT_VERSION_SIZE (= 3) bits
 	 * 	- payload type field: Payload.PAYLOAD_TYPE_SIZE (= 5) bits
+	 * 	- encryption flag: ENCRYPTION_FLAG_SIZE (= 1) bit
 	 * 	- payload data bits length field: at least 1 bit
 	 * 	- the actual payload data bits: at least 1 bit  
 	 */
-	static private final int MIN_BODY_LENGTH_BITS = Payload.PAYLOAD_TYPE_SIZE + 1 + 1; // bits
+	static private final int MIN_BODY_LENGTH_BITS = FORMAT_VERSION_SIZE + Payload.PAYLOAD_TYPE_SIZE + ENCRYPTION_FLAG_SIZE + 1 + 1; // bits
 	
 	static public final int CORRESPONDENT_MAX_LENGTH = 256;
 	
@@ -97,6 +123,16 @@ public abstract class Transmission
 	 */
 	protected Integer payloadHash;
 	
+	/**
+	 * Whether or not the payload data is/was transmitted in encrypted form
+	 */
+	protected boolean encrypted = false;
+	
+	/**
+	 * The model identified in the header of a received encrypted transmission (receiving side only)
+	 */
+	private Model headerModel = null;
+	
 	protected TimeStamp sentAt; //used only on sending side
 	protected TimeStamp receivedAt; //used on receiving side, and on sending side if an acknowledgement was received
 	
@@ -170,7 +206,7 @@ public abstract class Transmission
 			throw new IllegalStateException("Transmission capacity (max body size) is too small! It is " + getMaxBodyBits() + " bits; while the minimum is " + MIN_BODY_LENGTH_BITS + " bits.");
 		
 		// Helper variable: a = bits available for length field (at least 1) + the actual data bits (at least 1)
-		int a = getMaxBodyBits() - Payload.PAYLOAD_TYPE_SIZE;
+		int a = getMaxBodyBits() - FORMAT_VERSION_SIZE - Payload.PAYLOAD_TYPE_SIZE - ENCRYPTION_FLAG_SIZE;
 		
 		/* The payloadBitlengthField must be *just* big enough to contain values from [0, b], where b (the field's
 		 * 	strict highbound) is the maximum number of actual payload data bits with can store.
@@ -235,58 +271,94 @@ public abstract class Transmission
 		return payloadHash;
 	}
 	
-	public void send(Sender transmissionSender) throws IOException, TransmissionCapacityExceededException, UnknownModelException
+	public void send(Sender transmissionSender) throws IOException, TransmissionCapacityExceededException, UnknownModelException, TransmissionSendingException
 	{
-		//Some checks:
-		if(transmissionSender == null)
-			throw new IllegalStateException("Please provide a non-null TransmissionSender instance.");
-		if(payload == null)
-			throw new NullPointerException("Cannot send transmission without payload");
-		if(isSent())
+		Timer.Context timing = Metrics.Time("transmission.send");
+		try
 		{
-			System.out.println("This transmission has already been sent.");
-			return;
+			//Some checks:
+			if(transmissionSender == null)
+				throw new IllegalStateException("Please provide a non-null TransmissionSender instance.");
+			if(payload == null)
+				throw new NullPointerException("Cannot send transmission without payload");
+			if(isSent())
+			{
+				System.out.println("This transmission has already been sent.");
+				return;
+			}
+			
+			// Determine whether to encrypt (must be known before serialisation, see isModelIDInHeader()):
+			PayloadCipher cipher = getPayloadCipher();
+			encrypted = cipher != null;
+			
+			// Get serialised payload bits:
+			BitArray payloadBits = payload.serialise();
+			
+			// Encryption:
+			int maxPayloadBits = getMaxPayloadBits();
+			if(encrypted)
+			{
+				maxPayloadBits -= Model.MODEL_ID_SIZE; // the model ID is written in the header
+				// Encrypt payload bits:
+				payloadBits = cipher.encrypt(payloadBits);
+			}
+			
+			// Capacity check:
+			if(payloadBits.length() > maxPayloadBits)
+				throw new TransmissionCapacityExceededException("Payload is too large for the associated transmission (size: " + payloadBits.length() + " bits; max for this type of transmission: " + maxPayloadBits + " bits");
+			
+			// Compute & store payload hash:
+			this.payloadHash = computePayloadHash(payloadBits); // must be set before wrap() is called!	
+			
+			// Write header & the actual payload bits:
+			BitArrayOutputStream bitstream = new BitArrayOutputStream();
+			writeHeader(bitstream, payloadBits.length());
+			bitstream.write(payloadBits);
+			
+			// Flush, close & get body bits:
+			bitstream.flush();
+			bitstream.close();
+			BitArray bodyBits = bitstream.toBitArray();
+			
+			// Wrap body for transmission:
+			wrap(bodyBits); // note: payloadHash must be set before this call
+			
+			// Do the actual sending:
+			doSend(transmissionSender);
 		}
-		
-		// Open input stream:
-		BitArrayOutputStream bitstream = new BitArrayOutputStream();
-		
-		// TODO transmission format version !!!
+		finally
+		{
+			timing.stop();
+		}
+	}
+
+	/**
+	 * Writes the header which precedes the payload bits in the body: format version, payload type, encryption flag,
+	 * model ID (only if encrypted) and payload length. The payload must be set and {@link #encrypted} must be determined.
+	 * 
+	 * @param bitstream
+	 * @param payloadBitsLength
+	 * @throws IOException
+	 */
+	protected void writeHeader(BitOutputStream bitstream, int payloadBitsLength) throws IOException
+	{
+		// Write format version:
+		FORMAT_VERSION_FIELD.write(FORMAT_VERSION, bitstream);
 		
 		// TODO anonymous / user-cred (maybe only for next transmission format version?)
-		// TODO encrypted flag + encryption-related fields (maybe only for next transmission format version?)
 		
 		// Write payload type:
 		Payload.PAYLOAD_TYPE_FIELD.write(payload.getType(), bitstream);
 		
-		// Get serialised payload bits:
-		BitArray payloadBits = payload.serialise();
-		
-		// Capacity check:
-		if(payloadBits.length() > getMaxPayloadBits())
-			throw new TransmissionCapacityExceededException("Payload is too large for the associated transmission (size: " + payloadBits.length() + " bits; max for this type of transmission: " + getMaxPayloadBits() + " bits");
-		
-		// Compute & store payload hash:
-		this.payloadHash = computePayloadHash(payloadBits); // must be set before wrap() is called!	
+		// Write encryption flag & model ID, which the receiver needs to look-up the key:
+		bitstream.write(encrypted);
+		if(encrypted)
+			Model.MODEL_ID_FIELD.write(payload.getModel().getID(), bitstream);
 		
 		// Write payload bits length:
-		payloadBitsLengthField.write(payloadBits.length(), bitstream);
-		
-		// Write the actual payload bits:
-		bitstream.write(payloadBits);
-		
-		// Flush, close & get body bits:
-		bitstream.flush();
-		bitstream.close();
-		BitArray bodyBits = bitstream.toBitArray();
-		
-		// Wrap body for transmission:
-		wrap(bodyBits); // note: payloadHash must be set before this call
-		
-		// Do the actual sending:
-		doSend(transmissionSender);
+		payloadBitsLengthField.write(payloadBitsLength, bitstream);
 	}
-
+	
 	public void resend(Sender sender) throws Exception
 	{
 		// Clear early sentAt value (otherwise send() won't work):
@@ -296,58 +368,235 @@ public abstract class Transmission
 		send(sender);
 	}
 	
-	protected abstract void doSend(Sender transmissionSender);
+	protected abstract void doSend(Sender transmissionSender) throws TransmissionSendingException;
 	
-	public void receive() throws IncompleteTransmissionException, IOException, IllegalArgumentException, IllegalStateException, PayloadDecodeException, UnknownModelException
+	/**
+	 * Decodes the (complete) transmission and its payload. If this fails the transmission is left in its undecoded
+	 * state, such that decoding can be attempted again later (e.g. after the missing model or key has become available).
+	 * 
+	 * @throws IncompleteTransmissionException
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 * @throws IllegalStateException
+	 * @throws PayloadDecodeException when the transmission is corrupt or in an unsupported format
+	 * @throws UnknownModelException
+	 * @throws UnknownKeyException when the payload is encrypted with a key that is not (yet) known
+	 */
+	public void receive() throws IncompleteTransmissionException, IOException, IllegalArgumentException, IllegalStateException, PayloadDecodeException, UnknownModelException, UnknownKeyException
 	{
-		// Some checks:
-		if(!isComplete())
-			throw new IncompleteTransmissionException(this);
-		if(this.payload != null)
+		Timer.Context timing = Metrics.Time("transmission.receive");
+		boolean received = false;
+		try
 		{
-			System.out.println("This transmission has already been received.");
-			return;
+			// Some checks:
+			if(!isComplete())
+				throw new IncompleteTransmissionException(this);
+			if(this.payload != null)
+			{
+				System.out.println("This transmission has already been received.");
+				return;
+			}
+			
+			// Unwrap (reassemble/decode) body & open input stream:
+			BitInputStream bitstream = openBody();
+			
+			// Length check:
+			if(bitstream.bitsAvailable() < MIN_BODY_LENGTH_BITS - 1) // - 1 because in an extreme case it could be that the payload data is empty (0 bits long)
+				throw new IncompleteTransmissionException(this, "Transmission body length (" + bitstream.bitsAvailable() + " bits) for this to be a valid transmission.");
+			
+			// Read & check format version:
+			int formatVersion = FORMAT_VERSION_FIELD.readInt(bitstream);
+			if(formatVersion != FORMAT_VERSION)
+				throw new PayloadDecodeException(null, "Unsupported transmission format version (" + formatVersion + "), only version " + FORMAT_VERSION + " is supported.");
+			
+			// Read payload type & instantiate Payload object:
+			this.payload = Payload.New(client, Payload.PAYLOAD_TYPE_FIELD.readInt(bitstream));
+			this.payload.setTransmission(this); // !!!
+			
+			// Read encryption flag & model ID:
+			encrypted = bitstream.readBit();
+			headerModel = encrypted ? client.getModel(Model.MODEL_ID_FIELD.readLong(bitstream)) : null;
+			
+			// Read payload bits length:
+			int payloadBitsLength = payloadBitsLengthField.readInt(bitstream);
+			
+			if(encrypted)
+			{
+				// Verify payload hash (decoded bits cannot be trusted before the payload is authenticated, so it is read more than once):
+				int headerBitsLength = bitstream.getNumberOfBitsRead();
+				verifyPayloadHash(new PayloadInputStream(bitstream, payloadBitsLength));
+				bitstream.close();
+				
+				// Find the key which authenticates the payload:
+				PayloadCipher cipher = getDecryptionCipher(headerModel, headerBitsLength, payloadBitsLength);
+				
+				// Deserialise payload while decrypting it:
+				bitstream = openPayload(headerBitsLength);
+				payload.deserialise(cipher.getDecryptingStream(bitstream, payloadBitsLength));
+				bitstream.close();
+			}
+			else
+			{
+				// Deserialise payload while reading it, rather than reading all payload bits into memory first:
+				PayloadInputStream payloadStream = new PayloadInputStream(bitstream, payloadBitsLength);
+				try
+				{
+					payload.deserialise(payloadStream);
+				}
+				catch(PayloadDecodeException pde)
+				{	// if the payload is truncated or corrupted report that, rather than the decoding error it caused:
+					verifyPayloadHash(payloadStream);
+					throw pde;
+				}
+				catch(IOException ioe)
+				{	// idem
+					verifyPayloadHash(payloadStream);
+					throw ioe;
+				}
+				verifyPayloadHash(payloadStream);
+				
+				// Close stream:
+				bitstream.close();
+			}
+			
+			// TODO set receivedAT?
+			received = true;
 		}
-		
-		// Unwrap (reassemble/decode) body:
-		BitArray bodyBits = unwrap();
-		
-		// Length check:
-		if(bodyBits.length() < MIN_BODY_LENGTH_BITS - 1) // - 1 because in an extreme case it could be that the payload data is empty (0 bits long)
-			throw new IncompleteTransmissionException(this, "Transmission body length (" + bodyBits.length() + " bits) for this to be a valid transmission.");
-		
-		// Open input stream:
-		BitArrayInputStream bitstream = new BitArrayInputStream(bodyBits);
-		
-		// Read payload type & instantiate Payload object:
-		this.payload = Payload.New(client, Payload.PAYLOAD_TYPE_FIELD.readInt(bitstream));
-		this.payload.setTransmission(this); // !!!
-		
-		// Read payload bits length:
-		int payloadBitsLength = payloadBitsLengthField.readInt(bitstream);
-		
-		// Read the actual payload bits:
-		BitArray payloadBits;
+		finally
+		{
+			if(!received)
+				this.payload = null; // otherwise a later attempt would consider the transmission to be received already
+			timing.stop();
+		}
+	}
+	
+	/**
+	 * Reads the remaining payload bits (if any) and checks the hash computed over all of them.
+	 * 
+	 * @param payloadStream
+	 * @throws IncompleteTransmissionException when the payload is truncated or its hash does not match
+	 * @throws IOException
+	 */
+	private void verifyPayloadHash(PayloadInputStream payloadStream) throws IncompleteTransmissionException, IOException
+	{
+		int hash;
 		try
 		{
-			payloadBits = bitstream.readBitArray(payloadBitsLength);
+			hash = payloadStream.finish();
 		}
 		catch(EOFException eofe)
 		{	// not enough bits could be read (i.e. less than payloadBitsLength)
-			throw new IncompleteTransmissionException(this, "Transmission body is incomplete, could not read all of the expected " + payloadBitsLength + " payload data bits.");
+			throw new IncompleteTransmissionException(this, "Transmission body is incomplete, could not read all of the expected " + payloadStream.length + " payload data bits.");
 		}
-		
-		// Close stream:
-		bitstream.close();
-		
-		// Verify payload hash:
-		if(payloadHash != computePayloadHash(payloadBits))
+		if(payloadHash != hash)
 			throw new IncompleteTransmissionException(this, "Payload hash mismatch!");
-		
-		// Deserialise payload:
-		payload.deserialise(payloadBits);
-		
-		// TODO set receivedAT?
+	}
+	
+	/**
+	 * Determines whether the payload is to be encrypted, and if so with which cipher.
+	 * Encryption is only possible if the payload belongs to a model for which the client provides
+	 * encryption settings which allow encryption and contain at least one key. The first key is used.
+	 * 
+	 * @return the cipher to encrypt the payload with, or {@code null} if the payload is not to be encrypted
+	 * @throws UnknownModelException
+	 * @throws IOException
+	 */
+	protected PayloadCipher getPayloadCipher() throws UnknownModelException, IOException
+	{
+		Model model = payload.getModel();
+		if(model == null)
+			return null;
+		EncryptionSettings settings = client.getEncryptionSettingsFor(model);
+		if(settings == null || !settings.isAllowEncryption() || settings.getKeys().isEmpty())
+			return null;
+		try
+		{
+			return settings.getKeys().get(0).getPayloadCipher(model.getID());
+		}
+		catch(GeneralSecurityException gse)
+		{
+			throw new IOException("Could not obtain payload cipher", gse);
+		}
+	}
+	
+	/**
+	 * Tries all keys in the encryption settings for the given model until one authenticates the (encrypted) payload bits.
+	 * 
+	 * @param model
+	 * @param headerBitsLength number of body bits preceding the payload bits
+	 * @param payloadBitsLength
+	 * @return the cipher to decrypt the payload with
+	 * @throws UnknownModelException
+	 * @throws IOException
+	 * @throws UnknownKeyException when none of the keys authenticates the payload
+	 */
+	private PayloadCipher getDecryptionCipher(Model model, int headerBitsLength, int payloadBitsLength) throws UnknownModelException, IOException, UnknownKeyException
+	{
+		EncryptionSettings settings = client.getEncryptionSettingsFor(model);
+		if(settings != null)
+			for(EncryptionSettings.Key key : settings.getKeys())
+			{
+				PayloadCipher cipher;
+				try
+				{
+					cipher = key.getPayloadCipher(model.getID());
+				}
+				catch(GeneralSecurityException gse)
+				{
+					throw new IOException("Could not obtain payload cipher", gse);
+				}
+				BitInputStream payloadStream = openPayload(headerBitsLength);
+				try
+				{
+					if(cipher.authenticate(payloadStream, payloadBitsLength))
+						return cipher;
+				}
+				finally
+				{
+					payloadStream.close();
+				}
+			}
+		throw new UnknownKeyException(model.getID());
+	}
+	
+	/**
+	 * @param headerBitsLength number of body bits preceding the payload bits
+	 * @return a stream over the body, positioned at the first payload bit
+	 * @throws IOException
+	 */
+	private BitInputStream openPayload(int headerBitsLength) throws IOException
+	{
+		BitInputStream bitstream = openBody();
+		bitstream.skipBits(headerBitsLength);
+		return bitstream;
+	}
+	
+	/**
+	 * @return whether or not the payload data is/was transmitted in encrypted form
+	 */
+	public boolean isEncrypted()
+	{
+		return encrypted;
+	}
+	
+	/**
+	 * Encrypted transmissions carry the model ID in their header, because the receiving side needs it to look-up the key
+	 * before it can decrypt the payload. Payloads which belong to a model should then not write the model ID again.
+	 * 
+	 * @return whether or not the model ID is/was written in the header of this transmission
+	 */
+	public boolean isModelIDInHeader()
+	{
+		return encrypted;
+	}
+	
+	/**
+	 * @return the model identified in the header of this (received) transmission, or {@code null} if the model ID was not written in the header
+	 * @see #isModelIDInHeader()
+	 */
+	public Model getHeaderModel()
+	{
+		return headerModel;
 	}
 	
 	/**
@@ -384,6 +633,18 @@ public abstract class Transmission
 	 */
 	protected abstract BitArray unwrap() throws IOException;
 	
+	/**
+	 * Opens a stream to read the unwrapped body from. Subclasses which hold the body in a form that can be read
+	 * directly may override this to avoid materialising a {@link BitArray} copy of the entire body.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected BitInputStream openBody() throws IOException
+	{
+		return new BitArrayInputStream(unwrap());
+	}
+	
 	protected int computePayloadHash(BitArray payloadBits)
 	{
 		return Hashing.getCRC16Hash(payloadBits.toByteArray());
@@ -436,4 +697,87 @@ public abstract class Transmission
 	 */
 	public abstract Type getType();
 	
+	/**
+	 * Reads the payload bits from the body stream, while computing the same hash as {@link #computePayloadHash(BitArray)}
+	 * over them. This allows the payload to be decoded as it is being read, with the hash being checked afterwards.
+	 * Closing this stream does not close the body stream.
+	 * 
+	 * @author mstevens
+	 */
+	static private class PayloadInputStream extends BitInputStream
+	{
+		
+		private final BitInputStream body;
+		private final int length;
+		private int remaining;
+		private int crc = 0;
+		private final byte[] currentByte = new byte[1];
+		private int bitsInCurrentByte = 0;
+		
+		/**
+		 * @param body
+		 * @param length number of payload bits
+		 */
+		public PayloadInputStream(BitInputStream body, int length)
+		{
+			this.body = body;
+			this.length = length;
+			this.remaining = length;
+		}
+
+		@Override
+		protected boolean doReadBit() throws IOException, EOFException
+		{
+			if(remaining == 0)
+				throw new EOFException("End of payload reached");
+			boolean bit = body.readBit();
+			remaining--;
+			hash(bit);
+			return bit;
+		}
+		
+		private void hash(boolean bit)
+		{
+			currentByte[0] = (byte) ((currentByte[0] << 1) | (bit ? 1 : 0));
+			if(++bitsInCurrentByte == Byte.SIZE)
+			{
+				crc = Hashing.getCRC16Hash(crc, currentByte, 0, 1);
+				currentByte[0] = 0;
+				bitsInCurrentByte = 0;
+			}
+		}
+		
+		/**
+		 * Reads the remaining payload bits and completes the hash computation.
+		 * 
+		 * @return the payload hash
+		 * @throws IOException
+		 * @throws EOFException when the body stream ends before all payload bits were read
+		 */
+		public int finish() throws IOException, EOFException
+		{
+			while(remaining > 0)
+			{
+				hash(body.readBit());
+				remaining--;
+			}
+			while(bitsInCurrentByte != 0)
+				hash(false); // pad last byte, as done by BitArray#toByteArray()
+			return crc;
+		}
+
+		@Override
+		public int bitsAvailable() throws IOException
+		{
+			return Math.min(remaining, body.bitsAvailable());
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return bitsAvailable() / Byte.SIZE;
+		}
+		
+	}
+	
 }
@@ -21,6 +21,7 @@ package uk.ac.ucl.excites.sapelli.transmission;
 import java.util.List;
 import java.util.Set;
 
+import uk.ac.ucl.excites.sapelli.shared.compression.PresetDictionary;
 import uk.ac.ucl.excites.sapelli.storage.StorageClient;
 import uk.ac.ucl.excites.sapelli.storage.model.Column;
 import uk.ac.ucl.excites.sapelli.storage.model.Model;
@@ -77,4 +78,18 @@ public abstract class TransmissionClient extends StorageClient
 	 */
 	public abstract Set<Column<?>> getNonTransmittableColumns(Schema schema);
 	
+	/**
+	 * Returns a preset dictionary to compress records of the given model with. The sending and receiving side
+	 * must derive the exact same dictionary from the model (this is verified by means of the dictionary ID).
+	 * 
+	 * The default implementation returns null, meaning no dictionary-based compression will be used.
+	 * 
+	 * @param model
+	 * @return the dictionary, or {@code null} if there is none for the given model
+	 */
+	public PresetDictionary getPresetDictionary(Model model)
+	{
+		return null;
+	}
+	
 }
@@ -0,0 +1,386 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.ChunkedBody;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.HTTPTransmission;
+
+/**
+ * Minimal HTTP server, listening on the loopback interface, which receives {@link HTTPTransmission}s the way
+ * {@link uk.ac.ucl.excites.sapelli.transmission.modes.http.URLConnectionHTTPClient} sends them. Chunks which were
+ * received intact are kept across requests, so interrupted uploads can be resumed. To test the latter the server can be
+ * told to drop the connection of the next upload after a given number of body bytes (see {@link #dropNextUploadAfter(int)}).
+ * 
+ * Requests are handled one at a time, only chunked transfer encoding is supported for request bodies.
+ * 
+ * @author mstevens
+ */
+public class HTTPStubServer implements Runnable
+{
+
+	// STATICS-------------------------------------------------------
+	static private final Charset ASCII = Charset.forName("US-ASCII");
+	
+	// DYNAMICS------------------------------------------------------
+	private final TransmissionClient client;
+	private final ServerSocket serverSocket;
+	private Thread thread;
+	
+	private final Map<String, ChunkedBody> bodies = new HashMap<String, ChunkedBody>();
+	private final Set<String> completed = new HashSet<String>();
+	private final List<HTTPTransmission> received = Collections.synchronizedList(new ArrayList<HTTPTransmission>());
+	private final List<Integer> firstChunks = Collections.synchronizedList(new ArrayList<Integer>());
+	private volatile int dropAfterBytes = -1;
+	
+	/**
+	 * @param client used to instantiate the received transmissions
+	 * @throws IOException
+	 */
+	public HTTPStubServer(TransmissionClient client) throws IOException
+	{
+		this.client = client;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1")); // any free port
+	}
+	
+	/**
+	 * @return the URL to send transmissions to
+	 */
+	public String getURL()
+	{
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/transmissions";
+	}
+	
+	public void start()
+	{
+		thread = new Thread(this, getClass().getSimpleName());
+		thread.start();
+	}
+	
+	public void stop() throws IOException, InterruptedException
+	{
+		serverSocket.close();
+		if(thread != null)
+			thread.join();
+	}
+	
+	/**
+	 * Makes the server close the connection of the next POST request after reading the given number of body bytes,
+	 * without responding, as if the connection dropped.
+	 * 
+	 * @param bytes
+	 */
+	public void dropNextUploadAfter(int bytes)
+	{
+		dropAfterBytes = bytes;
+	}
+	
+	/**
+	 * @return the transmissions of which the complete body was received, in order of completion (they have not been decoded yet)
+	 */
+	public List<HTTPTransmission> getReceivedTransmissions()
+	{
+		return received;
+	}
+	
+	/**
+	 * @return the first chunk number of each POST request received so far
+	 */
+	public List<Integer> getFirstChunks()
+	{
+		return firstChunks;
+	}
+	
+	@Override
+	public void run()
+	{
+		while(!serverSocket.isClosed())
+		{
+			Socket socket = null;
+			try
+			{
+				socket = serverSocket.accept();
+				socket.setSoTimeout(30 * 1000);
+				handle(socket);
+			}
+			catch(SocketException se)
+			{
+				// server socket closed (or connection reset by client)
+			}
+			catch(IOException ioe)
+			{
+				System.err.println(getClass().getSimpleName() + ": error upon handling request: " + ioe.getMessage());
+			}
+			finally
+			{
+				try
+				{
+					if(socket != null)
+						socket.close();
+				}
+				catch(IOException ignore) {}
+			}
+		}
+	}
+	
+	private void handle(Socket socket) throws IOException
+	{
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		
+		// Read request line & headers:
+		String[] requestLine = readLine(in).split(" ");
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while(!(line = readLine(in)).isEmpty())
+		{
+			int colon = line.indexOf(':');
+			if(colon > 0)
+				headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+		}
+		String method = requestLine[0];
+		
+		// Identify transmission:
+		int sendingSideID;
+		int payloadHash;
+		try
+		{
+			sendingSideID = Integer.parseInt(headers.get(HTTPTransmission.HEADER_SENDING_SIDE_ID.toLowerCase(Locale.ENGLISH)));
+			payloadHash = Integer.parseInt(headers.get(HTTPTransmission.HEADER_PAYLOAD_HASH.toLowerCase(Locale.ENGLISH)));
+		}
+		catch(NumberFormatException nfe)
+		{
+			respond(socket, 400, "Bad Request", null);
+			return;
+		}
+		String key = sendingSideID + ":" + payloadHash;
+		ChunkedBody body;
+		synchronized(bodies)
+		{
+			if(completed.contains(key))
+			{
+				respond(socket, HTTPTransmission.HTTP_STATUS_COMPLETE, "OK", null);
+				return;
+			}
+			body = bodies.get(key);
+			if(body == null)
+			{
+				body = new ChunkedBody(HTTPTransmission.MAX_BODY_SIZE);
+				bodies.put(key, body);
+			}
+		}
+		
+		if("POST".equals(method))
+		{
+			if(!"chunked".equalsIgnoreCase(headers.get("transfer-encoding")))
+			{
+				respond(socket, 411, "Length Required", null);
+				return;
+			}
+			String firstChunk = headers.get(HTTPTransmission.HEADER_FIRST_CHUNK.toLowerCase(Locale.ENGLISH));
+			firstChunks.add(firstChunk != null ? Integer.valueOf(firstChunk) : 0);
+			if(firstChunk != null && Integer.parseInt(firstChunk) != body.getNumberOfChunks())
+			{	// client does not resume from the chunk we need
+				respond(socket, HTTPTransmission.HTTP_STATUS_INCOMPLETE, "Accepted", body.getNumberOfChunks());
+				return;
+			}
+			InputStream content = new ChunkedTransferInputStream(in);
+			int drop = dropAfterBytes;
+			if(drop >= 0)
+			{
+				dropAfterBytes = -1;
+				body.read(new LimitedInputStream(content, drop));
+				return; // the connection is closed without responding
+			}
+			if(body.read(content))
+			{
+				synchronized(bodies)
+				{
+					bodies.remove(key);
+					completed.add(key);
+				}
+				received.add(new HTTPTransmission(client, sendingSideID, payloadHash, body, TimeStamp.now()));
+			}
+		}
+		else if(!"HEAD".equals(method))
+		{
+			respond(socket, 405, "Method Not Allowed", null);
+			return;
+		}
+		if(body.isComplete())
+			respond(socket, HTTPTransmission.HTTP_STATUS_COMPLETE, "OK", null);
+		else
+			respond(socket, HTTPTransmission.HTTP_STATUS_INCOMPLETE, "Accepted", body.getNumberOfChunks());
+	}
+	
+	private void respond(Socket socket, int status, String message, Integer nextChunk) throws IOException
+	{
+		StringBuilder bldr = new StringBuilder();
+		bldr.append("HTTP/1.1 ").append(status).append(' ').append(message).append("\r\n");
+		if(nextChunk != null)
+			bldr.append(HTTPTransmission.HEADER_NEXT_CHUNK).append(": ").append(nextChunk).append("\r\n");
+		bldr.append("Content-Length: 0\r\n");
+		bldr.append("Connection: close\r\n");
+		bldr.append("\r\n");
+		OutputStream out = socket.getOutputStream();
+		out.write(bldr.toString().getBytes(ASCII));
+		out.flush();
+	}
+	
+	/**
+	 * Reads a line terminated by CRLF (or LF).
+	 */
+	static private String readLine(InputStream in) throws IOException
+	{
+		StringBuilder bldr = new StringBuilder();
+		int c;
+		while((c = in.read()) != '\n')
+		{
+			if(c == -1)
+				throw new EOFException("Connection closed");
+			if(c != '\r')
+				bldr.append((char) c);
+		}
+		return bldr.toString();
+	}
+	
+	/**
+	 * Decodes a request body sent using HTTP chunked transfer encoding (not to be confused with the chunks of {@link ChunkedBody}).
+	 */
+	static private class ChunkedTransferInputStream extends InputStream
+	{
+		
+		private final InputStream in;
+		private int remainingInChunk = 0;
+		private boolean ended = false;
+		
+		public ChunkedTransferInputStream(InputStream in)
+		{
+			this.in = in;
+		}
+		
+		private boolean nextChunk() throws IOException
+		{
+			if(ended)
+				return false;
+			if(remainingInChunk == 0)
+			{
+				String sizeLine = readLine(in);
+				if(sizeLine.isEmpty()) // CRLF which terminated the previous chunk
+					sizeLine = readLine(in);
+				int semicolon = sizeLine.indexOf(';');
+				remainingInChunk = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+				if(remainingInChunk == 0)
+				{	// last chunk, skip trailers:
+					while(!readLine(in).isEmpty());
+					ended = true;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(!nextChunk())
+				return -1;
+			int b = in.read();
+			if(b == -1)
+				throw new EOFException("Connection closed");
+			remainingInChunk--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0)
+				return 0;
+			if(!nextChunk())
+				return -1;
+			int n = in.read(b, off, Math.min(len, remainingInChunk));
+			if(n == -1)
+				throw new EOFException("Connection closed");
+			remainingInChunk -= n;
+			return n;
+		}
+		
+	}
+	
+	/**
+	 * Ends after the given number of bytes, to simulate a dropped connection.
+	 */
+	static private class LimitedInputStream extends InputStream
+	{
+		
+		private final InputStream in;
+		private int remaining;
+		
+		public LimitedInputStream(InputStream in, int limit)
+		{
+			this.in = in;
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(remaining == 0)
+				return -1;
+			int b = in.read();
+			if(b != -1)
+				remaining--;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(remaining == 0)
+				return -1;
+			int n = in.read(b, off, Math.min(len, remaining));
+			if(n > 0)
+				remaining -= n;
+			return n;
+		}
+		
+	}
+	
+}
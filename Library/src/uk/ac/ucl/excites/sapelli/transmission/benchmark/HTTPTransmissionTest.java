@@ -0,0 +1,311 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.benchmark;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import uk.ac.ucl.excites.sapelli.shared.db.exceptions.DBException;
+import uk.ac.ucl.excites.sapelli.storage.db.RecordStore;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordReference;
+import uk.ac.ucl.excites.sapelli.storage.model.Schema;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.columns.StringColumn;
+import uk.ac.ucl.excites.sapelli.storage.model.indexes.PrimaryKey;
+import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
+import uk.ac.ucl.excites.sapelli.transmission.EncryptionSettings;
+import uk.ac.ucl.excites.sapelli.transmission.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.Sender;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.ChunkedBody;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.HTTPClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.HTTPTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.http.URLConnectionHTTPClient;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSClient;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.RecordsPayload;
+
+/**
+ * Round-trip and resume test for {@link HTTPTransmission}s, using {@link URLConnectionHTTPClient} and {@link HTTPStubServer}.
+ * 
+ * A {@link RecordsPayload} with a large number of records is sent to the stub server, which decodes it after receiving the
+ * complete body. The test passes if the decoded records equal the sent ones. This is done twice: once without interruption,
+ * and once with the server dropping the connection part way through the upload, in which case the client must resume from
+ * the first chunk the server is missing (rather than from the start). Both cases are run with an unencrypted and with an
+ * encrypted payload.
+ * 
+ * @author mstevens
+ */
+public class HTTPTransmissionTest
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_RECORDS = 20000;
+	
+	static private final long MODEL_ID = 43;
+	
+	/**
+	 * @param args optional number of records
+	 * @throws Exception
+	 */
+	static public void main(String[] args) throws Exception
+	{
+		int records = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+		boolean passed = new HTTPTransmissionTest(System.out).run(records);
+		System.exit(passed ? 0 : 2);
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final PrintStream out;
+	private final Client client;
+	private final Sender sender;
+	
+	private final Schema schema;
+	private final IntegerColumn idColumn;
+	private final IntegerColumn valueColumn;
+	private final StringColumn textColumn;
+	
+	private int nextLocalID = 1;
+	
+	/**
+	 * @param out stream to report results to
+	 */
+	public HTTPTransmissionTest(PrintStream out)
+	{
+		this.out = out;
+		
+		Model model = new Model(MODEL_ID, getClass().getSimpleName());
+		schema = new Schema(model, "Observations");
+		idColumn = schema.addColumn(new IntegerColumn("ID", false, 32));
+		valueColumn = schema.addColumn(new IntegerColumn("Value", false, 32));
+		textColumn = schema.addColumn(StringColumn.ForCharacterCount("Text", true, 200));
+		schema.setPrimaryKey(PrimaryKey.WithColumnNames(idColumn));
+		schema.seal();
+		model.seal();
+		client = new Client(model);
+		
+		final HTTPClient httpClient = new URLConnectionHTTPClient();
+		sender = new Sender()
+		{
+			@Override
+			public SMSClient getSMSService()
+			{
+				return null;
+			}
+			
+			@Override
+			public HTTPClient getHTTPClient()
+			{
+				return httpClient;
+			}
+		};
+	}
+	
+	/**
+	 * Sends the records, first without and then with a dropped connection, both unencrypted and encrypted.
+	 * 
+	 * @param records number of records per transmission
+	 * @return whether or not both round-trips succeeded
+	 * @throws Exception
+	 */
+	public boolean run(int records) throws Exception
+	{
+		HTTPStubServer server = new HTTPStubServer(client);
+		server.start();
+		try
+		{
+			// Unencrypted:
+			client.encryptionSettings = null;
+			boolean passed = roundTrip(server, records, false);
+			passed &= roundTrip(server, records, true);
+			
+			// Encrypted (with the default key):
+			client.encryptionSettings = new EncryptionSettings();
+			client.encryptionSettings.setAllowEncryption(true);
+			passed &= roundTrip(server, records, false);
+			passed &= roundTrip(server, records, true);
+			return passed;
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+	
+	/**
+	 * @param server
+	 * @param records
+	 * @param dropConnection whether or not the server should drop the connection part way through the upload 
+	 * @return whether or not the server decoded the exact records which were sent, and (if the connection was dropped) the upload was resumed 
+	 * @throws Exception
+	 */
+	public boolean roundTrip(HTTPStubServer server, int records, boolean dropConnection) throws Exception
+	{
+		// Create records & transmission:
+		Random random = new Random(records);
+		List<Record> sent = new ArrayList<Record>(records);
+		for(int r = 0; r < records; r++)
+		{
+			Record record = schema.createRecord();
+			idColumn.storeValue(record, r);
+			valueColumn.storeValue(record, random.nextInt(1000));
+			textColumn.storeValue(record, "Observation " + r + " of species " + random.nextInt(50));
+			sent.add(record);
+		}
+		RecordsPayload payload = new RecordsPayload();
+		HTTPTransmission transmission = new HTTPTransmission(client, server.getURL(), payload);
+		transmission.setLocalID(nextLocalID++); // normally done by storing the transmission
+		payload.addRecords(sent);
+		
+		// Send:
+		int requestsBefore = server.getFirstChunks().size();
+		int receivedBefore = server.getReceivedTransmissions().size();
+		if(dropConnection)
+			server.dropNextUploadAfter(2 * ChunkedBody.DEFAULT_CHUNK_SIZE + ChunkedBody.DEFAULT_CHUNK_SIZE / 2);
+		long startNS = System.nanoTime();
+		transmission.send(sender);
+		long durationNS = System.nanoTime() - startNS;
+		
+		// Decode on the server side & compare:
+		List<String> failures = new ArrayList<String>();
+		HTTPTransmission received = null;
+		if(server.getReceivedTransmissions().size() != receivedBefore + 1)
+			failures.add("server did not receive the transmission");
+		else
+		{
+			received = server.getReceivedTransmissions().get(receivedBefore);
+			if(received.getRemoteID() != transmission.getLocalID())
+				failures.add("server received another transmission");
+			received.receive();
+			if(received.isEncrypted() != transmission.isEncrypted())
+				failures.add("encryption flag was not transmitted correctly");
+			if(!((RecordsPayload) received.getPayload()).getRecords().equals(sent))
+				failures.add("decoded records differ from the sent ones");
+		}
+		List<Integer> firstChunks = server.getFirstChunks().subList(requestsBefore, server.getFirstChunks().size());
+		if(dropConnection && (firstChunks.size() < 2 || firstChunks.get(firstChunks.size() - 1) == 0))
+			failures.add("upload was not resumed (first chunks of requests: " + firstChunks + ")");
+		
+		int bodySize = received != null ? received.getBody().length : 0;
+		out.println(String.format(	"%s%s: %d records, %d body bytes (%d chunks, requests from chunks %s) in %.3fs: %.1f records/s, %s",
+									dropConnection ? "DROPPED_CONNECTION" : "ROUND_TRIP",
+									transmission.isEncrypted() ? "_ENCRYPTED" : "",
+									records,
+									bodySize,
+									ChunkedBody.GetNumberOfChunks(bodySize, ChunkedBody.DEFAULT_CHUNK_SIZE),
+									firstChunks,
+									durationNS / 1000000000.0d,
+									records / (durationNS / 1000000000.0d),
+									failures.isEmpty() ? "decoded records equal sent ones" : "FAILED: " + failures));
+		return failures.isEmpty();
+	}
+	
+	/**
+	 * Minimal {@link TransmissionClient} which only knows the test's model.
+	 */
+	static private class Client extends TransmissionClient
+	{
+		
+		private final Model model;
+		private EncryptionSettings encryptionSettings = null; // no encryption by default
+		
+		public Client(Model model)
+		{
+			this.model = model;
+		}
+		
+		@Override
+		protected Model getClientModel(long modelID) throws UnknownModelException
+		{
+			if(modelID != model.getID())
+				throw new UnknownModelException(modelID, null);
+			return model;
+		}
+
+		@Override
+		public Schema getSchemaV1(int schemaID, int schemaVersion) throws UnknownModelException
+		{
+			throw new UnknownModelException(schemaID, schemaVersion);
+		}
+
+		@Override
+		public void recordInserted(Record record)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordUpdated(Record record)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordDeleted(Record record)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordDeleted(RecordReference recordReference)
+		{
+			// does nothing
+		}
+
+		@Override
+		public void recordsDeleted(RecordsQuery query, int numberOfDeletedRecords)
+		{
+			// does nothing
+		}
+
+		@Override
+		protected RecordStore createRecordStore() throws DBException
+		{
+			throw new DBException("Not supported");
+		}
+
+		@Override
+		public EncryptionSettings getEncryptionSettingsFor(Model model) throws UnknownModelException
+		{
+			return encryptionSettings;
+		}
+
+		@Override
+		public Payload createPayload(int nonBuiltinType)
+		{
+			throw new IllegalArgumentException("Unsupported payload type: " + nonBuiltinType);
+		}
+
+		@Override
+		public Set<Column<?>> getNonTransmittableColumns(Schema schema)
+		{
+			return Collections.<Column<?>> emptySet();
+		}
+		
+	}
+	
+}
@@ -0,0 +1,450 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+
+/**
+ * Authenticated encryption of payload data, using AES in CTR mode combined with a truncated HMAC-SHA256 tag (encrypt-then-MAC).
+ * <br/>
+ * CTR mode does not pad, so the ciphertext is exactly as long (in bits) as the plaintext. Together with the short nonce
+ * and tag this keeps the overhead down to {@link #OVERHEAD_BITS} bits per payload, which matters for SMS transmissions.
+ * AES-128 is used (rather than AES-256) because it is available on all Java and Android runtimes without the need for
+ * "unlimited strength" policy files.
+ * <br/>
+ * Encrypted bits layout: [nonce (64 bits)][tag (64 bits)][ciphertext (as long as the plaintext)]
+ * <br/>
+ * The tag is computed over the nonce, the ciphertext and the ciphertext length (in that order), such that large payloads
+ * can be encrypted/decrypted as streams (see {@link #getEncryptingStream(byte[], BitOutputStream)} and
+ * {@link #getDecryptingStream(BitInputStream, int)}) rather than being held in memory.
+ * 
+ * Instances are immutable and can be shared between threads.
+ * 
+ * @author mstevens
+ */
+public class PayloadCipher
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int KEY_MATERIAL_LENGTH = 32; // bytes
+	static public final int NONCE_SIZE = 64; // bits
+	static public final int TAG_SIZE = 64; // bits
+	static public final int OVERHEAD_BITS = NONCE_SIZE + TAG_SIZE;
+	
+	static private final String KEY_ALGORITHM = "AES";
+	static private final String CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+	static private final String MAC_ALGORITHM = "HmacSHA256";
+	static private final int AES_KEY_LENGTH = 16; // bytes
+	static private final int AES_BLOCK_LENGTH = 16; // bytes
+	static private final int NONCE_LENGTH = NONCE_SIZE / Byte.SIZE; // bytes
+	static private final int TAG_LENGTH = TAG_SIZE / Byte.SIZE; // bytes
+	static private final int BUFFER_LENGTH = 4096; // bytes
+	
+	static private final SecureRandom RANDOM = new SecureRandom();
+	
+	/**
+	 * Derives the key material for a specific model from a (password-derived) master key.
+	 * This only involves a single HMAC computation, so it is cheap compared to password-based key derivation. 
+	 * 
+	 * @param masterKey
+	 * @param modelID
+	 * @return key material to construct a PayloadCipher with
+	 * @throws GeneralSecurityException
+	 */
+	static public byte[] DeriveModelKey(byte[] masterKey, long modelID) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(masterKey, MAC_ALGORITHM));
+		return mac.doFinal(ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(modelID).array());
+	}
+	
+	/**
+	 * @return a new random nonce, to encrypt a single payload with
+	 */
+	static public byte[] NewNonce()
+	{
+		byte[] nonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+		return nonce;
+	}
+	
+	static private byte[] GetTag(Mac mac, int cipherBitsLength)
+	{
+		mac.update(ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(cipherBitsLength).array());
+		byte[] tag = new byte[TAG_LENGTH];
+		System.arraycopy(mac.doFinal(), 0, tag, 0, TAG_LENGTH);
+		return tag;
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final SecretKeySpec encryptionKey;
+	private final SecretKeySpec macKey;
+	
+	/**
+	 * @param keyMaterial {@link #KEY_MATERIAL_LENGTH} bytes, the first half is used as the AES key, the second as the MAC key
+	 */
+	public PayloadCipher(byte[] keyMaterial)
+	{
+		if(keyMaterial == null || keyMaterial.length < KEY_MATERIAL_LENGTH)
+			throw new IllegalArgumentException("Key material must be at least " + KEY_MATERIAL_LENGTH + " bytes long");
+		this.encryptionKey = new SecretKeySpec(keyMaterial, 0, AES_KEY_LENGTH, KEY_ALGORITHM);
+		this.macKey = new SecretKeySpec(keyMaterial, AES_KEY_LENGTH, KEY_MATERIAL_LENGTH - AES_KEY_LENGTH, MAC_ALGORITHM);
+	}
+	
+	private Cipher getCipher(int mode, byte[] nonce) throws GeneralSecurityException
+	{
+		byte[] iv = new byte[AES_BLOCK_LENGTH]; // nonce followed by an all-zero block counter
+		System.arraycopy(nonce, 0, iv, 0, NONCE_LENGTH);
+		Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+		cipher.init(mode, encryptionKey, new IvParameterSpec(iv));
+		return cipher;
+	}
+	
+	private Mac getMac(byte[] nonce) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(macKey);
+		mac.update(nonce);
+		return mac;
+	}
+	
+	/**
+	 * @param plainBits
+	 * @return encrypted bits, {@link #OVERHEAD_BITS} longer than plainBits
+	 * @throws IOException
+	 */
+	public BitArray encrypt(BitArray plainBits) throws IOException
+	{
+		byte[] nonce = NewNonce();
+		// Encrypt:
+		BitArrayOutputStream cipherOut = new BitArrayOutputStream();
+		EncryptingOutputStream encryptingOut = getEncryptingStream(nonce, cipherOut);
+		encryptingOut.write(plainBits);
+		encryptingOut.close();
+		cipherOut.close();
+		// Assemble:
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		out.write(nonce);
+		out.write(encryptingOut.getTag());
+		out.write(cipherOut.toBitArray());
+		out.close();
+		return out.toBitArray();
+	}
+	
+	/**
+	 * @param encryptedBits
+	 * @return the decrypted bits, or {@code null} if the bits were not encrypted with this cipher's key (or were tampered with)
+	 * @throws IOException
+	 */
+	public BitArray decrypt(BitArray encryptedBits) throws IOException
+	{
+		// Authenticate:
+		if(!authenticate(new BitArrayInputStream(encryptedBits), encryptedBits.length()))
+			return null;
+		// Decrypt:
+		DecryptingInputStream in = getDecryptingStream(new BitArrayInputStream(encryptedBits), encryptedBits.length());
+		BitArray plainBits = in.readBitArray(encryptedBits.length() - OVERHEAD_BITS);
+		in.close();
+		return plainBits;
+	}
+	
+	/**
+	 * Returns a stream which encrypts the bits written to it and writes the resulting ciphertext bits (only) to the given stream.
+	 * Closing the returned stream completes the encryption and the tag computation, but leaves the given stream open.
+	 * Because the tag precedes the ciphertext in the encrypted bits layout, a caller which cannot hold the ciphertext in memory
+	 * has to encrypt twice (with the same nonce): once to obtain the tag and once to write the ciphertext. Encrypting the same
+	 * plaintext again with the same nonce yields the same ciphertext, so this reveals nothing, but the nonce must <i>never</i>
+	 * be reused for different plaintext.
+	 * 
+	 * @param nonce obtained from {@link #NewNonce()}
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public EncryptingOutputStream getEncryptingStream(byte[] nonce, BitOutputStream out) throws IOException
+	{
+		try
+		{
+			return new EncryptingOutputStream(getCipher(Cipher.ENCRYPT_MODE, nonce), getMac(nonce), out);
+		}
+		catch(GeneralSecurityException gse)
+		{
+			throw new IOException("Error upon encrypting payload", gse);
+		}
+	}
+	
+	/**
+	 * Reads the nonce and tag from the given stream and returns a stream which decrypts the ciphertext bits that follow.
+	 * The returned stream does <i>not</i> authenticate the ciphertext, use {@link #authenticate(BitInputStream, int)} (on
+	 * another stream over the same bits) before decoding anything which is read from it. Closing the returned stream leaves
+	 * the given stream open.
+	 * 
+	 * @param in
+	 * @param encryptedBitsLength the number of encrypted bits (including the nonce & tag) to read from the given stream
+	 * @return
+	 * @throws IOException
+	 */
+	public DecryptingInputStream getDecryptingStream(BitInputStream in, int encryptedBitsLength) throws IOException
+	{
+		if(encryptedBitsLength < OVERHEAD_BITS)
+			throw new IOException("Encrypted bits are too short to contain nonce and tag");
+		try
+		{
+			byte[] nonce = in.readBytes(NONCE_LENGTH);
+			in.readBytes(TAG_LENGTH);
+			return new DecryptingInputStream(getCipher(Cipher.DECRYPT_MODE, nonce), in, encryptedBitsLength - OVERHEAD_BITS);
+		}
+		catch(GeneralSecurityException gse)
+		{
+			throw new IOException("Error upon decrypting payload", gse);
+		}
+	}
+	
+	/**
+	 * Reads encrypted bits (without decrypting them) and checks whether their tag is authentic.
+	 * 
+	 * @param in
+	 * @param encryptedBitsLength the number of encrypted bits (including the nonce & tag) to read from the given stream
+	 * @return whether the bits were encrypted with this cipher's key and were not tampered with
+	 * @throws IOException
+	 * @throws EOFException when the stream ends before encryptedBitsLength bits could be read
+	 */
+	public boolean authenticate(BitInputStream in, int encryptedBitsLength) throws IOException, EOFException
+	{
+		if(encryptedBitsLength < OVERHEAD_BITS)
+			return false;
+		try
+		{
+			byte[] nonce = in.readBytes(NONCE_LENGTH);
+			byte[] tag = in.readBytes(TAG_LENGTH);
+			Mac mac = getMac(nonce);
+			int cipherBitsLength = encryptedBitsLength - OVERHEAD_BITS;
+			byte[] buffer = new byte[BUFFER_LENGTH];
+			int remaining = cipherBitsLength;
+			while(remaining > 0)
+			{
+				int bits = ReadCipherBits(in, buffer, remaining);
+				mac.update(buffer, 0, (bits + Byte.SIZE - 1) / Byte.SIZE);
+				remaining -= bits;
+			}
+			return MessageDigest.isEqual(tag, GetTag(mac, cipherBitsLength));
+		}
+		catch(GeneralSecurityException gse)
+		{
+			throw new IOException("Error upon authenticating payload", gse);
+		}
+	}
+	
+	/**
+	 * Fills the buffer with (at most) the given number of bits read from the stream, the last byte is zero-padded if needed.
+	 * 
+	 * @return the number of bits read
+	 */
+	static private int ReadCipherBits(BitInputStream in, byte[] buffer, int maxBits) throws IOException, EOFException
+	{
+		int bits = Math.min(maxBits, buffer.length * Byte.SIZE);
+		int wholeBytes = bits / Byte.SIZE;
+		for(int b = 0; b < wholeBytes; b++)
+			buffer[b] = in.readByte();
+		int trailingBits = bits % Byte.SIZE;
+		if(trailingBits > 0)
+		{
+			int lastByte = 0;
+			for(int i = 0; i < trailingBits; i++)
+				lastByte = (lastByte << 1) | (in.readBit() ? 1 : 0);
+			buffer[wholeBytes] = (byte) (lastByte << (Byte.SIZE - trailingBits));
+		}
+		return bits;
+	}
+	
+	/**
+	 * Encrypts the bits written to it, see {@link PayloadCipher#getEncryptingStream(byte[], BitOutputStream)}.
+	 * 
+	 * @author mstevens
+	 */
+	static public class EncryptingOutputStream extends BitOutputStream
+	{
+		
+		private final Cipher cipher;
+		private final Mac mac;
+		private final BitOutputStream out;
+		private final byte[] plainBuffer = new byte[BUFFER_LENGTH];
+		private final byte[] cipherBuffer = new byte[BUFFER_LENGTH];
+		private int bufferedBits = 0;
+		private int length = 0;
+		private byte[] tag;
+		
+		private EncryptingOutputStream(Cipher cipher, Mac mac, BitOutputStream out)
+		{
+			this.cipher = cipher;
+			this.mac = mac;
+			this.out = out;
+		}
+
+		@Override
+		protected void writeBit(boolean bit) throws IOException
+		{
+			int b = bufferedBits / Byte.SIZE;
+			int shift = Byte.SIZE - 1 - (bufferedBits % Byte.SIZE);
+			if(bit)
+				plainBuffer[b] |= (1 << shift);
+			else
+				plainBuffer[b] &= ~(1 << shift);
+			bufferedBits++;
+			length++;
+			if(bufferedBits == BUFFER_LENGTH * Byte.SIZE)
+				encryptBuffer();
+		}
+		
+		/**
+		 * Encrypts the buffered bits and writes the resulting ciphertext bits. Only the last call (from {@link #close()})
+		 * can encrypt a number of bits which is not a multiple of 8, the bits which only encrypt padding are dropped then.
+		 * 
+		 * @throws IOException
+		 */
+		private void encryptBuffer() throws IOException
+		{
+			if(bufferedBits == 0)
+				return;
+			int bytes = (bufferedBits + Byte.SIZE - 1) / Byte.SIZE;
+			try
+			{
+				if(cipher.update(plainBuffer, 0, bytes, cipherBuffer, 0) != bytes)
+					throw new IOException("Unexpected cipher output length");
+			}
+			catch(GeneralSecurityException gse)
+			{
+				throw new IOException("Error upon encrypting payload", gse);
+			}
+			int trailingBits = bufferedBits % Byte.SIZE;
+			if(trailingBits > 0)
+				cipherBuffer[bytes - 1] &= (0xFF << (Byte.SIZE - trailingBits)); // zero-pad, as done by BitArray#toByteArray()
+			mac.update(cipherBuffer, 0, bytes);
+			out.write(cipherBuffer, 0, bufferedBits / Byte.SIZE);
+			for(int i = 0; i < trailingBits; i++)
+				out.write((cipherBuffer[bytes - 1] & (0x80 >>> i)) != 0);
+			bufferedBits = 0;
+		}
+		
+		/**
+		 * Completes the encryption and computes the tag. The underlying stream is not closed.
+		 * 
+		 * @see uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			if(!closed)
+			{
+				encryptBuffer();
+				tag = GetTag(mac, length);
+				super.close();
+			}
+		}
+		
+		/**
+		 * @return the tag, or {@code null} if the stream has not been closed yet
+		 */
+		public byte[] getTag()
+		{
+			return tag;
+		}
+		
+	}
+	
+	/**
+	 * Decrypts ciphertext bits read from another stream, see {@link PayloadCipher#getDecryptingStream(BitInputStream, int)}.
+	 * 
+	 * @author mstevens
+	 */
+	static public class DecryptingInputStream extends BitInputStream
+	{
+		
+		private final Cipher cipher;
+		private final BitInputStream in;
+		private int remaining;
+		private final byte[] cipherBuffer = new byte[BUFFER_LENGTH];
+		private final byte[] plainBuffer = new byte[BUFFER_LENGTH];
+		private int bufferedBits = 0;
+		private int position = 0;
+		
+		private DecryptingInputStream(Cipher cipher, BitInputStream in, int cipherBitsLength)
+		{
+			this.cipher = cipher;
+			this.in = in;
+			this.remaining = cipherBitsLength;
+		}
+
+		@Override
+		protected boolean doReadBit() throws IOException, EOFException
+		{
+			if(position == bufferedBits)
+			{
+				if(remaining == 0)
+					throw new EOFException("End of ciphertext reached");
+				bufferedBits = ReadCipherBits(in, cipherBuffer, remaining);
+				remaining -= bufferedBits;
+				position = 0;
+				int bytes = (bufferedBits + Byte.SIZE - 1) / Byte.SIZE;
+				try
+				{
+					if(cipher.update(cipherBuffer, 0, bytes, plainBuffer, 0) != bytes)
+						throw new IOException("Unexpected cipher output length");
+				}
+				catch(GeneralSecurityException gse)
+				{
+					throw new IOException("Error upon decrypting payload", gse);
+				}
+			}
+			boolean bit = (plainBuffer[position / Byte.SIZE] & (0x80 >>> (position % Byte.SIZE))) != 0;
+			position++;
+			return bit;
+		}
+
+		@Override
+		public int bitsAvailable() throws IOException
+		{
+			return (bufferedBits - position) + Math.min(remaining, in.bitsAvailable());
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return bitsAvailable() / Byte.SIZE;
+		}
+		
+	}
+	
+}
@@ -20,6 +20,7 @@ package uk.ac.ucl.excites.sapelli.transmission.db;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 
 import uk.ac.ucl.excites.sapelli.shared.db.Store;
@@ -43,6 +44,7 @@ import uk.ac.ucl.excites.sapelli.storage.queries.Order;
 import uk.ac.ucl.excites.sapelli.storage.queries.RecordsQuery;
 import uk.ac.ucl.excites.sapelli.storage.queries.SingleRecordQuery;
 import uk.ac.ucl.excites.sapelli.storage.queries.Source;
+import uk.ac.ucl.excites.sapelli.storage.queries.constraints.EqualityConstraint;
 import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint;
 import uk.ac.ucl.excites.sapelli.storage.queries.constraints.RuleConstraint.Comparison;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
@@ -180,7 +182,7 @@ public abstract class TransmissionStore extends Store implements StoreHandle.Sto
 		if(transmission.isSenderSet())
 			TRANSMISSION_COLUMN_SENDER.storeValue(tRec, transmission.getSender().toString());
 		if(transmission.isReceiverSet())
-			TRANSMISSION_COLUMN_SENDER.storeValue(tRec, transmission.getReceiver().toString());
+			TRANSMISSION_COLUMN_RECEIVER.storeValue(tRec, transmission.getReceiver().toString());
 		// Return:
 		return tRec;
 	}
@@ -311,6 +313,17 @@ public abstract class TransmissionStore extends Store implements StoreHandle.Sto
 		if(tRec == null)
 			return null; // no such transmission found
 		
+		return createTransmissionFromRecord(tRec);
+	}
+	
+	/**
+	 * Constructs a Transmission object from a transmission record, querying for the associated part records.
+	 * 
+	 * @param tRec
+	 * @return
+	 */
+	private Transmission createTransmissionFromRecord(Record tRec)
+	{
 		// Values:
 		Integer localID = TRANSMISSION_COLUMN_ID.retrieveValue(tRec).intValue();
 		Transmission.Type type = Transmission.Type.values()[TRANSMISSION_COLUMN_TYPE.retrieveValue(tRec).intValue()]; 
@@ -333,14 +346,14 @@ public abstract class TransmissionStore extends Store implements StoreHandle.Sto
 			BinarySMSTransmission binarySMS =  new BinarySMSTransmission(client, localID, remoteID, payloadHash, sentAt, receivedAt, senderAgent, receiverAgent);
 			// add each part we got from the query:
 			for(Record partRecord : tPartRecs)
-				binarySMS.receivePart(new BinaryMessage(binarySMS, TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(partRecord).intValue(), totalParts, sentAt, TRANSMISSION_PART_COLUMN_DELIVERED_AT.retrieveValue(partRecord), receivedAt, BitArray.FromBytes(TRANSMISSION_PART_COLUMN_BODY.retrieveValue(partRecord))));
+				binarySMS.receivePart(new BinaryMessage(binarySMS, TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(partRecord).intValue(), totalParts, COLUMN_SENT_AT.retrieveValue(partRecord), TRANSMISSION_PART_COLUMN_DELIVERED_AT.retrieveValue(partRecord), COLUMN_RECEIVED_AT.retrieveValue(partRecord), BitArray.FromBytes(TRANSMISSION_PART_COLUMN_BODY.retrieveValue(partRecord))));
 			return binarySMS;
 		case TEXTUAL_SMS:
 			// create a new SMSTransmission object:
 			TextSMSTransmission textSMS = new TextSMSTransmission(client, localID, remoteID, payloadHash, sentAt, receivedAt, senderAgent, receiverAgent);
 			// add each part we got from the query:
 			for(Record partRecord : tPartRecs)
-				textSMS.receivePart(new TextMessage(textSMS, TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(partRecord).intValue(), totalParts, sentAt, TRANSMISSION_PART_COLUMN_DELIVERED_AT.retrieveValue(partRecord), receivedAt, new String(TRANSMISSION_PART_COLUMN_BODY.retrieveValue(partRecord))));
+				textSMS.receivePart(new TextMessage(textSMS, TRANSMISSION_PART_COLUMN_NUMBER.retrieveValue(partRecord).intValue(), totalParts, COLUMN_SENT_AT.retrieveValue(partRecord), TRANSMISSION_PART_COLUMN_DELIVERED_AT.retrieveValue(partRecord), COLUMN_RECEIVED_AT.retrieveValue(partRecord), new String(TRANSMISSION_PART_COLUMN_BODY.retrieveValue(partRecord))));
 			return textSMS;
 		case HTTP:
 			return new HTTPTransmission(client, localID, remoteID, payloadHash, sentAt, receivedAt, receiver, TRANSMISSION_PART_COLUMN_BODY.retrieveValue(tPartRecs.get(0)) /* only one part for HTTP */ );
@@ -394,6 +407,34 @@ public abstract class TransmissionStore extends Store implements StoreHandle.Sto
 				new RuleConstraint(TRANSMISSION_COLUMN_PAYLOAD_HASH, Comparison.EQUAL, payloadHash)));
 	}
 
+	/**
+	 * Retrieves a batch of SMS transmissions which were (partially) received from a remote sender but have not (yet) been
+	 * fully received and decoded. Transmissions are returned in ascending order of their local ID, which allows callers to
+	 * page through all such transmissions by passing the local ID of the last transmission of the previous batch.
+	 * 
+	 * Note: the returned transmissions may nevertheless be complete (i.e. all parts were received, and the receivedAt time
+	 * is set), in which case they are yet to be decoded (transmissions are deleted from the store once they are decoded).
+	 * 
+	 * @param afterLocalID - only transmissions with a local ID greater than this value are returned (pass -1 to start from the beginning)
+	 * @param batchSize - the maximum number of transmissions to return
+	 * @return a list of SMSTransmissions, possibly empty, never null
+	 */
+	public List<SMSTransmission<?>> retrieveIncompleteSMSTransmissions(int afterLocalID, int batchSize)
+	{
+		List<Record> tRecs = recordStore.retrieveRecords(new RecordsQuery(
+			Source.From(TRANSMISSION_SCHEMA),
+			Order.AscendingBy(TRANSMISSION_COLUMN_ID),
+			batchSize,
+			new RuleConstraint(TRANSMISSION_COLUMN_ID, Comparison.GREATER, Long.valueOf(afterLocalID)),
+			new RuleConstraint(TRANSMISSION_COLUMN_TYPE, Comparison.NOT_EQUAL, Long.valueOf(Transmission.Type.HTTP.ordinal())),
+			EqualityConstraint.IsNotNull(TRANSMISSION_COLUMN_SENDER)));
+			// Note: no filtering on COLUMN_RECEIVED_AT, which is set as soon as all parts have arrived (decoded transmissions are deleted from the store instead)
+		List<SMSTransmission<?>> transmissions = new ArrayList<SMSTransmission<?>>(tRecs.size());
+		for(Record tRec : tRecs)
+			transmissions.add((SMSTransmission<?>) createTransmissionFromRecord(tRec));
+		return transmissions;
+	}
+	
 	public void deleteTransmission(Transmission transmission)
 	{
 		if(!transmission.isLocalIDSet())
@@ -0,0 +1,304 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.modes.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Chunked framing for (large) HTTP transmission bodies.
+ * 
+ * The body is split into chunks of (at most) {@link #DEFAULT_CHUNK_SIZE} bytes, each of which is framed as:<br/>
+ * 	[chunk number: 4 bytes][data length: 4 bytes][data bytes][CRC32 of the data: 4 bytes]<br/>
+ * The end of the body is indicated by a chunk without data.
+ * 
+ * Because each chunk carries its own number and hash the receiving side can keep all chunks which were received
+ * intact before a connection dropped (or a corrupted chunk was detected), and ask the sending side to resume sending
+ * from the first chunk it is missing (see {@link #getNumberOfChunks()}) instead of starting over.
+ * 
+ * On the receiving side an instance of this class collects chunks from one or more (resumed) streams.
+ * 
+ * @author mstevens
+ */
+public class ChunkedBody
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_CHUNK_SIZE = 8 * 1024; // bytes
+	
+	/**
+	 * Writes the given body, as a sequence of chunks, to the given stream.
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param body the complete body
+	 * @param chunkSize maximum number of data bytes per chunk
+	 * @param fromChunk number (starting from 0) of the first chunk to write, use 0 to write the whole body or a higher value to resume sending
+	 * @param out
+	 * @throws IOException
+	 */
+	static public void Write(byte[] body, int chunkSize, int fromChunk, OutputStream out) throws IOException
+	{
+		if(chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be at least 1 byte");
+		if(fromChunk < 0 || fromChunk > GetNumberOfChunks(body.length, chunkSize))
+			throw new IllegalArgumentException("Invalid chunk number: " + fromChunk);
+		ChunkedOutputStream chunkedOut = new ChunkedOutputStream(out, chunkSize, fromChunk);
+		chunkedOut.write(body);
+		chunkedOut.finish();
+	}
+	
+	static private void writeChunk(DataOutputStream dos, CRC32 crc, int chunkNumber, byte[] data, int offset, int length) throws IOException
+	{
+		crc.reset();
+		crc.update(data, offset, length);
+		dos.writeInt(chunkNumber);
+		dos.writeInt(length);
+		dos.write(data, offset, length);
+		dos.writeInt((int) crc.getValue());
+	}
+	
+	/**
+	 * @param bodyLength in bytes
+	 * @param chunkSize in bytes
+	 * @return the number of chunks with data which a body of the given length is split into
+	 */
+	static public int GetNumberOfChunks(int bodyLength, int chunkSize)
+	{
+		return (bodyLength + chunkSize - 1) / chunkSize;
+	}
+	
+	/**
+	 * {@link OutputStream} which frames the data written to it as chunks. This allows a body to be produced (e.g. encoded)
+	 * while it is being sent, rather than first materialising it. Chunk boundaries only depend on the number of bytes
+	 * written, so as long as the same data is written again a stream created to resume sending from a given chunk writes
+	 * exactly the chunks the other side is missing: the data of the preceding chunks must still be written to it but is
+	 * discarded rather than sent.
+	 */
+	static public class ChunkedOutputStream extends OutputStream
+	{
+		
+		private final DataOutputStream out;
+		private final int fromChunk;
+		private final byte[] buffer;
+		private int count = 0;
+		private int chunkNumber = 0;
+		private final CRC32 crc = new CRC32();
+		private boolean finished = false;
+		
+		/**
+		 * @param out stream to write the chunks to
+		 * @param chunkSize maximum number of data bytes per chunk
+		 * @param fromChunk number (starting from 0) of the first chunk to write, use 0 to write the whole body or a higher value to resume sending
+		 */
+		public ChunkedOutputStream(OutputStream out, int chunkSize, int fromChunk)
+		{
+			if(chunkSize < 1)
+				throw new IllegalArgumentException("Chunk size must be at least 1 byte");
+			if(fromChunk < 0)
+				throw new IllegalArgumentException("Invalid chunk number: " + fromChunk);
+			this.out = new DataOutputStream(out);
+			this.fromChunk = fromChunk;
+			this.buffer = new byte[chunkSize];
+		}
+		
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if(finished)
+				throw new IOException("Body is already finished");
+			buffer[count++] = (byte) b;
+			if(count == buffer.length)
+				writeBufferedChunk();
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if(finished)
+				throw new IOException("Body is already finished");
+			while(len > 0)
+			{
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if(count == buffer.length)
+					writeBufferedChunk();
+			}
+		}
+		
+		private void writeBufferedChunk() throws IOException
+		{
+			if(chunkNumber >= fromChunk)
+				writeChunk(out, crc, chunkNumber, buffer, 0, count);
+			chunkNumber++;
+			count = 0;
+		}
+		
+		/**
+		 * Writes the last (partial) chunk and the terminating chunk, and flushes (but does not close) the underlying stream.
+		 * 
+		 * @throws IOException when fewer chunks were written than needed to resume from the requested chunk, or when another I/O error occurs
+		 */
+		public void finish() throws IOException
+		{
+			if(finished)
+				return;
+			if(count > 0)
+				writeBufferedChunk();
+			if(chunkNumber < fromChunk)
+				throw new IOException("Cannot resume from chunk " + fromChunk + ", the body only has " + chunkNumber + " chunks");
+			// Terminating chunk:
+			writeChunk(out, crc, chunkNumber, buffer, 0, 0);
+			out.flush();
+			finished = true;
+		}
+		
+		/**
+		 * Flushes the underlying stream, data which does not fill a chunk yet remains buffered.
+		 * 
+		 * @see java.io.OutputStream#flush()
+		 */
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+		
+		/**
+		 * Finishes the body and closes the underlying stream.
+		 * 
+		 * @see java.io.OutputStream#close()
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			finish();
+			out.close();
+		}
+		
+	}
+	
+	// DYNAMICS------------------------------------------------------
+	private final int maxBodySize;
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private int numberOfChunks = 0;
+	private boolean complete = false;
+	
+	/**
+	 * To be called on the receiving side.
+	 * 
+	 * @param maxBodySize maximum total number of body bytes which will be accepted
+	 */
+	public ChunkedBody(int maxBodySize)
+	{
+		this.maxBodySize = maxBodySize;
+	}
+	
+	/**
+	 * Reads chunks from the given stream until either the terminating chunk is read, the stream ends, or a corrupted
+	 * chunk is encountered. Only chunks which were received completely and intact are kept. The stream is not closed.
+	 * 
+	 * @param in stream which (re)starts at the chunk with number {@link #getNumberOfChunks()}
+	 * @return whether the body is now complete, if not the sender should be asked to resume sending from chunk number {@link #getNumberOfChunks()}
+	 * @throws IOException when the stream does not continue with the expected chunk, when the maximum body size would be exceeded, or when another I/O error occurs
+	 */
+	public boolean read(InputStream in) throws IOException
+	{
+		if(complete)
+			return true;
+		DataInputStream dis = new DataInputStream(in);
+		CRC32 crc = new CRC32();
+		byte[] data = new byte[0];
+		try
+		{
+			while(true)
+			{
+				int chunkNumber = dis.readInt();
+				if(chunkNumber != numberOfChunks)
+					throw new IOException("Unexpected chunk number: " + chunkNumber + " (expected: " + numberOfChunks + ")");
+				int length = dis.readInt();
+				if(length < 0 || buffer.size() + length > maxBodySize)
+					throw new IOException("Invalid chunk length (" + length + " bytes) or maximum body size (" + maxBodySize + " bytes) exceeded");
+				if(data.length < length)
+					data = new byte[length];
+				dis.readFully(data, 0, length);
+				crc.reset();
+				crc.update(data, 0, length);
+				if(dis.readInt() != (int) crc.getValue())
+					return false; // corrupted chunk: discard it, sender must resume from this chunk
+				if(length == 0)
+				{	// terminating chunk
+					complete = true;
+					return true;
+				}
+				buffer.write(data, 0, length);
+				numberOfChunks++;
+			}
+		}
+		catch(EOFException eof)
+		{	// stream ended before the body was complete, the partially read chunk (if any) is discarded
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the number of intact chunks with data received so far, which is also the number of the next chunk that is expected
+	 */
+	public int getNumberOfChunks()
+	{
+		return numberOfChunks;
+	}
+	
+	/**
+	 * @return the number of body bytes received so far
+	 */
+	public int getSize()
+	{
+		return buffer.size();
+	}
+	
+	/**
+	 * @return whether the terminating chunk has been received
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+	
+	/**
+	 * @return the complete body
+	 * @throws IllegalStateException when the body is not complete yet
+	 */
+	public byte[] toByteArray()
+	{
+		if(!complete)
+			throw new IllegalStateException("Body is not complete yet");
+		return buffer.toByteArray();
+	}
+	
+}
@@ -25,4 +25,14 @@ package uk.ac.ucl.excites.sapelli.transmission.modes.http;
 public interface HTTPClient
 {
 
+	/**
+	 * Posts the transmission body (using {@link HTTPTransmission#writeBody(java.io.OutputStream, int)}) to the transmission's server URL.
+	 * Implementations should use HTTP chunked transfer encoding (rather than buffering the body to determine its length)
+	 * and should resume from the last chunk acknowledged by the server if the connection drops.
+	 * 
+	 * @param transmission
+	 * @return whether sending was successful
+	 */
+	public boolean send(HTTPTransmission transmission);
+	
 }
@@ -18,15 +18,30 @@
 
 package uk.ac.ucl.excites.sapelli.transmission.modes.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
+import uk.ac.ucl.excites.sapelli.shared.crypto.Hashing;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
+import uk.ac.ucl.excites.sapelli.storage.model.Model;
 import uk.ac.ucl.excites.sapelli.storage.types.TimeStamp;
+import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 import uk.ac.ucl.excites.sapelli.transmission.Payload;
 import uk.ac.ucl.excites.sapelli.transmission.Sender;
 import uk.ac.ucl.excites.sapelli.transmission.Transmission;
 import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
+import uk.ac.ucl.excites.sapelli.transmission.crypto.PayloadCipher;
+import uk.ac.ucl.excites.sapelli.transmission.payloads.RecordsPayload;
 import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionSendingException;
 
 /**
  * @author mstevens
@@ -39,11 +54,38 @@ import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededE
 public class HTTPTransmission extends Transmission
 {
 	
-	public static final int MAX_BODY_SIZE = 4096; // bytes (TODO determine a good value)
+	/**
+	 * Maximum body size. Bodies are sent/received using chunked framing (see {@link ChunkedBody}), which allows
+	 * sending tens of thousands of records in a single transmission over a fast connection.
+	 */
+	public static final int MAX_BODY_SIZE = 16 * 1024 * 1024; // bytes (= 16 MiB)
+	
+	/**
+	 * Request headers which identify the transmission to the server (the sending side's local ID and the payload hash)
+	 * and, for POST requests, indicate the number of the first chunk in the request body.
+	 * The server responds with {@link #HTTP_STATUS_COMPLETE} once it has received the complete body, or otherwise with
+	 * {@link #HTTP_STATUS_INCOMPLETE} and the number of the next chunk it needs in the {@link #HEADER_NEXT_CHUNK} header.
+	 * A HEAD request (with the identifying headers) asks the server for its status without sending (more of) the body.
+	 */
+	public static final String HEADER_SENDING_SIDE_ID = "X-Sapelli-Sending-Side-ID";
+	public static final String HEADER_PAYLOAD_HASH = "X-Sapelli-Payload-Hash";
+	public static final String HEADER_FIRST_CHUNK = "X-Sapelli-First-Chunk";
+	public static final String HEADER_NEXT_CHUNK = "X-Sapelli-Next-Chunk";
+	public static final String CONTENT_TYPE = "application/octet-stream";
+	public static final int HTTP_STATUS_COMPLETE = 200; // OK
+	public static final int HTTP_STATUS_INCOMPLETE = 202; // Accepted
 	
 	private String serverURL;
 	private byte[] body;
 	
+	/**
+	 * Length (in bits) of the payload if it is streamed (sending side only), see {@link #send(Sender)}.
+	 */
+	private Integer streamedPayloadBits;
+	private PayloadCipher streamCipher;
+	private byte[] streamNonce;
+	private byte[] streamTag;
+	
 	/**
 	 * To be called on the sending side.
 	 * 
@@ -73,6 +115,20 @@ public class HTTPTransmission extends Transmission
 		setReceivedAt(receivedAt);
 	}
 	
+	/**
+	 * To be called on the receiving side, once all chunks of the body have been received.
+	 * 
+	 * @param client
+	 * @param sendingSideID
+	 * @param payloadHash
+	 * @param chunkedBody
+	 * @param receivedAt
+	 */
+	public HTTPTransmission(TransmissionClient client, int sendingSideID, int payloadHash, ChunkedBody chunkedBody, TimeStamp receivedAt)
+	{
+		this(client, sendingSideID, payloadHash, chunkedBody.toByteArray(), receivedAt);
+	}
+	
 	/**
 	 * Called when retrieving transmission from database
 	 * 
@@ -92,11 +148,136 @@ public class HTTPTransmission extends Transmission
 		this.body = body;
 	}
 	
+	/**
+	 * {@link RecordsPayload}s are streamed: their records are encoded, compressed (and encrypted) while the body is being
+	 * sent, instead of the whole body being serialised in memory beforehand (as {@link Transmission#send(Sender)} does).
+	 * Because the header contains the payload length and hash the payload is encoded twice: first to determine those (the
+	 * encoded bits are discarded), then again while sending (see {@link #writeBody(OutputStream, int)}). An encrypted
+	 * payload is encoded once more beforehand, to compute the tag which precedes the ciphertext. All passes use the same
+	 * nonce, which is only ever used to encrypt this payload.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.transmission.Transmission#send(uk.ac.ucl.excites.sapelli.transmission.Sender)
+	 */
 	@Override
-	protected void doSend(Sender transmissionSender)
+	public void send(Sender transmissionSender) throws IOException, TransmissionCapacityExceededException, UnknownModelException, TransmissionSendingException
+	{
+		if(!(payload instanceof RecordsPayload) || isSent())
+		{
+			super.send(transmissionSender);
+			return;
+		}
+		Timer.Context timing = Metrics.Time("transmission.send.streamed");
+		try
+		{
+			if(transmissionSender == null)
+				throw new IllegalStateException("Please provide a non-null TransmissionSender instance.");
+			
+			// Encryption:
+			streamCipher = getPayloadCipher();
+			encrypted = streamCipher != null;
+			int maxPayloadBits = getMaxPayloadBits();
+			if(encrypted)
+			{
+				maxPayloadBits -= Model.MODEL_ID_SIZE; // the model ID is written in the header
+				// Compute the tag (the ciphertext is discarded):
+				streamNonce = PayloadCipher.NewNonce();
+				PayloadCipher.EncryptingOutputStream encryptingOut = streamCipher.getEncryptingStream(streamNonce, new BitWrapOutputStream(new CRC16Sink()));
+				((RecordsPayload) payload).writeStreamed(encryptingOut);
+				encryptingOut.close();
+				streamTag = encryptingOut.getTag();
+			}
+			
+			// Determine length & hash of the payload (the encoded bits are discarded):
+			CRC16Sink hashSink = new CRC16Sink();
+			BitWrapOutputStream payloadOut = new BitWrapOutputStream(hashSink);
+			writeStreamedPayload(payloadOut);
+			int payloadBitsLength = payloadOut.getNumberOfBitsWritten();
+			payloadOut.close(); // pads last byte, as done by BitArray#toByteArray()
+			
+			// Capacity check:
+			if(payloadBitsLength > maxPayloadBits)
+				throw new TransmissionCapacityExceededException("Payload is too large for the associated transmission (size: " + payloadBitsLength + " bits; max for this type of transmission: " + maxPayloadBits + " bits");
+			
+			this.payloadHash = hashSink.crc;
+			this.streamedPayloadBits = payloadBitsLength;
+			this.body = null;
+			
+			// Do the actual sending:
+			doSend(transmissionSender);
+		}
+		finally
+		{
+			timing.stop();
+		}
+	}
+	
+	@Override
+	protected void doSend(Sender transmissionSender) throws TransmissionSendingException
+	{
+		if(!isComplete())
+			throw new IllegalStateException("Transmission body has not been set.");
+		HTTPClient httpClient = transmissionSender.getHTTPClient();
+		if(httpClient == null)
+			throw new TransmissionSendingException("No HTTP client available to send transmission to " + serverURL);
+		if(!httpClient.send(this))
+			throw new TransmissionSendingException("Failed to send transmission to " + serverURL);
+	}
+	
+	/**
+	 * Writes the body, using chunked framing, to the given stream (e.g. the request body of an HTTP POST).
+	 * A streamed body is encoded while being written (the data of chunks before fromChunk is encoded but not written).
+	 * 
+	 * @param out
+	 * @param fromChunk number of the first chunk to write, use 0 to send the whole body or the number of chunks received so far by the other side to resume
+	 * @throws IOException
+	 * @see ChunkedBody
+	 */
+	public void writeBody(OutputStream out, int fromChunk) throws IOException
+	{
+		if(body != null)
+			ChunkedBody.Write(body, ChunkedBody.DEFAULT_CHUNK_SIZE, fromChunk, out);
+		else
+		{
+			ChunkedBody.ChunkedOutputStream chunkedOut = new ChunkedBody.ChunkedOutputStream(out, ChunkedBody.DEFAULT_CHUNK_SIZE, fromChunk);
+			writeStreamedBody(chunkedOut);
+			chunkedOut.finish();
+		}
+	}
+	
+	/**
+	 * Encodes the streamed body and writes it to the given stream, which is flushed but not closed.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	private void writeStreamedBody(OutputStream out) throws IOException
+	{
+		if(streamedPayloadBits == null)
+			throw new IllegalStateException("Transmission body has not been set.");
+		BitOutputStream bitstream = new BitWrapOutputStream(out);
+		writeHeader(bitstream, streamedPayloadBits);
+		writeStreamedPayload(bitstream);
+		bitstream.flush(); // pads to byte boundary
+	}
+	
+	/**
+	 * Encodes (and encrypts, if needed) the payload and writes the resulting payload bits to the given stream, which is left open.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	private void writeStreamedPayload(BitOutputStream out) throws IOException
 	{
-		//HTTPClient client = sender.getHTTPClient();
-		// TODO HTTP sending
+		if(!encrypted)
+			((RecordsPayload) payload).writeStreamed(out);
+		else
+		{
+			out.write(streamNonce);
+			out.write(streamTag);
+			PayloadCipher.EncryptingOutputStream encryptingOut = streamCipher.getEncryptingStream(streamNonce, out);
+			((RecordsPayload) payload).writeStreamed(encryptingOut);
+			encryptingOut.close();
+		}
 	}
 
 	@Override
@@ -117,14 +298,46 @@ public class HTTPTransmission extends Transmission
 		return BitArray.FromBytes(body); //Base64.decodeBase64(body)
 	}
 	
+	/**
+	 * Reads the body bytes directly, rather than through a {@link BitArray} copy of the whole body.
+	 * 
+	 * @see uk.ac.ucl.excites.sapelli.transmission.Transmission#openBody()
+	 */
+	@Override
+	protected BitInputStream openBody() throws IOException
+	{
+		if(body == null)
+			throw new IllegalStateException("Transmission body has not been set.");
+		return new BitWrapInputStream(new ByteArrayInputStream(body));
+	}
+	
 	@Override
 	public boolean isComplete()
 	{
-		return body != null;
+		return body != null || streamedPayloadBits != null;
 	}
 	
+	/**
+	 * A streamed body is encoded in memory when this method is called (e.g. to store the transmission), but not kept.
+	 * 
+	 * @return the body (without chunked framing), or {@code null} if it has not been set
+	 * @throws IllegalStateException when the streamed body could not be encoded
+	 */
 	public byte[] getBody()
 	{
+		if(body == null && streamedPayloadBits != null)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try
+			{
+				writeStreamedBody(out);
+			}
+			catch(IOException ioe)
+			{
+				throw new IllegalStateException("Could not encode streamed body", ioe);
+			}
+			return out.toByteArray();
+		}
 		return body;
 	}
 	
@@ -157,4 +370,28 @@ public class HTTPTransmission extends Transmission
 		return Type.HTTP;
 	}
 	
+	/**
+	 * Computes the payload hash over the bytes written to it.
+	 */
+	static private class CRC16Sink extends OutputStream
+	{
+		
+		int crc = 0;
+		private final byte[] singleByte = new byte[1];
+		
+		@Override
+		public void write(int b) throws IOException
+		{
+			singleByte[0] = (byte) b;
+			write(singleByte, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			crc = Hashing.getCRC16Hash(crc, b, off, len);
+		}
+		
+	}
+	
 }
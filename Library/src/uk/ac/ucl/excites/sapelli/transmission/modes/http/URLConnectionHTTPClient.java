@@ -0,0 +1,164 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.modes.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link HTTPClient} implementation using {@link HttpURLConnection}, which is available on both Android and Java SE.
+ * 
+ * The body is posted using HTTP chunked transfer encoding and the chunked framing of {@link ChunkedBody}. When the connection
+ * drops, or the server reports it is missing part of the body, sending resumes from the first chunk the server still needs
+ * (see {@link HTTPTransmission#HEADER_NEXT_CHUNK}), up to a maximum number of attempts.
+ * 
+ * @author mstevens
+ */
+public class URLConnectionHTTPClient implements HTTPClient
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int DEFAULT_MAX_ATTEMPTS = 5;
+	static public final int DEFAULT_TIMEOUT_MS = 30 * 1000;
+	
+	// DYNAMICS------------------------------------------------------
+	private final int maxAttempts;
+	private final int timeoutMS;
+	
+	public URLConnectionHTTPClient()
+	{
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_TIMEOUT_MS);
+	}
+	
+	/**
+	 * @param maxAttempts maximum number of requests to post (the rest of) the body
+	 * @param timeoutMS connect & read timeout
+	 */
+	public URLConnectionHTTPClient(int maxAttempts, int timeoutMS)
+	{
+		if(maxAttempts < 1)
+			throw new IllegalArgumentException("At least 1 attempt is needed");
+		this.maxAttempts = maxAttempts;
+		this.timeoutMS = timeoutMS;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.modes.http.HTTPClient#send(uk.ac.ucl.excites.sapelli.transmission.modes.http.HTTPTransmission)
+	 */
+	@Override
+	public boolean send(HTTPTransmission transmission)
+	{
+		Integer nextChunk = 0;
+		boolean askServer = false;
+		for(int attempt = 0; attempt < maxAttempts; attempt++)
+		{
+			try
+			{
+				if(askServer)
+				{	// Find out which chunk the server needs next:
+					nextChunk = request(transmission, null);
+					askServer = false;
+				}
+				if(nextChunk != null)
+					nextChunk = request(transmission, nextChunk);
+				if(nextChunk == null)
+					return true; // server has the complete body
+			}
+			catch(IOException ioe)
+			{
+				System.err.println("Error upon sending transmission to " + transmission.getServerURL() + " (attempt " + (attempt + 1) + " of " + maxAttempts + "): " + ioe.getMessage() + (ioe.getCause() != null ? " (" + ioe.getCause().getMessage() + ")" : ""));
+				askServer = true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Posts (the rest of) the body, or asks the server for its status if fromChunk is null.
+	 * 
+	 * @param transmission
+	 * @param fromChunk number of the first chunk to post, or null to only ask the server for its status (using a HEAD request)
+	 * @return null if the server has the complete body, or the number of the next chunk it needs
+	 * @throws IOException
+	 */
+	private Integer request(HTTPTransmission transmission, Integer fromChunk) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(transmission.getServerURL()).openConnection();
+		try
+		{
+			connection.setConnectTimeout(timeoutMS);
+			connection.setReadTimeout(timeoutMS);
+			connection.setUseCaches(false);
+			connection.setRequestProperty(HTTPTransmission.HEADER_SENDING_SIDE_ID, Integer.toString(transmission.getLocalID()));
+			connection.setRequestProperty(HTTPTransmission.HEADER_PAYLOAD_HASH, Integer.toString(transmission.getPayloadHash()));
+			if(fromChunk != null)
+			{
+				connection.setRequestMethod("POST");
+				connection.setDoOutput(true);
+				connection.setChunkedStreamingMode(ChunkedBody.DEFAULT_CHUNK_SIZE);
+				connection.setRequestProperty("Content-Type", HTTPTransmission.CONTENT_TYPE);
+				connection.setRequestProperty(HTTPTransmission.HEADER_FIRST_CHUNK, fromChunk.toString());
+				OutputStream out = connection.getOutputStream();
+				try
+				{
+					transmission.writeBody(out, fromChunk);
+				}
+				finally
+				{
+					out.close();
+				}
+			}
+			else
+				connection.setRequestMethod("HEAD");
+			
+			// Check response:
+			int status = connection.getResponseCode();
+			if(status != HTTPTransmission.HTTP_STATUS_COMPLETE && status != HTTPTransmission.HTTP_STATUS_INCOMPLETE)
+				throw new IOException("Unexpected response from server: " + status + " " + connection.getResponseMessage());
+			String nextChunk = connection.getHeaderField(HTTPTransmission.HEADER_NEXT_CHUNK);
+			if(fromChunk != null)
+			{	// Consume response body (if any):
+				InputStream in = connection.getInputStream();
+				while(in.read() != -1);
+				in.close();
+			}
+			if(status == HTTPTransmission.HTTP_STATUS_COMPLETE)
+				return null;
+			if(nextChunk == null)
+				throw new IOException("Server did not report which chunk it needs next");
+			try
+			{
+				return Integer.valueOf(nextChunk);
+			}
+			catch(NumberFormatException nfe)
+			{
+				throw new IOException("Invalid " + HTTPTransmission.HEADER_NEXT_CHUNK + " header: " + nextChunk);
+			}
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+	
+}
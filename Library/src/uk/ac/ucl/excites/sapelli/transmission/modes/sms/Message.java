@@ -93,6 +93,11 @@ public abstract class Message implements Comparable<Message>
 	public Message(SMSTransmission<?> transmission, int partNumber, int totalParts, TimeStamp sentAt, TimeStamp deliveredAt, TimeStamp receivedAt)
 	{
 		this(transmission, partNumber, totalParts);
+		if(transmission.isSenderSet())
+		{	// Receiving side: the message was sent by the remote sender, using its ID for the transmission
+			this.sender = transmission.getSender();
+			this.sendingSideTransmissionID = transmission.getRemoteID();
+		}
 		this.sentAt = sentAt;
 		this.deliveredAt = deliveredAt;
 		this.receivedAt = receivedAt;
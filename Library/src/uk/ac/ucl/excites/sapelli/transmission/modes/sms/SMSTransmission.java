@@ -120,13 +120,21 @@ public abstract class SMSTransmission<M extends Message> extends Transmission
 		msg.setTransmission(this);
 		// If all parts are received, set overall reception time: 
 		if(isComplete())
-		{
-			TimeStamp lastReceivedAt = null;
-			for(Message m : parts)
-				if(lastReceivedAt == null || lastReceivedAt.isBefore(m.getReceivedAt()))
-					lastReceivedAt = m.getReceivedAt();
-			setReceivedAt(lastReceivedAt);
-		}
+			setReceivedAt(getLastPartReceivedAt());
+	}
+	
+	/**
+	 * To be called on receiving side.
+	 * 
+	 * @return the time at which the most recently received part arrived, or {@code null} if no (timestamped) parts have been received
+	 */
+	public TimeStamp getLastPartReceivedAt()
+	{
+		TimeStamp lastReceivedAt = null;
+		for(Message m : parts)
+			if(m.isReceived() && (lastReceivedAt == null || lastReceivedAt.isBefore(m.getReceivedAt())))
+				lastReceivedAt = m.getReceivedAt();
+		return lastReceivedAt;
 	}
 	
 	public SortedSet<M> getParts()
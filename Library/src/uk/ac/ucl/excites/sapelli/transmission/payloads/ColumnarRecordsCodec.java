@@ -0,0 +1,427 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.payloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.shared.util.Objects;
+import uk.ac.ucl.excites.sapelli.storage.model.Column;
+import uk.ac.ucl.excites.sapelli.storage.model.Record;
+import uk.ac.ucl.excites.sapelli.storage.model.RecordColumn;
+
+/**
+ * Column-wise encoding of a sequence of values of a single column, as used by the columnar Records payload format.
+ * 
+ * Values of {@link RecordColumn}s (e.g. locations) are split up further, such that each of their subcolumns is encoded
+ * separately. For every other column the most compact of the following modes is selected (indicated by a 2 bit flag):
+ * <ul>
+ * <li>{@link #MODE_PLAIN}: values are written one after the other, exactly as in the row-wise format;</li>
+ * <li>{@link #MODE_RLE}: run-length encoding, which suits low-cardinality columns (e.g. choices);</li>
+ * <li>{@link #MODE_DELTA}: zig-zag encoded differences between the binary representations of successive values, all
+ * 		written using the smallest number of bits that fits the largest difference, which suits integers and timestamps;</li>
+ * <li>{@link #MODE_XOR}: XOR of the binary representation of each value with that of the previous one, written without
+ * 		its leading zeros, which suits floating point values such as coordinates.</li>
+ * </ul>
+ * The latter two modes are only used for columns of which all (non-null) values have the same binary size (of at most 64 bits).
+ * In all modes but plain, the presence of values in optional columns is written as 1 bit per value upfront.
+ * 
+ * @author mstevens
+ */
+public final class ColumnarRecordsCodec
+{
+	
+	static public final int MODE_PLAIN = 0;
+	static public final int MODE_RLE = 1;
+	static public final int MODE_DELTA = 2;
+	static public final int MODE_XOR = 3;
+	static private final IntegerRangeMapping MODE_FIELD = new IntegerRangeMapping(MODE_PLAIN, MODE_XOR); // 2 bits
+	
+	static private final IntegerRangeMapping RAW_SIZE_FIELD = new IntegerRangeMapping(1, Long.SIZE); // 6 bits
+	static private final IntegerRangeMapping DELTA_SIZE_FIELD = new IntegerRangeMapping(0, Long.SIZE); // 7 bits
+	
+	private ColumnarRecordsCodec() {}
+	
+	/**
+	 * Writes the values of the given column for the given records.
+	 * 
+	 * @param column
+	 * @param records
+	 * @param out
+	 * @throws IOException
+	 */
+	static public void Write(Column<?> column, List<Record> records, BitOutputStream out) throws IOException
+	{
+		List<Object> values = new ArrayList<Object>(records.size());
+		for(Record r : records)
+			values.add(column.retrieveValue(r));
+		writeValues(column, values, out);
+	}
+	
+	/**
+	 * Reads the values of the given column and stores them in the given records.
+	 * 
+	 * @param column
+	 * @param records
+	 * @param in
+	 * @throws IOException
+	 */
+	static public void Read(Column<?> column, List<Record> records, BitInputStream in) throws IOException
+	{
+		List<Object> values = readValues(column, records.size(), in);
+		for(int i = 0; i < records.size(); i++)
+			column.storeObject(records.get(i), values.get(i));
+	}
+	
+	static private void writeValues(Column<?> column, List<Object> values, BitOutputStream out) throws IOException
+	{
+		if(column instanceof RecordColumn)
+		{	// Split up into subcolumns:
+			List<Record> subRecords = writePresence(column, values, out);
+			for(Entry<Column<?>, Column<?>> subCol : ((RecordColumn<?>) column).getBinarySubColumns().entrySet())
+			{
+				List<Object> subValues = new ArrayList<Object>(subRecords.size());
+				for(Record subRecord : subRecords)
+					subValues.add(subCol.getKey().retrieveValue(subRecord));
+				writeValues(subCol.getValue(), subValues, out);
+			}
+			return;
+		}
+		
+		// Encode using each applicable mode:
+		BitArray[] encoded = new BitArray[MODE_FIELD.numberOfPossibleValues().intValue()];
+		encoded[MODE_PLAIN] = encodePlain(column, values);
+		encoded[MODE_RLE] = encodeRLE(column, values);
+		long[] raw = toRaw(column, values);
+		if(raw != null)
+		{
+			encoded[MODE_DELTA] = encodeDelta(column, values, raw);
+			encoded[MODE_XOR] = encodeXOR(column, values, raw);
+		}
+		
+		// Write most compact one:
+		int best = MODE_PLAIN;
+		for(int m = MODE_PLAIN + 1; m < encoded.length; m++)
+			if(encoded[m] != null && encoded[m].length() < encoded[best].length())
+				best = m;
+		MODE_FIELD.write(best, out);
+		encoded[best].writeTo(out);
+	}
+	
+	static private List<Object> readValues(Column<?> column, int count, BitInputStream in) throws IOException
+	{
+		if(column instanceof RecordColumn)
+		{
+			RecordColumn<?> recordCol = (RecordColumn<?>) column;
+			boolean[] present = readPresence(column, count, in);
+			List<Object> values = new ArrayList<Object>(count);
+			List<Record> subRecords = new ArrayList<Record>();
+			for(int i = 0; i < count; i++)
+			{
+				Record subRecord = present[i] ? recordCol.getNewRecord() : null;
+				values.add(subRecord);
+				if(subRecord != null)
+					subRecords.add(subRecord);
+			}
+			for(Entry<Column<?>, Column<?>> subCol : recordCol.getBinarySubColumns().entrySet())
+			{
+				List<Object> subValues = readValues(subCol.getValue(), subRecords.size(), in);
+				for(int s = 0; s < subRecords.size(); s++)
+					subCol.getKey().storeObject(subRecords.get(s), subValues.get(s));
+			}
+			return values;
+		}
+		
+		switch(MODE_FIELD.readInt(in))
+		{
+			case MODE_RLE :
+				return decodeRLE(column, count, in);
+			case MODE_DELTA :
+				return decodeDelta(column, count, in);
+			case MODE_XOR :
+				return decodeXOR(column, count, in);
+			case MODE_PLAIN :
+			default :
+				List<Object> values = new ArrayList<Object>(count);
+				for(int i = 0; i < count; i++)
+					values.add(column.readValue(in));
+				return values;
+		}
+	}
+	
+	/**
+	 * Writes presence bits (only for optional columns) and returns the non-null values.
+	 */
+	@SuppressWarnings("unchecked")
+	static private <V> List<V> writePresence(Column<?> column, List<Object> values, BitOutputStream out) throws IOException
+	{
+		List<V> nonNullValues = new ArrayList<V>(values.size());
+		for(Object value : values)
+		{
+			if(column.isOptional())
+				out.write(value != null);
+			else if(value == null)
+				throw new NullPointerException("Non-optional value is null!");
+			if(value != null)
+				nonNullValues.add((V) value);
+		}
+		return nonNullValues;
+	}
+	
+	static private boolean[] readPresence(Column<?> column, int count, BitInputStream in) throws IOException
+	{
+		boolean[] present = new boolean[count];
+		for(int i = 0; i < count; i++)
+			present[i] = !column.isOptional() || in.readBit();
+		return present;
+	}
+	
+	static private BitArray encodePlain(Column<?> column, List<Object> values) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		for(Object value : values)
+			column.writeObject(value, out);
+		out.close();
+		return out.toBitArray();
+	}
+	
+	/**
+	 * Runs are written as the value followed by the run length.
+	 */
+	static private BitArray encodeRLE(Column<?> column, List<Object> values) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		IntegerRangeMapping runLengthField = new IntegerRangeMapping(1, Math.max(values.size(), 2));
+		int runStart = 0;
+		for(int i = 1; i <= values.size(); i++)
+			if(i == values.size() || !Objects.deepEquals(values.get(runStart), values.get(i)))
+			{
+				column.writeObject(values.get(runStart), out);
+				runLengthField.write(i - runStart, out);
+				runStart = i;
+			}
+		out.close();
+		return out.toBitArray();
+	}
+	
+	static private List<Object> decodeRLE(Column<?> column, int count, BitInputStream in) throws IOException
+	{
+		List<Object> values = new ArrayList<Object>(count);
+		IntegerRangeMapping runLengthField = new IntegerRangeMapping(1, Math.max(count, 2));
+		while(values.size() < count)
+		{
+			Object value = column.readValue(in);
+			int runLength = runLengthField.readInt(in);
+			if(values.size() + runLength > count)
+				throw new IOException("Run length exceeds number of values");
+			for(int r = 0; r < runLength; r++)
+				values.add(r == 0 || value == null ? value : column.copyObject(value));
+		}
+		return values;
+	}
+	
+	/**
+	 * Returns the binary representations (without presence bit) of the non-null values, as longs, or null if
+	 * they do not all have the same size or are larger than 64 bits. The size is stored in the last array element.
+	 */
+	static private long[] toRaw(Column<?> column, List<Object> values) throws IOException
+	{
+		List<Object> nonNullValues = new ArrayList<Object>(values.size());
+		for(Object value : values)
+			if(value != null)
+				nonNullValues.add(value);
+		if(nonNullValues.isEmpty())
+			return null;
+		long[] raw = new long[nonNullValues.size() + 1];
+		int size = -1;
+		for(int i = 0; i < nonNullValues.size(); i++)
+		{
+			BitArrayOutputStream out = new BitArrayOutputStream();
+			column.writeObject(nonNullValues.get(i), out);
+			out.close();
+			BitArray bits = out.toBitArray();
+			int offset = column.isOptional() ? 1 : 0; // skip presence bit
+			if(size == -1)
+				size = bits.length() - offset;
+			if(bits.length() - offset != size || size < RAW_SIZE_FIELD.lowBound().intValue() || size > Long.SIZE)
+				return null;
+			BitArrayInputStream bitsIn = new BitArrayInputStream(bits);
+			bitsIn.skipBits(offset);
+			raw[i] = readRaw(bitsIn, size);
+			bitsIn.close();
+		}
+		raw[raw.length - 1] = size;
+		return raw;
+	}
+	
+	static private Object fromRaw(Column<?> column, long raw, int size) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		if(column.isOptional())
+			out.write(true); // presence bit
+		writeRaw(raw, size, out);
+		out.close();
+		BitArrayInputStream in = new BitArrayInputStream(out.toBitArray());
+		Object value = column.readValue(in);
+		in.close();
+		return value;
+	}
+	
+	static private void writeRaw(long bits, int size, BitOutputStream out) throws IOException
+	{
+		out.write(bits, size, size == Long.SIZE); // at 64 bits the (two's complement) bit pattern must be written as signed
+	}
+	
+	static private long readRaw(BitInputStream in, int size) throws IOException
+	{
+		return in.readInteger(size, size == Long.SIZE);
+	}
+	
+	static private BitArray encodeDelta(Column<?> column, List<Object> values, long[] raw) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		writePresence(column, values, out);
+		int n = raw.length - 1;
+		int size = (int) raw[n];
+		// Zig-zag encode the differences (wrapping around on overflow, which decoding reverses) & determine required size:
+		long[] zigZagDeltas = new long[n];
+		long allDeltaBits = 0;
+		for(int i = 1; i < n; i++)
+		{
+			long delta = raw[i] - raw[i - 1];
+			zigZagDeltas[i] = (delta << 1) ^ (delta >> (Long.SIZE - 1));
+			allDeltaBits |= zigZagDeltas[i];
+		}
+		int deltaSize = Long.SIZE - Long.numberOfLeadingZeros(allDeltaBits);
+		RAW_SIZE_FIELD.write(size, out);
+		DELTA_SIZE_FIELD.write(deltaSize, out);
+		writeRaw(raw[0], size, out);
+		for(int i = 1; i < n; i++)
+			writeRaw(zigZagDeltas[i], deltaSize, out);
+		out.close();
+		return out.toBitArray();
+	}
+	
+	static private List<Object> decodeDelta(Column<?> column, int count, BitInputStream in) throws IOException
+	{
+		boolean[] present = readPresence(column, count, in);
+		int size = RAW_SIZE_FIELD.readInt(in);
+		int deltaSize = DELTA_SIZE_FIELD.readInt(in);
+		List<Object> values = new ArrayList<Object>(count);
+		boolean first = true;
+		long previous = 0;
+		for(int i = 0; i < count; i++)
+		{
+			if(!present[i])
+			{
+				values.add(null);
+				continue;
+			}
+			long raw;
+			if(first)
+			{
+				raw = readRaw(in, size);
+				first = false;
+			}
+			else
+			{
+				long zigZagDelta = deltaSize == 0 ? 0 : readRaw(in, deltaSize);
+				raw = previous + ((zigZagDelta >>> 1) ^ -(zigZagDelta & 1));
+			}
+			values.add(fromRaw(column, raw, size));
+			previous = raw;
+		}
+		return values;
+	}
+	
+	static private BitArray encodeXOR(Column<?> column, List<Object> values, long[] raw) throws IOException
+	{
+		BitArrayOutputStream out = new BitArrayOutputStream();
+		writePresence(column, values, out);
+		int n = raw.length - 1;
+		int size = (int) raw[n];
+		IntegerRangeMapping leadingZerosField = new IntegerRangeMapping(0, Math.max(size - 1, 1));
+		RAW_SIZE_FIELD.write(size, out);
+		writeRaw(raw[0], size, out);
+		for(int i = 1; i < n; i++)
+		{
+			long xor = raw[i] ^ raw[i - 1];
+			if(xor == 0)
+				out.write(false); // same value
+			else
+			{
+				out.write(true);
+				int leadingZeros = Long.numberOfLeadingZeros(xor) - (Long.SIZE - size);
+				leadingZerosField.write(leadingZeros, out);
+				// The bit following the leading zeros is always 1, so only the remaining bits are written:
+				int remaining = size - leadingZeros - 1;
+				if(remaining > 0)
+					writeRaw(xor & (-1L >>> (Long.SIZE - remaining)), remaining, out);
+			}
+		}
+		out.close();
+		return out.toBitArray();
+	}
+	
+	static private List<Object> decodeXOR(Column<?> column, int count, BitInputStream in) throws IOException
+	{
+		boolean[] present = readPresence(column, count, in);
+		int size = RAW_SIZE_FIELD.readInt(in);
+		IntegerRangeMapping leadingZerosField = new IntegerRangeMapping(0, Math.max(size - 1, 1));
+		List<Object> values = new ArrayList<Object>(count);
+		boolean first = true;
+		long previous = 0;
+		for(int i = 0; i < count; i++)
+		{
+			if(!present[i])
+			{
+				values.add(null);
+				continue;
+			}
+			long raw;
+			if(first)
+			{
+				raw = readRaw(in, size);
+				first = false;
+			}
+			else if(!in.readBit())
+				raw = previous;
+			else
+			{
+				int leadingZeros = leadingZerosField.readInt(in);
+				int remaining = size - leadingZeros - 1;
+				long xor = (1L << remaining) | (remaining > 0 ? readRaw(in, remaining) : 0);
+				raw = previous ^ xor;
+			}
+			values.add(fromRaw(column, raw, size));
+			previous = raw;
+		}
+		return values;
+	}
+	
+}
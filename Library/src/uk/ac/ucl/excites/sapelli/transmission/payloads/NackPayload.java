@@ -0,0 +1,150 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.payloads;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
+import uk.ac.ucl.excites.sapelli.transmission.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.Transmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.SMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.binary.BinarySMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.modes.sms.text.TextSMSTransmission;
+import uk.ac.ucl.excites.sapelli.transmission.util.PayloadDecodeException;
+import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
+
+/**
+ * A Payload used to request the resending of specific parts of an other, incompletely received, multi-part transmission.
+ * The receiver of that "subject" transmission will send this payload back to the original sender.
+ *
+ * The missing parts are encoded as a bitmap with one bit per part of the subject transmission, meaning the payload
+ * never takes up more than a couple of bytes and always fits in a single SMS.
+ *
+ * @author mstevens
+ * @see AckPayload
+ */
+public class NackPayload extends Payload
+{
+
+	// STATICS-------------------------------------------------------
+	static public final int MAX_PARTS = Math.max(BinarySMSTransmission.MAX_TRANSMISSION_PARTS, TextSMSTransmission.MAX_TRANSMISSION_PARTS);
+	static public final IntegerRangeMapping TOTAL_PARTS_FIELD = new IntegerRangeMapping(1, MAX_PARTS);
+
+	// DYNAMICS------------------------------------------------------
+	private int subjectSenderSideID;
+	private int subjectPayloadHash;
+	private int subjectTotalParts;
+	private SortedSet<Integer> missingParts;
+
+	/**
+	 * To be called from receiving side
+	 *
+	 */
+	public NackPayload()
+	{
+		super();
+	}
+
+	/**
+	 * To be called from sending side (= which received part of the subject)
+	 *
+	 * @param subject - the incompletely received transmission for which parts are to be resent
+	 */
+	public NackPayload(SMSTransmission<?> subject)
+	{
+		this.subjectSenderSideID = subject.getRemoteID();
+		this.subjectPayloadHash = subject.getPayloadHash();
+		this.subjectTotalParts = subject.getTotalNumberOfParts();
+		this.missingParts = new TreeSet<Integer>();
+		for(int p = 1; p <= subjectTotalParts; p++) // partNumbers start from 1!
+			if(!subject.hasPart(p))
+				missingParts.add(p);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.Payload#getType()
+	 */
+	@Override
+	public int getType()
+	{
+		return BuiltinType.Nack.ordinal();
+	}
+
+	@Override
+	protected void write(BitOutputStream bitstream) throws IOException, TransmissionCapacityExceededException
+	{
+		Transmission.TRANSMISSION_ID_FIELD.write(subjectSenderSideID, bitstream);
+		Transmission.PAYLOAD_HASH_FIELD.write(subjectPayloadHash, bitstream);
+		TOTAL_PARTS_FIELD.write(subjectTotalParts, bitstream);
+		for(int p = 1; p <= subjectTotalParts; p++)
+			bitstream.write(missingParts.contains(p));
+	}
+
+	@Override
+	protected void read(BitInputStream bitstream) throws IOException, PayloadDecodeException
+	{
+		subjectSenderSideID = Transmission.TRANSMISSION_ID_FIELD.readInt(bitstream);
+		subjectPayloadHash = Transmission.PAYLOAD_HASH_FIELD.readInt(bitstream);
+		subjectTotalParts = TOTAL_PARTS_FIELD.readInt(bitstream);
+		missingParts = new TreeSet<Integer>();
+		for(int p = 1; p <= subjectTotalParts; p++)
+			if(bitstream.readBit())
+				missingParts.add(p);
+		if(missingParts.isEmpty())
+			throw new PayloadDecodeException(this, "Nack does not specify any missing parts");
+	}
+
+	/**
+	 * @return the subjectSenderSideID
+	 */
+	public int getSubjectSenderSideID()
+	{
+		return subjectSenderSideID;
+	}
+
+	/**
+	 * @return the subjectPayloadHash
+	 */
+	public int getSubjectPayloadHash()
+	{
+		return subjectPayloadHash;
+	}
+
+	/**
+	 * @return the total number of parts of the subject transmission
+	 */
+	public int getSubjectTotalParts()
+	{
+		return subjectTotalParts;
+	}
+
+	/**
+	 * @return the numbers of the parts (starting from 1) which are to be resent
+	 */
+	public SortedSet<Integer> getMissingParts()
+	{
+		return Collections.unmodifiableSortedSet(missingParts);
+	}
+
+}
@@ -18,22 +18,32 @@
 
 package uk.ac.ucl.excites.sapelli.transmission.payloads;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory;
 import uk.ac.ucl.excites.sapelli.shared.compression.CompressorFactory.Compression;
+import uk.ac.ucl.excites.sapelli.shared.compression.DeflateCompressor;
+import uk.ac.ucl.excites.sapelli.shared.compression.PresetDictionary;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArray;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitArrayOutputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitInputStream;
 import uk.ac.ucl.excites.sapelli.shared.io.BitOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapInputStream;
+import uk.ac.ucl.excites.sapelli.shared.io.BitWrapOutputStream;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Metrics;
+import uk.ac.ucl.excites.sapelli.shared.metrics.Timer;
 import uk.ac.ucl.excites.sapelli.shared.util.CollectionUtils;
 import uk.ac.ucl.excites.sapelli.shared.util.IntegerRangeMapping;
 import uk.ac.ucl.excites.sapelli.shared.util.Objects;
@@ -45,6 +55,7 @@ import uk.ac.ucl.excites.sapelli.storage.model.columns.IntegerColumn;
 import uk.ac.ucl.excites.sapelli.storage.model.indexes.AutoIncrementingPrimaryKey;
 import uk.ac.ucl.excites.sapelli.storage.util.UnknownModelException;
 import uk.ac.ucl.excites.sapelli.transmission.Payload;
+import uk.ac.ucl.excites.sapelli.transmission.TransmissionClient;
 import uk.ac.ucl.excites.sapelli.transmission.util.TransmissionCapacityExceededException;
 
 /**
@@ -58,10 +69,17 @@ public class RecordsPayload extends Payload
 	/**
 	 * Records payload format V2, which was introduced in Sapelli v2.0.
 	 * This not in compatible with the format used in v1.x, which is no longer supported in Sapelli v2.0.
-	 * V2 is currently the only support format but in the future variations/extension could be introduced.
+	 * In this format records are encoded row-wise (i.e. one record after the other).
 	 */
 	static protected final short V2_FORMAT = 2;
 	
+	/**
+	 * Records payload format V3, which differs from V2 only in the way the records are encoded: column-wise
+	 * (i.e. the values of one column for all records of a schema, then those of the next column, etc.), using
+	 * {@link ColumnarRecordsCodec}. Upon sending the format which results in the smallest payload is used.
+	 */
+	static protected final short V3_COLUMNAR_FORMAT = 3;
+	
 	/**
 	 * The default Records payload format version being used.
 	 */
@@ -70,11 +88,11 @@ public class RecordsPayload extends Payload
 	/**
 	 * The highest supported Records payload format version
 	 */
-	static protected final short HIGHEST_SUPPORTED_FORMAT = V2_FORMAT;
+	static protected final short HIGHEST_SUPPORTED_FORMAT = V3_COLUMNAR_FORMAT;
 	
 	/**
 	 * We use 2 bits to store the format version This means up to 4 versions can be differentiated.
-	 * Currently only 1 supported format exists (= V2). If we ever get to V5 it would be best if an
+	 * Currently 2 supported formats exists (V2 & V3). If we ever get to V5 it would be best if an
 	 * additional flag is added to enable future extensions beyond V5.
 	 */
 	static protected final short FORMAT_VERSION_SIZE = 2; // bits
@@ -85,7 +103,15 @@ public class RecordsPayload extends Payload
 	static protected final IntegerRangeMapping FORMAT_VERSION_FIELD = IntegerRangeMapping.ForSize(V2_FORMAT, FORMAT_VERSION_SIZE); // can take values from [2, 5] (but stored binary as [0, 3])
 	
 	static protected final Compression[] COMPRESSION_MODES = { Compression.NONE, Compression.DEFLATE, Compression.LZMA };
-	static protected final IntegerRangeMapping COMPRESSION_FLAG_FIELD = new IntegerRangeMapping(0, COMPRESSION_MODES.length - 1);
+	
+	/**
+	 * Compression flag value indicating DEFLATE compression using the preset dictionary provided for the model by the
+	 * {@link TransmissionClient}. When this mode is used the compression flag is followed by the dictionary ID.
+	 */
+	static protected final int PRESET_DICTIONARY_COMPRESSION_FLAG = COMPRESSION_MODES.length; // = 3
+	
+	static protected final IntegerRangeMapping COMPRESSION_FLAG_FIELD = new IntegerRangeMapping(0, PRESET_DICTIONARY_COMPRESSION_FLAG); // still fits in 2 bits
+	static protected final IntegerRangeMapping PRESET_DICTIONARY_ID_FIELD = IntegerRangeMapping.ForSize(0, PresetDictionary.ID_SIZE);
 	
 	// DYNAMIC---------------------------------------------
 	protected Model model;
@@ -164,6 +190,15 @@ public class RecordsPayload extends Payload
 		return getRecords();
 	}
 	
+	/* (non-Javadoc)
+	 * @see uk.ac.ucl.excites.sapelli.transmission.Payload#getModel()
+	 */
+	@Override
+	public Model getModel()
+	{
+		return model;
+	}
+	
 	/**
 	 * @return records grouped by schema
 	 */
@@ -226,54 +261,184 @@ public class RecordsPayload extends Payload
 	{
 		if(recordsBySchema.isEmpty())
 			throw new IllegalStateException("Payload contains no records. Add at least 1 record before serialising.");
+		Timer.Context timing = Metrics.Time("payload.records.serialise");
 		try
 		{
-			int numberOfDifferentSchemataInTransmission = getSchemata().size();
-			Schema[] schemataInT = new Schema[numberOfDifferentSchemataInTransmission];
+			Schema[] schemataInT = getSchemataInModelOrder();
 			
-			// Write HEADER PART 1 ----------------------------------
-			//  Format version (2 bits):
-			FORMAT_VERSION_FIELD.write(DEFAULT_FORMAT, out);
-			//	Model & schema identification:
-			// 		Write Model ID (56 bits):
-			Model.MODEL_ID_FIELD.write(model.getID(), out);
-			//		Write schema occurrence bits:
-			int s = 0;
-			for(Schema sInM : model.getSchemata())
-			{	// 1 bit per schema in model, indicating for which schemata this payload contains records (schemata in model order):
-				if(containsRecordsOf(sInM))
-				{
-					out.write(true); // transmission payload contains at least 1 record for this schema
-					schemataInT[s++] = sInM;
-				}
-				else
-					out.write(false); // no records of this schema appear in this transmission payload
+			// Encode records, both row-wise and column-wise, & compress them ---
+			EncodedRecords encoded = compressRecords(DEFAULT_FORMAT, encodeRecords(schemataInT));
+			if(getNumberOfRecords() > 1)
+			{	// Column-wise encoding only makes sense for multiple records:
+				EncodedRecords encodedColumnar = compressRecords(V3_COLUMNAR_FORMAT, encodeRecordsColumnar(schemataInT));
+				if(encodedColumnar.length() < encoded.length())
+					encoded = encodedColumnar;
 			}
-
-			// Encode records ---------------------------------------
-			BitArray recordsBits = encodeRecords(schemataInT);
-			// Compress record bits with various compression modes:
-			byte[][] comprResults = compress(recordsBits, COMPRESSION_MODES);
-			// Determine most space-efficient compression mode:
-			int bestComprIdx = 0;
-			for(int c = 1; c < COMPRESSION_MODES.length; c++)
-				if(comprResults[c].length < comprResults[bestComprIdx].length)
-					bestComprIdx = c;
+			
+			// Write HEADER PART 1 ----------------------------------
+			writeHeader(encoded.format, out);
 			
 			// Write HEADER PART 2 ----------------------------------
 			//	Compression flag (2 bits):
-			COMPRESSION_FLAG_FIELD.write(bestComprIdx, out);
+			COMPRESSION_FLAG_FIELD.write(encoded.compressionFlag, out);
+			//	Preset dictionary ID (32 bits, only if dictionary is used):
+			if(encoded.compressionFlag == PRESET_DICTIONARY_COMPRESSION_FLAG)
+				PRESET_DICTIONARY_ID_FIELD.write(encoded.dictionaryID, out);
 
 			// Write BODY: the encoded & compressed records ---------
-			if(COMPRESSION_MODES[bestComprIdx] != Compression.NONE) // if compressed : write byte array 
-				out.write(comprResults[bestComprIdx]); // write byte array
+			if(encoded.compressed != null) // if compressed : write byte array 
+				out.write(encoded.compressed); // write byte array
 			else
-				recordsBits.writeTo(out); // write bit array (avoid padding to byte boundary)
+				encoded.bits.writeTo(out); // write bit array (avoid padding to byte boundary)
+			
+			Metrics.Count("payload.records.serialised", getNumberOfRecords());
 		}
 		catch(IOException e)
 		{
 			throw new IOException("Error on serialising payload.", e);
 		}
+		finally
+		{
+			timing.stop();
+		}
+	}
+	
+	/**
+	 * Streamed alternative to {@link #write(BitOutputStream)}, meant for large payloads which are sent over a fast connection.
+	 * Instead of encoding the records in several ways and compressing the results in memory to pick the smallest one, the
+	 * records are encoded row-wise (format V2) and DEFLATE-compressed while being written to the given stream, which is left
+	 * open. The output is deterministic and can be read by {@link #read(BitInputStream)} like any other Records payload.
+	 * 
+	 * @param out
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public void writeStreamed(BitOutputStream out) throws IllegalStateException, IOException
+	{
+		if(recordsBySchema.isEmpty())
+			throw new IllegalStateException("Payload contains no records. Add at least 1 record before serialising.");
+		Timer.Context timing = Metrics.Time("payload.records.serialise.streamed");
+		try
+		{
+			// Write HEADER PART 1:
+			writeHeader(DEFAULT_FORMAT, out);
+			
+			// Write HEADER PART 2: compression flag
+			int deflateFlag = 0;
+			while(COMPRESSION_MODES[deflateFlag] != Compression.DEFLATE)
+				deflateFlag++;
+			COMPRESSION_FLAG_FIELD.write(deflateFlag, out);
+			
+			// Write BODY: encode records while compressing them:
+			BitOutputStream recordsOut = new BitWrapOutputStream(new BufferedOutputStream(CompressorFactory.getCompressorOutputStream(Compression.DEFLATE, new UnclosableBitOutputStreamWrapper(out))));
+			encodeRecords(getSchemataInModelOrder(), recordsOut);
+			recordsOut.close(); // pads to byte boundary & completes the compression, but leaves out open
+			
+			Metrics.Count("payload.records.serialised", getNumberOfRecords());
+		}
+		catch(IOException e)
+		{
+			throw new IOException("Error on serialising payload.", e);
+		}
+		finally
+		{
+			timing.stop();
+		}
+	}
+	
+	/**
+	 * Writes the format version and the model & schema identification.
+	 * 
+	 * @param format
+	 * @param out
+	 * @throws IOException
+	 */
+	private void writeHeader(short format, BitOutputStream out) throws IOException
+	{
+		//  Format version (2 bits):
+		FORMAT_VERSION_FIELD.write(format, out);
+		//	Model & schema identification:
+		// 		Write Model ID (56 bits), unless the transmission header already contains it:
+		if(!transmission.isModelIDInHeader())
+			Model.MODEL_ID_FIELD.write(model.getID(), out);
+		//		Write schema occurrence bits:
+		for(Schema sInM : model.getSchemata())
+			// 1 bit per schema in model, indicating for which schemata this payload contains records (schemata in model order):
+			out.write(containsRecordsOf(sInM));
+	}
+	
+	/**
+	 * @return the schemata for which the payload contains records, in model order
+	 */
+	private Schema[] getSchemataInModelOrder()
+	{
+		Schema[] schemataInT = new Schema[getSchemata().size()];
+		int s = 0;
+		for(Schema sInM : model.getSchemata())
+			if(containsRecordsOf(sInM))
+				schemataInT[s++] = sInM;
+		return schemataInT;
+	}
+	
+	/**
+	 * Compresses the encoded records using all available compression modes and returns the most space-efficient result.
+	 * 
+	 * @param format
+	 * @param recordsBits
+	 * @return
+	 * @throws IOException
+	 */
+	private EncodedRecords compressRecords(short format, BitArray recordsBits) throws IOException
+	{
+		// Compress record bits with various compression modes:
+		byte[][] comprResults = compress(recordsBits, COMPRESSION_MODES);
+		// Determine most space-efficient compression mode:
+		int bestComprIdx = 0;
+		for(int c = 1; c < COMPRESSION_MODES.length; c++)
+			if(comprResults[c].length < comprResults[bestComprIdx].length)
+				bestComprIdx = c;
+		EncodedRecords result = new EncodedRecords(format, recordsBits, bestComprIdx, COMPRESSION_MODES[bestComprIdx] != Compression.NONE ? comprResults[bestComprIdx] : null, 0);
+		// Also try DEFLATE with preset dictionary, if there is one for the model (it must beat the other modes by more than the size of the dictionary ID):
+		PresetDictionary dictionary = transmission.getClient().getPresetDictionary(model);
+		if(dictionary != null && !dictionary.isEmpty())
+		{
+			EncodedRecords dictResult = new EncodedRecords(format, recordsBits, PRESET_DICTIONARY_COMPRESSION_FLAG, new DeflateCompressor(dictionary).compress(recordsBits.toByteArray()), dictionary.getID());
+			if(dictResult.length() < result.length())
+				result = dictResult;
+		}
+		return result;
+	}
+	
+	/**
+	 * Helper class holding encoded (and possibly compressed) records.
+	 */
+	static private class EncodedRecords
+	{
+		
+		final short format;
+		final BitArray bits;
+		final int compressionFlag;
+		final byte[] compressed; // null if not compressed
+		final long dictionaryID;
+		
+		public EncodedRecords(short format, BitArray bits, int compressionFlag, byte[] compressed, long dictionaryID)
+		{
+			this.format = format;
+			this.bits = bits;
+			this.compressionFlag = compressionFlag;
+			this.compressed = compressed;
+			this.dictionaryID = dictionaryID;
+		}
+		
+		/**
+		 * @return the number of bits taken up in the payload, excluding the header fields which are always present
+		 */
+		public int length()
+		{
+			return	(compressed != null ? compressed.length * Byte.SIZE : bits.length()) +
+					(compressionFlag == PRESET_DICTIONARY_COMPRESSION_FLAG ? PresetDictionary.ID_SIZE : 0);
+		}
+		
 	}
 	
 	/**
@@ -289,35 +454,54 @@ public class RecordsPayload extends Payload
 	@Override
 	protected void read(BitInputStream in) throws IOException, RecordsPayloadDecodeException, UnknownModelException
 	{
-		// Read HEADER ----------------------------------------------
-		//	Read format version:
-		short format = FORMAT_VERSION_FIELD.readShort(in);
-		if(format > HIGHEST_SUPPORTED_FORMAT)
-			throw new RecordsPayloadDecodeException(this, "Unsupported payload format version: " + format + " (highest supported version: " + HIGHEST_SUPPORTED_FORMAT + ").");
-		//	Read schema identification:
-		//		Read Model ID & loop-up model:
-		this.model = transmission.getClient().getModel(Model.MODEL_ID_FIELD.readLong(in));
-		//		Read schema occurrence bits:
-		List<Schema> schemataInT = new ArrayList<Schema>();
-		for(Schema sInM : model.getSchemata())
-			if(in.readBit())
-				schemataInT.add(sInM);
-		//	Compression flag:
-		int compressionMode = COMPRESSION_FLAG_FIELD.readInt(in);
+		Timer.Context timing = Metrics.Time("payload.records.deserialise");
+		try
+		{
+			// Read HEADER ----------------------------------------------
+			//	Read format version:
+			short format = FORMAT_VERSION_FIELD.readShort(in);
+			if(format > HIGHEST_SUPPORTED_FORMAT)
+				throw new RecordsPayloadDecodeException(this, "Unsupported payload format version: " + format + " (highest supported version: " + HIGHEST_SUPPORTED_FORMAT + ").");
+			boolean columnar = format == V3_COLUMNAR_FORMAT;
+			//	Read schema identification:
+			//		Read Model ID & loop-up model (unless the transmission header already identified it):
+			this.model = transmission.isModelIDInHeader() ? transmission.getHeaderModel() : transmission.getClient().getModel(Model.MODEL_ID_FIELD.readLong(in));
+			//		Read schema occurrence bits:
+			List<Schema> schemataInT = new ArrayList<Schema>();
+			for(Schema sInM : model.getSchemata())
+				if(in.readBit())
+					schemataInT.add(sInM);
+			//	Compression flag:
+			int compressionMode = COMPRESSION_FLAG_FIELD.readInt(in);
 
-		// Read BODY: encoded records, possibly compressed ----------
-		BitArray recordsBits;
-		if(COMPRESSION_MODES[compressionMode] == Compression.NONE)
-			recordsBits = in.readBitArray(in.bitsAvailable()); // not compressed: read as bits
-		else
-		{	// Read compressed data as bytes & decompress them:
-			byte[] recordBytes = decompress(in.readBytes(in.available()), COMPRESSION_MODES[compressionMode]);
-			// Convert to bit array:
-			recordsBits = BitArray.FromBytes(recordBytes);
+			// Read BODY: encoded records, possibly compressed ----------
+			if(compressionMode == PRESET_DICTIONARY_COMPRESSION_FLAG)
+			{	// Compressed with preset dictionary, check if we have the same dictionary:
+				long dictionaryID = PRESET_DICTIONARY_ID_FIELD.readLong(in);
+				PresetDictionary dictionary = transmission.getClient().getPresetDictionary(model);
+				if(dictionary == null || dictionary.getID() != dictionaryID)
+					throw new RecordsPayloadDecodeException(this, "Payload was compressed using a preset dictionary (ID: " + dictionaryID + ") which is not available for model " + model.getID() + ".");
+				decodeRecords(schemataInT, new BitWrapInputStream(new DeflateCompressor(dictionary).getInputStream(in)), false, columnar);
+			}
+			else if(COMPRESSION_MODES[compressionMode] == Compression.NONE)
+				// Not compressed: decode records directly from the payload stream:
+				decodeRecords(schemataInT, in, true, columnar);
+			else
+				// Compressed: decode records while decompressing, which avoids holding the decompressed bytes and a bit array copy of them in memory:
+				decodeRecords(schemataInT, new BitWrapInputStream(CompressorFactory.getCompressorInputStream(COMPRESSION_MODES[compressionMode], in)), false, columnar);
 		}
-		
-		// Decode records:
-		decodeRecords(schemataInT, recordsBits);
+		finally
+		{
+			timing.stop();
+		}
+	}
+	
+	private void decodeRecords(List<Schema> schemataInT, BitInputStream in, boolean availableKnown, boolean columnar) throws RecordsPayloadDecodeException
+	{
+		if(columnar)
+			decodeRecordsColumnar(schemataInT, in);
+		else
+			decodeRecords(schemataInT, in, availableKnown);
 	}
 	
 	/**
@@ -332,7 +516,35 @@ public class RecordsPayload extends Payload
 		try
 		{
 			out = new BitArrayOutputStream();
-			IntegerRangeMapping numberOfRecordsPerSchemaField = getNumberOfRecordsPerSchemaField();
+			encodeRecords(schemataInT, out);
+			
+			// Close the stream & return bits:
+			out.close();
+			return out.toBitArray();
+		}
+		finally
+		{
+			try
+			{
+				if(out != null)
+					out.close();
+			}
+			catch(Exception ignore) {}
+		}
+	}
+	
+	/**
+	 * Encodes records row-wise, writing them to the given stream one after the other.
+	 * 
+	 * @param schemataInT
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void encodeRecords(Schema[] schemataInT, BitOutputStream out) throws IOException
+	{
+		try
+		{
+			IntegerRangeMapping numberOfRecordsPerSchemaField = getNumberOfRecordsPerSchemaField(schemataInT.length);
 			
 			// Encode records per schema...
 			for(Schema schema : schemataInT)
@@ -368,9 +580,13 @@ public class RecordsPayload extends Payload
 						}
 						else
 						{	// Check if these values are these same in subsequent records:
-							for(Column<?> factoredOutCol : factoredOutValues.keySet())
-								if(!Objects.deepEquals(factoredOutValues.get(factoredOutCol), factoredOutCol.retrieveValue(r)))
-									factoredOutValues.remove(factoredOutCol); // value mismatch -> this column can not be factored out
+							Iterator<Entry<Column<?>, Object>> factoredOut = factoredOutValues.entrySet().iterator();
+							while(factoredOut.hasNext())
+							{
+								Entry<Column<?>, Object> entry = factoredOut.next();
+								if(!Objects.deepEquals(entry.getValue(), entry.getKey().retrieveValue(r)))
+									factoredOut.remove(); // value mismatch -> this column can not be factored out
+							}
 							if(factoredOutValues.isEmpty())
 								break; // no factored-out columns left -> no need to loop over rest of the records
 						}
@@ -408,24 +624,11 @@ public class RecordsPayload extends Payload
 				for(Record r : recordsBySchema.get(schema))
 					r.writeToBitStream(out, false /* ... and virtual columns */, skipColumns);
 			}
-			
-			// Close the stream & return bits:
-			out.close();
-			return out.toBitArray();
 		}
 		catch(Exception e)
 		{
 			throw new IOException("Error on encoding records.", e);
 		}
-		finally
-		{
-			try
-			{
-				if(out != null)
-					out.close();
-			}
-			catch(Exception ignore) {}
-		}
 	}
 	
 	/**
@@ -434,13 +637,24 @@ public class RecordsPayload extends Payload
 	 * @throws RecordsPayloadDecodeException
 	 */
 	protected void decodeRecords(List<Schema> schemataInT, BitArray recordsBits) throws RecordsPayloadDecodeException
-	{		
-		BitInputStream in = null;
+	{
+		decodeRecords(schemataInT, new BitArrayInputStream(recordsBits), true);
+	}
+	
+	/**
+	 * Decodes records from the given stream, which is closed afterwards.
+	 * 
+	 * @param schemataInT
+	 * @param in
+	 * @param availableKnown whether {@link BitInputStream#bitsAvailable()} reliably reports the number of remaining bits, if it does decoding stops (without error) when there are not enough bits left for a complete record, if it does not (e.g. for a decompressing stream) running out of bits before the expected number of records are read results in an exception
+	 * @throws RecordsPayloadDecodeException
+	 */
+	protected void decodeRecords(List<Schema> schemataInT, BitInputStream in, boolean availableKnown) throws RecordsPayloadDecodeException
+	{
 		Record record = null;
 		try
 		{
-			in = new BitArrayInputStream(recordsBits);
-			IntegerRangeMapping numberOfRecordsPerSchemaField = getNumberOfRecordsPerSchemaField();
+			IntegerRangeMapping numberOfRecordsPerSchemaField = getNumberOfRecordsPerSchemaField(schemataInT.size());
 			
 			// Per schema...
 			for(Schema schema : schemataInT)
@@ -480,7 +694,7 @@ public class RecordsPayload extends Payload
 				CollectionUtils.addIgnoreNull(skipColumns, autoIncrementKeyColumn);				// auto-incrementing key,
 				skipColumns.addAll(factoredOutValues.keySet());									// factored-out, ...
 				while(	records.size() < numberOfRecordsForSchema &&					
-						in.bitsAvailable() >= schema.getMinimumSize(false /* ... and virtual columns */, skipColumns))
+						(!availableKnown || in.bitsAvailable() >= schema.getMinimumSize(false /* ... and virtual columns */, skipColumns)))
 				{
 					// Get new Record instance:
 					record = schema.createRecord();
@@ -505,13 +719,123 @@ public class RecordsPayload extends Payload
 		{
 			try
 			{
-				if(in != null)
-					in.close();
+				in.close();
 			}
 			catch(Exception ignore) {}
 		}
 	}
 	
+	/**
+	 * Encodes records column-wise (payload format V3). Per schema the number of records is written, followed by the
+	 * values of each transmittable column (in schema order), encoded using {@link ColumnarRecordsCodec}.
+	 * 
+	 * @param schemataInT
+	 * @return
+	 * @throws IOException
+	 * @throws TransmissionCapacityExceededException
+	 */
+	protected BitArray encodeRecordsColumnar(Schema[] schemataInT) throws IOException, TransmissionCapacityExceededException
+	{
+		BitArrayOutputStream out = null;
+		try
+		{
+			out = new BitArrayOutputStream();
+			IntegerRangeMapping numberOfRecordsPerSchemaField = getNumberOfRecordsPerSchemaField(schemataInT.length);
+			for(Schema schema : schemataInT)
+			{
+				List<Record> records = recordsBySchema.get(schema);
+				
+				// Write number of records:
+				if(numberOfRecordsPerSchemaField.inEffectiveRange(records.size()))
+					numberOfRecordsPerSchemaField.write(records.size(), out);
+				else
+					throw new TransmissionCapacityExceededException("Cannot fit " + records.size() + " of schema " + schema.getName() + " (max allowed: " + numberOfRecordsPerSchemaField.highBound(false) + ").");
+				
+				// Write values column by column:
+				for(Column<?> c : getTransmittableColumns(schema))
+					ColumnarRecordsCodec.Write(c, records, out);
+			}
+			
+			// Close the stream & return bits:
+			out.close();
+			return out.toBitArray();
+		}
+		catch(TransmissionCapacityExceededException tcee)
+		{
+			throw tcee;
+		}
+		catch(Exception e)
+		{
+			throw new IOException("Error on encoding records.", e);
+		}
+		finally
+		{
+			try
+			{
+				if(out != null)
+					out.close();
+			}
+			catch(Exception ignore) {}
+		}
+	}
+	
+	/**
+	 * Decodes column-wise encoded records (payload format V3), the stream is closed afterwards.
+	 * 
+	 * @param schemataInT
+	 * @param in
+	 * @throws RecordsPayloadDecodeException
+	 */
+	protected void decodeRecordsColumnar(List<Schema> schemataInT, BitInputStream in) throws RecordsPayloadDecodeException
+	{
+		try
+		{
+			IntegerRangeMapping numberOfRecordsPerSchemaField = getNumberOfRecordsPerSchemaField(schemataInT.size());
+			for(Schema schema : schemataInT)
+			{
+				// Read number of records & create them:
+				int numberOfRecordsForSchema = numberOfRecordsPerSchemaField.readInt(in);
+				List<Record> records = new ArrayList<Record>(numberOfRecordsForSchema);
+				for(int r = 0; r < numberOfRecordsForSchema; r++)
+					records.add(schema.createRecord());
+				
+				// Read values column by column:
+				for(Column<?> c : getTransmittableColumns(schema))
+					ColumnarRecordsCodec.Read(c, records, in);
+				
+				recordsBySchema.put(schema, records);
+			}
+		}
+		catch(Exception e)
+		{
+			recordsBySchema.clear(); //remove partially decoded records
+			throw new RecordsPayloadDecodeException(this, "Error on decoding records.", e);
+		}
+		finally
+		{
+			try
+			{
+				in.close();
+			}
+			catch(Exception ignore) {}
+		}
+	}
+	
+	/**
+	 * @param schema
+	 * @return the columns of the given schema of which the values are transmitted (i.e. all non-virtual columns except non-transmittable ones and the auto-incrementing key)
+	 */
+	private List<Column<?>> getTransmittableColumns(Schema schema)
+	{
+		Set<Column<?>> nonTransmittableColumns = transmission.getClient().getNonTransmittableColumns(schema);
+		IntegerColumn autoIncrementKeyColumn = schema.getPrimaryKey() instanceof AutoIncrementingPrimaryKey ? ((AutoIncrementingPrimaryKey) schema.getPrimaryKey()).getColumn() : null;
+		List<Column<?>> columns = new ArrayList<Column<?>>();
+		for(Column<?> c : schema.getColumns(false))
+			if(!nonTransmittableColumns.contains(c) && c != autoIncrementKeyColumn)
+				columns.add(c);
+		return columns;
+	}
+	
 	/**
 	 * The number of bits available to encode all records (*including* the space used by the "numberOfRecordPerSchemaFields"),
 	 * under the assumption no compression will be used (i.e. "without compression" should *not* be interpreted as "before compression").
@@ -522,7 +846,7 @@ public class RecordsPayload extends Payload
 	{
 		return	transmission.getMaxPayloadBits()
 				- FORMAT_VERSION_SIZE				// Format version
-				- Model.MODEL_ID_SIZE				// Model ID
+				- Model.MODEL_ID_SIZE				// Model ID (in the payload or in the transmission header, see Transmission#isModelIDInHeader())
 				- model.getNumberOfSchemata()		// Schema occurrence bits
 				- COMPRESSION_FLAG_FIELD.size();	// Compression flag
 	}
@@ -536,11 +860,52 @@ public class RecordsPayload extends Payload
 	 * and the number of different schemata in the payload. This field is generously sized because
 	 * we want to avoid limiting the number of records we can fit before compression is applied.
 	 * 
+	 * @param numberOfSchemata number of different schemata in the payload (passed in because on the receiving side {@link #recordsBySchema} is still being filled)
 	 * @return the field
 	 */
-	private IntegerRangeMapping getNumberOfRecordsPerSchemaField()
+	private IntegerRangeMapping getNumberOfRecordsPerSchemaField(int numberOfSchemata)
+	{
+		return new IntegerRangeMapping(1, getMaxUncompressedRecordsBits() * 2 / numberOfSchemata);
+	}
+	
+	/**
+	 * Byte-based {@link OutputStream} which writes to a {@link BitOutputStream} (which need not be at a byte boundary).
+	 * Flushing and closing it has no effect on the wrapped stream.
+	 */
+	static private class UnclosableBitOutputStreamWrapper extends OutputStream
 	{
-		return new IntegerRangeMapping(1, getMaxUncompressedRecordsBits() * 2 / recordsBySchema.size());
+		
+		private final BitOutputStream out;
+		
+		public UnclosableBitOutputStreamWrapper(BitOutputStream out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			out.write((byte) b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void flush() throws IOException
+		{
+			// does nothing (flushing a BitOutputStream may pad it to a byte boundary)
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			// does nothing
+		}
+		
 	}
 	
 }
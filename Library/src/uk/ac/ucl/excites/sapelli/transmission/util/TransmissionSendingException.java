@@ -0,0 +1,41 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package uk.ac.ucl.excites.sapelli.transmission.util;
+
+/**
+ * Thrown when a transmission cannot be sent, e.g. because the sender does not provide the required client/service.
+ * 
+ * @author mstevens
+ */
+public class TransmissionSendingException extends Exception
+{
+
+	private static final long serialVersionUID = 1L;
+
+	public TransmissionSendingException(String msg)
+	{
+		super(msg);
+	}
+	
+	public TransmissionSendingException(String msg, Throwable cause)
+	{
+		super(msg, cause);
+	}
+	
+}
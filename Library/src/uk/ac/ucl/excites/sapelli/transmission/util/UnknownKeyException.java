@@ -0,0 +1,50 @@
+/**
+ * Sapelli data collection platform: http://sapelli.org
+ * 
+ * Copyright 2012-2014 University College London - ExCiteS group
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+
+package uk.ac.ucl.excites.sapelli.transmission.util;
+
+/**
+ * Thrown when an encrypted payload cannot be decrypted because none of the keys known for its model matches.
+ * Unlike a {@link PayloadDecodeException} this does not mean the transmission is corrupt: it may well be decodable
+ * once the right key has been configured (e.g. upon loading an updated project).
+ * 
+ * @author mstevens
+ */
+public class UnknownKeyException extends Exception
+{
+
+	private static final long serialVersionUID = 1L;
+	
+	private final long modelID;
+	
+	public UnknownKeyException(long modelID)
+	{
+		super("Could not decrypt payload, no matching key found for model " + modelID);
+		this.modelID = modelID;
+	}
+
+	/**
+	 * @return the ID of the model for which no matching key was found
+	 */
+	public long getModelID()
+	{
+		return modelID;
+	}
+	
+}